@@ -0,0 +1,234 @@
+package io.roastedroot.proxywasm;
+
+import com.dylibso.chicory.compiler.internal.Compiler;
+import com.dylibso.chicory.runtime.Instance;
+import com.dylibso.chicory.runtime.Machine;
+import com.dylibso.chicory.wasm.ChicoryException;
+import com.dylibso.chicory.wasm.WasmModule;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandleProxies;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.function.Function;
+import java.util.jar.JarEntry;
+import java.util.jar.JarInputStream;
+import java.util.jar.JarOutputStream;
+
+/**
+ * Compiles WASM modules to Java bytecode at runtime and caches the generated classes on disk.
+ *
+ * <p>Compiling a module with the Chicory runtime compiler is much faster to execute than
+ * interpreting it, but the compilation itself can take a while for big modules.  This cache
+ * stores the generated classes in a jar file named after the SHA-256 hash of the module bytes,
+ * so that later JVM starts that load the same module skip the compilation:
+ *
+ * <pre>
+ * byte[] wasm = Files.readAllBytes(Path.of("plugin.wasm"));
+ * WasmModule module = Parser.parse(wasm);
+ * var cache = CompilationCache.of(Path.of("/var/cache/proxy-wasm"));
+ * PluginFactory.builder(module, cache.machineFactory(module, wasm))
+ *         .withName("waf")
+ *         .build();
+ * </pre>
+ *
+ * <p>Cache entries are also keyed by the Chicory compiler version, so upgrading Chicory
+ * recompiles the modules.  Entries are written atomically, so several JVMs can share a cache
+ * directory.  An entry that can't be read is replaced by a freshly compiled one.
+ *
+ * <p>The cache needs the {@code com.dylibso.chicory:compiler} artifact, which is an optional
+ * dependency of this library, to be added to the application.  It uses
+ * {@code com.dylibso.chicory.compiler.internal.Compiler}, because Chicory 1.4.0 has no public API
+ * that returns the generated class bytes, so it may need updating along with Chicory.
+ *
+ * <p>If the modules are known at build time, prefer compiling them with the
+ * {@code chicory-compiler-maven-plugin}, see {@link PluginFactory#builder(WasmModule, Function)}.
+ */
+public final class CompilationCache {
+
+    private static final String CLASS_SUFFIX = ".class";
+    private static final String COMPILER_VERSION = compilerVersion();
+
+    private final Path directory;
+
+    private CompilationCache(Path directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * Creates a cache that stores the compiled modules in the given directory.  The directory
+     * is created when the first module is stored.
+     *
+     * @param directory the directory holding the cached compiled modules.
+     * @return a new {@link CompilationCache}.
+     */
+    public static CompilationCache of(Path directory) {
+        return new CompilationCache(directory);
+    }
+
+    /**
+     * Returns the directory holding the cached compiled modules.
+     *
+     * @return the cache directory.
+     */
+    public Path directory() {
+        return directory;
+    }
+
+    /**
+     * Returns a machine factory that runs the compiled module.
+     *
+     * <p>The generated classes are loaded from the cache if a matching entry exists.  Otherwise
+     * the module is compiled and the generated classes are stored in the cache.  Compilation
+     * happens when this method is called, not when the first instance is created.
+     *
+     * @param module the parsed WASM module.
+     * @param wasm the bytes the {@code module} was parsed from, used to compute the cache key.
+     * @return the factory that creates the {@link Machine} for instances of the module.
+     * @throws UncheckedIOException if the compiled module can't be stored in the cache.
+     * @throws ChicoryException if the module can't be compiled.
+     */
+    public Function<Instance, Machine> machineFactory(WasmModule module, byte[] wasm) {
+        Path file = directory.resolve(key(wasm) + ".jar");
+        Map<String, byte[]> classes = read(file);
+        if (classes == null) {
+            classes = Compiler.builder(module).build().compile().classBytes();
+            write(file, classes);
+        }
+        return machineFactory(classes);
+    }
+
+    private static Map<String, byte[]> read(Path file) {
+        if (!Files.isRegularFile(file)) {
+            return null;
+        }
+        var classes = new HashMap<String, byte[]>();
+        try (var in = new JarInputStream(Files.newInputStream(file))) {
+            for (JarEntry entry = in.getNextJarEntry();
+                    entry != null;
+                    entry = in.getNextJarEntry()) {
+                String name = entry.getName();
+                if (name.endsWith(CLASS_SUFFIX)) {
+                    String className =
+                            name.substring(0, name.length() - CLASS_SUFFIX.length())
+                                    .replace('/', '.');
+                    classes.put(className, in.readAllBytes());
+                }
+            }
+        } catch (IOException e) {
+            // a truncated or corrupted entry, compile the module again.
+            return null;
+        }
+        if (!classes.containsKey(Compiler.DEFAULT_CLASS_NAME)) {
+            return null;
+        }
+        return classes;
+    }
+
+    private static void write(Path file, Map<String, byte[]> classes) {
+        try {
+            Files.createDirectories(file.getParent());
+            Path tmp =
+                    Files.createTempFile(file.getParent(), file.getFileName().toString(), ".tmp");
+            try {
+                try (var out = new JarOutputStream(Files.newOutputStream(tmp))) {
+                    for (var entry : classes.entrySet()) {
+                        out.putNextEntry(
+                                new JarEntry(entry.getKey().replace('.', '/') + CLASS_SUFFIX));
+                        out.write(entry.getValue());
+                        out.closeEntry();
+                    }
+                }
+                move(tmp, file);
+            } finally {
+                Files.deleteIfExists(tmp);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to store compiled module: " + file, e);
+        }
+    }
+
+    private static void move(Path source, Path target) throws IOException {
+        try {
+            Files.move(source, target, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(source, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Function<Instance, Machine> machineFactory(Map<String, byte[]> classes) {
+        var loader = new CompiledClassLoader(classes);
+        try {
+            Class<?> machine = loader.loadClass(Compiler.DEFAULT_CLASS_NAME);
+            MethodHandle constructor =
+                    MethodHandles.publicLookup()
+                            .findConstructor(
+                                    machine, MethodType.methodType(void.class, Instance.class));
+            return MethodHandleProxies.asInterfaceInstance(Function.class, constructor);
+        } catch (ReflectiveOperationException e) {
+            throw new ChicoryException(e);
+        }
+    }
+
+    private static String key(byte[] wasm) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        StringBuilder key = new StringBuilder();
+        for (byte b : digest.digest(wasm)) {
+            key.append(Character.forDigit((b >> 4) & 0xf, 16));
+            key.append(Character.forDigit(b & 0xf, 16));
+        }
+        return key.append('-').append(COMPILER_VERSION).toString();
+    }
+
+    private static String compilerVersion() {
+        try (InputStream in =
+                Compiler.class.getResourceAsStream(
+                        "/META-INF/maven/com.dylibso.chicory/compiler/pom.properties")) {
+            if (in != null) {
+                var properties = new Properties();
+                properties.load(in);
+                return properties.getProperty("version", "unknown");
+            }
+        } catch (IOException e) {
+            // fall through
+        }
+        return "unknown";
+    }
+
+    private static final class CompiledClassLoader extends ClassLoader {
+
+        private final Map<String, byte[]> classes;
+
+        CompiledClassLoader(Map<String, byte[]> classes) {
+            // the generated classes use both the runtime and the compiler support classes.
+            super(Compiler.class.getClassLoader());
+            this.classes = classes;
+        }
+
+        @Override
+        protected Class<?> findClass(String name) throws ClassNotFoundException {
+            byte[] bytes = classes.get(name);
+            if (bytes == null) {
+                throw new ClassNotFoundException(name);
+            }
+            return defineClass(name, bytes, 0, bytes.length);
+        }
+    }
+}
@@ -0,0 +1,360 @@
+package io.roastedroot.proxywasm;
+
+import io.roastedroot.proxywasm.internal.WasmResult;
+import java.time.Duration;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+/**
+ * An in-memory implementation of the {@link SharedDataHandler} interface for plugins shared
+ * by many threads or pooled instances.
+ *
+ * <p>Unlike {@link SimpleSharedDataHandler}, reads never lock and writes only lock the key they
+ * update, so concurrent requests touching different keys don't contend.  The CAS semantics are
+ * the same: a CAS of {@code 0} writes unconditionally, any other CAS only writes if it is the
+ * CAS of the current value, and a CAS for a key that doesn't exist is a
+ * {@link WasmResult#CAS_MISMATCH}.  The CAS values come from a single counter, so a key that is
+ * removed and set again never gets a CAS a plugin may still hold.
+ *
+ * <p>The handler keeps its entries within a byte budget, where an entry weighs the length of
+ * its key plus the length of its value.  Once a write takes it over the budget, entries are
+ * evicted, in one batch, until it is back to {@value #LOW_WATERMARK}% of the budget.  Like
+ * Redis, the eviction is an approximated LRU: each entry evicted is the least recently used of
+ * the next {@value #EVICTION_SAMPLES} entries of the table, so it never sorts the table.
+ * Concurrent writes may exceed the budget until that batch completes.
+ *
+ * <p>Entries can also expire after a time to live, which may differ per key.  An expired entry
+ * is removed when it is read, and each write also looks at the next {@value #SWEEP_STEP}
+ * entries of the table for expired ones, so that the entries nobody reads anymore don't pile
+ * up:
+ *
+ * <pre>
+ * PluginFactory.builder(module)
+ *         .withSharedDataHandler(ConcurrentSharedDataHandler.builder()
+ *                 .withMaxBytes(64 * 1024 * 1024)
+ *                 .withTtl(key -&gt; key.startsWith("token:") ? Duration.ofMinutes(5) : null)
+ *                 .build())
+ *         .build();
+ * </pre>
+ */
+public final class ConcurrentSharedDataHandler implements SharedDataHandler {
+
+    /**
+     * The percentage of the byte budget that an eviction goes down to.
+     */
+    public static final int LOW_WATERMARK = 90;
+
+    /**
+     * The number of entries looked at for each entry evicted.
+     */
+    public static final int EVICTION_SAMPLES = 16;
+
+    /**
+     * The number of entries each write looks at for expired ones.
+     */
+    public static final int SWEEP_STEP = 4;
+
+    private static final class Entry {
+        final SharedData data;
+        final long weight;
+        final long expiresAt;
+        volatile long lastAccess;
+
+        Entry(SharedData data, long weight, long expiresAt, long now) {
+            this.data = data;
+            this.weight = weight;
+            this.expiresAt = expiresAt;
+            this.lastAccess = now;
+        }
+
+        boolean expired(long now) {
+            return expiresAt != 0 && expiresAt - now <= 0;
+        }
+    }
+
+    private final long maxBytes;
+    private final Function<String, Duration> ttl;
+    private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<>();
+    private final AtomicInteger versions = new AtomicInteger();
+    private final AtomicLong bytes = new AtomicLong();
+    // a single thread sweeps or evicts at a time, walking the table from where the last one
+    // stopped.
+    private final AtomicBoolean sweeping = new AtomicBoolean();
+    private Iterator<Map.Entry<String, Entry>> cursor;
+    private volatile boolean expiring;
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder expirations = new LongAdder();
+
+    private ConcurrentSharedDataHandler(Builder builder) {
+        this.maxBytes = builder.maxBytes;
+        this.ttl = builder.ttl;
+    }
+
+    /**
+     * Creates a new {@link Builder} for a {@link ConcurrentSharedDataHandler}.
+     *
+     * @return a new {@link ConcurrentSharedDataHandler.Builder} instance.
+     */
+    public static ConcurrentSharedDataHandler.Builder builder() {
+        return new ConcurrentSharedDataHandler.Builder();
+    }
+
+    /**
+     * Builder for {@link ConcurrentSharedDataHandler} instances.
+     */
+    public static final class Builder {
+
+        private long maxBytes = Long.MAX_VALUE;
+        private Function<String, Duration> ttl = key -> null;
+
+        private Builder() {}
+
+        /**
+         * Sets the byte budget of the handler, the least recently used entries are evicted to
+         * stay within it.  Defaults to no limit.
+         *
+         * @param maxBytes the maximum weight of the entries.
+         * @return this {@code Builder} instance for method chaining.
+         */
+        public ConcurrentSharedDataHandler.Builder withMaxBytes(long maxBytes) {
+            if (maxBytes < 1) {
+                throw new IllegalArgumentException("maxBytes must be at least 1");
+            }
+            this.maxBytes = maxBytes;
+            return this;
+        }
+
+        /**
+         * Sets how long the entries are kept after they are set.  Defaults to forever.
+         *
+         * @param ttl the time to live of all the entries.
+         * @return this {@code Builder} instance for method chaining.
+         */
+        public ConcurrentSharedDataHandler.Builder withTtl(Duration ttl) {
+            Objects.requireNonNull(ttl);
+            return withTtl(key -> ttl);
+        }
+
+        /**
+         * Sets how long the entries are kept after they are set, per key.
+         *
+         * @param ttl returns the time to live of an entry from its key, or {@code null} or
+         *            {@link Duration#ZERO} to keep it forever.
+         * @return this {@code Builder} instance for method chaining.
+         */
+        public ConcurrentSharedDataHandler.Builder withTtl(Function<String, Duration> ttl) {
+            this.ttl = Objects.requireNonNull(ttl);
+            return this;
+        }
+
+        /**
+         * Builds the handler.
+         *
+         * @return a new {@link ConcurrentSharedDataHandler}.
+         */
+        public ConcurrentSharedDataHandler build() {
+            return new ConcurrentSharedDataHandler(this);
+        }
+    }
+
+    /**
+     * Returns the number of entries, including the expired ones not removed yet.
+     *
+     * @return the number of entries.
+     */
+    public int size() {
+        return entries.size();
+    }
+
+    /**
+     * Returns the weight of the entries, including the expired ones not removed yet.
+     *
+     * @return the number of bytes used.
+     */
+    public long bytes() {
+        return bytes.get();
+    }
+
+    /**
+     * Returns the number of entries evicted to stay within the byte budget.
+     *
+     * @return the number of evictions.
+     */
+    public long evictions() {
+        return evictions.sum();
+    }
+
+    /**
+     * Returns the number of entries removed because their time to live elapsed.
+     *
+     * @return the number of expirations.
+     */
+    public long expirations() {
+        return expirations.sum();
+    }
+
+    /**
+     * Retrieves the shared data associated with the given key.
+     *
+     * @param key The key identifying the shared data item.
+     * @return A {@link SharedData} object containing the value and its current CAS value,
+     *         or {@code null} if the key is not found or has expired.
+     */
+    @Override
+    public SharedData getSharedData(String key) {
+        var entry = entries.get(key);
+        if (entry == null) {
+            return null;
+        }
+        long now = System.nanoTime();
+        if (entry.expired(now)) {
+            expire(key, entry);
+            return null;
+        }
+        entry.lastAccess = now;
+        return entry.data;
+    }
+
+    /**
+     * Sets or updates the shared data associated with the given key, with the same CAS
+     * semantics as {@link SimpleSharedDataHandler#setSharedData(String, byte[], int)}.
+     *
+     * @param key   The key identifying the shared data item.
+     * @param value The new data value to store (can be null).
+     * @param cas   The Compare-And-Swap value for conditional update, or 0 for unconditional update.
+     * @return {@link WasmResult#OK} if the update was successful,
+     *         {@link WasmResult#CAS_MISMATCH} if the CAS check failed, or
+     *         {@link WasmResult#INTERNAL_FAILURE} if the entry alone exceeds the byte budget.
+     */
+    @Override
+    public WasmResult setSharedData(String key, byte[] value, int cas) {
+        long weight = key.length() + (value == null ? 0 : value.length);
+        if (weight > maxBytes) {
+            return WasmResult.INTERNAL_FAILURE;
+        }
+        var result = new WasmResult[] {WasmResult.OK};
+        entries.compute(
+                key,
+                (k, current) -> {
+                    long now = System.nanoTime();
+                    if (current != null && current.expired(now)) {
+                        bytes.addAndGet(-current.weight);
+                        expirations.increment();
+                        current = null;
+                    }
+                    if (cas != 0 && (current == null || current.data.cas() != cas)) {
+                        result[0] = WasmResult.CAS_MISMATCH;
+                        return current;
+                    }
+                    var entry =
+                            new Entry(
+                                    new SharedData(value, nextCas()),
+                                    weight,
+                                    expiresAt(k, now),
+                                    now);
+                    if (entry.expiresAt != 0 && !expiring) {
+                        expiring = true;
+                    }
+                    bytes.addAndGet(weight - (current == null ? 0 : current.weight));
+                    return entry;
+                });
+        if (result[0] == WasmResult.OK && (expiring || bytes.get() > maxBytes)) {
+            maintain();
+        }
+        return result[0];
+    }
+
+    // cas 0 means unconditional, so it is never handed out.
+    private int nextCas() {
+        int cas;
+        do {
+            cas = versions.incrementAndGet();
+        } while (cas == 0);
+        return cas;
+    }
+
+    private long expiresAt(String key, long now) {
+        var timeToLive = ttl.apply(key);
+        if (timeToLive == null || timeToLive.isZero() || timeToLive.isNegative()) {
+            return 0;
+        }
+        long expiresAt = now + timeToLive.toNanos();
+        // 0 means never.
+        return expiresAt == 0 ? 1 : expiresAt;
+    }
+
+    private void expire(String key, Entry entry) {
+        // only removes the entry if it was not replaced in the meantime.
+        if (entries.remove(key, entry)) {
+            bytes.addAndGet(-entry.weight);
+            expirations.increment();
+        }
+    }
+
+    // a single thread sweeps at a time, the others keep writing instead of waiting for it.
+    private void maintain() {
+        if (!sweeping.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            long now = System.nanoTime();
+            if (expiring) {
+                for (int i = 0; i < SWEEP_STEP; i++) {
+                    var e = next();
+                    if (e == null) {
+                        break;
+                    }
+                    if (e.getValue().expired(now)) {
+                        expire(e.getKey(), e.getValue());
+                    }
+                }
+            }
+            if (bytes.get() > maxBytes) {
+                evict(now);
+            }
+        } finally {
+            sweeping.set(false);
+        }
+    }
+
+    private void evict(long now) {
+        long target = (long) (maxBytes * (LOW_WATERMARK / 100.0));
+        while (bytes.get() > target) {
+            Map.Entry<String, Entry> oldest = null;
+            for (int i = 0; i < EVICTION_SAMPLES; i++) {
+                var e = next();
+                if (e == null) {
+                    return;
+                }
+                if (e.getValue().expired(now)) {
+                    expire(e.getKey(), e.getValue());
+                } else if (oldest == null
+                        || e.getValue().lastAccess - oldest.getValue().lastAccess < 0) {
+                    oldest = e;
+                }
+            }
+            if (oldest != null && entries.remove(oldest.getKey(), oldest.getValue())) {
+                bytes.addAndGet(-oldest.getValue().weight);
+                evictions.increment();
+            }
+        }
+    }
+
+    // the next entry of the table, starting over at its end, or null if it is empty.
+    private Map.Entry<String, Entry> next() {
+        if (cursor == null || !cursor.hasNext()) {
+            cursor = entries.entrySet().iterator();
+            if (!cursor.hasNext()) {
+                return null;
+            }
+        }
+        return cursor.next();
+    }
+}
@@ -0,0 +1,301 @@
+package io.roastedroot.proxywasm;
+
+import io.roastedroot.proxywasm.internal.WasmResult;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * An in-memory implementation of the {@link SharedQueueHandler} interface for plugins shared
+ * by many threads or pooled instances, which wakes up the plugins receiving from the queues.
+ *
+ * <p>Unlike {@link SimpleSharedQueueHandler}, the queues are lock-free, the names are indexed,
+ * and each queue holds at most {@code capacity} messages: enqueueing to a full queue fails with
+ * {@link WasmResult#INTERNAL_FAILURE}, so that a sender outpacing its receivers finds out
+ * instead of filling the heap.
+ *
+ * <p>The plugins that register a queue are subscribed to it, and get
+ * {@code proxy_on_queue_ready} from the executor when messages are enqueued.  Notifications are
+ * coalesced: while one is pending, enqueueing more messages doesn't schedule another one, and
+ * once the receiver has run, it is notified again only if it dequeued messages and some are
+ * left.  When several instances of a plugin registered the queue, each notification goes to the
+ * next one in turn.
+ *
+ * <pre>
+ * var queues = ConcurrentSharedQueueHandler.builder().withCapacity(10_000).build();
+ * PluginFactory.builder(receiver).withSharedQueueHandler(queues).build();
+ * PluginFactory.builder(sender).withSharedQueueHandler(queues).build();
+ * </pre>
+ */
+public final class ConcurrentSharedQueueHandler implements SharedQueueHandler {
+
+    /**
+     * The default maximum number of messages held by a queue.
+     */
+    public static final int DEFAULT_CAPACITY = 10_000;
+
+    private final class Queue {
+        final QueueName name;
+        final int id;
+        final ConcurrentLinkedQueue<byte[]> messages = new ConcurrentLinkedQueue<>();
+        final AtomicInteger size = new AtomicInteger();
+        final AtomicLong dequeues = new AtomicLong();
+        final CopyOnWriteArrayList<Runnable> subscribers = new CopyOnWriteArrayList<>();
+        final AtomicInteger nextSubscriber = new AtomicInteger();
+        final AtomicBoolean notifying = new AtomicBoolean();
+
+        Queue(QueueName name, int id) {
+            this.name = name;
+            this.id = id;
+        }
+
+        // schedules a notification, unless one is already pending.
+        void notifySubscriber() {
+            if (subscribers.isEmpty() || !notifying.compareAndSet(false, true)) {
+                return;
+            }
+            try {
+                executor.execute(this::notifyNow);
+            } catch (RejectedExecutionException e) {
+                // the messages wait for the next enqueue to schedule a notification again.
+                notifying.set(false);
+                return;
+            }
+            notifications.increment();
+        }
+
+        private void notifyNow() {
+            // messages enqueued while the subscriber runs schedule another one.
+            notifying.set(false);
+            long before = dequeues.get();
+            var subscribers = this.subscribers.toArray(new Runnable[0]);
+            if (subscribers.length > 0) {
+                int i = Math.floorMod(nextSubscriber.getAndIncrement(), subscribers.length);
+                subscribers[i].run();
+            }
+            if (size.get() > 0 && dequeues.get() != before) {
+                notifySubscriber();
+            }
+        }
+    }
+
+    private final int capacity;
+    private final Executor executor;
+    private final AtomicInteger lastQueueId = new AtomicInteger();
+    private final ConcurrentHashMap<QueueName, Queue> queuesByName = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<Integer, Queue> queues = new ConcurrentHashMap<>();
+    private final LongAdder rejections = new LongAdder();
+    private final LongAdder notifications = new LongAdder();
+
+    private ConcurrentSharedQueueHandler(Builder builder) {
+        this.capacity = builder.capacity;
+        this.executor =
+                builder.executor != null
+                        ? builder.executor
+                        : Executors.newCachedThreadPool(
+                                task -> {
+                                    var thread = new Thread(task, "proxy-wasm-queue-notifier");
+                                    thread.setDaemon(true);
+                                    return thread;
+                                });
+    }
+
+    /**
+     * Creates a new {@link Builder} for a {@link ConcurrentSharedQueueHandler}.
+     *
+     * @return a new {@link ConcurrentSharedQueueHandler.Builder} instance.
+     */
+    public static ConcurrentSharedQueueHandler.Builder builder() {
+        return new ConcurrentSharedQueueHandler.Builder();
+    }
+
+    /**
+     * Builder for {@link ConcurrentSharedQueueHandler} instances.
+     */
+    public static final class Builder {
+
+        private int capacity = DEFAULT_CAPACITY;
+        private Executor executor;
+
+        private Builder() {}
+
+        /**
+         * Sets the maximum number of messages held by each queue.  Defaults to
+         * {@value ConcurrentSharedQueueHandler#DEFAULT_CAPACITY}.
+         *
+         * @param capacity the maximum number of messages.
+         * @return this {@code Builder} instance for method chaining.
+         */
+        public ConcurrentSharedQueueHandler.Builder withCapacity(int capacity) {
+            if (capacity < 1) {
+                throw new IllegalArgumentException("capacity must be at least 1");
+            }
+            this.capacity = capacity;
+            return this;
+        }
+
+        /**
+         * Sets the executor that calls {@code proxy_on_queue_ready} on the subscribed plugins.
+         * The notifications wait for the plugins to be free, so they shouldn't share a pool
+         * with other work, like the common fork join pool.  Defaults to a pool of daemon
+         * threads of the handler, which grows with the queues notified at once.
+         *
+         * @param executor the executor of the notifications.
+         * @return this {@code Builder} instance for method chaining.
+         */
+        public ConcurrentSharedQueueHandler.Builder withExecutor(Executor executor) {
+            this.executor = Objects.requireNonNull(executor);
+            return this;
+        }
+
+        /**
+         * Builds the handler.
+         *
+         * @return a new {@link ConcurrentSharedQueueHandler}.
+         */
+        public ConcurrentSharedQueueHandler build() {
+            return new ConcurrentSharedQueueHandler(this);
+        }
+    }
+
+    /**
+     * Returns the number of messages in a queue.
+     *
+     * @param queueId The ID of the queue.
+     * @return the number of messages, or {@code 0} if no queue exists with that ID.
+     */
+    public int size(int queueId) {
+        var queue = queues.get(queueId);
+        return queue == null ? 0 : queue.size.get();
+    }
+
+    /**
+     * Returns the number of messages refused because their queue was full.
+     *
+     * @return the number of rejections.
+     */
+    public long rejections() {
+        return rejections.sum();
+    }
+
+    /**
+     * Returns the number of {@code proxy_on_queue_ready} notifications scheduled.
+     *
+     * @return the number of notifications.
+     */
+    public long notifications() {
+        return notifications.sum();
+    }
+
+    /**
+     * Registers a new shared queue with the given name or returns the ID if it already exists.
+     *
+     * @param queueName The {@link QueueName} (VM ID and name string) to register or resolve.
+     * @return The integer ID of the (potentially newly created) queue.
+     */
+    @Override
+    public int registerSharedQueue(QueueName queueName) {
+        return queuesByName.computeIfAbsent(
+                        queueName,
+                        name -> {
+                            var queue = new Queue(name, lastQueueId.incrementAndGet());
+                            queues.put(queue.id, queue);
+                            return queue;
+                        })
+                .id;
+    }
+
+    /**
+     * Finds the ID of an existing queue based on its name.
+     *
+     * @param queueName The {@link QueueName} (VM ID and name string) to look up.
+     * @return The integer ID of the existing queue.
+     * @throws WasmException with {@link WasmResult#NOT_FOUND} if no queue with the specified name exists.
+     */
+    @Override
+    public int resolveSharedQueue(QueueName queueName) throws WasmException {
+        var queue = queuesByName.get(queueName);
+        if (queue == null) {
+            throw new WasmException(WasmResult.NOT_FOUND);
+        }
+        return queue.id;
+    }
+
+    /**
+     * Removes and returns the message at the front of the specified queue.
+     *
+     * @param queueId The ID of the target queue.
+     * @return The dequeued message data as a byte array, or {@code null} if the queue is empty.
+     * @throws WasmException with {@link WasmResult#NOT_FOUND} if the queue ID is invalid.
+     */
+    @Override
+    public byte[] dequeueSharedQueue(int queueId) throws WasmException {
+        var queue = queues.get(queueId);
+        if (queue == null) {
+            throw new WasmException(WasmResult.NOT_FOUND);
+        }
+        var message = queue.messages.poll();
+        if (message != null) {
+            queue.size.decrementAndGet();
+            queue.dequeues.incrementAndGet();
+        }
+        return message;
+    }
+
+    /**
+     * Adds a message to the end of the specified queue, and notifies a subscriber of the queue.
+     *
+     * @param queueId The ID of the target queue.
+     * @param value   The message data to enqueue.
+     * @return {@link WasmResult#OK} if successful, {@link WasmResult#NOT_FOUND} if the queue ID
+     *         is invalid, or {@link WasmResult#INTERNAL_FAILURE} if the queue is full.
+     */
+    @Override
+    public WasmResult enqueueSharedQueue(int queueId, byte[] value) {
+        var queue = queues.get(queueId);
+        if (queue == null) {
+            return WasmResult.NOT_FOUND;
+        }
+        // reserves the room for the message before adding it, so the capacity is never exceeded.
+        if (queue.size.incrementAndGet() > capacity) {
+            queue.size.decrementAndGet();
+            rejections.increment();
+            return WasmResult.INTERNAL_FAILURE;
+        }
+        queue.messages.add(value == null ? new byte[0] : value);
+        queue.notifySubscriber();
+        return WasmResult.OK;
+    }
+
+    /**
+     * Subscribes to a queue, {@code onReady} is called from the executor when messages are
+     * enqueued.
+     *
+     * @param queueId The ID of the queue.
+     * @param onReady called when the queue has messages.
+     * @return unsubscribes.
+     * @throws WasmException with {@link WasmResult#NOT_FOUND} if the queue ID is invalid.
+     */
+    @Override
+    public Runnable subscribeSharedQueue(int queueId, Runnable onReady) throws WasmException {
+        var queue = queues.get(queueId);
+        if (queue == null) {
+            throw new WasmException(WasmResult.NOT_FOUND);
+        }
+        var subscriber = Objects.requireNonNull(onReady);
+        queue.subscribers.add(subscriber);
+        // messages may have been enqueued before anyone listened.
+        if (queue.size.get() > 0) {
+            queue.notifySubscriber();
+        }
+        return () -> queue.subscribers.remove(subscriber);
+    }
+}
@@ -0,0 +1,177 @@
+package io.roastedroot.proxywasm;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * A {@link ReplicationTransport} between nodes in the same JVM, to test replicated plugins
+ * without a network.
+ *
+ * <pre>
+ * var network = new LoopbackReplicationTransport.Network();
+ * var a = ReplicatedSharedDataHandler.builder(network.node("a")).build();
+ * var b = ReplicatedSharedDataHandler.builder(network.node("b")).build();
+ * </pre>
+ */
+public final class LoopbackReplicationTransport implements ReplicationTransport {
+
+    /**
+     * The nodes that can reach each other.
+     */
+    public static final class Network {
+
+        private final ConcurrentHashMap<String, LoopbackReplicationTransport> nodes =
+                new ConcurrentHashMap<>();
+        // the names in the order the nodes were first added, a node keeps its place when it
+        // leaves and joins again.
+        private final CopyOnWriteArrayList<String> names = new CopyOnWriteArrayList<>();
+        private final List<Runnable> held = new ArrayList<>();
+        private final Set<String> disconnected = ConcurrentHashMap.newKeySet();
+        private boolean paused;
+
+        /**
+         * Constructs an empty network.
+         */
+        public Network() {}
+
+        /**
+         * Adds a node to the network.  The nodes are listed in the order they were first added,
+         * so a node added later doesn't change the place of the others.
+         *
+         * @param name the name of the node.
+         * @return the transport of the node.
+         */
+        public LoopbackReplicationTransport node(String name) {
+            var node = new LoopbackReplicationTransport(this, name);
+            if (nodes.putIfAbsent(name, node) != null) {
+                throw new IllegalArgumentException("duplicate node: " + name);
+            }
+            names.addIfAbsent(name);
+            return node;
+        }
+
+        /**
+         * Holds the batches broadcast from now on until {@link #resume()}, like a slow network
+         * would.  Requests still go through.
+         */
+        public synchronized void pause() {
+            paused = true;
+        }
+
+        /**
+         * Delivers the held batches, and the next ones as they are broadcast.
+         */
+        public synchronized void resume() {
+            paused = false;
+            held.forEach(Runnable::run);
+            held.clear();
+        }
+
+        /**
+         * Cuts a node off the network, like a crash or a partition would: the batches
+         * broadcast to or from it are lost, and its requests fail.
+         *
+         * @param name the name of the node.
+         */
+        public void disconnect(String name) {
+            disconnected.add(name);
+        }
+
+        /**
+         * Connects a node cut off by {@link #disconnect(String)} again.
+         *
+         * @param name the name of the node.
+         */
+        public void connect(String name) {
+            disconnected.remove(name);
+        }
+
+        private boolean reachable(String from, String to) {
+            return !disconnected.contains(from) && !disconnected.contains(to);
+        }
+
+        private synchronized void deliver(Runnable delivery) {
+            if (paused) {
+                held.add(delivery);
+            } else {
+                delivery.run();
+            }
+        }
+    }
+
+    private final Network network;
+    private final String name;
+    // delivers the batches of this node one at a time, so they arrive in order.
+    private final ExecutorService deliveries =
+            Executors.newSingleThreadExecutor(
+                    r -> {
+                        var thread = new Thread(r, "proxy-wasm-loopback-replication");
+                        thread.setDaemon(true);
+                        return thread;
+                    });
+    private volatile Receiver receiver;
+
+    private LoopbackReplicationTransport(Network network, String name) {
+        this.network = network;
+        this.name = Objects.requireNonNull(name);
+    }
+
+    @Override
+    public String localNode() {
+        return name;
+    }
+
+    @Override
+    public List<String> nodes() {
+        return List.copyOf(network.names);
+    }
+
+    @Override
+    public void start(Receiver receiver) {
+        this.receiver = Objects.requireNonNull(receiver);
+    }
+
+    @Override
+    public void broadcast(byte[] batch) {
+        for (var node : network.nodes.values()) {
+            if (node != this && network.reachable(name, node.name)) {
+                network.deliver(
+                        () ->
+                                deliveries.execute(
+                                        () -> {
+                                            var receiver = node.receiver;
+                                            if (receiver != null) {
+                                                receiver.onBatch(batch);
+                                            }
+                                        }));
+            }
+        }
+    }
+
+    @Override
+    public byte[] request(String node, byte[] request) throws IOException {
+        var target = network.nodes.get(node);
+        var receiver = target == null ? null : target.receiver;
+        if (receiver == null) {
+            throw new IOException("unknown node: " + node);
+        }
+        if (!network.reachable(name, node)) {
+            throw new IOException("unreachable node: " + node);
+        }
+        return receiver.onRequest(request);
+    }
+
+    @Override
+    public void close() {
+        network.nodes.remove(name, this);
+        receiver = null;
+        deliveries.shutdown();
+    }
+}
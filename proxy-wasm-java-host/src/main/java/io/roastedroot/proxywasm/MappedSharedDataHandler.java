@@ -0,0 +1,570 @@
+package io.roastedroot.proxywasm;
+
+import io.roastedroot.proxywasm.internal.WasmResult;
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.Objects;
+
+/**
+ * A {@link SharedDataHandler} backed by a memory-mapped file, so that the JVMs of a host mapping
+ * the same file share the data of their plugins, and the data survives their restarts.
+ *
+ * <p>The file holds a hash table of fixed size slots, each holding one key and its value, which
+ * are looked up by linear probing.  A slot has a version: readers copy the slot and retry if
+ * its version changed meanwhile, so they never lock.  Writers compare and swap the owner of the
+ * slot from none to their process ID, and keep the version odd while they update the slot, which
+ * orders the writes of all the processes.  The CAS of a value is derived from the version of its
+ * slot, so it is a valid {@link SharedData#cas()} in all the processes and after restarts.
+ *
+ * <p>A key set to {@code null} keeps its slot, as a tombstone that a new key can take over.  A key
+ * is looked for in at most {@link #MAX_PROBES} slots from the one its hash points to, so a new key
+ * fails with {@link WasmResult#INTERNAL_FAILURE} when those slots all hold live keys, which
+ * happens as the table gets full.  A key and its value must fit in a slot, or the write fails
+ * with {@link WasmResult#INTERNAL_FAILURE} too.  The processes adding keys that hash to the same
+ * slot take turns through a second lock of that slot, so a key is never added twice.
+ * A process that dies while writing leaves its slot locked: once {@link #LOCK_TIMEOUT_NANOS}
+ * elapsed, the next reader or writer checks whether the owner is still alive, recovers the slot
+ * if it isn't, and the value of the slot then reads as {@code null}.  A slot owned by a live
+ * process, for instance one paused by a long garbage collection, is never taken from it, so the
+ * processes mapping a file must see each other's IDs, which means sharing a PID namespace.
+ *
+ * <pre>
+ * var sharedData = MappedSharedDataHandler.builder(Path.of("/dev/shm/plugins.data"))
+ *         .withSlots(65536)
+ *         .withSlotSize(256)
+ *         .build();
+ * PluginFactory.builder(module).withSharedDataHandler(sharedData).build();
+ * </pre>
+ *
+ * <p>The slot count and size of an existing file are kept, whatever the builder says.
+ */
+public final class MappedSharedDataHandler implements SharedDataHandler, Closeable {
+
+    /**
+     * The default number of slots.
+     */
+    public static final int DEFAULT_SLOTS = 16384;
+
+    /**
+     * The default size of a slot, in bytes.
+     */
+    public static final int DEFAULT_SLOT_SIZE = 256;
+
+    /**
+     * How long a locked slot is waited for before checking whether its owner is still alive.
+     */
+    public static final long LOCK_TIMEOUT_NANOS = 1_000_000_000L;
+
+    /**
+     * The maximum number of slots looked at for a key.
+     */
+    public static final int MAX_PROBES = 128;
+
+    private static final int MAGIC = 0x50575344; // "PWSD"
+    private static final int LAYOUT = 3;
+    private static final int HEADER_SIZE = 64;
+
+    // the layout of a slot: the version and the lengths are ints, the owners of the locks and the
+    // time they started are longs, followed by the key and value.  the key length is stored plus
+    // one, so that 0 is an empty slot, a value length of -1 is null, and an owner of 0 is none.
+    // the owner guards the slot, the inserter the keys added from this slot.
+    private static final int VERSION = 0;
+    private static final int HASH = 4;
+    private static final int KEY_LENGTH = 8;
+    private static final int VALUE_LENGTH = 12;
+    private static final int OWNER = 16;
+    private static final int INSERTER = 32;
+    private static final int STARTED_AT = 8;
+    private static final int DATA = 48;
+
+    private static final VarHandle INT =
+            MethodHandles.byteBufferViewVarHandle(int[].class, ByteOrder.nativeOrder());
+    private static final VarHandle LONG =
+            MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.nativeOrder());
+
+    private static final long PID = ProcessHandle.current().pid();
+    private static final long STARTED = started(ProcessHandle.current());
+
+    private final FileChannel channel;
+    private final MappedByteBuffer buffer;
+    private final int slots;
+    private final int slotSize;
+
+    private MappedSharedDataHandler(Builder builder) throws IOException {
+        this.channel =
+                FileChannel.open(
+                        builder.path,
+                        StandardOpenOption.CREATE,
+                        StandardOpenOption.READ,
+                        StandardOpenOption.WRITE);
+        try {
+            // the processes opening the file at the same time wait for the first to initialize it.
+            try (FileLock ignored = channel.lock()) {
+                var header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.nativeOrder());
+                channel.read(header, 0);
+                header.flip();
+                if (header.remaining() == HEADER_SIZE && header.getInt(0) == MAGIC) {
+                    if (header.getInt(4) != LAYOUT) {
+                        throw new IOException("unsupported shared data file: " + builder.path);
+                    }
+                    this.slots = header.getInt(8);
+                    this.slotSize = header.getInt(12);
+                } else {
+                    this.slots = builder.slots;
+                    this.slotSize = builder.slotSize;
+                    header.clear();
+                    header.putInt(MAGIC).putInt(LAYOUT).putInt(slots).putInt(slotSize);
+                    header.position(HEADER_SIZE).flip();
+                    // the slots are zeros, which is empty, as the file grows.
+                    channel.truncate(0);
+                    channel.write(
+                            ByteBuffer.allocate(1), HEADER_SIZE + (long) slots * slotSize - 1);
+                    channel.write(header, 0);
+                    channel.force(true);
+                }
+            }
+            this.buffer =
+                    channel.map(
+                            FileChannel.MapMode.READ_WRITE,
+                            0,
+                            HEADER_SIZE + (long) slots * slotSize);
+            this.buffer.order(ByteOrder.nativeOrder());
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Creates a new {@link Builder} for a {@link MappedSharedDataHandler}.
+     *
+     * @param path the file holding the shared data, created if it doesn't exist.
+     * @return a new {@link MappedSharedDataHandler.Builder} instance.
+     */
+    public static MappedSharedDataHandler.Builder builder(Path path) {
+        return new MappedSharedDataHandler.Builder(path);
+    }
+
+    /**
+     * Builder for {@link MappedSharedDataHandler} instances.
+     */
+    public static final class Builder {
+
+        private final Path path;
+        private int slots = DEFAULT_SLOTS;
+        private int slotSize = DEFAULT_SLOT_SIZE;
+
+        private Builder(Path path) {
+            this.path = Objects.requireNonNull(path);
+        }
+
+        /**
+         * Sets the number of slots of a new file, which is the maximum number of keys.
+         * Defaults to {@value MappedSharedDataHandler#DEFAULT_SLOTS}.
+         *
+         * @param slots the number of slots.
+         * @return this {@code Builder} instance for method chaining.
+         */
+        public MappedSharedDataHandler.Builder withSlots(int slots) {
+            if (slots < 1) {
+                throw new IllegalArgumentException("slots must be at least 1");
+            }
+            this.slots = slots;
+            return this;
+        }
+
+        /**
+         * Sets the size of the slots of a new file, a key and its value must fit in
+         * {@code slotSize - 48} bytes.  Defaults to {@value MappedSharedDataHandler#DEFAULT_SLOT_SIZE}.
+         *
+         * @param slotSize the size of a slot, a multiple of 8.
+         * @return this {@code Builder} instance for method chaining.
+         */
+        public MappedSharedDataHandler.Builder withSlotSize(int slotSize) {
+            if (slotSize <= DATA || slotSize % 8 != 0) {
+                throw new IllegalArgumentException(
+                        "slotSize must be a multiple of 8 larger than " + DATA);
+            }
+            this.slotSize = slotSize;
+            return this;
+        }
+
+        /**
+         * Opens the file, creating it if needed.
+         *
+         * @return a new {@link MappedSharedDataHandler}.
+         * @throws IOException if the file can't be opened or mapped.
+         */
+        public MappedSharedDataHandler build() throws IOException {
+            if (HEADER_SIZE + (long) slots * slotSize > Integer.MAX_VALUE) {
+                throw new IllegalArgumentException("slots * slotSize must be less than 2GiB");
+            }
+            return new MappedSharedDataHandler(this);
+        }
+    }
+
+    /**
+     * Returns the number of slots of the file.
+     *
+     * @return the maximum number of keys.
+     */
+    public int slots() {
+        return slots;
+    }
+
+    /**
+     * Returns the size of the slots of the file.
+     *
+     * @return the size of a slot in bytes.
+     */
+    public int slotSize() {
+        return slotSize;
+    }
+
+    /**
+     * Retrieves the shared data associated with the given key.
+     *
+     * @param key The key identifying the shared data item.
+     * @return A {@link SharedData} object containing the value and its current CAS value,
+     *         or {@code null} if the key is not found.
+     */
+    @Override
+    public SharedData getSharedData(String key) {
+        var k = key.getBytes(StandardCharsets.UTF_8);
+        int hash = hash(k);
+        for (int i = 0; i < probes(); i++) {
+            int slot = slot(hash, i);
+            long start = System.nanoTime();
+            int locked = 0;
+            while (true) {
+                int version = (int) INT.getAcquire(buffer, slot + VERSION);
+                if ((version & 1) != 0) {
+                    // a writer is updating the slot, or died doing so.
+                    if (version != locked) {
+                        locked = version;
+                        start = System.nanoTime();
+                    } else if (System.nanoTime() - start > LOCK_TIMEOUT_NANOS) {
+                        recover(slot);
+                        start = System.nanoTime();
+                    }
+                    Thread.onSpinWait();
+                    continue;
+                }
+                int keyLength = buffer.getInt(slot + KEY_LENGTH) - 1;
+                if (keyLength < 0) {
+                    if (version == (int) INT.getAcquire(buffer, slot + VERSION)) {
+                        return null;
+                    }
+                    continue;
+                }
+                boolean matches = buffer.getInt(slot + HASH) == hash && keyEquals(slot, k);
+                byte[] value = matches ? value(slot, keyLength) : null;
+                VarHandle.loadLoadFence();
+                if (version != (int) INT.getVolatile(buffer, slot + VERSION)) {
+                    continue;
+                }
+                if (!matches) {
+                    break;
+                }
+                return new SharedData(value, cas(version));
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Sets or updates the shared data associated with the given key, with the same CAS
+     * semantics as {@link SimpleSharedDataHandler#setSharedData(String, byte[], int)}.
+     *
+     * @param key   The key identifying the shared data item.
+     * @param value The new data value to store (can be null).
+     * @param cas   The Compare-And-Swap value for conditional update, or 0 for unconditional update.
+     * @return {@link WasmResult#OK} if the update was successful,
+     *         {@link WasmResult#CAS_MISMATCH} if the CAS check failed, or
+     *         {@link WasmResult#INTERNAL_FAILURE} if the entry doesn't fit in a slot or no slot
+     *         near the one of the key is free.
+     */
+    @Override
+    public WasmResult setSharedData(String key, byte[] value, int cas) {
+        var k = key.getBytes(StandardCharsets.UTF_8);
+        int valueLength = value == null ? 0 : value.length;
+        if (DATA + (long) k.length + valueLength > slotSize) {
+            return WasmResult.INTERNAL_FAILURE;
+        }
+        int hash = hash(k);
+        // most writes update a key that exists, without the insert lock.
+        for (int i = 0; i < probes(); i++) {
+            int slot = slot(hash, i);
+            if (buffer.getInt(slot + KEY_LENGTH) == 0) {
+                break;
+            }
+            if (holds(slot, hash, k)) {
+                var result = write(slot, hash, k, value, cas, false);
+                if (result != null) {
+                    return result;
+                }
+            }
+        }
+        // the key is new, or its slot was taken over meanwhile.
+        int home = slot(hash, 0);
+        take(home + INSERTER);
+        try {
+            return insert(hash, k, value, cas);
+        } finally {
+            release(home + INSERTER);
+        }
+    }
+
+    // adds a key, or updates it if it was added meanwhile, holding the insert lock of the key.
+    private WasmResult insert(int hash, byte[] k, byte[] value, int cas) {
+        while (true) {
+            int free = -1;
+            for (int i = 0; i < probes(); i++) {
+                int slot = slot(hash, i);
+                int keyLength = buffer.getInt(slot + KEY_LENGTH);
+                if (keyLength == 0 || buffer.getInt(slot + VALUE_LENGTH) == -1) {
+                    // the first free slot, the key can't be past an empty one.
+                    if (free < 0) {
+                        free = slot;
+                    }
+                    if (keyLength == 0) {
+                        break;
+                    }
+                }
+                if (keyLength != 0 && holds(slot, hash, k)) {
+                    var result = write(slot, hash, k, value, cas, false);
+                    if (result != null) {
+                        return result;
+                    }
+                }
+            }
+            if (free < 0) {
+                return WasmResult.INTERNAL_FAILURE;
+            }
+            if (cas != 0) {
+                return WasmResult.CAS_MISMATCH;
+            }
+            var result = write(free, hash, k, value, cas, true);
+            if (result != null) {
+                return result;
+            }
+            // a key of another slot took the free slot meanwhile, looks again.
+        }
+    }
+
+    // locks the slot and updates it, or claims it if it is free, returns null if it can't.
+    private WasmResult write(int slot, int hash, byte[] k, byte[] value, int cas, boolean claim) {
+        int locked = lock(slot);
+        // the version before the lock, which the slot keeps unless it is updated.
+        int version = locked - 1;
+        var result = update(slot, hash, k, value, cas, version, claim);
+        if (!unlock(slot, locked, result == WasmResult.OK ? next(version) : version)) {
+            // another process took this one for dead and recovered the slot.
+            return WasmResult.INTERNAL_FAILURE;
+        }
+        return result;
+    }
+
+    // updates a locked slot, returns null if it holds another key, or if it isn't free anymore
+    // when claimed.
+    private WasmResult update(
+            int slot, int hash, byte[] k, byte[] value, int cas, int version, boolean claim) {
+        if (claim) {
+            int keyLength = buffer.getInt(slot + KEY_LENGTH);
+            if (keyLength != 0 && buffer.getInt(slot + VALUE_LENGTH) != -1) {
+                return null;
+            }
+            // claims the empty slot or the tombstone, the key length is written last.
+            buffer.putInt(slot + KEY_LENGTH, 0);
+            buffer.putInt(slot + HASH, hash);
+            put(slot + DATA, k);
+            buffer.putInt(slot + KEY_LENGTH, k.length + 1);
+        } else if (!holds(slot, hash, k)) {
+            // the key was set to null and its slot taken over meanwhile.
+            return null;
+        } else if (cas != 0 && cas != cas(version)) {
+            return WasmResult.CAS_MISMATCH;
+        }
+        buffer.putInt(slot + VALUE_LENGTH, value == null ? -1 : value.length);
+        if (value != null) {
+            put(slot + DATA + k.length, value);
+        }
+        return WasmResult.OK;
+    }
+
+    private boolean holds(int slot, int hash, byte[] k) {
+        return buffer.getInt(slot + HASH) == hash && keyEquals(slot, k);
+    }
+
+    private int probes() {
+        return Math.min(slots, MAX_PROBES);
+    }
+
+    /**
+     * Forces the data to the storage and releases the file.
+     */
+    @Override
+    public void close() throws IOException {
+        buffer.force();
+        channel.close();
+    }
+
+    // locks the slot for this process, and returns its version, which is odd while locked.
+    private int lock(int slot) {
+        take(slot + OWNER);
+        return acquired(slot);
+    }
+
+    // takes the lock at the given offset for this process, from its owner only if it is dead.
+    private void take(int offset) {
+        long start = System.nanoTime();
+        long waitedFor = 0;
+        while (true) {
+            long owner = (long) LONG.getVolatile(buffer, offset);
+            if (owner == 0) {
+                if (LONG.compareAndSet(buffer, offset, 0L, PID)) {
+                    break;
+                }
+            } else if (owner != waitedFor) {
+                waitedFor = owner;
+                start = System.nanoTime();
+            } else if (System.nanoTime() - start > LOCK_TIMEOUT_NANOS) {
+                if (steal(offset, owner)) {
+                    break;
+                }
+                start = System.nanoTime();
+            } else {
+                Thread.onSpinWait();
+            }
+        }
+        LONG.setVolatile(buffer, offset + STARTED_AT, STARTED);
+    }
+
+    // takes the lock at the given offset from its owner if the owner is dead.
+    private boolean steal(int offset, long owner) {
+        long started = (long) LONG.getVolatile(buffer, offset + STARTED_AT);
+        return !alive(owner, started) && LONG.compareAndSet(buffer, offset, owner, PID);
+    }
+
+    private void release(int offset) {
+        LONG.setVolatile(buffer, offset + STARTED_AT, 0L);
+        LONG.setRelease(buffer, offset, 0L);
+    }
+
+    // makes the version of a slot just locked odd, and returns it.
+    private int acquired(int slot) {
+        int version = (int) INT.getVolatile(buffer, slot + VERSION);
+        int locked = version + 1;
+        if ((version & 1) != 0) {
+            // the previous owner died while updating the slot, its value can't be trusted.
+            locked = version + 2;
+            INT.setVolatile(buffer, slot + VERSION, locked);
+            VarHandle.storeStoreFence();
+            buffer.putInt(slot + VALUE_LENGTH, -1);
+            return locked;
+        }
+        INT.setVolatile(buffer, slot + VERSION, locked);
+        // the plain writes of the slot that follow must not be seen before its odd version.
+        VarHandle.storeStoreFence();
+        return locked;
+    }
+
+    // releases the slot with the given version, unless it was recovered by another process.
+    private boolean unlock(int slot, int locked, int version) {
+        if (!INT.compareAndSet(buffer, slot + VERSION, locked, version)) {
+            return false;
+        }
+        release(slot + OWNER);
+        return true;
+    }
+
+    // lets the readers through a slot left locked by a dead process.
+    private void recover(int slot) {
+        long owner = (long) LONG.getVolatile(buffer, slot + OWNER);
+        if (owner != 0 && steal(slot + OWNER, owner)) {
+            LONG.setVolatile(buffer, slot + OWNER + STARTED_AT, STARTED);
+            int locked = acquired(slot);
+            unlock(slot, locked, locked - 1);
+        }
+    }
+
+    private static boolean alive(long pid, long started) {
+        if (pid == PID) {
+            return true;
+        }
+        var process = ProcessHandle.of(pid).filter(ProcessHandle::isAlive);
+        if (process.isEmpty()) {
+            return false;
+        }
+        // the ID of a dead owner may have been given to another process since.
+        long actual = started(process.get());
+        return started == 0 || actual == 0 || actual == started;
+    }
+
+    private static long started(ProcessHandle process) {
+        return process.info().startInstant().map(Instant::toEpochMilli).orElse(0L);
+    }
+
+    // the version after an update, skipping the one with a CAS of 0, which means unconditional.
+    private static int next(int version) {
+        int next = version + 2;
+        return cas(next) == 0 ? next + 2 : next;
+    }
+
+    private static int cas(int version) {
+        return version >>> 1;
+    }
+
+    private int slot(int hash, int probe) {
+        return HEADER_SIZE + Math.floorMod(hash + probe, slots) * slotSize;
+    }
+
+    // the hash must be the same in all the processes, so it only depends on the key bytes.
+    private static int hash(byte[] key) {
+        int h = Arrays.hashCode(key);
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        return h;
+    }
+
+    private boolean keyEquals(int slot, byte[] key) {
+        int keyLength = buffer.getInt(slot + KEY_LENGTH) - 1;
+        if (keyLength != key.length) {
+            return false;
+        }
+        for (int i = 0; i < keyLength; i++) {
+            if (buffer.get(slot + DATA + i) != key[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private byte[] value(int slot, int keyLength) {
+        int length = buffer.getInt(slot + VALUE_LENGTH);
+        // a torn read may see any length, the version check discards it.
+        if (length < 0 || length > slotSize - DATA - keyLength) {
+            return null;
+        }
+        var value = new byte[length];
+        buffer.duplicate().position(slot + DATA + keyLength).get(value);
+        return value;
+    }
+
+    private void put(int offset, byte[] bytes) {
+        buffer.duplicate().position(offset).put(bytes);
+    }
+}
@@ -0,0 +1,270 @@
+package io.roastedroot.proxywasm;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Learns how much linear memory the instances of a plugin use, so that new instances can start
+ * with that much memory instead of growing it page by page under their first requests.
+ *
+ * <p>Guests start with the small memory declared by the module and call {@code memory.grow} as
+ * they allocate, and each grow copies the whole memory.  The sizing records the largest memory
+ * (the high-water mark, in 64KiB pages) observed across the instances created by a
+ * {@link PluginFactory}, and the instances it creates afterwards are pre-sized to it:
+ *
+ * <pre>
+ * var sizing = MemorySizing.of(Path.of("/var/cache/proxy-wasm/waf.wasm.pages"));
+ * PluginFactory.builder(module)
+ *         .withName("waf")
+ *         .withMemorySizing(sizing)
+ *         .build();
+ * </pre>
+ *
+ * <p>The memory of an instance is observed when it has started and whenever one of its http or
+ * network contexts is done.  Each time an instance is observed with more memory than the previous
+ * time, a growth event is counted, see {@link #growths()}.  A steady rate of growth events after
+ * warm up means new instances are still being started too small.
+ *
+ * <p>The high-water mark is bounded, so that a single request that needed a lot of memory doesn't
+ * make every instance created afterwards as big:
+ *
+ * <ul>
+ *   <li>it is the largest memory observed during the current and the previous window, see
+ *       {@link #withWindow(Duration)}, so a spike is forgotten after two windows without one;
+ *   <li>it never exceeds {@link #withMaximumPages(int)}.
+ * </ul>
+ *
+ * <p>When created with a file, the high-water mark is loaded from it and written back to it each
+ * time it changes, so that the next JVM start pre-sizes its instances right away.  The loaded
+ * mark counts as observed in the previous window.  A file next to the module, named after it,
+ * is a good place to keep it.  Writes are atomic, so several JVMs can share the file, and a file
+ * that can't be read or written is ignored.  To learn the size again, for example after
+ * deploying a new version of the module, call {@link #reset()} or delete the file before the
+ * JVM starts.
+ *
+ * @see PluginFactory.Builder#withMemorySizing(MemorySizing)
+ */
+public final class MemorySizing {
+
+    /** The default window the high-water mark is computed over. */
+    public static final Duration DEFAULT_WINDOW = Duration.ofHours(1);
+
+    /** The default cap of the high-water mark, 256MiB. */
+    public static final int DEFAULT_MAXIMUM_PAGES = 4096;
+
+    private final Path file;
+    private final long window;
+    private final int maximumPages;
+    private final AtomicLong growths = new AtomicLong();
+    private final AtomicLong grownPages = new AtomicLong();
+    private final Object fileLock = new Object();
+
+    // guarded by this, the high-water mark is also volatile so that it can be read without it.
+    private volatile int highWaterMark;
+    private int previousMark;
+    private int currentMark;
+    private long windowStart = System.nanoTime();
+
+    private MemorySizing(Path file, Duration window, int maximumPages) {
+        this.file = file;
+        this.window = window.toNanos();
+        this.maximumPages = maximumPages;
+        if (file != null) {
+            previousMark = Math.min(read(file), maximumPages);
+            highWaterMark = previousMark;
+        }
+    }
+
+    /**
+     * Creates a sizing that only keeps the high-water mark in memory.
+     *
+     * @return a new {@link MemorySizing}.
+     */
+    public static MemorySizing create() {
+        return new MemorySizing(null, DEFAULT_WINDOW, DEFAULT_MAXIMUM_PAGES);
+    }
+
+    /**
+     * Creates a sizing that loads the high-water mark from the given file, if it exists, and
+     * stores it there each time it changes.
+     *
+     * @param file the file holding the high-water mark.
+     * @return a new {@link MemorySizing}.
+     */
+    public static MemorySizing of(Path file) {
+        return new MemorySizing(file, DEFAULT_WINDOW, DEFAULT_MAXIMUM_PAGES);
+    }
+
+    /**
+     * Returns a sizing like this one, which computes the high-water mark over the given window.
+     * The mark is the largest memory observed during the current and the previous window.
+     *
+     * @param window the duration of a window, {@link #DEFAULT_WINDOW} by default.
+     * @return a new {@link MemorySizing}.
+     */
+    public MemorySizing withWindow(Duration window) {
+        if (window.isNegative() || window.isZero()) {
+            throw new IllegalArgumentException("window must be positive: " + window);
+        }
+        return new MemorySizing(file, window, maximumPages);
+    }
+
+    /**
+     * Returns a sizing like this one, whose high-water mark never exceeds the given size.
+     * Instances still grow their memory past it if they need to, they just don't start with more.
+     *
+     * @param maximumPages the cap of the high-water mark in 64KiB pages,
+     *                     {@link #DEFAULT_MAXIMUM_PAGES} by default.
+     * @return a new {@link MemorySizing}.
+     */
+    public MemorySizing withMaximumPages(int maximumPages) {
+        if (maximumPages < 0) {
+            throw new IllegalArgumentException("maximumPages must not be negative");
+        }
+        return new MemorySizing(file, Duration.ofNanos(window), maximumPages);
+    }
+
+    /**
+     * Returns the file the high-water mark is persisted to.
+     *
+     * @return the file, or {@code null} if the high-water mark is only kept in memory.
+     */
+    public Path file() {
+        return file;
+    }
+
+    /**
+     * Returns the largest linear memory size observed during the current and the previous
+     * window, capped to the maximum, which is the initial size of new instances.
+     *
+     * @return the high-water mark in 64KiB pages, or {@code 0} if nothing was observed yet.
+     */
+    public int highWaterMark() {
+        return highWaterMark;
+    }
+
+    /**
+     * Forgets the high-water mark, and deletes the file it is persisted to, so that the size of
+     * the instances is learnt again.  The growth counters are kept.
+     */
+    public void reset() {
+        synchronized (this) {
+            previousMark = 0;
+            currentMark = 0;
+            windowStart = System.nanoTime();
+            highWaterMark = 0;
+        }
+        if (file != null) {
+            synchronized (fileLock) {
+                try {
+                    Files.deleteIfExists(file);
+                } catch (IOException e) {
+                    // the stale mark is loaded by the next start, until it decays.
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the number of times an instance was observed with more memory than the previous
+     * time it was observed.  Each of them means the guest had to grow its memory at least once.
+     *
+     * @return the number of observed growth events.
+     */
+    public long growths() {
+        return growths.get();
+    }
+
+    /**
+     * Returns the total number of pages added to the instances' memory by the observed growth
+     * events.
+     *
+     * @return the number of grown pages.
+     */
+    public long grownPages() {
+        return grownPages.get();
+    }
+
+    /**
+     * Records that the memory of an instance went from {@code previousPages} to {@code pages}
+     * since it was last observed.  This is called by the host, it is only public so that custom
+     * hosts can report their own observations.
+     *
+     * @param previousPages the memory size of the instance when it was last observed.
+     * @param pages the current memory size of the instance.
+     */
+    public void observe(int previousPages, int pages) {
+        if (pages > previousPages) {
+            growths.incrementAndGet();
+            grownPages.addAndGet(pages - previousPages);
+        }
+        int mark;
+        synchronized (this) {
+            long now = System.nanoTime();
+            long elapsed = now - windowStart;
+            if (elapsed >= window) {
+                // a window without observations forgets the previous one too.
+                previousMark = elapsed >= 2 * window ? 0 : currentMark;
+                currentMark = 0;
+                windowStart = now;
+            }
+            currentMark = Math.max(currentMark, Math.min(pages, maximumPages));
+            mark = Math.max(previousMark, currentMark);
+            if (mark == highWaterMark) {
+                return;
+            }
+            highWaterMark = mark;
+        }
+        if (file != null) {
+            write(mark);
+        }
+    }
+
+    private static int read(Path file) {
+        try {
+            if (Files.isRegularFile(file)) {
+                return Math.max(0, Integer.parseInt(Files.readString(file).trim()));
+            }
+        } catch (IOException | NumberFormatException e) {
+            // a truncated or corrupted file, learn the size again.
+        }
+        return 0;
+    }
+
+    private void write(int pages) {
+        synchronized (fileLock) {
+            if (pages != highWaterMark) {
+                // the mark changed in the meantime, the new one will be written instead.
+                return;
+            }
+            store(pages);
+        }
+    }
+
+    private void store(int pages) {
+        try {
+            Path directory = file.toAbsolutePath().getParent();
+            Files.createDirectories(directory);
+            Path tmp = Files.createTempFile(directory, file.getFileName().toString(), ".tmp");
+            try {
+                Files.write(tmp, Integer.toString(pages).getBytes(StandardCharsets.UTF_8));
+                try {
+                    Files.move(tmp, file, StandardCopyOption.ATOMIC_MOVE);
+                } catch (AtomicMoveNotSupportedException e) {
+                    Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING);
+                }
+            } finally {
+                Files.deleteIfExists(tmp);
+            }
+        } catch (IOException e) {
+            // this runs on the request path: keep using the mark in memory, the next change
+            // will try to store it again.
+        }
+    }
+}
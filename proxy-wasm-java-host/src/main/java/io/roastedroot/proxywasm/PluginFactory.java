@@ -52,6 +52,31 @@ public interface PluginFactory {
      */
     boolean shared();
 
+    /**
+     * Returns the number of instances a {@link #shared()} plugin is spread across.
+     *
+     * <p>Requests are distributed across the instances, so that they only contend with the
+     * requests using the same instance.  This is only used for plugins that are
+     * {@link #shared()}.
+     *
+     * @return the number of shared instances, at least {@code 1}.
+     */
+    default int sharedInstances() {
+        return 1;
+    }
+
+    /**
+     * Returns the configuration of the pool of started instances kept for this plugin.
+     *
+     * <p>This is only used for plugins that are not {@link #shared()}.  When {@code null}, a new
+     * plugin instance is created for each request and closed when the request completes.
+     *
+     * @return the pool configuration, or {@code null} if instances should not be pooled.
+     */
+    default PoolConfig pool() {
+        return null;
+    }
+
     /**
      * Creates a new {@link Builder} to configure and construct a {@link PluginFactory} instance
      * from the given WASM module.
@@ -63,6 +88,41 @@ public interface PluginFactory {
         return new PluginFactory.Builder(module);
     }
 
+    /**
+     * Creates a new {@link Builder} to configure and construct a {@link PluginFactory} instance
+     * from a WASM module that has been compiled to Java bytecode.
+     *
+     * <p>This is the preferred way to use a module compiled at build time by the
+     * {@code chicory-compiler-maven-plugin}.  The generated class provides both the module
+     * (with its function bodies stripped, so it can't be interpreted) and the machine factory
+     * that runs the compiled code, and they must always be used together:
+     *
+     * <pre>
+     * PluginFactory.builder(WasmShim.load(), WasmShim::create)
+     *         .withName("waf")
+     *         .build();
+     * </pre>
+     *
+     * <p>To compile the module at runtime instead, compile it once and share the resulting
+     * factory across the instances, with {@code MachineFactoryCompiler.compile(module)}.  Note
+     * that {@code MachineFactoryCompiler::compile} resolves to {@code compile(Instance)}, which
+     * compiles the module again for every instance.
+     *
+     * <p>This is equivalent to calling {@link Builder#withMachineFactory(Function)} on the
+     * builder returned by {@link #builder(WasmModule)}.
+     *
+     * @param module the {@link WasmModule} the machine factory was compiled from.
+     * @param machineFactory the factory that creates the {@link Machine} executing the compiled
+     *                       module, e.g. {@code WasmShim::create} for a build time compiled module
+     *                       or {@code MachineFactoryCompiler.compile(module)} to compile at
+     *                       runtime.
+     * @return a new {@link PluginFactory.Builder} instance.
+     */
+    static PluginFactory.Builder builder(
+            WasmModule module, Function<Instance, Machine> machineFactory) {
+        return new PluginFactory.Builder(module).withMachineFactory(machineFactory);
+    }
+
     /**
      * Builder for creating a PluginFactory instance that can create Plugin instances
      * with pre-configured settings.
@@ -83,6 +143,10 @@ public interface PluginFactory {
         private SharedQueueHandler sharedQueueHandler;
         private SharedDataHandler sharedDataHandler;
         private boolean shared;
+        private int sharedInstances = 1;
+        private PoolConfig pool;
+        private boolean startSnapshot;
+        private int bodyChunkSize;
 
         /**
          * Private constructor for the Builder.
@@ -300,6 +364,63 @@ public interface PluginFactory {
             return this;
         }
 
+        /**
+         * Keeps the linear memory of the plugin instances off the java heap, in a direct
+         * {@link java.nio.ByteBuffer}.
+         *
+         * <p>This avoids the garbage collector having to scan and copy the memory of long lived
+         * plugin instances, which can be several MB each.  It does not apply to a memory provided
+         * with {@link #withImportMemory(ImportMemory)}.
+         *
+         * <p>The off heap memory counts against {@code -XX:MaxDirectMemorySize}, so size it for
+         * the number of instances kept alive, pooled ones included.  It is released when the
+         * plugin is closed.
+         *
+         * @param offHeapMemory {@code true} to allocate the memory off heap.
+         * @return this {@code Builder} instance for method chaining.
+         */
+        public PluginFactory.Builder withOffHeapMemory(boolean offHeapMemory) {
+            proxyWasmBuilder.withOffHeapMemory(offHeapMemory);
+            return this;
+        }
+
+        /**
+         * Sets the minimum number of 64KiB pages the linear memory of the plugin instances
+         * starts with.  Starting with the memory the plugin needs avoids growing it page by page
+         * while the plugin warms up.  The module's own initial and maximum sizes still apply.
+         *
+         * @param initialMemoryPages the minimum number of initial pages, {@code 0} to use the
+         *                           module's initial size.
+         * @return this {@code Builder} instance for method chaining.
+         * @throws IllegalArgumentException if {@code initialMemoryPages} is negative.
+         */
+        public PluginFactory.Builder withInitialMemoryPages(int initialMemoryPages) {
+            proxyWasmBuilder.withInitialMemoryPages(initialMemoryPages);
+            return this;
+        }
+
+        /**
+         * Pre-sizes the linear memory of new plugin instances to the largest memory used by the
+         * instances created so far.
+         *
+         * <p>The sizing records the memory high-water mark of the instances as they serve
+         * requests, optionally persisting it to a file so that it survives restarts, and counts
+         * the growth events it observes.  Instances created once the mark is known skip the
+         * {@code memory.grow} copies under their first requests, which matters when a pool grows
+         * or the application scales out.  The mark is capped and decays over time, see
+         * {@link MemorySizing}.  {@link #withInitialMemoryPages(int)} still applies as a lower
+         * bound.
+         *
+         * @param memorySizing the {@link MemorySizing} to learn from and update, or {@code null}
+         *                     (the default) to start instances with the module's initial size.
+         * @return this {@code Builder} instance for method chaining.
+         * @see MemorySizing
+         */
+        public PluginFactory.Builder withMemorySizing(MemorySizing memorySizing) {
+            proxyWasmBuilder.withMemorySizing(memorySizing);
+            return this;
+        }
+
         /**
          * Configures a custom factory for creating the {@link Machine} used to execute the WASM code.
          * The {@link Machine} controls the low-level execution of WASM instructions.
@@ -353,6 +474,106 @@ public interface PluginFactory {
             return this;
         }
 
+        /**
+         * Configures how many WASM instances a {@link #withShared(boolean) shared} plugin is
+         * backed by.
+         *
+         * <p>With a single instance (the default), all concurrent requests contend on the access
+         * lock of that instance, which limits the plugin's throughput to one core.  With more
+         * instances, requests are spread round-robin across them, preferring instances that are
+         * not busy, so only requests that land on the same instance contend.
+         *
+         * <p>The instances don't share their memory: each keeps its own state between the requests
+         * it serves.  State that must be visible to all the instances has to be kept using the
+         * {@link SharedDataHandler} or {@link SharedQueueHandler}.
+         *
+         * <p>This setting has no effect if the plugin is not shared.
+         *
+         * @param sharedInstances the number of instances, or a value less than {@code 1} to use
+         *                        one instance per available processor.
+         * @return this {@code Builder} instance for method chaining.
+         */
+        public PluginFactory.Builder withSharedInstances(int sharedInstances) {
+            this.sharedInstances =
+                    sharedInstances < 1
+                            ? Runtime.getRuntime().availableProcessors()
+                            : sharedInstances;
+            return this;
+        }
+
+        /**
+         * Configures a pool of started plugin instances to use for a plugin that is not shared.
+         *
+         * <p>Instead of creating and starting a new WASM instance for every request, the host
+         * keeps started instances idle between requests and hands one out per request.  Each
+         * instance is still only used by one request at a time, but it keeps any state the plugin
+         * holds between the requests it serves.
+         *
+         * <p>This setting has no effect if the plugin is {@link #withShared(boolean) shared}.
+         *
+         * @param pool the {@link PoolConfig} describing the pool size and timeouts, or {@code null}
+         *             to create a new instance for each request (the default).
+         * @return this {@code Builder} instance for method chaining.
+         * @see PoolConfig
+         */
+        public PluginFactory.Builder withPool(PoolConfig pool) {
+            this.pool = pool;
+            return this;
+        }
+
+        /**
+         * Configures whether plugin instances are started from a snapshot of the first started
+         * instance.
+         *
+         * <p>When enabled, the first instance created by the factory is started normally: the
+         * module is initialized and {@code proxy_on_vm_start}/{@code proxy_on_configure} are
+         * called. Its linear memory and globals are then captured, and every following instance
+         * is started by copying that image into a freshly instantiated module instead of running
+         * the guest's start up code again.  This is similar to Wizer style pre-initialization
+         * and reduces the start up cost of an instance to a memory copy.
+         *
+         * <p>Only enable this for plugins whose start up is deterministic and does not depend on
+         * per instance host state: calls made to the host while starting, such as scheduled
+         * http calls, are not replayed for the restored instances, and any random seeds chosen
+         * while starting will be shared by all the instances.  The tick period and properties
+         * set by the plugin while starting are restored.
+         *
+         * @param startSnapshot {@code true} to start instances from a snapshot, {@code false}
+         *                      (the default) to fully start every instance.
+         * @return this {@code Builder} instance for method chaining.
+         */
+        public PluginFactory.Builder withStartSnapshot(boolean startSnapshot) {
+            this.startSnapshot = startSnapshot;
+            return this;
+        }
+
+        /**
+         * Configures the plugin to receive request and response bodies in chunks instead of as a
+         * whole.
+         *
+         * <p>By default, the host reads the entire body before it calls
+         * {@code proxy_on_http_request_body} or {@code proxy_on_http_response_body} once with
+         * {@code endOfStream} set.  With a chunk size, the host passes the body in chunks of up to
+         * {@code bodyChunkSize} bytes as the application reads the request or writes the response,
+         * setting {@code endOfStream} only for the last one.  The body is only buffered while the
+         * plugin returns {@code Pause} (StopIterationAndBuffer): the buffered chunks are then
+         * passed again, together with the next chunk, on the following call.  Response chunks are
+         * sent to the client as soon as the plugin continues, so large downloads and server sent
+         * events don't have to be held in memory.
+         *
+         * @param bodyChunkSize the maximum number of bytes passed to the plugin per call, or
+         *                      {@code 0} (the default) to pass the whole body at once.
+         * @return this {@code Builder} instance for method chaining.
+         * @throws IllegalArgumentException if {@code bodyChunkSize} is negative.
+         */
+        public PluginFactory.Builder withBodyChunkSize(int bodyChunkSize) {
+            if (bodyChunkSize < 0) {
+                throw new IllegalArgumentException("bodyChunkSize must not be negative");
+            }
+            this.bodyChunkSize = bodyChunkSize;
+            return this;
+        }
+
         /**
          * Constructs a {@link PluginFactory} instance that will create {@link Plugin} instances
          * using the configuration provided to this builder.
@@ -376,6 +597,13 @@ public interface PluginFactory {
             SharedQueueHandler sharedQueueHandler = this.sharedQueueHandler;
             SharedDataHandler sharedDataHandler = this.sharedDataHandler;
             boolean shared = this.shared;
+            int sharedInstances = this.sharedInstances;
+            PoolConfig pool = this.pool;
+            int bodyChunkSize = this.bodyChunkSize;
+            io.roastedroot.proxywasm.internal.Plugin.StartSnapshot startSnapshot =
+                    this.startSnapshot
+                            ? new io.roastedroot.proxywasm.internal.Plugin.StartSnapshot()
+                            : null;
 
             return new PluginFactory() {
 
@@ -389,6 +617,16 @@ public interface PluginFactory {
                     return shared;
                 }
 
+                @Override
+                public int sharedInstances() {
+                    return sharedInstances;
+                }
+
+                @Override
+                public PoolConfig pool() {
+                    return pool;
+                }
+
                 @Override
                 public Plugin create() throws Exception {
 
@@ -404,7 +642,9 @@ public interface PluginFactory {
                             pluginConfig,
                             metricsHandler,
                             sharedQueueHandler,
-                            sharedDataHandler);
+                            sharedDataHandler,
+                            startSnapshot,
+                            bodyChunkSize);
                 }
             };
         }
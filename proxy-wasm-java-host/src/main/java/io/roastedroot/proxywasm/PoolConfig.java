@@ -0,0 +1,206 @@
+package io.roastedroot.proxywasm;
+
+/**
+ * Configures the pool of started plugin instances that a host keeps for a non-shared
+ * {@link PluginFactory}.
+ *
+ * <p>Without a pool configuration, a new plugin instance is created and started for every request
+ * and closed once the request completes.  With a pool configuration, started instances are kept
+ * idle between requests, so that the cost of instantiating the WASM module and running
+ * {@code proxy_on_vm_start}/{@code proxy_on_configure} is only paid when the pool grows.
+ *
+ * <pre>
+ * PluginFactory.builder(module)
+ *         .withName("waf")
+ *         .withPool(PoolConfig.builder()
+ *                 .withMinIdle(4)
+ *                 .withMaxInstances(32)
+ *                 .build())
+ *         .build();
+ * </pre>
+ *
+ * @see PluginFactory.Builder#withPool(PoolConfig)
+ */
+public final class PoolConfig {
+
+    private final int minIdle;
+    private final int maxInstances;
+    private final long borrowTimeoutMilliseconds;
+    private final long maxIdleMilliseconds;
+    private final boolean recycle;
+
+    private PoolConfig(
+            int minIdle,
+            int maxInstances,
+            long borrowTimeoutMilliseconds,
+            long maxIdleMilliseconds,
+            boolean recycle) {
+        this.minIdle = minIdle;
+        this.maxInstances = maxInstances;
+        this.borrowTimeoutMilliseconds = borrowTimeoutMilliseconds;
+        this.maxIdleMilliseconds = maxIdleMilliseconds;
+        this.recycle = recycle;
+    }
+
+    /**
+     * Returns the number of started instances the pool keeps idle.  These instances are created
+     * when the pool is started and are never evicted for being idle.
+     *
+     * @return the minimum number of idle instances.
+     */
+    public int minIdle() {
+        return minIdle;
+    }
+
+    /**
+     * Returns the maximum number of instances (idle and in use) the pool will create.
+     *
+     * @return the maximum number of instances.
+     */
+    public int maxInstances() {
+        return maxInstances;
+    }
+
+    /**
+     * Returns how long a request waits for an instance when all instances are in use.
+     * A value of {@code 0} fails fast and a negative value waits indefinitely.
+     *
+     * @return the borrow timeout in milliseconds.
+     */
+    public long borrowTimeoutMilliseconds() {
+        return borrowTimeoutMilliseconds;
+    }
+
+    /**
+     * Returns how long an instance above {@link #minIdle()} may stay idle before it is closed.
+     * A value of {@code 0} or less disables idle eviction.
+     *
+     * @return the maximum idle time in milliseconds.
+     */
+    public long maxIdleMilliseconds() {
+        return maxIdleMilliseconds;
+    }
+
+    /**
+     * Returns whether instances are reset to their freshly started state before they are returned
+     * to the pool.
+     *
+     * @return {@code true} if released instances are recycled.
+     */
+    public boolean recycle() {
+        return recycle;
+    }
+
+    /**
+     * Creates a new {@link Builder} for a {@link PoolConfig}.
+     *
+     * @return a new {@link PoolConfig.Builder} instance.
+     */
+    public static PoolConfig.Builder builder() {
+        return new PoolConfig.Builder();
+    }
+
+    /**
+     * Builder for {@link PoolConfig} instances.
+     */
+    public static final class Builder {
+
+        private int minIdle;
+        private int maxInstances = Runtime.getRuntime().availableProcessors() * 2;
+        private long borrowTimeoutMilliseconds = 30_000;
+        private long maxIdleMilliseconds;
+        private boolean recycle;
+
+        private Builder() {}
+
+        /**
+         * Sets the number of started instances the pool keeps idle.  These are created
+         * up front when the pool is started.  Defaults to {@code 0}.
+         *
+         * @param minIdle the minimum number of idle instances.
+         * @return this {@code Builder} instance for method chaining.
+         */
+        public PoolConfig.Builder withMinIdle(int minIdle) {
+            this.minIdle = minIdle;
+            return this;
+        }
+
+        /**
+         * Sets the maximum number of instances (idle and in use) the pool will create.
+         * Defaults to twice the number of available processors.
+         *
+         * @param maxInstances the maximum number of instances.
+         * @return this {@code Builder} instance for method chaining.
+         */
+        public PoolConfig.Builder withMaxInstances(int maxInstances) {
+            this.maxInstances = maxInstances;
+            return this;
+        }
+
+        /**
+         * Sets how long a request waits for an instance when all instances are in use.
+         * A value of {@code 0} fails fast and a negative value waits indefinitely.
+         * Defaults to 30 seconds.
+         *
+         * @param borrowTimeoutMilliseconds the borrow timeout in milliseconds.
+         * @return this {@code Builder} instance for method chaining.
+         */
+        public PoolConfig.Builder withBorrowTimeoutMilliseconds(long borrowTimeoutMilliseconds) {
+            this.borrowTimeoutMilliseconds = borrowTimeoutMilliseconds;
+            return this;
+        }
+
+        /**
+         * Sets how long an instance above the minimum idle count may stay idle before it is
+         * closed.  A value of {@code 0} or less (the default) disables idle eviction.
+         *
+         * @param maxIdleMilliseconds the maximum idle time in milliseconds.
+         * @return this {@code Builder} instance for method chaining.
+         */
+        public PoolConfig.Builder withMaxIdleMilliseconds(long maxIdleMilliseconds) {
+            this.maxIdleMilliseconds = maxIdleMilliseconds;
+            return this;
+        }
+
+        /**
+         * Configures whether instances are reset to their freshly started state before they are
+         * returned to the pool.
+         *
+         * <p>When enabled, the pool captures the state of each instance right after it is
+         * started.  When a request releases the instance, its pending http and gRPC calls are
+         * cancelled, its contexts and properties are dropped, and its linear memory and globals
+         * are restored to the captured state.  This gives every request the same isolation as
+         * a brand new instance without paying for the module instantiation.
+         *
+         * <p>When disabled (the default), instances keep the state the plugin accumulated while
+         * serving previous requests.
+         *
+         * @param recycle {@code true} to reset instances when they are released.
+         * @return this {@code Builder} instance for method chaining.
+         */
+        public PoolConfig.Builder withRecycle(boolean recycle) {
+            this.recycle = recycle;
+            return this;
+        }
+
+        /**
+         * Constructs the {@link PoolConfig}.
+         *
+         * @return the configured {@link PoolConfig}.
+         * @throws IllegalArgumentException if {@code maxInstances} is less than 1 or
+         *                                  {@code minIdle} is negative or greater than
+         *                                  {@code maxInstances}.
+         */
+        public PoolConfig build() {
+            if (maxInstances < 1) {
+                throw new IllegalArgumentException("maxInstances must be at least 1");
+            }
+            if (minIdle < 0 || minIdle > maxInstances) {
+                throw new IllegalArgumentException(
+                        "minIdle must be between 0 and maxInstances (" + maxInstances + ")");
+            }
+            return new PoolConfig(
+                    minIdle, maxInstances, borrowTimeoutMilliseconds, maxIdleMilliseconds, recycle);
+        }
+    }
+}
@@ -0,0 +1,695 @@
+package io.roastedroot.proxywasm;
+
+import io.roastedroot.proxywasm.internal.WasmResult;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * An implementation of the {@link SharedDataHandler} interface whose data is replicated to the
+ * other nodes of a deployment through a {@link ReplicationTransport}, for plugins that share
+ * state across hosts, like global rate limits.
+ *
+ * <p>Every node holds a copy of all the entries, and reads only look at the local copy, so they
+ * cost the same as with {@link ConcurrentSharedDataHandler}.  Writes are queued and broadcast
+ * to the other nodes by a background thread, in batches sent every {@code batchInterval}, or as
+ * soon as {@code maxBatchSize} updates are queued.  Updates of the same key in a batch are
+ * coalesced.  Each entry carries a version, made of a logical clock and of the node that wrote
+ * it, and a node applies an update only if its version is newer than the one of its own copy:
+ * concurrent writes of a key on different nodes converge to the last one everywhere.  The CAS of
+ * an entry derives from its version, so it is the same on every node.
+ *
+ * <p>Batches can be lost, for instance while a node is unreachable, so the nodes also repair
+ * their copies by anti-entropy: a node sends the versions of its entries to a peer, which replies
+ * with the entries it has newer.  A node does so with all its peers when it starts, which brings
+ * a node that joins or restarts up to date, and then with one peer after the other every
+ * {@code syncInterval}, so a write missed by a node eventually reaches it even if its key is
+ * never written again.
+ *
+ * <p>How writes are checked depends on the {@link Mode}:
+ * <ul>
+ *     <li>{@link Mode#EVENTUAL} checks the CAS against the local copy and writes locally, so
+ *         writes never wait for the network, but two nodes may both succeed a CAS on the same
+ *         value before they see each other's write, and one of them is then lost.</li>
+ *     <li>{@link Mode#CAS_FORWARDING} sends each write to the node that owns its key, which
+ *         checks the CAS and replicates the write, so a CAS succeeds on at most one node.  A
+ *         write waits for a round trip to the owner, and fails with
+ *         {@link WasmResult#INTERNAL_FAILURE} if the owner can't be reached.  The owner replies
+ *         with its copy of the entry, so a node reads its own writes at once, and a CAS retried
+ *         after a {@link WasmResult#CAS_MISMATCH} sees the value that won.</li>
+ * </ul>
+ *
+ * <pre>
+ * var transport = new TcpReplicationTransport("node-1", addresses);
+ * var sharedData = ReplicatedSharedDataHandler.builder(transport)
+ *         .withMode(ReplicatedSharedDataHandler.Mode.CAS_FORWARDING)
+ *         .build();
+ * PluginFactory.builder(module).withSharedDataHandler(sharedData).build();
+ * </pre>
+ *
+ * <p>Each node is told apart in the versions by its index in {@link ReplicationTransport#nodes()},
+ * so the nodes must be listed in the same order on all of them, and a node joining must be
+ * listed after the others, so that their indexes don't change.
+ *
+ * <p>The replication lag is measured with the wall clocks of the writer and of the reader, so it
+ * is only as accurate as their synchronization.
+ */
+public final class ReplicatedSharedDataHandler implements SharedDataHandler, Closeable {
+
+    /**
+     * How the writes are checked and ordered across nodes.
+     */
+    public enum Mode {
+        /**
+         * Writes are checked against the local copy, and replicated asynchronously.
+         */
+        EVENTUAL,
+        /**
+         * Writes are checked by the node that owns their key, and replicated asynchronously.
+         */
+        CAS_FORWARDING
+    }
+
+    /**
+     * The default time between two batches.
+     */
+    public static final Duration DEFAULT_BATCH_INTERVAL = Duration.ofMillis(10);
+
+    /**
+     * The default maximum number of updates in a batch.
+     */
+    public static final int DEFAULT_MAX_BATCH_SIZE = 512;
+
+    /**
+     * The default time between two anti-entropy rounds.
+     */
+    public static final Duration DEFAULT_SYNC_INTERVAL = Duration.ofSeconds(5);
+
+    // the types of the requests.
+    private static final int WRITE = 1;
+    private static final int SYNC = 2;
+
+    // the low bits of a version hold the writer node, the high bits its logical clock.
+    private static final int NODE_BITS = 16;
+
+    private static final class Entry {
+        final String key;
+        final SharedData data;
+        final long version;
+        final long writtenAt;
+
+        Entry(String key, byte[] value, long version, long writtenAt) {
+            this.key = key;
+            this.data = new SharedData(value, cas(version));
+            this.version = version;
+            this.writtenAt = writtenAt;
+        }
+
+        // the last writer wins, versions are unique since each node has its own tag.
+        boolean newerThan(Entry other) {
+            return version > other.version;
+        }
+    }
+
+    private final ReplicationTransport transport;
+    private final Mode mode;
+    private final int maxBatchSize;
+    private final long tag;
+    private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<>();
+    private final AtomicLong clock = new AtomicLong();
+    private final ConcurrentLinkedQueue<Entry> outgoing = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pending = new AtomicInteger();
+    private final ScheduledExecutorService replicator;
+    private final LongAdder batches = new LongAdder();
+    private final LongAdder conflicts = new LongAdder();
+    private final LongAdder forwarded = new LongAdder();
+    private final LongAdder repaired = new LongAdder();
+    private final AtomicInteger nextPeer = new AtomicInteger();
+    private volatile long lagMillis;
+
+    private ReplicatedSharedDataHandler(Builder builder) {
+        this.transport = builder.transport;
+        this.mode = builder.mode;
+        this.maxBatchSize = builder.maxBatchSize;
+        // the nodes are listed in the same order everywhere, so their index tells them apart.
+        int index = transport.nodes().indexOf(transport.localNode());
+        if (index < 0 || index >= 1 << NODE_BITS) {
+            throw new IllegalArgumentException(
+                    "the local node must be one of the first "
+                            + (1 << NODE_BITS)
+                            + " nodes: "
+                            + transport.localNode());
+        }
+        this.tag = index;
+        this.replicator =
+                Executors.newSingleThreadScheduledExecutor(
+                        r -> {
+                            var thread =
+                                    new Thread(r, "proxy-wasm-replicator-" + transport.localNode());
+                            thread.setDaemon(true);
+                            return thread;
+                        });
+        long interval = builder.batchInterval.toNanos();
+        replicator.scheduleWithFixedDelay(this::flush, interval, interval, TimeUnit.NANOSECONDS);
+        long syncInterval = builder.syncInterval.toNanos();
+        replicator.scheduleWithFixedDelay(
+                this::antiEntropy, syncInterval, syncInterval, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Creates a new {@link Builder} for a {@link ReplicatedSharedDataHandler}.
+     *
+     * @param transport the transport to the other nodes.
+     * @return a new {@link ReplicatedSharedDataHandler.Builder} instance.
+     */
+    public static ReplicatedSharedDataHandler.Builder builder(ReplicationTransport transport) {
+        return new ReplicatedSharedDataHandler.Builder(transport);
+    }
+
+    /**
+     * Builder for {@link ReplicatedSharedDataHandler} instances.
+     */
+    public static final class Builder {
+
+        private final ReplicationTransport transport;
+        private Mode mode = Mode.EVENTUAL;
+        private Duration batchInterval = DEFAULT_BATCH_INTERVAL;
+        private int maxBatchSize = DEFAULT_MAX_BATCH_SIZE;
+        private Duration syncInterval = DEFAULT_SYNC_INTERVAL;
+
+        private Builder(ReplicationTransport transport) {
+            this.transport = Objects.requireNonNull(transport);
+        }
+
+        /**
+         * Sets how the writes are checked across nodes.  Defaults to {@link Mode#EVENTUAL}.
+         *
+         * @param mode the replication mode.
+         * @return this {@code Builder} instance for method chaining.
+         */
+        public ReplicatedSharedDataHandler.Builder withMode(Mode mode) {
+            this.mode = Objects.requireNonNull(mode);
+            return this;
+        }
+
+        /**
+         * Sets the time between two batches.  Defaults to 10 milliseconds.
+         *
+         * @param batchInterval the time between two batches.
+         * @return this {@code Builder} instance for method chaining.
+         */
+        public ReplicatedSharedDataHandler.Builder withBatchInterval(Duration batchInterval) {
+            if (batchInterval.isZero() || batchInterval.isNegative()) {
+                throw new IllegalArgumentException("batchInterval must be positive");
+            }
+            this.batchInterval = batchInterval;
+            return this;
+        }
+
+        /**
+         * Sets the maximum number of updates in a batch.  Defaults to
+         * {@value ReplicatedSharedDataHandler#DEFAULT_MAX_BATCH_SIZE}.
+         *
+         * @param maxBatchSize the maximum number of updates.
+         * @return this {@code Builder} instance for method chaining.
+         */
+        public ReplicatedSharedDataHandler.Builder withMaxBatchSize(int maxBatchSize) {
+            if (maxBatchSize < 1) {
+                throw new IllegalArgumentException("maxBatchSize must be at least 1");
+            }
+            this.maxBatchSize = maxBatchSize;
+            return this;
+        }
+
+        /**
+         * Sets the time between two anti-entropy rounds, each with the next peer.  Defaults to 5
+         * seconds.
+         *
+         * @param syncInterval the time between two anti-entropy rounds.
+         * @return this {@code Builder} instance for method chaining.
+         */
+        public ReplicatedSharedDataHandler.Builder withSyncInterval(Duration syncInterval) {
+            if (syncInterval.isZero() || syncInterval.isNegative()) {
+                throw new IllegalArgumentException("syncInterval must be positive");
+            }
+            this.syncInterval = syncInterval;
+            return this;
+        }
+
+        /**
+         * Builds the handler, starts the transport, and pulls the entries of the reachable
+         * peers.
+         *
+         * @return a new {@link ReplicatedSharedDataHandler}.
+         * @throws IOException if the transport can't start.
+         */
+        public ReplicatedSharedDataHandler build() throws IOException {
+            var handler = new ReplicatedSharedDataHandler(this);
+            try {
+                transport.start(handler.new Receiver());
+            } catch (IOException | RuntimeException e) {
+                handler.replicator.shutdownNow();
+                throw e;
+            }
+            handler.catchUp();
+            return handler;
+        }
+    }
+
+    /**
+     * Returns the number of entries in the local copy.
+     *
+     * @return the number of entries.
+     */
+    public int size() {
+        return entries.size();
+    }
+
+    /**
+     * Returns the number of local writes not broadcast yet.
+     *
+     * @return the number of pending updates.
+     */
+    public int pendingUpdates() {
+        return pending.get();
+    }
+
+    /**
+     * Returns the number of batches broadcast.
+     *
+     * @return the number of batches.
+     */
+    public long batches() {
+        return batches.sum();
+    }
+
+    /**
+     * Returns the time between the write and the replication of the oldest update in the last
+     * batch received.
+     *
+     * @return the replication lag in milliseconds.
+     */
+    public long replicationLagMillis() {
+        return lagMillis;
+    }
+
+    /**
+     * Returns the number of updates received from other nodes that lost to a newer local copy,
+     * in other words the concurrent writes that were discarded.
+     *
+     * @return the number of conflicts.
+     */
+    public long conflicts() {
+        return conflicts.sum();
+    }
+
+    /**
+     * Returns the number of entries that anti-entropy updated, in other words the updates that
+     * this node had missed.
+     *
+     * @return the number of repaired updates.
+     */
+    public long repairedUpdates() {
+        return repaired.sum();
+    }
+
+    /**
+     * Returns the number of writes sent to the node that owns their key.
+     *
+     * @return the number of forwarded writes.
+     */
+    public long forwardedWrites() {
+        return forwarded.sum();
+    }
+
+    /**
+     * Retrieves the local copy of the shared data associated with the given key.
+     *
+     * @param key The key identifying the shared data item.
+     * @return A {@link SharedData} object containing the value and its current CAS value,
+     *         or {@code null} if the key is not found.
+     */
+    @Override
+    public SharedData getSharedData(String key) {
+        var entry = entries.get(key);
+        return entry == null ? null : entry.data;
+    }
+
+    /**
+     * Sets or updates the shared data associated with the given key, with the same CAS
+     * semantics as {@link SimpleSharedDataHandler#setSharedData(String, byte[], int)}, checked
+     * as the {@link Mode} says.
+     *
+     * @param key   The key identifying the shared data item.
+     * @param value The new data value to store (can be null).
+     * @param cas   The Compare-And-Swap value for conditional update, or 0 for unconditional update.
+     * @return {@link WasmResult#OK} if the update was successful,
+     *         {@link WasmResult#CAS_MISMATCH} if the CAS check failed, or
+     *         {@link WasmResult#INTERNAL_FAILURE} if the owner of the key can't be reached.
+     */
+    @Override
+    public WasmResult setSharedData(String key, byte[] value, int cas) {
+        if (mode == Mode.CAS_FORWARDING) {
+            var owner = owner(key);
+            if (!owner.equals(transport.localNode())) {
+                return forward(owner, key, value, cas);
+            }
+        }
+        return write(key, value, cas);
+    }
+
+    // checks the cas against the local copy, and queues the write for replication.
+    private WasmResult write(String key, byte[] value, int cas) {
+        var result = new WasmResult[] {WasmResult.OK};
+        var written =
+                entries.compute(
+                        key,
+                        (k, current) -> {
+                            if (cas != 0 && (current == null || current.data.cas() != cas)) {
+                                result[0] = WasmResult.CAS_MISMATCH;
+                                return current;
+                            }
+                            return new Entry(k, value, nextVersion(), System.currentTimeMillis());
+                        });
+        if (result[0] == WasmResult.OK) {
+            outgoing.add(written);
+            if (pending.incrementAndGet() % maxBatchSize == 0 && !replicator.isShutdown()) {
+                replicator.execute(this::flush);
+            }
+        }
+        return result[0];
+    }
+
+    private WasmResult forward(String owner, String key, byte[] value, int cas) {
+        forwarded.increment();
+        byte[] reply;
+        try {
+            var out = new ByteArrayOutputStream();
+            var data = new DataOutputStream(out);
+            data.writeByte(WRITE);
+            data.writeUTF(key);
+            writeBytes(data, value);
+            data.writeInt(cas);
+            reply = transport.request(owner, out.toByteArray());
+        } catch (IOException e) {
+            return WasmResult.INTERNAL_FAILURE;
+        }
+        try {
+            var in = new DataInputStream(new ByteArrayInputStream(reply));
+            var result = WasmResult.valueOf(in.readUTF());
+            if (in.readBoolean()) {
+                apply(readEntry(in));
+            }
+            return result;
+        } catch (IOException | IllegalArgumentException e) {
+            return WasmResult.INTERNAL_FAILURE;
+        }
+    }
+
+    // rendezvous hashing, so that only the keys of a node that joins or leaves change owner.
+    private String owner(String key) {
+        String owner = null;
+        long best = 0;
+        for (var node : transport.nodes()) {
+            long score = mix(((long) node.hashCode() << 32) ^ key.hashCode());
+            if (owner == null || Long.compareUnsigned(score, best) > 0) {
+                owner = node;
+                best = score;
+            }
+        }
+        return owner;
+    }
+
+    private static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    private long nextVersion() {
+        return (clock.incrementAndGet() << NODE_BITS) | tag;
+    }
+
+    // cas 0 means unconditional, so it is never handed out.
+    private static int cas(long version) {
+        int cas = (int) (version ^ (version >>> 32));
+        return cas == 0 ? 1 : cas;
+    }
+
+    // applies an update from another node, if it is newer than the local copy.
+    private boolean apply(Entry update) {
+        clock.accumulateAndGet(update.version >>> NODE_BITS, Math::max);
+        return entries.compute(
+                        update.key,
+                        (k, current) -> {
+                            if (current == null || update.newerThan(current)) {
+                                return update;
+                            }
+                            if (current.version != update.version) {
+                                conflicts.increment();
+                            }
+                            return current;
+                        })
+                == update;
+    }
+
+    private List<String> peers() {
+        var peers = new ArrayList<>(transport.nodes());
+        peers.remove(transport.localNode());
+        return peers;
+    }
+
+    // pulls the entries of all the reachable peers, so a node joining starts up to date.
+    private void catchUp() {
+        for (var peer : peers()) {
+            try {
+                // a peer sends at most a batch per round, the rounds are bounded in case the
+                // peer keeps being written faster than it is pulled.
+                for (int round = 0; round < 1024 && sync(peer); round++) {}
+            } catch (IOException | RuntimeException e) {
+                // the peer is down, the next rounds of anti-entropy catch up with it.
+            }
+        }
+    }
+
+    // one round of anti-entropy, with the next peer.
+    private void antiEntropy() {
+        var peers = peers();
+        if (peers.isEmpty()) {
+            return;
+        }
+        try {
+            sync(peers.get(Math.floorMod(nextPeer.getAndIncrement(), peers.size())));
+        } catch (IOException | RuntimeException e) {
+            // keeps the replicator scheduled, the next round goes to another peer.
+        }
+    }
+
+    // sends the versions of the local entries to the peer, and applies the entries it has newer.
+    // returns whether the peer has more of them than it sent.
+    private boolean sync(String peer) throws IOException {
+        var out = new ByteArrayOutputStream();
+        var data = new DataOutputStream(out);
+        var digest = new ArrayList<>(entries.values());
+        data.writeByte(SYNC);
+        data.writeInt(digest.size());
+        for (var entry : digest) {
+            data.writeUTF(entry.key);
+            data.writeLong(entry.version);
+        }
+        var in =
+                new DataInputStream(
+                        new ByteArrayInputStream(transport.request(peer, out.toByteArray())));
+        for (int i = in.readInt(); i > 0; i--) {
+            if (apply(readEntry(in))) {
+                repaired.increment();
+            }
+        }
+        return in.readBoolean();
+    }
+
+    // replies to a sync with the entries newer than the versions of the peer, at most a batch.
+    private byte[] syncReply(DataInputStream in) throws IOException {
+        var versions = new HashMap<String, Long>();
+        for (int i = in.readInt(); i > 0; i--) {
+            versions.put(in.readUTF(), in.readLong());
+        }
+        var newer = new ArrayList<Entry>();
+        boolean more = false;
+        for (var entry : entries.values()) {
+            var version = versions.get(entry.key);
+            if (version == null || entry.version > version) {
+                if (newer.size() == maxBatchSize) {
+                    more = true;
+                    break;
+                }
+                newer.add(entry);
+            }
+        }
+        var out = new ByteArrayOutputStream();
+        var data = new DataOutputStream(out);
+        data.writeInt(newer.size());
+        for (var entry : newer) {
+            writeEntry(data, entry);
+        }
+        data.writeBoolean(more);
+        return out.toByteArray();
+    }
+
+    private void flush() {
+        try {
+            var updates = new LinkedHashMap<String, Entry>();
+            Entry entry;
+            while ((entry = outgoing.poll()) != null) {
+                pending.decrementAndGet();
+                updates.merge(entry.key, entry, (a, b) -> b.newerThan(a) ? b : a);
+            }
+            var batch = new ArrayList<Entry>(Math.min(updates.size(), maxBatchSize));
+            for (var update : updates.values()) {
+                batch.add(update);
+                if (batch.size() == maxBatchSize) {
+                    broadcast(batch);
+                    batch.clear();
+                }
+            }
+            if (!batch.isEmpty()) {
+                broadcast(batch);
+            }
+        } catch (RuntimeException e) {
+            // keeps the replicator scheduled, anti-entropy repairs the nodes that missed them.
+        }
+    }
+
+    private void broadcast(ArrayList<Entry> batch) {
+        var out = new ByteArrayOutputStream();
+        var data = new DataOutputStream(out);
+        try {
+            data.writeInt(batch.size());
+            for (var update : batch) {
+                writeEntry(data, update);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        transport.broadcast(out.toByteArray());
+        batches.increment();
+    }
+
+    private final class Receiver implements ReplicationTransport.Receiver {
+
+        @Override
+        public void onBatch(byte[] batch) {
+            try {
+                var in = new DataInputStream(new ByteArrayInputStream(batch));
+                long oldest = Long.MAX_VALUE;
+                for (int i = in.readInt(); i > 0; i--) {
+                    var update = readEntry(in);
+                    oldest = Math.min(oldest, update.writtenAt);
+                    apply(update);
+                }
+                if (oldest != Long.MAX_VALUE) {
+                    lagMillis = Math.max(0, System.currentTimeMillis() - oldest);
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        @Override
+        public byte[] onRequest(byte[] request) {
+            try {
+                var in = new DataInputStream(new ByteArrayInputStream(request));
+                int type = in.readByte();
+                if (type == SYNC) {
+                    return syncReply(in);
+                } else if (type != WRITE) {
+                    throw new IOException("unexpected request type: " + type);
+                }
+                var key = in.readUTF();
+                var value = readBytes(in);
+                var result = write(key, value, in.readInt());
+                var out = new ByteArrayOutputStream();
+                var data = new DataOutputStream(out);
+                data.writeUTF(result.name());
+                var current = entries.get(key);
+                data.writeBoolean(current != null);
+                if (current != null) {
+                    writeEntry(data, current);
+                }
+                return out.toByteArray();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    private static void writeEntry(DataOutputStream out, Entry entry) throws IOException {
+        out.writeUTF(entry.key);
+        writeBytes(out, entry.data.data());
+        out.writeLong(entry.version);
+        out.writeLong(entry.writtenAt);
+    }
+
+    private static Entry readEntry(DataInputStream in) throws IOException {
+        var key = in.readUTF();
+        var value = readBytes(in);
+        return new Entry(key, value, in.readLong(), in.readLong());
+    }
+
+    private static void writeBytes(DataOutputStream out, byte[] value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+        } else {
+            out.writeInt(value.length);
+            out.write(value);
+        }
+    }
+
+    private static byte[] readBytes(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        var value = new byte[length];
+        in.readFully(value);
+        return value;
+    }
+
+    /**
+     * Broadcasts the pending updates, stops replicating, and closes the transport.
+     *
+     * @throws IOException if the transport fails to close.
+     */
+    @Override
+    public void close() throws IOException {
+        replicator.shutdown();
+        try {
+            replicator.awaitTermination(1, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        flush();
+        transport.close();
+    }
+}
@@ -0,0 +1,84 @@
+package io.roastedroot.proxywasm;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Carries the messages of a {@link ReplicatedSharedDataHandler} between the nodes of a
+ * deployment.
+ *
+ * <p>A transport delivers the batches broadcast by a node to every other node, in the order they
+ * were broadcast, and the requests of a node to the node they are addressed to, which answers
+ * them.  The messages are opaque to the transport.
+ *
+ * @see LoopbackReplicationTransport
+ * @see TcpReplicationTransport
+ */
+public interface ReplicationTransport extends Closeable {
+
+    /**
+     * Receives the messages sent to a node.
+     */
+    interface Receiver {
+
+        /**
+         * Called with a batch broadcast by another node.
+         *
+         * @param batch the batch.
+         */
+        void onBatch(byte[] batch);
+
+        /**
+         * Called with a request sent by another node.
+         *
+         * @param request the request.
+         * @return the reply to the request.
+         */
+        byte[] onRequest(byte[] request);
+    }
+
+    /**
+     * Returns the name of the local node.
+     *
+     * @return the name of the local node.
+     */
+    String localNode();
+
+    /**
+     * Returns the names of all the nodes, including the local one, in the same order on all the
+     * nodes.
+     *
+     * @return the names of the nodes.
+     */
+    List<String> nodes();
+
+    /**
+     * Starts passing the messages sent to the local node to the receiver.
+     *
+     * @param receiver the receiver of the local node.
+     * @throws IOException if the transport can't start.
+     */
+    void start(Receiver receiver) throws IOException;
+
+    /**
+     * Sends a batch to all the other nodes.  The batch may be lost for the nodes that can't be
+     * reached, the {@link ReplicatedSharedDataHandler} repairs them by anti-entropy.
+     *
+     * @param batch the batch.
+     */
+    void broadcast(byte[] batch);
+
+    /**
+     * Sends a request to a node and waits for its reply.
+     *
+     * @param node the name of the node.
+     * @param request the request.
+     * @return the reply.
+     * @throws IOException if the node can't be reached.
+     */
+    byte[] request(String node, byte[] request) throws IOException;
+
+    @Override
+    default void close() throws IOException {}
+}
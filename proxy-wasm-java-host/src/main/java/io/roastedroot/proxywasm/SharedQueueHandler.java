@@ -71,4 +71,21 @@ public interface SharedQueueHandler {
     default WasmResult enqueueSharedQueue(int queueId, byte[] value) {
         return WasmResult.UNIMPLEMENTED;
     }
+
+    /**
+     * Subscribes to the specified queue, so that {@code onReady} is called when messages are
+     * enqueued to it.  The host subscribes the plugins that register a queue, and calls their
+     * {@code proxy_on_queue_ready} from {@code onReady}.
+     *
+     * <p>{@code onReady} must be called from another thread than the one enqueueing, since it
+     * calls into the subscribed plugin.  By default the handler doesn't notify the subscribers.
+     *
+     * @param queueId The unique integer ID of the queue.
+     * @param onReady Called when messages are enqueued to the queue.
+     * @return A {@link Runnable} that unsubscribes.
+     * @throws WasmException If the queue ID is invalid ({@link WasmResult#NOT_FOUND}).
+     */
+    default Runnable subscribeSharedQueue(int queueId, Runnable onReady) throws WasmException {
+        return () -> {};
+    }
 }
@@ -0,0 +1,382 @@
+package io.roastedroot.proxywasm;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A {@link ReplicationTransport} over TCP, for nodes given by their addresses.
+ *
+ * <p>Each node listens on its address, and opens connections to the other nodes when it first
+ * sends to them, and again after a failure.  The messages are framed with their type and length.
+ * The batches are sent to each node in order by a thread of its own, so a slow node doesn't hold
+ * back the others, and the requests each take a connection of their own, so they don't wait
+ * behind the batches or each other.  Once a node can't be reached, the messages sent to it fail
+ * at once for {@code timeout}, instead of each waiting for it, so a batch broadcast meanwhile is
+ * lost for that node until anti-entropy repairs it, as are the batches beyond
+ * {@link #MAX_PENDING_BATCHES} waiting for a slow node.
+ *
+ * <p>A node only accepts connections from the hosts of the nodes, and drops a connection whose
+ * frames are longer than {@code maxFrameBytes}.  This is no authentication: the nodes should
+ * still talk over a private network.
+ *
+ * <p>The nodes are listed in the order of the map, which must be the same on all the nodes, with
+ * the nodes that join appended at the end, see {@link ReplicatedSharedDataHandler}.  So the map
+ * should keep its order, like a {@link LinkedHashMap}, which {@link Map#of} doesn't.
+ *
+ * <pre>
+ * var addresses = new LinkedHashMap&lt;String, InetSocketAddress&gt;();
+ * addresses.put("node-1", new InetSocketAddress("10.0.0.1", 7100));
+ * addresses.put("node-2", new InetSocketAddress("10.0.0.2", 7100));
+ * var transport = new TcpReplicationTransport("node-1", addresses);
+ * </pre>
+ */
+public final class TcpReplicationTransport implements ReplicationTransport {
+
+    /**
+     * The default time allowed to connect to a node, or for a node to reply.
+     */
+    public static final Duration DEFAULT_TIMEOUT = Duration.ofSeconds(5);
+
+    /**
+     * The default maximum length of a frame.
+     */
+    public static final int DEFAULT_MAX_FRAME_BYTES = 64 * 1024 * 1024;
+
+    /**
+     * The maximum number of batches waiting to be sent to a node.
+     */
+    public static final int MAX_PENDING_BATCHES = 1024;
+
+    // the connections kept open for the requests to a node, beyond those in use.
+    private static final int MAX_IDLE_CONNECTIONS = 4;
+
+    private static final int BATCH = 1;
+    private static final int REQUEST = 2;
+    private static final int REPLY = 3;
+
+    private final String localNode;
+    private final LinkedHashMap<String, InetSocketAddress> nodes;
+    private final int timeoutMillis;
+    private final int maxFrameBytes;
+    private final Set<InetAddress> hosts = new HashSet<>();
+    private final ConcurrentHashMap<String, Peer> peers = new ConcurrentHashMap<>();
+    private final List<Socket> accepted = new ArrayList<>();
+    private ServerSocket server;
+    private volatile boolean closed;
+
+    /**
+     * @param localNode the name of the local node.
+     * @param nodes the addresses of all the nodes, including the local one, in order.
+     */
+    public TcpReplicationTransport(String localNode, Map<String, InetSocketAddress> nodes) {
+        this(localNode, nodes, DEFAULT_TIMEOUT);
+    }
+
+    /**
+     * @param localNode the name of the local node.
+     * @param nodes the addresses of all the nodes, including the local one, in order.
+     * @param timeout the time allowed to connect to a node, or for a node to reply.
+     */
+    public TcpReplicationTransport(
+            String localNode, Map<String, InetSocketAddress> nodes, Duration timeout) {
+        this(localNode, nodes, timeout, DEFAULT_MAX_FRAME_BYTES);
+    }
+
+    /**
+     * @param localNode the name of the local node.
+     * @param nodes the addresses of all the nodes, including the local one, in order.
+     * @param timeout the time allowed to connect to a node, or for a node to reply.
+     * @param maxFrameBytes the maximum length of a frame, a longer one drops the connection.
+     */
+    public TcpReplicationTransport(
+            String localNode,
+            Map<String, InetSocketAddress> nodes,
+            Duration timeout,
+            int maxFrameBytes) {
+        if (!nodes.containsKey(localNode)) {
+            throw new IllegalArgumentException("no address for the local node: " + localNode);
+        }
+        if (maxFrameBytes <= 0) {
+            throw new IllegalArgumentException("maxFrameBytes must be positive");
+        }
+        this.localNode = localNode;
+        this.nodes = new LinkedHashMap<>(nodes);
+        this.timeoutMillis = Math.toIntExact(timeout.toMillis());
+        this.maxFrameBytes = maxFrameBytes;
+        for (var address : nodes.values()) {
+            if (address.getAddress() != null) {
+                hosts.add(address.getAddress());
+            }
+        }
+    }
+
+    @Override
+    public String localNode() {
+        return localNode;
+    }
+
+    @Override
+    public List<String> nodes() {
+        return List.copyOf(nodes.keySet());
+    }
+
+    @Override
+    public void start(Receiver receiver) throws IOException {
+        Objects.requireNonNull(receiver);
+        server = new ServerSocket();
+        server.bind(nodes.get(localNode));
+        var acceptor = new Thread(() -> accept(receiver), "proxy-wasm-replication-" + localNode);
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    private void accept(Receiver receiver) {
+        while (!closed) {
+            Socket socket;
+            try {
+                socket = server.accept();
+            } catch (IOException e) {
+                // the transport is closed.
+                return;
+            }
+            if (!hosts.contains(socket.getInetAddress())) {
+                // not a node.
+                try {
+                    socket.close();
+                } catch (IOException e) {
+                    // ignored, the connection is dropped anyway.
+                }
+                continue;
+            }
+            synchronized (accepted) {
+                accepted.add(socket);
+            }
+            var reader = new Thread(() -> serve(socket, receiver), "proxy-wasm-replication-peer");
+            reader.setDaemon(true);
+            reader.start();
+        }
+    }
+
+    // reads the messages of a peer, and replies to its requests on the same connection.
+    private void serve(Socket socket, Receiver receiver) {
+        try (socket) {
+            var in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            var out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            while (true) {
+                int type = in.read();
+                if (type < 0) {
+                    return;
+                }
+                var message = read(in);
+                if (type == BATCH) {
+                    receiver.onBatch(message);
+                } else if (type == REQUEST) {
+                    write(out, REPLY, receiver.onRequest(message));
+                } else {
+                    throw new IOException("unexpected message type: " + type);
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            // the peer is gone or sent a malformed message, it connects again when it needs to.
+        } finally {
+            synchronized (accepted) {
+                accepted.remove(socket);
+            }
+        }
+    }
+
+    private byte[] read(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0 || length > maxFrameBytes) {
+            throw new IOException("invalid frame length: " + length);
+        }
+        var message = new byte[length];
+        in.readFully(message);
+        return message;
+    }
+
+    private static void write(DataOutputStream out, int type, byte[] message) throws IOException {
+        out.write(type);
+        out.writeInt(message.length);
+        out.write(message);
+        out.flush();
+    }
+
+    // the connections to another node.
+    private final class Peer {
+        private final String node;
+        private final Connection batches = new Connection(this);
+        private final ConcurrentLinkedQueue<Connection> idle = new ConcurrentLinkedQueue<>();
+        private final ThreadPoolExecutor sender;
+        private volatile long downUntil;
+
+        Peer(String node) {
+            this.node = node;
+            this.sender =
+                    new ThreadPoolExecutor(
+                            1,
+                            1,
+                            timeoutMillis,
+                            TimeUnit.MILLISECONDS,
+                            new ArrayBlockingQueue<>(MAX_PENDING_BATCHES),
+                            runnable -> {
+                                var thread = new Thread(runnable, "proxy-wasm-replication-" + node);
+                                thread.setDaemon(true);
+                                return thread;
+                            },
+                            // the node missed the batch, anti-entropy repairs it.
+                            new ThreadPoolExecutor.DiscardPolicy());
+            sender.allowCoreThreadTimeOut(true);
+        }
+
+        void send(byte[] batch) {
+            try {
+                batches.send(BATCH, batch);
+            } catch (IOException e) {
+                // the node missed the batch, anti-entropy repairs it once it is back.
+            }
+        }
+
+        byte[] request(byte[] request) throws IOException {
+            var connection = idle.poll();
+            if (connection == null) {
+                connection = new Connection(this);
+            }
+            var reply = connection.send(REQUEST, request);
+            if (closed || idle.size() >= MAX_IDLE_CONNECTIONS) {
+                connection.close();
+            } else {
+                idle.offer(connection);
+            }
+            return reply;
+        }
+
+        void close() {
+            sender.shutdownNow();
+            batches.close();
+            for (Connection connection; (connection = idle.poll()) != null; ) {
+                connection.close();
+            }
+        }
+    }
+
+    // a connection to a peer, its requests wait for their reply one at a time.
+    private final class Connection {
+        private final Peer peer;
+        private Socket socket;
+        private DataInputStream in;
+        private DataOutputStream out;
+
+        Connection(Peer peer) {
+            this.peer = peer;
+        }
+
+        synchronized byte[] send(int type, byte[] message) throws IOException {
+            if (closed) {
+                throw new IOException("transport closed");
+            }
+            try {
+                if (socket == null) {
+                    connect();
+                }
+                write(out, type, message);
+                if (type != REQUEST) {
+                    return null;
+                }
+                if (in.read() != REPLY) {
+                    throw new IOException("unexpected reply from " + peer.node);
+                }
+                return read(in);
+            } catch (IOException e) {
+                close();
+                throw e;
+            }
+        }
+
+        private void connect() throws IOException {
+            if (System.nanoTime() - peer.downUntil < 0) {
+                throw new IOException("unreachable node: " + peer.node);
+            }
+            socket = new Socket();
+            try {
+                socket.connect(nodes.get(peer.node), timeoutMillis);
+            } catch (IOException e) {
+                peer.downUntil = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+                throw e;
+            }
+            socket.setSoTimeout(timeoutMillis);
+            socket.setTcpNoDelay(true);
+            in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+        }
+
+        synchronized void close() {
+            if (socket != null) {
+                try {
+                    socket.close();
+                } catch (IOException e) {
+                    // ignored, the connection is dropped anyway.
+                }
+                socket = null;
+            }
+        }
+    }
+
+    private Peer peer(String node) throws IOException {
+        if (!nodes.containsKey(node) || node.equals(localNode)) {
+            throw new IOException("unknown node: " + node);
+        }
+        return peers.computeIfAbsent(node, Peer::new);
+    }
+
+    @Override
+    public void broadcast(byte[] batch) {
+        for (var node : nodes.keySet()) {
+            if (!node.equals(localNode)) {
+                var peer = peers.computeIfAbsent(node, Peer::new);
+                peer.sender.execute(() -> peer.send(batch));
+            }
+        }
+    }
+
+    @Override
+    public byte[] request(String node, byte[] request) throws IOException {
+        return peer(node).request(request);
+    }
+
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        for (var peer : peers.values()) {
+            peer.close();
+        }
+        synchronized (accepted) {
+            for (var socket : accepted) {
+                socket.close();
+            }
+        }
+        if (server != null) {
+            server.close();
+        }
+    }
+}
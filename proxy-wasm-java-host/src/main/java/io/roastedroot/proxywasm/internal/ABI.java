@@ -2,7 +2,6 @@ package io.roastedroot.proxywasm.internal;
 
 import static io.roastedroot.proxywasm.internal.Helpers.bytes;
 import static io.roastedroot.proxywasm.internal.Helpers.replaceBytes;
-import static io.roastedroot.proxywasm.internal.Helpers.split;
 import static io.roastedroot.proxywasm.internal.Helpers.string;
 
 import com.dylibso.chicory.annotations.HostModule;
@@ -18,7 +17,6 @@ import io.roastedroot.proxywasm.QueueName;
 import io.roastedroot.proxywasm.SharedData;
 import io.roastedroot.proxywasm.WasmException;
 import java.nio.ByteBuffer;
-import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 
@@ -26,6 +24,7 @@ import java.util.Map;
 class ABI {
 
     private Handler handler;
+    private Instance instance;
     private Memory memory;
     ExportFunction initializeFn;
     ExportFunction mainFn;
@@ -65,7 +64,12 @@ class ABI {
         this.handler = handler;
     }
 
+    Instance instance() {
+        return instance;
+    }
+
     void setInstance(Instance instance) {
+        this.instance = instance;
         this.memory = instance.memory();
         var exports = instance.exports();
 
@@ -200,10 +204,9 @@ class ABI {
         try {
             if (data.hasArray()) {
                 var array = data.array();
-                memory.write(address, array, data.position(), data.remaining());
+                memory.write(
+                        address, array, data.arrayOffset() + data.position(), data.remaining());
             } else {
-                // This could likely be optimized by extending the memory interface to accept
-                // ByteBuffer
                 byte[] bytes = new byte[data.remaining()];
                 data.get(bytes);
                 memory.write(address, bytes);
@@ -500,6 +503,12 @@ class ABI {
             int returnBufferSize) {
 
         try {
+            // bodies are copied segment by segment, without joining them first.
+            BodyBuffer body = getBodyBuffer(bufferType);
+            if (body != null) {
+                return getBodyBytes(body, start, chunkLength, returnBufferData, returnBufferSize);
+            }
+
             // Get the buffer based on the buffer type
             byte[] b = getBuffer(bufferType);
             if (b == null || b.length == 0) {
@@ -541,6 +550,32 @@ class ABI {
         }
     }
 
+    private int getBodyBytes(
+            BodyBuffer body, int start, int chunkLength, int returnBufferData, int returnBufferSize)
+            throws WasmException {
+        if (body.length() == 0) {
+            return WasmResult.NOT_FOUND.getValue();
+        }
+        if (start < 0 || start > body.length()) {
+            return WasmResult.BAD_ARGUMENT.getValue();
+        }
+        int maxChunkLength = body.length() - start;
+        if (chunkLength < 0 || chunkLength > maxChunkLength) {
+            chunkLength = maxChunkLength;
+        }
+
+        int addr = malloc(chunkLength);
+        int position = addr;
+        for (ByteBuffer slice : body.slices(start, chunkLength)) {
+            int remaining = slice.remaining();
+            putMemory(position, slice);
+            position += remaining;
+        }
+        putUint32(returnBufferData, addr);
+        putUint32(returnBufferSize, chunkLength);
+        return WasmResult.OK.getValue();
+    }
+
     /**
      * implements: https://github.com/proxy-wasm/spec/tree/main/abi-versions/vNEXT#proxy_set_buffer_bytes
      *
@@ -555,6 +590,13 @@ class ABI {
     int proxySetBufferBytes(int bufferType, int start, int length, int dataPtr, int dataSize) {
         try {
 
+            // bodies are edited in place, only the changed bytes are copied.
+            BodyBuffer body = getBodyBuffer(bufferType);
+            if (body != null) {
+                body.replace(start, length, memory.readBytes(dataPtr, dataSize));
+                return setBodyBuffer(bufferType, body).getValue();
+            }
+
             // Get the buffer based on the buffer type
             var buf = getBuffer(bufferType);
             if (buf == null) {
@@ -581,6 +623,12 @@ class ABI {
     @WasmExport
     int proxyGetBufferStatus(int bufferType, int returnBufferSize, int returnUnused) {
         try {
+            BodyBuffer body = getBodyBuffer(bufferType);
+            if (body != null) {
+                putUint32(returnBufferSize, body.length());
+                return WasmResult.OK.getValue();
+            }
+
             // Get the buffer based on the buffer type
             byte[] b = getBuffer(bufferType);
             if (b == null) {
@@ -630,6 +678,30 @@ class ABI {
         return null;
     }
 
+    /**
+     * Get the segmented buffer of the http bodies.
+     *
+     * @param bufferType The type of buffer to get
+     * @return The body buffer, or null if the buffer type is not an http body or not available
+     */
+    private BodyBuffer getBodyBuffer(int bufferType) {
+        var knownType = BufferType.fromInt(bufferType);
+        if (knownType == BufferType.HTTP_REQUEST_BODY) {
+            return handler.getHttpRequestBodyBuffer();
+        }
+        if (knownType == BufferType.HTTP_RESPONSE_BODY) {
+            return handler.getHttpResponseBodyBuffer();
+        }
+        return null;
+    }
+
+    private WasmResult setBodyBuffer(int bufferType, BodyBuffer body) {
+        if (BufferType.fromInt(bufferType) == BufferType.HTTP_REQUEST_BODY) {
+            return handler.setHttpRequestBodyBuffer(body);
+        }
+        return handler.setHttpResponseBodyBuffer(body);
+    }
+
     /**
      * Set a buffer based on the buffer type.
      *
@@ -687,16 +759,9 @@ class ABI {
                 return WasmResult.BAD_ARGUMENT.getValue();
             }
 
-            // to clone the headers so that they don't change on while we process them in the loop
-            var cloneMap = new ArrayProxyMap(header);
-            int totalBytesLen = U32_LEN; // Start with space for the count
-
-            for (Map.Entry<String, String> entry : cloneMap.entries()) {
-                String key = entry.getKey();
-                String value = entry.getValue();
-                totalBytesLen += U32_LEN + U32_LEN; // keyLen + valueLen
-                totalBytesLen += key.length() + 1 + value.length() + 1; // key + \0 + value + \0
-            }
+            // the encoded pairs are cached by the map, so the following
+            // proxy_get_header_map_pairs call does not encode them again.
+            int totalBytesLen = header.encodePairs().length;
 
             // Write the total size to the return size pointer
             putUint32(returnSize, totalBytesLen);
@@ -728,64 +793,12 @@ class ABI {
                 return WasmResult.NOT_FOUND.getValue();
             }
 
-            var cloneMap = new ArrayList<Map.Entry<byte[], byte[]>>();
-            int totalBytesLen = U32_LEN; // Start with space for the count
-
-            totalBytesLen +=
-                    header.streamBytes()
-                            .mapToInt(
-                                    entry -> {
-                                        var key = entry.getKey();
-                                        var value = entry.getValue();
-                                        cloneMap.add(Map.entry(key, value));
-                                        return U32_LEN
-                                                + U32_LEN // keyLen + valueLen
-                                                + key.length
-                                                + 1
-                                                + value.length
-                                                + 1; // key + \0 + value + \0
-                                    })
-                            .sum();
+            byte[] pairs = header.encodePairs();
+            int totalBytesLen = pairs.length;
 
-            // Allocate memory in the WebAssembly instance
+            // Allocate memory in the WebAssembly instance and copy the pairs in one write
             int addr = malloc(totalBytesLen);
-
-            // Write the number of entries to the allocated memory
-            putUint32(addr, cloneMap.size());
-
-            // Calculate pointers for lengths and data
-            int lenPtr = addr + U32_LEN;
-            int dataPtr = lenPtr + ((U32_LEN + U32_LEN) * cloneMap.size());
-
-            // Write each key-value pair to memory
-            for (Map.Entry<byte[], byte[]> entry : cloneMap) {
-                var key = entry.getKey();
-                var value = entry.getValue();
-
-                // Write key length
-                putUint32(lenPtr, key.length);
-                lenPtr += U32_LEN;
-
-                // Write value length
-                putUint32(lenPtr, value.length);
-                lenPtr += U32_LEN;
-
-                // Write key bytes
-                putMemory(dataPtr, key);
-                dataPtr += key.length;
-
-                // Write null terminator for key
-                putByte(dataPtr, (byte) 0);
-                dataPtr++;
-
-                // Write value bytes
-                putMemory(dataPtr, value);
-                dataPtr += value.length;
-
-                // Write null terminator for value
-                putByte(dataPtr, (byte) 0);
-                dataPtr++;
-            }
+            putMemory(addr, pairs);
 
             // Write the address to the return pointer
             putUint32(returnDataPtr, addr);
@@ -1042,51 +1055,10 @@ class ABI {
      */
     private ProxyMap decodeMap(int addr, int mem_size) throws WasmException {
         if (mem_size < U32_LEN) {
-            return new ArrayProxyMap();
+            return new BytesProxyMap();
         }
-
-        // Read header size (number of entries)
-        var mapSize = getUint32(addr);
-
-        // Calculate start of data section
-        // mapSize + (key1_size + value1_size) * mapSize
-        long dataOffset = U32_LEN + (U32_LEN + U32_LEN) * mapSize;
-        if (dataOffset >= mem_size) {
-            return new ArrayProxyMap();
-        }
-
-        // Create result map with initial capacity
-        var result = new ArrayProxyMap((int) mapSize);
-
-        // Process each entry
-        for (int i = 0; i < mapSize; i++) {
-
-            // Calculate index for length values
-            int keySizeOffset = U32_LEN + (U32_LEN + U32_LEN) * i;
-            int valueSizeOffset = keySizeOffset + U32_LEN;
-
-            // Read key and value sizes
-            long keySize = getUint32(addr + keySizeOffset);
-            long valueSize = getUint32(addr + valueSizeOffset);
-
-            // Check if we have enough data for the key/value
-            if (dataOffset >= mem_size || dataOffset + keySize + valueSize + 2 > mem_size) {
-                break;
-            }
-
-            // Extract key
-            String key = string(readMemory((int) (addr + dataOffset), (int) keySize));
-            dataOffset += keySize + 1; // Skip null terminator
-
-            // Extract value
-            String value = string(readMemory((int) (addr + dataOffset), (int) valueSize));
-            dataOffset += valueSize + 1;
-
-            // Add to result map
-            result.add(key, value);
-        }
-
-        return result;
+        // one bulk read, the map keeps using the read bytes as its storage.
+        return BytesProxyMap.decodePairs(readMemory(addr, mem_size));
     }
 
     // //////////////////////////////////////////////////////////////////////
@@ -1836,7 +1808,7 @@ class ABI {
                 return WasmResult.BAD_ARGUMENT.getValue();
             }
 
-            var path = split(string(keyBytes), '\u0000');
+            var path = WellKnownProperties.path(keyBytes);
 
             // Get property value using handler
             byte[] value = handler.getProperty(path);
@@ -1859,7 +1831,7 @@ class ABI {
     int proxySetProperty(int pathDataPtr, int pathSize, int valueDataPtr, int valueSize) {
         try {
             // Get key from memory
-            var path = split(string(readMemory(pathDataPtr, pathSize)), '\u0000');
+            var path = WellKnownProperties.path(readMemory(pathDataPtr, pathSize));
 
             // Get value from memory
             var value = readMemory(valueDataPtr, valueSize);
@@ -1,8 +1,12 @@
 package io.roastedroot.proxywasm.internal;
 
+import static io.roastedroot.proxywasm.internal.Helpers.U32_LEN;
 import static io.roastedroot.proxywasm.internal.Helpers.bytes;
 import static io.roastedroot.proxywasm.internal.Helpers.len;
+import static io.roastedroot.proxywasm.internal.Helpers.putUint32;
+import static io.roastedroot.proxywasm.internal.Helpers.putUtf8;
 import static io.roastedroot.proxywasm.internal.Helpers.string;
+import static io.roastedroot.proxywasm.internal.Helpers.utf8Length;
 
 import java.io.ByteArrayOutputStream;
 import java.io.DataOutputStream;
@@ -16,6 +20,7 @@ import java.util.stream.Stream;
 public class ArrayBytesProxyMap implements ProxyMap {
 
     final ArrayList<Map.Entry<String, byte[]>> entries;
+    private byte[] encodedPairs;
 
     public ArrayBytesProxyMap() {
         this.entries = new ArrayList<>();
@@ -32,10 +37,12 @@ public class ArrayBytesProxyMap implements ProxyMap {
 
     @Override
     public void add(String key, String value) {
+        encodedPairs = null;
         entries.add(Map.entry(key, bytes(value)));
     }
 
     public void add(String key, byte[] value) {
+        encodedPairs = null;
         entries.add(Map.entry(key, value));
     }
 
@@ -74,6 +81,7 @@ public class ArrayBytesProxyMap implements ProxyMap {
 
     @Override
     public void remove(String key) {
+        encodedPairs = null;
         entries.removeIf(x -> x.getKey().equals(key));
     }
 
@@ -96,6 +104,40 @@ public class ArrayBytesProxyMap implements ProxyMap {
         return entries.toString();
     }
 
+    @Override
+    public byte[] encodePairs() {
+        if (encodedPairs != null) {
+            return encodedPairs;
+        }
+        int totalBytesLen = U32_LEN;
+        for (var entry : entries) {
+            totalBytesLen += U32_LEN + U32_LEN; // keyLen + valueLen
+            totalBytesLen += utf8Length(entry.getKey()) + 1; // key + \0
+            totalBytesLen += len(entry.getValue()) + 1; // value + \0
+        }
+
+        byte[] result = new byte[totalBytesLen];
+        putUint32(result, 0, entries.size());
+        int lenPtr = U32_LEN;
+        int dataPtr = lenPtr + (U32_LEN + U32_LEN) * entries.size();
+        for (var entry : entries) {
+            int keyPtr = dataPtr;
+            dataPtr = putUtf8(result, dataPtr, entry.getKey());
+            putUint32(result, lenPtr, dataPtr - keyPtr);
+            dataPtr++; // \0
+            byte[] value = entry.getValue();
+            int valueLen = len(value);
+            if (valueLen > 0) {
+                System.arraycopy(value, 0, result, dataPtr, valueLen);
+            }
+            putUint32(result, lenPtr + U32_LEN, valueLen);
+            dataPtr += valueLen + 1; // value + \0
+            lenPtr += U32_LEN + U32_LEN;
+        }
+        encodedPairs = result;
+        return result;
+    }
+
     /**
      * Encode the map into a byte array.
      */
@@ -7,6 +7,7 @@ import java.util.Objects;
 public class ArrayProxyMap implements ProxyMap {
 
     final ArrayList<Map.Entry<String, String>> entries;
+    private byte[] encodedPairs;
 
     public ArrayProxyMap() {
         this.entries = new ArrayList<>();
@@ -37,6 +38,7 @@ public class ArrayProxyMap implements ProxyMap {
 
     @Override
     public void add(String key, String value) {
+        encodedPairs = null;
         entries.add(Map.entry(key, value));
     }
 
@@ -46,6 +48,14 @@ public class ArrayProxyMap implements ProxyMap {
         entries.add(Map.entry(key, value));
     }
 
+    @Override
+    public byte[] encodePairs() {
+        if (encodedPairs == null) {
+            encodedPairs = ProxyMap.super.encodePairs();
+        }
+        return encodedPairs;
+    }
+
     @Override
     public Iterable<? extends Map.Entry<String, String>> entries() {
         return entries;
@@ -62,11 +72,16 @@ public class ArrayProxyMap implements ProxyMap {
 
     @Override
     public void remove(String key) {
+        encodedPairs = null;
         entries.removeIf(x -> x.getKey().equals(key));
     }
 
     @Override
     public boolean equals(Object o) {
+        if (o instanceof BytesProxyMap) {
+            // both hold their entries in insertion order, so compare them as lists.
+            return entries.equals(((BytesProxyMap) o).entries());
+        }
         if (o == null || getClass() != o.getClass()) {
             return false;
         }
@@ -0,0 +1,163 @@
+package io.roastedroot.proxywasm.internal;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+
+/**
+ * A body buffer kept as a list of byte array segments.
+ *
+ * <p>Plugins often append, prepend or patch a body a few bytes at a time.  Keeping the body as
+ * segments makes these edits cost O(segments) instead of copying the whole body on every edit.
+ * The segments are only joined into a single array when a contiguous array is needed, see
+ * {@link #toByteArray()}.
+ *
+ * <p>Arrays passed to the buffer are used as segments without being copied, so they must not be
+ * modified afterwards.
+ */
+public final class BodyBuffer {
+
+    private static final byte[] EMPTY = new byte[0];
+
+    private static final class Segment {
+        final byte[] data;
+        final int offset;
+        final int length;
+
+        Segment(byte[] data, int offset, int length) {
+            this.data = data;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+    private final ArrayList<Segment> segments = new ArrayList<>();
+    private int length;
+
+    public BodyBuffer() {}
+
+    public BodyBuffer(byte[] data) {
+        append(data);
+    }
+
+    /**
+     * Returns the number of bytes in the buffer.
+     */
+    public int length() {
+        return length;
+    }
+
+    /**
+     * Appends the data to the end of the buffer.
+     */
+    public void append(byte[] data) {
+        if (data != null && data.length > 0) {
+            segments.add(new Segment(data, 0, data.length));
+            length += data.length;
+        }
+    }
+
+    /**
+     * Replaces {@code replaceLength} bytes starting at {@code start} with {@code change}.  Both
+     * are clamped to the buffer, so a {@code start} past the end appends and a
+     * {@code replaceLength} of {@code 0} inserts.
+     */
+    public void replace(int start, int replaceLength, byte[] change) {
+        start = Math.max(0, Math.min(start, length));
+        replaceLength = Math.max(0, Math.min(replaceLength, length - start));
+
+        int first = split(start);
+        int last = split(start + replaceLength);
+        segments.subList(first, last).clear();
+        length -= replaceLength;
+        if (change != null && change.length > 0) {
+            segments.add(first, new Segment(change, 0, change.length));
+            length += change.length;
+        }
+    }
+
+    /**
+     * Removes all the bytes from the buffer.
+     */
+    public void clear() {
+        segments.clear();
+        length = 0;
+    }
+
+    /**
+     * Returns views of the bytes in the given range, without copying them.
+     */
+    public ByteBuffer[] slices(int start, int sliceLength) {
+        start = Math.max(0, Math.min(start, length));
+        sliceLength = Math.max(0, Math.min(sliceLength, length - start));
+
+        var result = new ArrayList<ByteBuffer>();
+        int position = 0;
+        for (Segment segment : segments) {
+            int end = position + segment.length;
+            if (end > start && position < start + sliceLength) {
+                int from = Math.max(start, position) - position;
+                int to = Math.min(start + sliceLength, end) - position;
+                result.add(ByteBuffer.wrap(segment.data, segment.offset + from, to - from));
+            }
+            position = end;
+        }
+        return result.toArray(new ByteBuffer[0]);
+    }
+
+    /**
+     * Writes the bytes of the buffer to the stream, segment by segment.
+     */
+    public void writeTo(OutputStream out) throws IOException {
+        for (Segment segment : segments) {
+            out.write(segment.data, segment.offset, segment.length);
+        }
+    }
+
+    /**
+     * Returns the bytes of the buffer as a single array.  The buffer keeps the joined array as
+     * its only segment, so calling this again without editing the buffer does not copy.
+     */
+    public byte[] toByteArray() {
+        if (segments.isEmpty()) {
+            return EMPTY;
+        }
+        Segment single = segments.get(0);
+        if (segments.size() == 1 && single.offset == 0 && single.length == single.data.length) {
+            return single.data;
+        }
+
+        byte[] result = new byte[length];
+        int position = 0;
+        for (Segment segment : segments) {
+            System.arraycopy(segment.data, segment.offset, result, position, segment.length);
+            position += segment.length;
+        }
+        segments.clear();
+        segments.add(new Segment(result, 0, result.length));
+        return result;
+    }
+
+    // splits the segment containing the position, returns the index of the segment starting there.
+    private int split(int position) {
+        int start = 0;
+        for (int i = 0; i < segments.size(); i++) {
+            Segment segment = segments.get(i);
+            if (start == position) {
+                return i;
+            }
+            int end = start + segment.length;
+            if (position < end) {
+                int head = position - start;
+                segments.set(i, new Segment(segment.data, segment.offset, head));
+                segments.add(
+                        i + 1,
+                        new Segment(segment.data, segment.offset + head, segment.length - head));
+                return i + 1;
+            }
+            start = end;
+        }
+        return segments.size();
+    }
+}
@@ -0,0 +1,478 @@
+package io.roastedroot.proxywasm.internal;
+
+import static io.roastedroot.proxywasm.internal.Helpers.U32_LEN;
+import static io.roastedroot.proxywasm.internal.Helpers.bytes;
+import static io.roastedroot.proxywasm.internal.Helpers.putUint32;
+import static io.roastedroot.proxywasm.internal.Helpers.putUtf8;
+import static io.roastedroot.proxywasm.internal.Helpers.utf8Length;
+
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * A ProxyMap that keeps its keys and values as UTF-8 bytes.
+ *
+ * <p>All keys and values are stored null terminated in a single byte array, using the same layout
+ * as the data section of the proxy-wasm header map pairs format.  A map decoded from guest memory
+ * uses the decoded bytes as is, and {@link #encodePairs()} is mostly a copy.  Keys are looked up
+ * case insensitively through a small open addressed index, and Strings are only created for the
+ * keys and values that are asked for.
+ */
+public class BytesProxyMap implements ProxyMap {
+
+    // per entry: key offset, key length, value offset, value length, key hash
+    private static final int STRIDE = 5;
+    private static final int MIN_INDEX = 8;
+
+    private byte[] data;
+    private int dataLen;
+    private int garbage;
+    private int[] slices;
+    private String[] strings;
+    private int size;
+
+    // open addressed table of entry index + 1, 0 marks an empty slot.
+    private int[] index;
+    private byte[] encodedPairs;
+    private byte[] encoded;
+
+    public BytesProxyMap() {
+        this(8);
+    }
+
+    public BytesProxyMap(int mapSize) {
+        this(mapSize, new byte[Math.max(mapSize, 1) * 32]);
+    }
+
+    private BytesProxyMap(int mapSize, byte[] data) {
+        int capacity = Math.max(mapSize, 1);
+        this.data = data;
+        this.slices = new int[capacity * STRIDE];
+        this.strings = new String[capacity * 2];
+        this.index = new int[indexCapacity(capacity)];
+    }
+
+    public BytesProxyMap(ProxyMap other) {
+        this(other.size());
+        for (Map.Entry<String, String> entry : other.entries()) {
+            append(entry.getKey(), entry.getValue());
+        }
+    }
+
+    /**
+     * Decodes a map from the header map pairs format, see {@link ProxyMap#encodePairs()}.
+     * The returned map uses {@code encoded} as its storage.  Entries that don't fit in
+     * {@code encoded} are ignored.
+     */
+    public static BytesProxyMap decodePairs(byte[] encoded) {
+        if (encoded.length < U32_LEN) {
+            return new BytesProxyMap();
+        }
+        long mapSize = Integer.toUnsignedLong(int32(encoded, 0));
+        long dataOffset = U32_LEN + (U32_LEN + U32_LEN) * mapSize;
+        if (dataOffset >= encoded.length) {
+            return new BytesProxyMap();
+        }
+
+        var result = new BytesProxyMap((int) mapSize, encoded);
+        result.dataLen = encoded.length;
+        for (int i = 0; i < mapSize; i++) {
+            int lenPtr = U32_LEN + (U32_LEN + U32_LEN) * i;
+            long keySize = Integer.toUnsignedLong(int32(encoded, lenPtr));
+            long valueSize = Integer.toUnsignedLong(int32(encoded, lenPtr + U32_LEN));
+            if (dataOffset + keySize + valueSize + 2 > encoded.length) {
+                break;
+            }
+            int keyOffset = (int) dataOffset;
+            int valueOffset = (int) (dataOffset + keySize + 1);
+            result.addSlice(keyOffset, (int) keySize, valueOffset, (int) valueSize);
+            dataOffset = valueOffset + valueSize + 1;
+        }
+        // the lengths in front of the data are never used again.
+        result.garbage = U32_LEN + (U32_LEN + U32_LEN) * (int) mapSize;
+        return result;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public void add(String key, String value) {
+        append(key, value);
+    }
+
+    // not overridable, so subclasses can intercept add, put and remove independently.
+    private void append(String key, String value) {
+        int keyLen = utf8Length(key);
+        int valueLen = utf8Length(value);
+        ensureData(keyLen + valueLen + 2);
+
+        int keyOffset = dataLen;
+        putUtf8(data, keyOffset, key);
+        int valueOffset = keyOffset + keyLen + 1;
+        putUtf8(data, valueOffset, value);
+        dataLen = valueOffset + valueLen + 1;
+        data[keyOffset + keyLen] = 0;
+        data[dataLen - 1] = 0;
+
+        addSlice(keyOffset, keyLen, valueOffset, valueLen);
+        // we already have the Strings, so keep them.
+        strings[(size - 1) * 2] = key;
+        strings[(size - 1) * 2 + 1] = value;
+    }
+
+    public void add(byte[] key, byte[] value) {
+        ensureData(key.length + value.length + 2);
+
+        int keyOffset = dataLen;
+        System.arraycopy(key, 0, data, keyOffset, key.length);
+        int valueOffset = keyOffset + key.length + 1;
+        System.arraycopy(value, 0, data, valueOffset, value.length);
+        dataLen = valueOffset + value.length + 1;
+        data[keyOffset + key.length] = 0;
+        data[dataLen - 1] = 0;
+
+        addSlice(keyOffset, key.length, valueOffset, value.length);
+    }
+
+    @Override
+    public void put(String key, String value) {
+        removeAll(key);
+        append(key, value);
+    }
+
+    @Override
+    public Iterable<? extends Map.Entry<String, String>> entries() {
+        return new AbstractList<Map.Entry<String, String>>() {
+            @Override
+            public Map.Entry<String, String> get(int i) {
+                return Map.entry(key(i), value(i));
+            }
+
+            @Override
+            public int size() {
+                return size;
+            }
+        };
+    }
+
+    @Override
+    public String get(String key) {
+        int i = find(key);
+        if (i < 0) {
+            return null;
+        }
+        return value(i);
+    }
+
+    /**
+     * Returns the bytes of the first value of the given key, or null if the key is not in the map.
+     */
+    public byte[] getBytes(String key) {
+        int i = find(key);
+        if (i < 0) {
+            return null;
+        }
+        int valueOffset = slices[i * STRIDE + 2];
+        return Arrays.copyOfRange(data, valueOffset, valueOffset + slices[i * STRIDE + 3]);
+    }
+
+    @Override
+    public void remove(String key) {
+        removeAll(key);
+    }
+
+    private void removeAll(String key) {
+        if (find(key) < 0) {
+            return;
+        }
+        byte[] keyBytes = bytes(key);
+        int hash = hash(keyBytes, 0, keyBytes.length);
+        int kept = 0;
+        for (int i = 0; i < size; i++) {
+            int s = i * STRIDE;
+            if (slices[s + 4] == hash
+                    && equalsIgnoreCase(keyBytes, data, slices[s], slices[s + 1])) {
+                garbage += slices[s + 1] + slices[s + 3] + 2;
+                continue;
+            }
+            if (kept != i) {
+                System.arraycopy(slices, s, slices, kept * STRIDE, STRIDE);
+                strings[kept * 2] = strings[i * 2];
+                strings[kept * 2 + 1] = strings[i * 2 + 1];
+            }
+            kept++;
+        }
+        Arrays.fill(strings, kept * 2, size * 2, null);
+        size = kept;
+        encodedPairs = null;
+        encoded = null;
+        if (garbage > dataLen / 2) {
+            compact();
+        }
+        rebuildIndex(index.length);
+    }
+
+    @Override
+    public byte[] encode() {
+        // used for the request.headers and response.headers properties, which plugins may
+        // read many times per request.
+        if (encoded == null) {
+            encoded = ProxyMap.super.encode();
+        }
+        return encoded;
+    }
+
+    @Override
+    public byte[] encodePairs() {
+        if (encodedPairs != null) {
+            return encodedPairs;
+        }
+        int totalBytesLen = U32_LEN + (U32_LEN + U32_LEN) * size;
+        for (int i = 0; i < size; i++) {
+            totalBytesLen += slices[i * STRIDE + 1] + slices[i * STRIDE + 3] + 2;
+        }
+
+        byte[] result = new byte[totalBytesLen];
+        putUint32(result, 0, size);
+        int lenPtr = U32_LEN;
+        int dataPtr = lenPtr + (U32_LEN + U32_LEN) * size;
+        for (int i = 0; i < size; i++) {
+            int s = i * STRIDE;
+            putUint32(result, lenPtr, slices[s + 1]);
+            putUint32(result, lenPtr + U32_LEN, slices[s + 3]);
+            lenPtr += U32_LEN + U32_LEN;
+            // the key and value are stored next to each other with their null terminators.
+            int len = slices[s + 2] + slices[s + 3] + 1 - slices[s];
+            System.arraycopy(data, slices[s], result, dataPtr, len);
+            dataPtr += len;
+        }
+        encodedPairs = result;
+        return result;
+    }
+
+    private String key(int i) {
+        String result = strings[i * 2];
+        if (result == null) {
+            result =
+                    new String(
+                            data,
+                            slices[i * STRIDE],
+                            slices[i * STRIDE + 1],
+                            StandardCharsets.UTF_8);
+            strings[i * 2] = result;
+        }
+        return result;
+    }
+
+    private String value(int i) {
+        String result = strings[i * 2 + 1];
+        if (result == null) {
+            result =
+                    new String(
+                            data,
+                            slices[i * STRIDE + 2],
+                            slices[i * STRIDE + 3],
+                            StandardCharsets.UTF_8);
+            strings[i * 2 + 1] = result;
+        }
+        return result;
+    }
+
+    private int find(String key) {
+        if (size == 0) {
+            return -1;
+        }
+        int len = key.length();
+        int hash = 0;
+        for (int i = 0; i < len; i++) {
+            char c = key.charAt(i);
+            if (c >= 0x80) {
+                byte[] keyBytes = bytes(key);
+                return find(keyBytes, hash(keyBytes, 0, keyBytes.length));
+            }
+            hash = 31 * hash + toLowerCase(c);
+        }
+
+        int mask = index.length - 1;
+        for (int slot = mix(hash) & mask; ; slot = (slot + 1) & mask) {
+            int entry = index[slot] - 1;
+            if (entry < 0) {
+                return -1;
+            }
+            int s = entry * STRIDE;
+            if (slices[s + 4] == hash && equalsIgnoreCase(key, data, slices[s], slices[s + 1])) {
+                return entry;
+            }
+        }
+    }
+
+    private int find(byte[] key, int hash) {
+        int mask = index.length - 1;
+        for (int slot = mix(hash) & mask; ; slot = (slot + 1) & mask) {
+            int entry = index[slot] - 1;
+            if (entry < 0) {
+                return -1;
+            }
+            int s = entry * STRIDE;
+            if (slices[s + 4] == hash && equalsIgnoreCase(key, data, slices[s], slices[s + 1])) {
+                return entry;
+            }
+        }
+    }
+
+    private void addSlice(int keyOffset, int keyLen, int valueOffset, int valueLen) {
+        if ((size + 1) * STRIDE > slices.length) {
+            int capacity = Math.max(size * 2, 4);
+            slices = Arrays.copyOf(slices, capacity * STRIDE);
+            strings = Arrays.copyOf(strings, capacity * 2);
+        }
+        int s = size * STRIDE;
+        int hash = hash(data, keyOffset, keyLen);
+        slices[s] = keyOffset;
+        slices[s + 1] = keyLen;
+        slices[s + 2] = valueOffset;
+        slices[s + 3] = valueLen;
+        slices[s + 4] = hash;
+        size++;
+        encodedPairs = null;
+        encoded = null;
+
+        // keep the index at most half full.
+        if (size * 2 > index.length) {
+            rebuildIndex(index.length * 2);
+        } else {
+            insert(size - 1, hash);
+        }
+    }
+
+    private void insert(int entry, int hash) {
+        int mask = index.length - 1;
+        int slot = mix(hash) & mask;
+        while (index[slot] != 0) {
+            slot = (slot + 1) & mask;
+        }
+        index[slot] = entry + 1;
+    }
+
+    private void rebuildIndex(int capacity) {
+        index = new int[Math.max(capacity, indexCapacity(size))];
+        // entries are inserted in order, so the first entry of a key is found first.
+        for (int i = 0; i < size; i++) {
+            insert(i, slices[i * STRIDE + 4]);
+        }
+    }
+
+    private void ensureData(int extra) {
+        if (dataLen + extra > data.length) {
+            if (garbage > 0) {
+                compact();
+            }
+            if (dataLen + extra > data.length) {
+                data = Arrays.copyOf(data, Math.max(data.length * 2, dataLen + extra));
+            }
+        }
+    }
+
+    // drop the bytes of removed entries.
+    private void compact() {
+        int liveLen = 0;
+        for (int i = 0; i < size; i++) {
+            liveLen += slices[i * STRIDE + 1] + slices[i * STRIDE + 3] + 2;
+        }
+        byte[] compacted = new byte[Math.max(liveLen * 2, 32)];
+        int offset = 0;
+        for (int i = 0; i < size; i++) {
+            int s = i * STRIDE;
+            int len = slices[s + 2] + slices[s + 3] + 1 - slices[s];
+            System.arraycopy(data, slices[s], compacted, offset, len);
+            slices[s + 2] = offset + (slices[s + 2] - slices[s]);
+            slices[s] = offset;
+            offset += len;
+        }
+        data = compacted;
+        dataLen = offset;
+        garbage = 0;
+    }
+
+    private static int indexCapacity(int size) {
+        int capacity = MIN_INDEX;
+        while (capacity < size * 2) {
+            capacity <<= 1;
+        }
+        return capacity;
+    }
+
+    private static int mix(int hash) {
+        return hash ^ (hash >>> 16);
+    }
+
+    private static int toLowerCase(int c) {
+        return c >= 'A' && c <= 'Z' ? c + ('a' - 'A') : c;
+    }
+
+    private static int hash(byte[] bytes, int offset, int len) {
+        int hash = 0;
+        for (int i = offset; i < offset + len; i++) {
+            hash = 31 * hash + toLowerCase(bytes[i] & 0xff);
+        }
+        return hash;
+    }
+
+    private static boolean equalsIgnoreCase(String key, byte[] data, int offset, int len) {
+        if (key.length() != len) {
+            return false;
+        }
+        for (int i = 0; i < len; i++) {
+            if (toLowerCase(key.charAt(i)) != toLowerCase(data[offset + i] & 0xff)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean equalsIgnoreCase(byte[] key, byte[] data, int offset, int len) {
+        if (key.length != len) {
+            return false;
+        }
+        for (int i = 0; i < len; i++) {
+            if (toLowerCase(key[i] & 0xff) != toLowerCase(data[offset + i] & 0xff)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int int32(byte[] bytes, int offset) {
+        return (bytes[offset] & 0xff)
+                | (bytes[offset + 1] & 0xff) << 8
+                | (bytes[offset + 2] & 0xff) << 16
+                | (bytes[offset + 3] & 0xff) << 24;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (o instanceof ArrayProxyMap) {
+            return entries().equals(((ArrayProxyMap) o).entries);
+        }
+        if (!(o instanceof BytesProxyMap)) {
+            return false;
+        }
+        BytesProxyMap that = (BytesProxyMap) o;
+        return entries().equals(that.entries());
+    }
+
+    @Override
+    public int hashCode() {
+        return entries().hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return entries().toString();
+    }
+}
@@ -292,6 +292,11 @@ public abstract class ChainedHandler implements Handler {
         return next().enqueueSharedQueue(queueId, value);
     }
 
+    @Override
+    public Runnable subscribeSharedQueue(int queueId, Runnable onReady) throws WasmException {
+        return next().subscribeSharedQueue(queueId, onReady);
+    }
+
     @Override
     public LogLevel getLogLevel() throws WasmException {
         return next().getLogLevel();
@@ -69,5 +69,6 @@ public abstract class Context implements Closeable {
         // unset active context so that callbacks don't try to use us.
         proxyWasm.setActiveContext(null);
         proxyWasm.abi().proxyOnDelete(id);
+        proxyWasm.observeMemory();
     }
 }
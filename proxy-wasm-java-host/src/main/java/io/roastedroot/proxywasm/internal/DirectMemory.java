@@ -0,0 +1,333 @@
+package io.roastedroot.proxywasm.internal;
+
+import com.dylibso.chicory.runtime.ByteArrayMemory;
+import com.dylibso.chicory.runtime.Instance;
+import com.dylibso.chicory.runtime.Memory;
+import com.dylibso.chicory.runtime.WasmRuntimeException;
+import com.dylibso.chicory.wasm.ChicoryException;
+import com.dylibso.chicory.wasm.types.ActiveDataSegment;
+import com.dylibso.chicory.wasm.types.DataSegment;
+import com.dylibso.chicory.wasm.types.MemoryLimits;
+import com.dylibso.chicory.wasm.types.OpCode;
+import com.dylibso.chicory.wasm.types.PassiveDataSegment;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * A WASM linear memory kept off the java heap, in a direct {@link ByteBuffer}.
+ *
+ * <p>Pooled plugin instances each hold several MB of linear memory for as long as they live,
+ * which with a heap backed memory ends up in the old generation and adds to the GC pause times.
+ * A direct buffer is not scanned or copied by the GC.
+ *
+ * <p>The buffer grows to the pages the guest asks for, rounded up to {@link #GROWTH_STEP_PAGES}
+ * pages, so a guest doesn't hold much more memory than it uses.  A direct buffer is only freed
+ * once it is garbage collected, and counts against {@code -XX:MaxDirectMemorySize} until then,
+ * so {@link #release()} drops it when its plugin is closed: the memory of a closed plugin isn't
+ * kept alive by whatever still references the plugin.
+ *
+ * <p>Like the other Chicory memories, this is not thread-safe: the instance owning it must only
+ * be used by one thread at a time.
+ */
+public final class DirectMemory implements Memory {
+
+    /**
+     * The number of pages the buffer grows by at least, so that a guest growing its memory a
+     * page at a time doesn't copy it every time.
+     */
+    public static final int GROWTH_STEP_PAGES = 16;
+
+    private static final ByteBuffer RELEASED = allocate(0);
+
+    private final MemoryLimits limits;
+    private ByteBuffer buffer;
+    private int pages;
+    private DataSegment[] dataSegments;
+
+    public DirectMemory(MemoryLimits limits) {
+        this.limits = limits;
+        this.pages = limits.initialPages();
+        this.buffer = allocate(Memory.bytes(pages));
+    }
+
+    private static ByteBuffer allocate(int capacity) {
+        return ByteBuffer.allocateDirect(capacity).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    private static int pages(int bytes) {
+        return bytes / PAGE_SIZE;
+    }
+
+    /**
+     * Drops the buffer, once the instance owning the memory won't run anymore.  The memory is
+     * empty afterwards.
+     */
+    public void release() {
+        buffer = RELEASED;
+        pages = 0;
+    }
+
+    private int sizeInBytes() {
+        return Memory.bytes(pages);
+    }
+
+    @Override
+    public int pages() {
+        return pages;
+    }
+
+    @Override
+    public int grow(int size) {
+        int previous = pages;
+        int next = previous + size;
+        if (next > maximumPages() || next < previous) {
+            return -1;
+        }
+        int bytes = Memory.bytes(next);
+        if (bytes > buffer.capacity()) {
+            int stepped = Math.max(next, pages(buffer.capacity()) + GROWTH_STEP_PAGES);
+            var grown = allocate(Memory.bytes(Math.min(stepped, maximumPages())));
+            var old = buffer.duplicate();
+            old.clear();
+            grown.put(old);
+            grown.clear();
+            buffer = grown;
+        }
+        buffer.limit(bytes);
+        pages = next;
+        return previous;
+    }
+
+    @Override
+    public int initialPages() {
+        return limits.initialPages();
+    }
+
+    @Override
+    public int maximumPages() {
+        return Math.min(limits.maximumPages(), RUNTIME_MAX_PAGES);
+    }
+
+    @Override
+    public void initialize(Instance instance, DataSegment[] dataSegments) {
+        this.dataSegments = dataSegments;
+        if (dataSegments == null) {
+            return;
+        }
+        for (DataSegment segment : dataSegments) {
+            if (!(segment instanceof ActiveDataSegment)
+                    && !(segment instanceof PassiveDataSegment)) {
+                throw new ChicoryException("Data segment should be active or passive: " + segment);
+            }
+            if (segment instanceof ActiveDataSegment
+                    && offset(instance, (ActiveDataSegment) segment) == null) {
+                initializeThroughHeap(instance, dataSegments);
+                return;
+            }
+        }
+        for (DataSegment segment : dataSegments) {
+            if (segment instanceof ActiveDataSegment) {
+                var active = (ActiveDataSegment) segment;
+                int offset = offset(instance, active);
+                byte[] data = active.data();
+                if (offset < 0 || offset > sizeInBytes() - data.length) {
+                    throw outOfBounds(offset, data.length);
+                }
+                write(offset, data);
+            }
+        }
+    }
+
+    // evaluates the usual constant offset expressions, or returns null for the others.
+    private static Integer offset(Instance instance, ActiveDataSegment segment) {
+        var instructions = segment.offsetInstructions();
+        if (instructions.isEmpty()
+                || (instructions.size() > 1 && instructions.get(1).opcode() != OpCode.END)) {
+            return null;
+        }
+        var instruction = instructions.get(0);
+        switch (instruction.opcode()) {
+            case I32_CONST:
+                return (int) instruction.operand(0);
+            case GLOBAL_GET:
+                return (int) instance.global((int) instruction.operand(0)).getValue();
+            default:
+                return null;
+        }
+    }
+
+    // lets chicory evaluate offset expressions we don't handle, then copies the initialized
+    // memory over.  This only happens once, when the instance is created.
+    private void initializeThroughHeap(Instance instance, DataSegment[] dataSegments) {
+        var heap = new ByteArrayMemory(new MemoryLimits(pages, maximumPages()));
+        heap.initialize(instance, dataSegments);
+        write(0, heap.readBytes(0, sizeInBytes()));
+    }
+
+    @Override
+    public void initPassiveSegment(int segmentId, int dest, int offset, int size) {
+        write(dest, dataSegments[segmentId].data(), offset, size);
+    }
+
+    @Override
+    public void drop(int segment) {
+        dataSegments[segment] = PassiveDataSegment.EMPTY;
+    }
+
+    private RuntimeException outOfBounds(int address, int size) {
+        return new WasmRuntimeException(
+                "out of bounds memory access: attempted to access address: "
+                        + address
+                        + " but limit is: "
+                        + sizeInBytes()
+                        + " and size: "
+                        + size);
+    }
+
+    private void checkBounds(int address, int size) {
+        if (address < 0 || size < 0 || address > sizeInBytes() - size) {
+            throw outOfBounds(address, size);
+        }
+    }
+
+    @Override
+    public void write(int address, byte[] data, int offset, int size) {
+        checkBounds(address, size);
+        buffer.position(address);
+        buffer.put(data, offset, size);
+    }
+
+    @Override
+    public byte read(int address) {
+        checkBounds(address, 1);
+        return buffer.get(address);
+    }
+
+    @Override
+    public byte[] readBytes(int address, int size) {
+        checkBounds(address, size);
+        byte[] result = new byte[size];
+        buffer.position(address);
+        buffer.get(result);
+        return result;
+    }
+
+    @Override
+    public void writeI32(int address, int data) {
+        checkBounds(address, 4);
+        buffer.putInt(address, data);
+    }
+
+    @Override
+    public int readInt(int address) {
+        checkBounds(address, 4);
+        return buffer.getInt(address);
+    }
+
+    @Override
+    public void writeLong(int address, long data) {
+        checkBounds(address, 8);
+        buffer.putLong(address, data);
+    }
+
+    @Override
+    public long readLong(int address) {
+        checkBounds(address, 8);
+        return buffer.getLong(address);
+    }
+
+    @Override
+    public void writeShort(int address, short data) {
+        checkBounds(address, 2);
+        buffer.putShort(address, data);
+    }
+
+    @Override
+    public short readShort(int address) {
+        checkBounds(address, 2);
+        return buffer.getShort(address);
+    }
+
+    @Override
+    public long readU16(int address) {
+        return readShort(address) & 0xffff;
+    }
+
+    @Override
+    public void writeByte(int address, byte data) {
+        checkBounds(address, 1);
+        buffer.put(address, data);
+    }
+
+    @Override
+    public void writeF32(int address, float data) {
+        checkBounds(address, 4);
+        buffer.putFloat(address, data);
+    }
+
+    @Override
+    public long readF32(int address) {
+        return readInt(address);
+    }
+
+    @Override
+    public float readFloat(int address) {
+        checkBounds(address, 4);
+        return buffer.getFloat(address);
+    }
+
+    @Override
+    public void writeF64(int address, double data) {
+        checkBounds(address, 8);
+        buffer.putDouble(address, data);
+    }
+
+    @Override
+    public double readDouble(int address) {
+        checkBounds(address, 8);
+        return buffer.getDouble(address);
+    }
+
+    @Override
+    public long readF64(int address) {
+        return readLong(address);
+    }
+
+    @Override
+    public void zero() {
+        fill((byte) 0, 0, sizeInBytes());
+    }
+
+    @Override
+    public void fill(byte value, int fromIndex, int toIndex) {
+        checkBounds(fromIndex, toIndex - fromIndex);
+        if (value == 0) {
+            // bulk copy zeros, a page at a time.
+            var zeros = ByteBuffer.allocate(Math.min(toIndex - fromIndex, PAGE_SIZE));
+            buffer.position(fromIndex);
+            while (buffer.position() < toIndex) {
+                zeros.clear().limit(Math.min(zeros.capacity(), toIndex - buffer.position()));
+                buffer.put(zeros);
+            }
+            return;
+        }
+        for (int i = fromIndex; i < toIndex; i++) {
+            buffer.put(i, value);
+        }
+    }
+
+    @Override
+    public void copy(int dest, int src, int size) {
+        checkBounds(src, size);
+        checkBounds(dest, size);
+        if (Math.abs(dest - src) < size) {
+            // overlapping regions: go through a copy, so the source is not overwritten mid-way.
+            write(dest, readBytes(src, size));
+            return;
+        }
+        var source = buffer.duplicate();
+        source.limit(src + size).position(src);
+        buffer.position(dest);
+        buffer.put(source);
+    }
+}
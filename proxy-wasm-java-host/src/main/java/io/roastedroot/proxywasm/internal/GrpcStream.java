@@ -0,0 +1,27 @@
+package io.roastedroot.proxywasm.internal;
+
+/**
+ * A gRPC stream opened by a plugin, see {@link ServerAdaptor#scheduleGrpcStream}.
+ */
+public interface GrpcStream {
+
+    /**
+     * Sends a message on the stream.
+     *
+     * @param endStream true to close the sending side of the stream after the message.
+     * @return false if the message was not sent because the stream already buffers too many
+     *     messages the upstream did not accept yet, it can be sent again later.
+     * @throws IllegalStateException if the sending side of the stream is already closed.
+     */
+    boolean send(byte[] message, boolean endStream);
+
+    /**
+     * Closes the sending side of the stream, the messages of the upstream are still received.
+     */
+    void close();
+
+    /**
+     * Cancels the stream, the handler is not called anymore.
+     */
+    void cancel();
+}
@@ -81,6 +81,78 @@ public final class Helpers {
         return new String(value, StandardCharsets.UTF_8);
     }
 
+    /**
+     * Returns the number of bytes {@link #bytes(String)} would return, without encoding the
+     * string.
+     */
+    public static int utf8Length(String value) {
+        int result = 0;
+        int len = value.length();
+        for (int i = 0; i < len; i++) {
+            char c = value.charAt(i);
+            if (c < 0x80) {
+                result += 1;
+            } else if (c < 0x800) {
+                result += 2;
+            } else if (Character.isHighSurrogate(c)
+                    && i + 1 < len
+                    && Character.isLowSurrogate(value.charAt(i + 1))) {
+                result += 4;
+                i++;
+            } else if (Character.isSurrogate(c)) {
+                // unpaired surrogates are replaced with '?'
+                result += 1;
+            } else {
+                result += 3;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Encodes the string as UTF-8 into {@code dest} at {@code offset}, like {@link #bytes(String)}
+     * but without allocating.
+     *
+     * @return the offset following the last written byte.
+     */
+    public static int putUtf8(byte[] dest, int offset, String value) {
+        int len = value.length();
+        for (int i = 0; i < len; i++) {
+            char c = value.charAt(i);
+            if (c < 0x80) {
+                dest[offset++] = (byte) c;
+            } else if (c < 0x800) {
+                dest[offset++] = (byte) (0xc0 | (c >> 6));
+                dest[offset++] = (byte) (0x80 | (c & 0x3f));
+            } else if (Character.isHighSurrogate(c)
+                    && i + 1 < len
+                    && Character.isLowSurrogate(value.charAt(i + 1))) {
+                int cp = Character.toCodePoint(c, value.charAt(++i));
+                dest[offset++] = (byte) (0xf0 | (cp >> 18));
+                dest[offset++] = (byte) (0x80 | ((cp >> 12) & 0x3f));
+                dest[offset++] = (byte) (0x80 | ((cp >> 6) & 0x3f));
+                dest[offset++] = (byte) (0x80 | (cp & 0x3f));
+            } else if (Character.isSurrogate(c)) {
+                dest[offset++] = (byte) '?';
+            } else {
+                dest[offset++] = (byte) (0xe0 | (c >> 12));
+                dest[offset++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+                dest[offset++] = (byte) (0x80 | (c & 0x3f));
+            }
+        }
+        return offset;
+    }
+
+    /**
+     * Writes a little endian 32-bit integer into {@code dest} at {@code offset}.
+     */
+    public static void putUint32(byte[] dest, int offset, int value) {
+        dest[offset] = (byte) value;
+        dest[offset + 1] = (byte) (value >> 8);
+        dest[offset + 2] = (byte) (value >> 16);
+        dest[offset + 3] = (byte) (value >> 24);
+    }
+
     public static List<String> split(String str, char separator) {
         ArrayList<String> parts = new ArrayList<>();
         int start = 0;
@@ -102,6 +174,13 @@ public final class Helpers {
         return value.length;
     }
 
+    public static int len(BodyBuffer value) {
+        if (value == null) {
+            return 0;
+        }
+        return value.length();
+    }
+
     public static int len(ProxyMap value) {
         if (value == null) {
             return 0;
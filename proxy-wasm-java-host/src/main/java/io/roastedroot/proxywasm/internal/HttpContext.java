@@ -44,11 +44,8 @@ public class HttpContext extends Context {
     }
 
     public Action callOnRequestBody(boolean endOfStream) {
-        var requestBody = handler.getHttpRequestBody();
-        int result =
-                proxyWasm
-                        .abi()
-                        .proxyOnRequestBody(id, Helpers.len(requestBody), endOfStream ? 1 : 0);
+        var requestBody = handler.getHttpRequestBodyBuffer();
+        int result = proxyWasm.abi().proxyOnRequestBody(id, len(requestBody), endOfStream ? 1 : 0);
         Action action = Action.fromInt(result);
         handler.setAction(StreamType.REQUEST, action);
         return action;
@@ -59,11 +56,9 @@ public class HttpContext extends Context {
     }
 
     public Action callOnResponseBody(boolean endOfStream) {
-        var responseBody = handler.getHttpResponseBody();
+        var responseBody = handler.getHttpResponseBodyBuffer();
         int result =
-                proxyWasm
-                        .abi()
-                        .proxyOnResponseBody(id, Helpers.len(responseBody), endOfStream ? 1 : 0);
+                proxyWasm.abi().proxyOnResponseBody(id, len(responseBody), endOfStream ? 1 : 0);
         Action action = Action.fromInt(result);
         handler.setAction(StreamType.RESPONSE, action);
         return action;
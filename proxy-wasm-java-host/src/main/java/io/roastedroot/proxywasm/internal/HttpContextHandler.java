@@ -56,4 +56,44 @@ public interface HttpContextHandler extends StreamContextHandler {
     default WasmResult setHttpResponseBody(byte[] body) {
         return WasmResult.UNIMPLEMENTED;
     }
+
+    /**
+     * Get the HTTP request body as a buffer that can be edited without copying the whole body.
+     *
+     * @return The HTTP request body buffer, or null if not available
+     */
+    default BodyBuffer getHttpRequestBodyBuffer() {
+        byte[] body = getHttpRequestBody();
+        return body == null ? null : new BodyBuffer(body);
+    }
+
+    /**
+     * Get the HTTP response body as a buffer that can be edited without copying the whole body.
+     *
+     * @return The HTTP response body buffer, or null if not available
+     */
+    default BodyBuffer getHttpResponseBodyBuffer() {
+        byte[] body = getHttpResponseBody();
+        return body == null ? null : new BodyBuffer(body);
+    }
+
+    /**
+     * Set the HTTP request body buffer.
+     *
+     * @param body The HTTP request body buffer
+     * @return WasmResult indicating success or failure
+     */
+    default WasmResult setHttpRequestBodyBuffer(BodyBuffer body) {
+        return setHttpRequestBody(body.toByteArray());
+    }
+
+    /**
+     * Set the HTTP response body buffer.
+     *
+     * @param body The HTTP response body buffer
+     * @return WasmResult indicating success or failure
+     */
+    default WasmResult setHttpResponseBodyBuffer(BodyBuffer body) {
+        return setHttpResponseBody(body.toByteArray());
+    }
 }
@@ -9,7 +9,7 @@ import java.util.function.Supplier;
  */
 public class HttpRequestBody {
 
-    private byte[] body;
+    private BodyBuffer body;
     private boolean loaded = false;
     private final Supplier<InputStream> streamSupplier;
 
@@ -18,9 +18,16 @@ public class HttpRequestBody {
     }
 
     public byte[] get() {
+        return buffer().toByteArray();
+    }
+
+    /**
+     * Returns the request body as an editable buffer, loading it from the stream if needed.
+     */
+    public BodyBuffer buffer() {
         if (!loaded) {
             try {
-                body = streamSupplier.get().readAllBytes();
+                body = new BodyBuffer(streamSupplier.get().readAllBytes());
             } catch (IOException e) {
                 throw new RuntimeException("Failed to read request body", e);
             }
@@ -41,6 +48,13 @@ public class HttpRequestBody {
      * This is used when the body is modified by WASM plugins.
      */
     public void setBody(byte[] body) {
+        setBody(new BodyBuffer(body));
+    }
+
+    /**
+     * Sets the request body buffer directly, marking it as loaded.
+     */
+    public void setBody(BodyBuffer body) {
         this.body = body;
         this.loaded = true;
     }
@@ -50,6 +64,6 @@ public class HttpRequestBody {
      * This allows checking if the body was accessed without triggering a load.
      */
     public byte[] getBodyIfLoaded() {
-        return loaded ? body : null;
+        return loaded ? body.toByteArray() : null;
     }
 }
@@ -9,7 +9,7 @@ import java.util.function.Supplier;
  */
 public class HttpResponseBody {
 
-    private byte[] body;
+    private BodyBuffer body;
     private boolean loaded = false;
     private final Supplier<byte[]> bodySupplier;
 
@@ -21,17 +21,24 @@ public class HttpResponseBody {
      * Creates an HttpResponseBody with a fixed byte array (no lazy loading needed).
      */
     public HttpResponseBody(byte[] body) {
-        this.body = body;
+        this.body = new BodyBuffer(body);
         this.loaded = true;
         this.bodySupplier = null;
     }
 
     public byte[] get() {
+        return buffer().toByteArray();
+    }
+
+    /**
+     * Returns the response body as an editable buffer, loading it from the supplier if needed.
+     */
+    public BodyBuffer buffer() {
         if (!loaded) {
             if (bodySupplier != null) {
-                body = bodySupplier.get();
+                body = new BodyBuffer(bodySupplier.get());
             } else {
-                body = new byte[0];
+                body = new BodyBuffer();
             }
             loaded = true;
         }
@@ -50,6 +57,13 @@ public class HttpResponseBody {
      * This is used when the body is modified by WASM plugins.
      */
     public void setBody(byte[] body) {
+        setBody(new BodyBuffer(body));
+    }
+
+    /**
+     * Sets the response body buffer directly, marking it as loaded.
+     */
+    public void setBody(BodyBuffer body) {
         this.body = body;
         this.loaded = true;
     }
@@ -59,6 +73,6 @@ public class HttpResponseBody {
      * This allows checking if the body was accessed without triggering a load.
      */
     public byte[] getBodyIfLoaded() {
-        return loaded ? body : null;
+        return loaded ? body.toByteArray() : null;
     }
 }
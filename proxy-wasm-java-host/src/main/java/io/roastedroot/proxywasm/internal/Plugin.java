@@ -7,6 +7,7 @@ import static io.roastedroot.proxywasm.internal.WellKnownHeaders.PATH;
 import static io.roastedroot.proxywasm.internal.WellKnownHeaders.SCHEME;
 import static io.roastedroot.proxywasm.internal.WellKnownProperties.PLUGIN_NAME;
 import static io.roastedroot.proxywasm.internal.WellKnownProperties.PLUGIN_VM_ID;
+import static io.roastedroot.proxywasm.internal.WellKnownProperties.VM_ID;
 
 import io.roastedroot.proxywasm.ForeignFunction;
 import io.roastedroot.proxywasm.LogHandler;
@@ -21,16 +22,24 @@ import io.roastedroot.proxywasm.StartException;
 import io.roastedroot.proxywasm.WasmException;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Objects;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.ReentrantLock;
 
 public final class Plugin implements io.roastedroot.proxywasm.Plugin {
 
     private final ReentrantLock lock = new ReentrantLock();
+    private final AtomicLong lockContentions = new AtomicLong();
+    private final AtomicLong lockWaitNanos = new AtomicLong();
     final ProxyWasm wasm;
+    private final HandlerImpl handler;
+    private final StartSnapshot startSnapshot;
+    private final int bodyChunkSize;
+    private StartSnapshot.Image resetImage;
     ServerAdaptor serverAdaptor;
     private final String name;
 
@@ -50,7 +59,9 @@ public final class Plugin implements io.roastedroot.proxywasm.Plugin {
             byte[] pluginConfig,
             MetricsHandler metricsHandler,
             SharedQueueHandler sharedQueueHandler,
-            SharedDataHandler sharedDataHandler)
+            SharedDataHandler sharedDataHandler,
+            StartSnapshot startSnapshot,
+            int bodyChunkSize)
             throws StartException {
         Objects.requireNonNull(proxyWasm);
         this.name = Objects.requireNonNullElse(name, "default");
@@ -68,9 +79,14 @@ public final class Plugin implements io.roastedroot.proxywasm.Plugin {
         this.sharedDataHandler =
                 Objects.requireNonNullElse(sharedDataHandler, SharedDataHandler.DEFAULT);
 
+        this.startSnapshot = startSnapshot;
+        this.bodyChunkSize = bodyChunkSize;
+
         this.wasm = proxyWasm;
-        this.wasm.setPluginHandler(new HandlerImpl());
-        this.wasm.start();
+        this.handler = new HandlerImpl();
+        this.wasm.setPluginHandler(handler);
+        // the pool starts the plugin once the server adaptor is set, since the plugin
+        // may schedule ticks or http calls while it starts.
     }
 
     @Override
@@ -78,14 +94,161 @@ public final class Plugin implements io.roastedroot.proxywasm.Plugin {
         return name;
     }
 
+    /**
+     * Starts the plugin, or restores it from the factory's start snapshot if one was captured.
+     */
+    public void start() throws StartException {
+        if (wasm.isStarted()) {
+            return;
+        }
+        if (startSnapshot == null) {
+            wasm.start();
+            return;
+        }
+
+        var image = startSnapshot.image;
+        if (image == null) {
+            wasm.start();
+            startSnapshot.capture(this);
+            return;
+        }
+
+        wasm.start(image.wasm);
+        properties.putAll(image.properties);
+        handler.setTickPeriodMilliseconds(image.tickPeriodMilliseconds);
+        // the guest registered its queues while the snapshot was taken, not again.
+        try {
+            for (int queueId : image.queueIds) {
+                subscribeToQueue(queueId);
+            }
+        } catch (WasmException e) {
+            throw new StartException("failed to subscribe to the shared queues", e);
+        }
+    }
+
+    /**
+     * Captures the current state of the started plugin so that {@link #reset()} can later
+     * bring it back to it.  The factory's start snapshot is shared when available.
+     */
+    public void captureResetState() {
+        if (startSnapshot != null && startSnapshot.image != null) {
+            resetImage = startSnapshot.image;
+        } else {
+            resetImage =
+                    new StartSnapshot.Image(
+                            wasm.snapshot(),
+                            tickPeriodMilliseconds,
+                            properties,
+                            queueSubscriptions.keySet());
+        }
+    }
+
+    /**
+     * Resets the plugin to the state captured by {@link #captureResetState()}: pending calls
+     * are cancelled, contexts and properties are dropped, and the guest's linear memory and
+     * globals are restored.
+     */
+    public void reset() throws StartException {
+        if (resetImage == null) {
+            throw new StartException("plugin reset state was not captured");
+        }
+        lock();
+        try {
+            cancelCalls();
+            wasm.reset(resetImage.wasm);
+            properties.clear();
+            properties.putAll(resetImage.properties);
+            funcCallData = new byte[0];
+            handler.setTickPeriodMilliseconds(resetImage.tickPeriodMilliseconds);
+        } finally {
+            unlock();
+        }
+    }
+
+    /**
+     * Holds the state of the first plugin started by a factory so that the following plugins can
+     * be started by copying it instead of running the guest's initialization again.
+     */
+    public static final class StartSnapshot {
+
+        private volatile Image image;
+
+        static final class Image {
+            final ProxyWasm.Snapshot wasm;
+            final int tickPeriodMilliseconds;
+            final HashMap<List<String>, byte[]> properties;
+            final List<Integer> queueIds;
+
+            Image(
+                    ProxyWasm.Snapshot wasm,
+                    int tickPeriodMilliseconds,
+                    HashMap<List<String>, byte[]> properties,
+                    Collection<Integer> queueIds) {
+                this.wasm = wasm;
+                this.tickPeriodMilliseconds = tickPeriodMilliseconds;
+                this.properties = new HashMap<>(properties);
+                this.queueIds = List.copyOf(queueIds);
+            }
+        }
+
+        synchronized void capture(Plugin plugin) {
+            if (image != null) {
+                return;
+            }
+            image =
+                    new Image(
+                            plugin.wasm.snapshot(),
+                            plugin.tickPeriodMilliseconds,
+                            plugin.properties,
+                            plugin.queueSubscriptions.keySet());
+        }
+
+        public boolean isCaptured() {
+            return image != null;
+        }
+    }
+
     public void lock() {
+        if (lock.tryLock()) {
+            return;
+        }
+        // another request is using the plugin, record how long we wait for it.
+        long start = System.nanoTime();
         lock.lock();
+        lockContentions.incrementAndGet();
+        lockWaitNanos.addAndGet(System.nanoTime() - start);
+    }
+
+    /**
+     * @return the number of times {@link #lock()} had to wait for another thread.
+     */
+    public long lockContentions() {
+        return lockContentions.get();
+    }
+
+    /**
+     * @return the total time spent waiting in {@link #lock()}, in nanoseconds.
+     */
+    public long lockWaitTimeNanos() {
+        return lockWaitNanos.get();
     }
 
     public void unlock() {
         lock.unlock();
     }
 
+    boolean isLocked() {
+        return lock.isLocked();
+    }
+
+    /**
+     * Returns the maximum number of body bytes passed to the plugin per body callback, or
+     * {@code 0} if the whole body is passed at once.
+     */
+    public int bodyChunkSize() {
+        return bodyChunkSize;
+    }
+
     public ServerAdaptor getServerAdaptor() {
         return serverAdaptor;
     }
@@ -105,25 +268,63 @@ public final class Plugin implements io.roastedroot.proxywasm.Plugin {
     public void close() {
         lock();
         try {
-            wasm.close();
+            try {
+                wasm.close();
+            } catch (RuntimeException e) {
+                // some guests trap when their plugin context is deleted, the instance is
+                // being discarded anyway, so make sure we still release the host resources.
+            }
             if (cancelTick != null) {
                 cancelTick.run();
                 cancelTick = null;
             }
-            for (var cancel : httpCalls.values()) {
-                cancel.run();
-            }
-            httpCalls.clear();
-            for (var cancel : grpcCalls.values()) {
-                cancel.run();
+            cancelCalls();
+            for (var unsubscribe : queueSubscriptions.values()) {
+                unsubscribe.run();
             }
-            grpcCalls.clear();
-
+            queueSubscriptions.clear();
+            closed = true;
         } finally {
             unlock();
         }
     }
 
+    // the plugin registering a queue receives from it, so wake it up when it has messages.
+    private void subscribeToQueue(int queueId) throws WasmException {
+        if (queueSubscriptions.containsKey(queueId)) {
+            return;
+        }
+        queueSubscriptions.put(
+                queueId,
+                sharedQueueHandler.subscribeSharedQueue(
+                        queueId,
+                        () -> {
+                            lock();
+                            try {
+                                if (!closed) {
+                                    wasm.sendOnQueueReady(queueId);
+                                }
+                            } finally {
+                                unlock();
+                            }
+                        }));
+    }
+
+    private void cancelCalls() {
+        for (var cancel : httpCalls.values()) {
+            cancel.run();
+        }
+        httpCalls.clear();
+        for (var cancel : grpcCalls.values()) {
+            cancel.run();
+        }
+        grpcCalls.clear();
+        for (var stream : grpcStreams.values()) {
+            stream.cancel();
+        }
+        grpcStreams.clear();
+    }
+
     public LogHandler logger;
     static final boolean DEBUG = "true".equals(System.getenv("DEBUG"));
     byte[] vmConfig;
@@ -131,6 +332,9 @@ public final class Plugin implements io.roastedroot.proxywasm.Plugin {
     private final AtomicInteger lastCallId = new AtomicInteger(0);
     private final HashMap<Integer, Runnable> httpCalls = new HashMap<>();
     private final HashMap<Integer, Runnable> grpcCalls = new HashMap<>();
+    private final HashMap<Integer, GrpcStream> grpcStreams = new HashMap<>();
+    private final HashMap<Integer, Runnable> queueSubscriptions = new HashMap<>();
+    private boolean closed;
     private final HashMap<String, URI> upstreams;
     boolean strictUpstreams;
     int minTickPeriodMilliseconds;
@@ -173,6 +377,10 @@ public final class Plugin implements io.roastedroot.proxywasm.Plugin {
             if (PLUGIN_NAME.equals(path)) {
                 return bytes(name);
             }
+            // the shared queues are registered under the vm_id, which defaults to the plugin name.
+            if (VM_ID.equals(path) && !properties.containsKey(path)) {
+                return bytes(name);
+            }
             return properties.get(path);
         }
 
@@ -377,6 +585,111 @@ public final class Plugin implements io.roastedroot.proxywasm.Plugin {
                 int timeoutMilliseconds)
                 throws WasmException {
 
+            var connectUri = grpcUpstream(upstreamName);
+            try {
+                var id = lastCallId.incrementAndGet();
+                var future =
+                        serverAdaptor.scheduleGrpcCall(
+                                connectUri.getHost(),
+                                connectUri.getPort(),
+                                "http".equals(connectUri.getScheme()),
+                                serviceName,
+                                methodName,
+                                headers,
+                                body,
+                                timeoutMilliseconds,
+                                grpcHandler(id, grpcCalls));
+                grpcCalls.put(id, future);
+                return id;
+            } catch (InterruptedException e) {
+                throw new WasmException(WasmResult.INTERNAL_FAILURE);
+            } catch (UnsupportedOperationException e) {
+                throw new WasmException(WasmResult.UNIMPLEMENTED);
+            }
+        }
+
+        @Override
+        public int grpcStream(
+                String upstreamName,
+                String serviceName,
+                String methodName,
+                ProxyMap initialMetadata)
+                throws WasmException {
+
+            var connectUri = grpcUpstream(upstreamName);
+            try {
+                var id = lastCallId.incrementAndGet();
+                var stream =
+                        serverAdaptor.scheduleGrpcStream(
+                                connectUri.getHost(),
+                                connectUri.getPort(),
+                                "http".equals(connectUri.getScheme()),
+                                serviceName,
+                                methodName,
+                                initialMetadata,
+                                grpcHandler(id, grpcStreams));
+                grpcStreams.put(id, stream);
+                return id;
+            } catch (InterruptedException e) {
+                throw new WasmException(WasmResult.INTERNAL_FAILURE);
+            } catch (UnsupportedOperationException e) {
+                throw new WasmException(WasmResult.UNIMPLEMENTED);
+            }
+        }
+
+        @Override
+        public WasmResult grpcSend(int streamId, byte[] message, int endStream) {
+            var stream = grpcStreams.get(streamId);
+            if (stream == null) {
+                return grpcCalls.containsKey(streamId)
+                        ? WasmResult.BAD_ARGUMENT
+                        : WasmResult.NOT_FOUND;
+            }
+            try {
+                if (!stream.send(message, endStream != 0)) {
+                    // the stream buffers too many messages, the plugin can send it again once
+                    // the upstream caught up, for example when it receives its next message.
+                    return WasmResult.INTERNAL_FAILURE;
+                }
+                return WasmResult.OK;
+            } catch (IllegalStateException e) {
+                return WasmResult.BAD_ARGUMENT;
+            }
+        }
+
+        @Override
+        public WasmResult grpcCancel(int callOrstreamId) {
+            var call = grpcCalls.remove(callOrstreamId);
+            if (call != null) {
+                call.run();
+                return WasmResult.OK;
+            }
+            var stream = grpcStreams.remove(callOrstreamId);
+            if (stream != null) {
+                stream.cancel();
+                return WasmResult.OK;
+            }
+            return WasmResult.NOT_FOUND;
+        }
+
+        @Override
+        public WasmResult grpcClose(int callOrstreamId) {
+            // closing a call cancels it, closing a stream only closes its sending side.
+            var call = grpcCalls.remove(callOrstreamId);
+            if (call != null) {
+                call.run();
+                return WasmResult.OK;
+            }
+            var stream = grpcStreams.get(callOrstreamId);
+            if (stream != null) {
+                stream.close();
+                return WasmResult.OK;
+            }
+            return WasmResult.NOT_FOUND;
+        }
+
+        // returns the uri of the upstream a grpc call or stream connects to, with its port.
+        private URI grpcUpstream(String upstreamName) throws WasmException {
             var connectUri = upstreams.get(upstreamName);
             if (connectUri == null && strictUpstreams) {
                 throw new WasmException(WasmResult.BAD_ARGUMENT);
@@ -399,89 +712,80 @@ public final class Plugin implements io.roastedroot.proxywasm.Plugin {
                 throw new WasmException(WasmResult.BAD_ARGUMENT);
             }
 
-            var connectHost = connectUri.getHost();
-            var connectPort = connectUri.getPort();
-            if (connectPort == -1) {
-                connectPort = "https".equals(connectUri.getScheme()) ? 443 : 80;
+            if (connectUri.getPort() == -1) {
+                try {
+                    connectUri =
+                            new URI(
+                                    connectUri.getScheme(),
+                                    null,
+                                    connectUri.getHost(),
+                                    "https".equals(connectUri.getScheme()) ? 443 : 80,
+                                    null,
+                                    null,
+                                    null);
+                } catch (URISyntaxException e) {
+                    throw new WasmException(WasmResult.BAD_ARGUMENT);
+                }
             }
+            return connectUri;
+        }
 
-            try {
-
-                var id = lastCallId.incrementAndGet();
-                var callHandler =
-                        new GrpcCallResponseHandler() {
-
-                            @Override
-                            public void onHeaders(ArrayBytesProxyMap headers) {
-                                lock();
-                                try {
-                                    if (grpcCalls.get(id) == null) {
-                                        return; // the call could have already been cancelled
-                                    }
-                                    wasm.sendGrpcReceiveInitialMetadata(id, headers);
-                                } finally {
-                                    unlock();
-                                }
-                            }
-
-                            @Override
-                            public void onMessage(byte[] data) {
-                                lock();
-                                try {
-                                    if (grpcCalls.get(id) == null) {
-                                        return; // the call could have already been cancelled
-                                    }
-                                    wasm.sendGrpcReceive(id, data);
-                                } finally {
-                                    unlock();
-                                }
-                            }
+        // passes the events of a grpc call or stream to the plugin, until it is closed.
+        private GrpcCallResponseHandler grpcHandler(int id, HashMap<Integer, ?> calls) {
+            return new GrpcCallResponseHandler() {
+
+                @Override
+                public void onHeaders(ArrayBytesProxyMap headers) {
+                    lock();
+                    try {
+                        if (calls.get(id) == null) {
+                            return; // the call could have already been cancelled
+                        }
+                        wasm.sendGrpcReceiveInitialMetadata(id, headers);
+                    } finally {
+                        unlock();
+                    }
+                }
 
-                            @Override
-                            public void onTrailers(ArrayBytesProxyMap trailers) {
-                                lock();
-                                try {
-                                    if (grpcCalls.get(id) == null) {
-                                        return; // the call could have already been cancelled
-                                    }
-                                    wasm.sendGrpcReceiveTrailingMetadata(id, trailers);
-                                } finally {
-                                    unlock();
-                                }
-                            }
+                @Override
+                public void onMessage(byte[] data) {
+                    lock();
+                    try {
+                        if (calls.get(id) == null) {
+                            return; // the call could have already been cancelled
+                        }
+                        wasm.sendGrpcReceive(id, data);
+                    } finally {
+                        unlock();
+                    }
+                }
 
-                            @Override
-                            public void onClose(int status) {
-                                lock();
-                                try {
-                                    if (grpcCalls.get(id) == null) {
-                                        return; // the call could have already been cancelled
-                                    }
-                                    wasm.sendGrpcClose(id, status);
-                                } finally {
-                                    unlock();
-                                }
-                            }
-                        };
+                @Override
+                public void onTrailers(ArrayBytesProxyMap trailers) {
+                    lock();
+                    try {
+                        if (calls.get(id) == null) {
+                            return; // the call could have already been cancelled
+                        }
+                        wasm.sendGrpcReceiveTrailingMetadata(id, trailers);
+                    } finally {
+                        unlock();
+                    }
+                }
 
-                var future =
-                        serverAdaptor.scheduleGrpcCall(
-                                connectHost,
-                                connectPort,
-                                "http".equals(connectUri.getScheme()),
-                                serviceName,
-                                methodName,
-                                headers,
-                                body,
-                                timeoutMilliseconds,
-                                callHandler);
-                grpcCalls.put(id, future);
-                return id;
-            } catch (InterruptedException e) {
-                throw new WasmException(WasmResult.INTERNAL_FAILURE);
-            } catch (UnsupportedOperationException e) {
-                throw new WasmException(WasmResult.UNIMPLEMENTED);
-            }
+                @Override
+                public void onClose(int status) {
+                    lock();
+                    try {
+                        if (calls.remove(id) == null) {
+                            return; // the call could have already been cancelled
+                        }
+                        wasm.sendGrpcClose(id, status);
+                    } finally {
+                        unlock();
+                    }
+                }
+            };
         }
 
         // //////////////////////////////////////////////////////////////////////
@@ -542,7 +846,9 @@ public final class Plugin implements io.roastedroot.proxywasm.Plugin {
 
         @Override
         public int registerSharedQueue(QueueName queueName) throws WasmException {
-            return sharedQueueHandler.registerSharedQueue(queueName);
+            int queueId = sharedQueueHandler.registerSharedQueue(queueName);
+            subscribeToQueue(queueId);
+            return queueId;
         }
 
         @Override
@@ -3,7 +3,8 @@ package io.roastedroot.proxywasm.internal;
 import io.roastedroot.proxywasm.WasmException;
 import java.util.HashMap;
 import java.util.List;
-import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
 
 public class PluginHttpContext {
 
@@ -22,7 +23,7 @@ public class PluginHttpContext {
     private byte[] downStreamData = new byte[0];
     private SendResponse sendResponse;
     private Action action;
-    private CountDownLatch resumeLatch;
+    private CompletableFuture<Void> resumed;
 
     public PluginHttpContext(Plugin plugin, HttpRequestAdaptor requestAdaptor) {
         this.plugin = plugin;
@@ -54,6 +55,16 @@ public class PluginHttpContext {
         return new byte[0];
     }
 
+    /**
+     * Gets the HTTP request body buffer, triggering lazy loading if needed.
+     */
+    public BodyBuffer getHttpRequestBodyBuffer() {
+        if (httpRequestBodyState != null) {
+            return httpRequestBodyState.buffer();
+        }
+        return new BodyBuffer();
+    }
+
     /**
      * Sets the HTTP request body, updating the supplier if present.
      */
@@ -87,6 +98,16 @@ public class PluginHttpContext {
         return new byte[0];
     }
 
+    /**
+     * Gets the HTTP response body buffer, triggering lazy loading if needed.
+     */
+    public BodyBuffer getHttpResponseBodyBuffer() {
+        if (httpResponseBodyState != null) {
+            return httpResponseBodyState.buffer();
+        }
+        return new BodyBuffer();
+    }
+
     /**
      * Sets the HTTP response body, updating the state if present.
      */
@@ -113,26 +134,56 @@ public class PluginHttpContext {
     }
 
     public void maybePause() {
+        awaitResume(pause());
+    }
+
+    /**
+     * Pauses the request processing, unless the plugin wants to continue or to respond to the
+     * request.  A tick or http call response event will need to resume the processing, which
+     * completes the returned future.  The future is completed while the plugin is locked by the
+     * event, so callers should continue on another thread or wait with
+     * {@link #awaitResume(CompletableFuture)}.
+     *
+     * @return the future completed when the plugin resumes, or null if it did not pause.
+     */
+    public CompletableFuture<Void> pause() {
         // don't pause if plugin wants us to continue
         if (action == Action.CONTINUE) {
-            return;
+            return null;
         }
         // don't pause if the plugin wants to respond to the request
         if (sendResponse != null) {
-            return;
+            return null;
         }
+        resumed = new CompletableFuture<>();
+        return resumed;
+    }
 
-        // ok, lets pause the request processing. A tick or http call response event will
-        // need to resume the processing
-        resumeLatch = new CountDownLatch(1);
+    /**
+     * Blocks until the plugin resumes, unlocking the plugin while waiting.
+     */
+    public void awaitResume(CompletableFuture<Void> resumed) {
+        if (resumed == null) {
+            return;
+        }
         plugin.unlock();
         try {
-            resumeLatch.await();
-        } catch (InterruptedException ignore) {
+            resumed.get();
+        } catch (InterruptedException | ExecutionException ignore) {
             return;
         } finally {
             plugin.lock();
-            resumeLatch = null;
+            if (this.resumed == resumed) {
+                this.resumed = null;
+            }
+        }
+    }
+
+    private void resume() {
+        if (resumed != null) {
+            var pending = resumed;
+            resumed = null;
+            pending.complete(null);
         }
     }
 
@@ -218,11 +269,22 @@ public class PluginHttpContext {
             return WasmResult.OK;
         }
 
+        @Override
+        public BodyBuffer getHttpRequestBodyBuffer() {
+            return PluginHttpContext.this.getHttpRequestBodyBuffer();
+        }
+
+        @Override
+        public WasmResult setHttpRequestBodyBuffer(BodyBuffer body) {
+            if (httpRequestBodyState != null && body != null) {
+                httpRequestBodyState.setBody(body);
+            }
+            return WasmResult.OK;
+        }
+
         public void appendHttpRequestBody(byte[] body) {
-            byte[] currentBody =
-                    PluginHttpContext.this
-                            .getHttpRequestBody(); // This will trigger lazy loading if needed
-            PluginHttpContext.this.setHttpRequestBody(Helpers.append(currentBody, body));
+            // This will trigger lazy loading if needed
+            PluginHttpContext.this.getHttpRequestBodyBuffer().append(body);
         }
 
         @Override
@@ -269,9 +331,21 @@ public class PluginHttpContext {
             return WasmResult.OK;
         }
 
+        @Override
+        public BodyBuffer getHttpResponseBodyBuffer() {
+            return PluginHttpContext.this.getHttpResponseBodyBuffer();
+        }
+
+        @Override
+        public WasmResult setHttpResponseBodyBuffer(BodyBuffer body) {
+            if (httpResponseBodyState != null && body != null) {
+                httpResponseBodyState.setBody(body);
+            }
+            return WasmResult.OK;
+        }
+
         public void appendHttpResponseBody(byte[] body) {
-            byte[] currentBody = PluginHttpContext.this.getHttpResponseBody();
-            PluginHttpContext.this.setHttpResponseBody(Helpers.append(currentBody, body));
+            PluginHttpContext.this.getHttpResponseBodyBuffer().append(body);
         }
 
         // //////////////////////////////////////////////////////////////////////
@@ -293,17 +367,15 @@ public class PluginHttpContext {
                             additionalHeaders,
                             grpcStatus);
 
-            if (resumeLatch != null) {
-                resumeLatch.countDown();
-            }
+            resume();
             return WasmResult.OK;
         }
 
         @Override
         public WasmResult setAction(StreamType streamType, Action actionValue) {
             action = actionValue;
-            if (action == Action.CONTINUE && resumeLatch != null) {
-                resumeLatch.countDown();
+            if (action == Action.CONTINUE) {
+                resume();
             }
             return WasmResult.OK;
         }
@@ -1,7 +1,13 @@
 package io.roastedroot.proxywasm.internal;
 
 import io.roastedroot.proxywasm.PluginFactory;
+import io.roastedroot.proxywasm.PoolConfig;
 import io.roastedroot.proxywasm.StartException;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 public interface Pool {
 
@@ -13,15 +19,34 @@ public interface Pool {
 
     default void close() {}
 
+    /**
+     * Shares started plugins across all requests.
+     *
+     * <p>Plugins are not thread-safe, so a request holds the plugin lock while it runs the guest.
+     * To avoid serializing all requests on a single lock, the pool can start several instances of
+     * the plugin and spread requests across them.  The instances don't share their memory, state
+     * that must be visible to all of them has to go through the shared data and shared queue
+     * handlers.
+     */
     class SharedPlugin implements Pool {
 
         private final ServerAdaptor serverAdaptor;
         private final PluginFactory factory;
-        private Plugin plugin;
+        private final int instances;
+        private final AtomicInteger next = new AtomicInteger();
+        private volatile Plugin[] plugins;
 
         public SharedPlugin(ServerAdaptor serverAdaptor, PluginFactory factory) {
+            this(serverAdaptor, factory, factory.sharedInstances());
+        }
+
+        public SharedPlugin(ServerAdaptor serverAdaptor, PluginFactory factory, int instances) {
+            if (instances < 1) {
+                throw new IllegalArgumentException("instances must be at least 1");
+            }
             this.serverAdaptor = serverAdaptor;
             this.factory = factory;
+            this.instances = instances;
         }
 
         @Override
@@ -31,25 +56,112 @@ public interface Pool {
 
         @Override
         public Plugin borrow() throws StartException {
-            if (plugin != null) {
-                return plugin;
+            Plugin[] plugins = this.plugins;
+            if (plugins == null) {
+                plugins = start();
+            }
+            if (plugins.length == 1) {
+                return plugins[0];
+            }
+
+            // round-robin, but prefer an instance that is not currently running another request.
+            int first = Math.floorMod(next.getAndIncrement(), plugins.length);
+            for (int i = 0; i < plugins.length; i++) {
+                Plugin plugin = plugins[(first + i) % plugins.length];
+                if (!plugin.isLocked()) {
+                    return plugin;
+                }
+            }
+            return plugins[first];
+        }
+
+        private synchronized Plugin[] start() throws StartException {
+            if (plugins != null) {
+                return plugins;
             }
+            Plugin[] result = new Plugin[instances];
             try {
-                plugin = (Plugin) factory.create();
-            } catch (Throwable e) {
-                throw new StartException("Plugin create failed.", e);
+                for (int i = 0; i < instances; i++) {
+                    try {
+                        result[i] = (Plugin) factory.create();
+                    } catch (Throwable e) {
+                        throw new StartException("Plugin create failed.", e);
+                    }
+                    result[i].setServerAdaptor(serverAdaptor);
+                    result[i].start();
+                }
+            } catch (StartException | RuntimeException e) {
+                for (Plugin plugin : result) {
+                    if (plugin != null) {
+                        plugin.close();
+                    }
+                }
+                throw e;
             }
-            plugin.setServerAdaptor(serverAdaptor);
-            plugin.wasm.start();
-            return plugin;
+            plugins = result;
+            return result;
         }
 
         // Return the plugin to the pool
         @Override
         public void release(Plugin plugin) {
-            if (plugin != this.plugin) {
-                throw new IllegalArgumentException("Plugin not from this pool");
+            Plugin[] plugins = this.plugins;
+            if (plugins != null) {
+                for (Plugin p : plugins) {
+                    if (p == plugin) {
+                        return;
+                    }
+                }
             }
+            throw new IllegalArgumentException("Plugin not from this pool");
+        }
+
+        @Override
+        public synchronized void close() {
+            Plugin[] plugins = this.plugins;
+            this.plugins = null;
+            if (plugins != null) {
+                for (Plugin plugin : plugins) {
+                    plugin.close();
+                }
+            }
+        }
+
+        /**
+         * @return the number of plugin instances requests are spread across.
+         */
+        public int instances() {
+            return instances;
+        }
+
+        /**
+         * @return the number of times a request had to wait for another request to release the
+         *     lock of a plugin instance.
+         */
+        public long lockContentions() {
+            long result = 0;
+            Plugin[] plugins = this.plugins;
+            if (plugins != null) {
+                for (Plugin plugin : plugins) {
+                    result += plugin.lockContentions();
+                }
+            }
+            return result;
+        }
+
+        /**
+         * @return the total time requests spent waiting for the lock of a plugin instance, in
+         *     nanoseconds.
+         */
+        public long lockWaitTimeNanos() {
+            long result = 0;
+            Plugin[] plugins = this.plugins;
+            if (plugins != null) {
+                for (Plugin plugin : plugins) {
+                    result += plugin.lockWaitTimeNanos();
+                }
+            }
+            return result;
         }
     }
 
@@ -77,7 +189,7 @@ public interface Pool {
                 throw new StartException("Plugin create failed.", e);
             }
             plugin.setServerAdaptor(serverAdaptor);
-            plugin.wasm.start();
+            plugin.start();
             return plugin;
         }
 
@@ -89,4 +201,235 @@ public interface Pool {
             plugin.close();
         }
     }
+
+    /**
+     * Keeps a bounded set of started plugins that are handed out to one request at a time.
+     */
+    class PooledPlugins implements Pool {
+
+        private final ServerAdaptor serverAdaptor;
+        final PluginFactory factory;
+        private final PoolConfig config;
+        private final Semaphore permits;
+
+        // most recently released plugins are at the head of the deque.
+        private final ConcurrentLinkedDeque<IdlePlugin> idle = new ConcurrentLinkedDeque<>();
+        private final AtomicInteger idleCount = new AtomicInteger();
+
+        private final AtomicLong hits = new AtomicLong();
+        private final AtomicLong misses = new AtomicLong();
+        private final AtomicLong timeouts = new AtomicLong();
+        private final AtomicLong evictions = new AtomicLong();
+        private final AtomicLong waitNanos = new AtomicLong();
+        private final AtomicLong resetFailures = new AtomicLong();
+
+        private volatile boolean closed;
+        private Runnable cancelEviction;
+
+        private static class IdlePlugin {
+            final Plugin plugin;
+            final long idleSince;
+
+            IdlePlugin(Plugin plugin, long idleSince) {
+                this.plugin = plugin;
+                this.idleSince = idleSince;
+            }
+        }
+
+        public PooledPlugins(
+                ServerAdaptor serverAdaptor, PluginFactory factory, PoolConfig config) {
+            this.serverAdaptor = serverAdaptor;
+            this.factory = factory;
+            this.config = config;
+            this.permits = new Semaphore(config.maxInstances(), true);
+        }
+
+        @Override
+        public String name() {
+            return this.factory.name();
+        }
+
+        /**
+         * Creates the minimum number of idle plugins and starts the idle eviction timer.
+         */
+        public synchronized void start() throws StartException {
+            while (idleCount.get() < config.minIdle()) {
+                idle.offerLast(new IdlePlugin(create(), System.nanoTime()));
+                idleCount.incrementAndGet();
+            }
+            if (config.maxIdleMilliseconds() > 0 && cancelEviction == null) {
+                cancelEviction =
+                        serverAdaptor.scheduleTick(config.maxIdleMilliseconds(), this::evictIdle);
+            }
+        }
+
+        @Override
+        public Plugin borrow() throws StartException {
+            if (closed) {
+                throw new StartException("Plugin pool closed: " + name());
+            }
+            long start = System.nanoTime();
+            if (!acquire()) {
+                timeouts.incrementAndGet();
+                throw new StartException("Plugin pool exhausted: " + name());
+            }
+            waitNanos.addAndGet(System.nanoTime() - start);
+
+            IdlePlugin entry = idle.pollFirst();
+            if (entry != null) {
+                idleCount.decrementAndGet();
+                hits.incrementAndGet();
+                return entry.plugin;
+            }
+
+            misses.incrementAndGet();
+            try {
+                return create();
+            } catch (StartException | RuntimeException e) {
+                permits.release();
+                throw e;
+            }
+        }
+
+        private boolean acquire() throws StartException {
+            long timeout = config.borrowTimeoutMilliseconds();
+            try {
+                if (timeout == 0) {
+                    return permits.tryAcquire();
+                } else if (timeout < 0) {
+                    permits.acquire();
+                    return true;
+                } else {
+                    return permits.tryAcquire(timeout, TimeUnit.MILLISECONDS);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new StartException("Interrupted waiting for plugin: " + name(), e);
+            }
+        }
+
+        private Plugin create() throws StartException {
+            Plugin plugin;
+            try {
+                plugin = (Plugin) factory.create();
+            } catch (Throwable e) {
+                throw new StartException("Plugin create failed.", e);
+            }
+            plugin.setServerAdaptor(serverAdaptor);
+            plugin.start();
+            if (config.recycle()) {
+                plugin.captureResetState();
+            }
+            return plugin;
+        }
+
+        // Return the plugin to the pool
+        @Override
+        public void release(Plugin plugin) {
+            if (!closed && config.recycle()) {
+                try {
+                    plugin.reset();
+                } catch (StartException | RuntimeException e) {
+                    // don't hand out a plugin in an unknown state.
+                    resetFailures.incrementAndGet();
+                    plugin.close();
+                    permits.release();
+                    return;
+                }
+            }
+            if (closed) {
+                plugin.close();
+            } else {
+                idle.offerFirst(new IdlePlugin(plugin, System.nanoTime()));
+                idleCount.incrementAndGet();
+            }
+            permits.release();
+        }
+
+        void evictIdle() {
+            long maxIdleNanos = TimeUnit.MILLISECONDS.toNanos(config.maxIdleMilliseconds());
+            long now = System.nanoTime();
+            while (idleCount.get() > config.minIdle()) {
+                // the least recently used plugin is at the tail.
+                IdlePlugin entry = idle.peekLast();
+                if (entry == null || now - entry.idleSince < maxIdleNanos) {
+                    return;
+                }
+                if (idle.removeLastOccurrence(entry)) {
+                    idleCount.decrementAndGet();
+                    evictions.incrementAndGet();
+                    entry.plugin.close();
+                }
+            }
+        }
+
+        @Override
+        public synchronized void close() {
+            closed = true;
+            if (cancelEviction != null) {
+                cancelEviction.run();
+                cancelEviction = null;
+            }
+            for (IdlePlugin entry = idle.pollFirst(); entry != null; entry = idle.pollFirst()) {
+                idleCount.decrementAndGet();
+                entry.plugin.close();
+            }
+        }
+
+        /**
+         * @return the number of borrows served by an idle plugin.
+         */
+        public long hits() {
+            return hits.get();
+        }
+
+        /**
+         * @return the number of borrows that had to create a new plugin.
+         */
+        public long misses() {
+            return misses.get();
+        }
+
+        /**
+         * @return the number of borrows that failed because the pool was exhausted.
+         */
+        public long timeouts() {
+            return timeouts.get();
+        }
+
+        /**
+         * @return the number of idle plugins closed by idle eviction.
+         */
+        public long evictions() {
+            return evictions.get();
+        }
+
+        /**
+         * @return the number of released plugins that were closed because they could not be reset.
+         */
+        public long resetFailures() {
+            return resetFailures.get();
+        }
+
+        /**
+         * @return the total time borrowers spent waiting for a plugin, in nanoseconds.
+         */
+        public long waitTimeNanos() {
+            return waitNanos.get();
+        }
+
+        /**
+         * @return the number of plugins currently idle in the pool.
+         */
+        public int idleCount() {
+            return idleCount.get();
+        }
+
+        /**
+         * @return the number of plugins currently borrowed from the pool.
+         */
+        public int activeCount() {
+            return config.maxInstances() - permits.availablePermits();
+        }
+    }
 }
@@ -1,7 +1,11 @@
 package io.roastedroot.proxywasm.internal;
 
+import static io.roastedroot.proxywasm.internal.Helpers.U32_LEN;
 import static io.roastedroot.proxywasm.internal.Helpers.bytes;
 import static io.roastedroot.proxywasm.internal.Helpers.len;
+import static io.roastedroot.proxywasm.internal.Helpers.putUint32;
+import static io.roastedroot.proxywasm.internal.Helpers.putUtf8;
+import static io.roastedroot.proxywasm.internal.Helpers.utf8Length;
 
 import java.io.ByteArrayOutputStream;
 import java.io.DataOutputStream;
@@ -48,6 +52,46 @@ public interface ProxyMap {
 
     void remove(String key);
 
+    /**
+     * Encode the map into the header map pairs format used by the proxy-wasm ABI.
+     *
+     * <p>The format is the little endian number of entries, followed by the little endian
+     * key and value lengths of every entry, followed by the null terminated key and value
+     * bytes of every entry.
+     *
+     * <p>Implementations may return a cached array until the map is modified, so callers must
+     * not modify the returned array.
+     */
+    default byte[] encodePairs() {
+        // size the result without encoding any of the strings
+        int count = 0;
+        int totalBytesLen = U32_LEN;
+        for (var entry : entries()) {
+            count++;
+            totalBytesLen += U32_LEN + U32_LEN; // keyLen + valueLen
+            totalBytesLen += utf8Length(entry.getKey()) + 1; // key + \0
+            totalBytesLen += utf8Length(entry.getValue()) + 1; // value + \0
+        }
+
+        byte[] result = new byte[totalBytesLen];
+        putUint32(result, 0, count);
+        int lenPtr = U32_LEN;
+        int dataPtr = lenPtr + (U32_LEN + U32_LEN) * count;
+        // entries() is called again since some implementations can only be iterated once.
+        for (var entry : entries()) {
+            int keyPtr = dataPtr;
+            dataPtr = putUtf8(result, dataPtr, entry.getKey());
+            putUint32(result, lenPtr, dataPtr - keyPtr);
+            dataPtr++; // \0
+            int valuePtr = dataPtr;
+            dataPtr = putUtf8(result, dataPtr, entry.getValue());
+            putUint32(result, lenPtr + U32_LEN, dataPtr - valuePtr);
+            dataPtr++; // \0
+            lenPtr += U32_LEN + U32_LEN;
+        }
+        return result;
+    }
+
     /**
      * Encode the map into a byte array.
      */
@@ -3,18 +3,28 @@ package io.roastedroot.proxywasm.internal;
 import static io.roastedroot.proxywasm.internal.Helpers.len;
 
 import com.dylibso.chicory.runtime.ByteArrayMemory;
+import com.dylibso.chicory.runtime.GlobalInstance;
 import com.dylibso.chicory.runtime.HostFunction;
 import com.dylibso.chicory.runtime.ImportMemory;
 import com.dylibso.chicory.runtime.ImportValues;
 import com.dylibso.chicory.runtime.Instance;
 import com.dylibso.chicory.runtime.Machine;
+import com.dylibso.chicory.runtime.Memory;
 import com.dylibso.chicory.wasi.WasiOptions;
 import com.dylibso.chicory.wasi.WasiPreview1;
 import com.dylibso.chicory.wasm.WasmModule;
+import com.dylibso.chicory.wasm.types.ActiveDataSegment;
+import com.dylibso.chicory.wasm.types.DataSegment;
+import com.dylibso.chicory.wasm.types.ExternalType;
+import com.dylibso.chicory.wasm.types.Global;
 import com.dylibso.chicory.wasm.types.MemoryLimits;
+import com.dylibso.chicory.wasm.types.MutabilityType;
+import com.dylibso.chicory.wasm.types.OpCode;
 import com.dylibso.chicory.wasm.types.ValueType;
+import io.roastedroot.proxywasm.MemorySizing;
 import io.roastedroot.proxywasm.StartException;
 import java.io.Closeable;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -26,8 +36,11 @@ public final class ProxyWasm implements Closeable {
 
     private final ABI abi;
     private final WasiPreview1 wasi;
+    private final MemorySizing memorySizing;
+    private int observedPages;
 
     private final AtomicInteger nextContextID = new AtomicInteger(1);
+    private boolean initialized;
     private Context pluginContext;
     private Context activeContext;
 
@@ -45,6 +58,21 @@ public final class ProxyWasm implements Closeable {
         this.wasi = other.wasi;
         this.abi = other.abi;
         this.abi.setHandler(createImportsHandler());
+        this.memorySizing = other.memorySizing;
+        if (memorySizing != null && abi.instance().memory() != null) {
+            observedPages = abi.instance().memory().pages();
+        }
+
+        if (other.start) {
+            start();
+        }
+    }
+
+    private void initialize() {
+        if (initialized) {
+            return;
+        }
+        initialized = true;
 
         // initialize/start the vm
         if (this.abi.initialize()) {
@@ -52,10 +80,6 @@ public final class ProxyWasm implements Closeable {
         } else {
             this.abi.start();
         }
-
-        if (other.start) {
-            start();
-        }
     }
 
     public Handler getPluginHandler() {
@@ -66,10 +90,15 @@ public final class ProxyWasm implements Closeable {
         this.pluginHandler = pluginHandler;
     }
 
+    public boolean isStarted() {
+        return pluginContext != null;
+    }
+
     public void start() throws StartException {
         if (pluginContext != null) {
             return;
         }
+        initialize();
 
         this.pluginContext = new PluginContext(this, pluginHandler);
         registerContext(pluginContext, 0);
@@ -83,6 +112,199 @@ public final class ProxyWasm implements Closeable {
         if (!this.abi.proxyOnConfigure(pluginContext.id(), len(pluginConfig))) {
             throw new StartException("proxy_on_configure failed");
         }
+        observeMemory();
+    }
+
+    /**
+     * Reports the current memory size of the vm to the {@link MemorySizing}, if one is
+     * configured.
+     */
+    void observeMemory() {
+        if (memorySizing == null) {
+            return;
+        }
+        Memory memory = abi.instance().memory();
+        if (memory != null) {
+            int pages = memory.pages();
+            memorySizing.observe(observedPages, pages);
+            observedPages = pages;
+        }
+    }
+
+    /**
+     * Starts the vm by restoring the state captured from another started instance of the same
+     * module, instead of running its initialization, {@code proxy_on_vm_start} and
+     * {@code proxy_on_configure}.
+     */
+    public void start(Snapshot snapshot) throws StartException {
+        if (pluginContext != null) {
+            return;
+        }
+        if (initialized) {
+            throw new StartException("snapshot must be restored before the vm is initialized");
+        }
+        initialized = true;
+        restore(snapshot, false);
+
+        // re-create the plugin context that the guest already knows about.
+        nextContextID.set(snapshot.pluginContextID);
+        this.pluginContext = new PluginContext(this, pluginHandler);
+        contexts.put(pluginContext.id(), pluginContext);
+        activeContext = pluginContext;
+        nextContextID.set(snapshot.nextContextID);
+        observeMemory();
+    }
+
+    /**
+     * Captures the linear memory and globals of this started vm so that other instances of the
+     * same module can be started from it.  It must be taken while only the plugin context is
+     * active.
+     */
+    public Snapshot snapshot() {
+        if (pluginContext == null || contexts.size() != 1) {
+            throw new IllegalStateException(
+                    "snapshot requires a started vm without active contexts");
+        }
+        Instance instance = abi.instance();
+        Memory memory = instance.memory();
+
+        int pages = 0;
+        byte[] image = null;
+        if (memory != null) {
+            pages = memory.pages();
+            image = memory.readBytes(0, pages * Memory.PAGE_SIZE);
+
+            // a fresh instance has zeroed memory past its data segments, so we only need to keep
+            // the image up to the last non-zero byte.
+            int end = image.length;
+            while (end > 0 && image[end - 1] == 0) {
+                end--;
+            }
+            end = Math.max(end, Math.min(image.length, dataSegmentsEnd(instance.module())));
+            if (end < image.length) {
+                image = Arrays.copyOf(image, end);
+            }
+        }
+
+        WasmModule module = instance.module();
+        int firstGlobal = module.importSection().count(ExternalType.GLOBAL);
+        Global[] definitions = module.globalSection().globals();
+        int mutable = 0;
+        for (Global g : definitions) {
+            if (g.mutabilityType() == MutabilityType.Var) {
+                mutable++;
+            }
+        }
+        int[] globalIndexes = new int[mutable];
+        long[] globalValues = new long[mutable * 2];
+        int j = 0;
+        for (int i = 0; i < definitions.length; i++) {
+            if (definitions[i].mutabilityType() == MutabilityType.Var) {
+                GlobalInstance global = instance.global(firstGlobal + i);
+                globalIndexes[j] = firstGlobal + i;
+                globalValues[j * 2] = global.getValueLow();
+                globalValues[j * 2 + 1] = global.getValueHigh();
+                j++;
+            }
+        }
+
+        return new Snapshot(
+                pages, image, globalIndexes, globalValues, pluginContext.id(), nextContextID.get());
+    }
+
+    /**
+     * Resets a started vm back to the state captured in the snapshot.  Any http or network
+     * contexts still registered are dropped without notifying the guest, since the guest state
+     * that knew about them is discarded.
+     */
+    public void reset(Snapshot snapshot) throws StartException {
+        if (pluginContext == null || pluginContext.id() != snapshot.pluginContextID) {
+            throw new StartException("snapshot was not taken from a compatible vm");
+        }
+        restore(snapshot, true);
+
+        contexts.clear();
+        contexts.put(pluginContext.id(), pluginContext);
+        activeContext = pluginContext;
+        nextContextID.set(snapshot.nextContextID);
+
+        httpCallResponseHeaders = null;
+        httpCallResponseTrailers = null;
+        httpCallResponseBody = null;
+        grpcReceiveInitialMetadata = null;
+        grpcReceive = null;
+        grpcReceiveTrailingMetadata = null;
+    }
+
+    private void restore(Snapshot snapshot, boolean dirty) throws StartException {
+        Instance instance = abi.instance();
+        Memory memory = instance.memory();
+        if (snapshot.memory != null) {
+            int grow = snapshot.pages - memory.pages();
+            if (grow > 0 && memory.grow(grow) < 0) {
+                throw new StartException("could not grow memory to " + snapshot.pages + " pages");
+            }
+            memory.write(0, snapshot.memory, 0, snapshot.memory.length);
+            if (dirty) {
+                // memory can't shrink, so clear anything used past the image: guests expect
+                // memory they have not allocated yet to be zeroed.
+                memory.fill((byte) 0, snapshot.memory.length, memory.pages() * Memory.PAGE_SIZE);
+            }
+        }
+        for (int i = 0; i < snapshot.globalIndexes.length; i++) {
+            GlobalInstance global = instance.global(snapshot.globalIndexes[i]);
+            global.setValueLow(snapshot.globalValues[i * 2]);
+            global.setValueHigh(snapshot.globalValues[i * 2 + 1]);
+        }
+    }
+
+    // returns the offset past the last byte written by the module's active data segments
+    private static int dataSegmentsEnd(WasmModule module) {
+        int end = 0;
+        for (DataSegment segment : module.dataSection().dataSegments()) {
+            if (!(segment instanceof ActiveDataSegment)) {
+                continue;
+            }
+            var offset = ((ActiveDataSegment) segment).offsetInstructions();
+            if (offset.isEmpty() || offset.get(0).opcode() != OpCode.I32_CONST) {
+                // we can't tell where the segment is, so keep the whole image.
+                return Integer.MAX_VALUE;
+            }
+            int start = (int) offset.get(0).operand(0);
+            end = Math.max(end, start + segment.data().length);
+        }
+        return end;
+    }
+
+    /**
+     * The state of a started vm: its linear memory, mutable globals and context ids.
+     */
+    public static final class Snapshot {
+        private final int pages;
+        private final byte[] memory;
+        private final int[] globalIndexes;
+        private final long[] globalValues;
+        private final int pluginContextID;
+        private final int nextContextID;
+
+        Snapshot(
+                int pages,
+                byte[] memory,
+                int[] globalIndexes,
+                long[] globalValues,
+                int pluginContextID,
+                int nextContextID) {
+            this.pages = pages;
+            this.memory = memory;
+            this.globalIndexes = globalIndexes;
+            this.globalValues = globalValues;
+            this.pluginContextID = pluginContextID;
+            this.nextContextID = nextContextID;
+        }
+
+        public int pages() {
+            return pages;
+        }
     }
 
     private void registerContext(Context context, int parentContextID) {
@@ -199,6 +421,10 @@ public final class ProxyWasm implements Closeable {
         if (wasi != null) {
             wasi.close();
         }
+        // the off heap memory is freed now rather than whenever the instance is collected.
+        if (abi.instance().memory() instanceof DirectMemory) {
+            ((DirectMemory) abi.instance().memory()).release();
+        }
     }
 
     public static ProxyWasm.Builder builder() {
@@ -261,7 +487,7 @@ public final class ProxyWasm implements Closeable {
 
     public static class Builder implements Cloneable {
 
-        private final ABI abi = new ABI();
+        private ABI abi = new ABI();
         private WasiPreview1 wasi;
 
         private Handler pluginHandler;
@@ -269,6 +495,9 @@ public final class ProxyWasm implements Closeable {
         private WasiOptions wasiOptions;
         private boolean start = true;
         private Function<Instance, Machine> machineFactory;
+        private boolean offHeapMemory;
+        private int initialMemoryPages;
+        private MemorySizing memorySizing;
 
         @Override
         @SuppressWarnings("NoClone")
@@ -309,6 +538,25 @@ public final class ProxyWasm implements Closeable {
             return this;
         }
 
+        public ProxyWasm.Builder withOffHeapMemory(boolean offHeapMemory) {
+            this.offHeapMemory = offHeapMemory;
+            return this;
+        }
+
+        public ProxyWasm.Builder withInitialMemoryPages(int initialMemoryPages) {
+            if (initialMemoryPages < 0) {
+                throw new IllegalArgumentException(
+                        "initialMemoryPages must be >= 0: " + initialMemoryPages);
+            }
+            this.initialMemoryPages = initialMemoryPages;
+            return this;
+        }
+
+        public ProxyWasm.Builder withMemorySizing(MemorySizing memorySizing) {
+            this.memorySizing = memorySizing;
+            return this;
+        }
+
         Builder() {}
 
         public ProxyWasm build(Instance instance) throws StartException {
@@ -321,11 +569,22 @@ public final class ProxyWasm implements Closeable {
         }
 
         public ProxyWasm build(Instance.Builder instanceBuilder) throws StartException {
+            // the ABI and WASI state are bound to a single instance, so that builders
+            // can be used to create many instances concurrently.
+            var builder = this.clone();
+            builder.abi = new ABI();
+            return builder.buildInstance(instanceBuilder);
+        }
+
+        private ProxyWasm buildInstance(Instance.Builder instanceBuilder) throws StartException {
             var imports = ImportValues.builder();
 
             if (this.machineFactory != null) {
                 instanceBuilder.withMachineFactory(this.machineFactory);
             }
+            if (offHeapMemory || initialMemoryPages > 0 || memorySizing != null) {
+                instanceBuilder.withMemoryFactory(this::newMemory);
+            }
 
             imports.addMemory(Objects.requireNonNullElseGet(memory, this::defaultImportMemory));
             imports.addFunction(toHostFunctions());
@@ -364,9 +623,25 @@ public final class ProxyWasm implements Closeable {
 
         ImportMemory defaultImportMemory() {
             return new ImportMemory(
-                    "env",
-                    "memory",
-                    new ByteArrayMemory(new MemoryLimits(2, MemoryLimits.MAX_PAGES)));
+                    "env", "memory", newMemory(new MemoryLimits(2, MemoryLimits.MAX_PAGES)));
+        }
+
+        // pre-sizes the memory to the configured initial pages or the learned high-water mark,
+        // so that the guest does not have to grow it page by page while it warms up.
+        Memory newMemory(MemoryLimits limits) {
+            int presized = initialMemoryPages;
+            if (memorySizing != null) {
+                presized = Math.max(presized, memorySizing.highWaterMark());
+            }
+            int initial =
+                    Math.min(Math.max(limits.initialPages(), presized), limits.maximumPages());
+            if (initial != limits.initialPages()) {
+                limits = new MemoryLimits(initial, limits.maximumPages());
+            }
+            if (offHeapMemory) {
+                return new DirectMemory(limits);
+            }
+            return new ByteArrayMemory(limits);
         }
 
         WasiOptions defaultWasiOptions() {
@@ -1,12 +1,31 @@
 package io.roastedroot.proxywasm.internal;
 
 import java.net.URI;
+import java.util.concurrent.Executor;
 
 /**
  * The ServerAdaptor interface provides adapting plugins to the server environment.
  */
 public interface ServerAdaptor {
 
+    /**
+     * Returns the adaptor to use for the instances of the named plugin.  Adaptors that apply
+     * per plugin limits return a view sharing their resources, by default the adaptor is shared
+     * by all plugins.
+     */
+    default ServerAdaptor forPlugin(String pluginName) {
+        return this;
+    }
+
+    /**
+     * Returns the executor requests paused by a plugin are resumed on, so that the request
+     * thread is released while the request is paused.  By default there is none, and the request
+     * thread waits for the plugin to resume the request.
+     */
+    default Executor resumeExecutor() {
+        return null;
+    }
+
     Runnable scheduleTick(long delay, Runnable task);
 
     HttpRequestAdaptor httpRequestAdaptor(Object context);
@@ -38,4 +57,20 @@ public interface ServerAdaptor {
             throws InterruptedException {
         throw new UnsupportedOperationException("scheduleGrpcCall not implemented");
     }
+
+    /**
+     * Opens a bidirectional gRPC stream to an upstream, the messages are sent with the returned
+     * {@link GrpcStream} and the events of the stream are passed to the handler.
+     */
+    default GrpcStream scheduleGrpcStream(
+            String host,
+            int port,
+            boolean plainText,
+            String serviceName,
+            String methodName,
+            ProxyMap headers,
+            GrpcCallResponseHandler handler)
+            throws InterruptedException {
+        throw new UnsupportedOperationException("scheduleGrpcStream not implemented");
+    }
 }
@@ -1,5 +1,13 @@
 package io.roastedroot.proxywasm.internal;
 
+import static io.roastedroot.proxywasm.internal.Helpers.split;
+import static io.roastedroot.proxywasm.internal.Helpers.string;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
 import java.util.List;
 
 /**
@@ -15,6 +23,7 @@ public final class WellKnownProperties {
     public static final List<String> PLUGIN_NAME = List.of("plugin_name");
     public static final List<String> PLUGIN_ROOT_ID = List.of("plugin_root_id");
     public static final List<String> PLUGIN_VM_ID = List.of("plugin_vm_id");
+    public static final List<String> VM_ID = List.of("vm_id");
 
     // Downstream connection properties
     public static final List<String> CONNECTION_ID = List.of("connection", "id");
@@ -105,4 +114,37 @@ public final class WellKnownProperties {
     public static final List<String> RESPONSE_TRAILERS = List.of("response", "trailers");
     public static final List<String> RESPONSE_BACKEND_LATENCY =
             List.of("response", "backend_latency");
+
+    // the well known properties, keyed by their path as plugins pass it to the host: the path
+    // elements joined by null bytes.
+    private static final HashMap<ByteBuffer, List<String>> BY_RAW_PATH = rawPaths();
+
+    private static HashMap<ByteBuffer, List<String>> rawPaths() {
+        var result = new HashMap<ByteBuffer, List<String>>();
+        for (Field field : WellKnownProperties.class.getDeclaredFields()) {
+            if (Modifier.isStatic(field.getModifiers()) && field.getType() == List.class) {
+                try {
+                    @SuppressWarnings("unchecked")
+                    List<String> path = (List<String>) field.get(null);
+                    byte[] raw = String.join("\u0000", path).getBytes(StandardCharsets.UTF_8);
+                    result.put(ByteBuffer.wrap(raw), path);
+                } catch (IllegalAccessException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Decodes a property path as passed by a plugin.  Well known paths are looked up by their
+     * raw bytes and return the shared constant, without decoding or splitting the bytes.
+     */
+    public static List<String> path(byte[] raw) {
+        List<String> path = BY_RAW_PATH.get(ByteBuffer.wrap(raw));
+        if (path != null) {
+            return path;
+        }
+        return split(string(raw), '\u0000');
+    }
 }
@@ -0,0 +1,89 @@
+package io.roastedroot.proxywasm.internal;
+
+import static io.roastedroot.proxywasm.internal.Helpers.bytes;
+import static io.roastedroot.proxywasm.internal.Helpers.replaceBytes;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import org.junit.jupiter.api.Test;
+
+public class BodyBufferTest {
+
+    private static String string(BodyBuffer buffer) {
+        return Helpers.string(buffer.toByteArray());
+    }
+
+    private static String slice(BodyBuffer buffer, int start, int length) {
+        var result = new ByteArrayOutputStream();
+        for (ByteBuffer slice : buffer.slices(start, length)) {
+            result.write(slice.array(), slice.position(), slice.remaining());
+        }
+        return result.toString();
+    }
+
+    @Test
+    public void edits() {
+        var buffer = new BodyBuffer(bytes("hello world"));
+        buffer.append(bytes("!"));
+        buffer.replace(0, 0, bytes(">> "));
+        buffer.replace(Integer.MAX_VALUE, 0, bytes(" <<"));
+        assertEquals(">> hello world! <<", string(buffer));
+
+        buffer.replace(9, 5, bytes("there"));
+        assertEquals(">> hello there! <<", string(buffer));
+
+        buffer.replace(3, Integer.MAX_VALUE, bytes("bye"));
+        assertEquals(">> bye", string(buffer));
+        assertEquals(6, buffer.length());
+
+        buffer.replace(0, Integer.MAX_VALUE, bytes("replaced"));
+        assertEquals("replaced", string(buffer));
+
+        buffer.clear();
+        assertEquals(0, buffer.length());
+        assertEquals("", string(buffer));
+    }
+
+    @Test
+    public void slices() throws IOException {
+        var buffer = new BodyBuffer(bytes("0123"));
+        buffer.append(bytes("4567"));
+        buffer.append(bytes("89"));
+        assertEquals("0123456789", slice(buffer, 0, 10));
+        assertEquals("3456", slice(buffer, 3, 4));
+        assertEquals("89", slice(buffer, 8, 100));
+        assertEquals("", slice(buffer, 10, 5));
+
+        var out = new ByteArrayOutputStream();
+        buffer.writeTo(out);
+        assertEquals("0123456789", out.toString());
+    }
+
+    @Test
+    public void joinsOnlyOnce() {
+        byte[] data = bytes("abc");
+        var buffer = new BodyBuffer(data);
+        assertSame(data, buffer.toByteArray());
+
+        buffer.append(bytes("def"));
+        byte[] joined = buffer.toByteArray();
+        assertEquals("abcdef", Helpers.string(joined));
+        assertSame(joined, buffer.toByteArray());
+    }
+
+    @Test
+    public void matchesReplaceBytes() {
+        byte[] original = bytes("the quick brown fox");
+        int[][] edits = {{0, 0}, {4, 5}, {0, 19}, {19, 0}, {10, 9}, {3, 1}};
+        for (int[] edit : edits) {
+            var buffer = new BodyBuffer(original);
+            buffer.replace(edit[0], edit[1], bytes("[x]"));
+            assertArrayEquals(
+                    replaceBytes(original, bytes("[x]"), edit[0], edit[1]), buffer.toByteArray());
+        }
+    }
+}
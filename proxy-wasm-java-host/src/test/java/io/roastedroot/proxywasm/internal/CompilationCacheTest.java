@@ -0,0 +1,65 @@
+package io.roastedroot.proxywasm.internal;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import com.dylibso.chicory.wasm.Parser;
+import io.roastedroot.proxywasm.CompilationCache;
+import io.roastedroot.proxywasm.PluginFactory;
+import io.roastedroot.proxywasm.StartException;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class CompilationCacheTest {
+
+    @TempDir Path cacheDir;
+
+    private static List<String> start(CompilationCache cache) throws IOException, StartException {
+        byte[] wasm = Files.readAllBytes(TestPlugins.HELLO_WORLD);
+        var module = Parser.parse(wasm);
+        List<String> logs = Collections.synchronizedList(new ArrayList<>());
+        var factory =
+                PluginFactory.builder(module, cache.machineFactory(module, wasm))
+                        .withName("compiled")
+                        .withLogger(TestPlugins.logTo(logs))
+                        .build();
+        var pool = new Pool.PluginPerRequest(new TestPlugins.TestServerAdaptor(), factory);
+        pool.release(pool.borrow());
+        return logs;
+    }
+
+    private List<Path> entries() throws IOException {
+        try (var files = Files.list(cacheDir)) {
+            return files.collect(Collectors.toList());
+        }
+    }
+
+    @Test
+    public void compileOnceAndReuse() throws Exception {
+        assertEquals(List.of("Hello, World!"), start(CompilationCache.of(cacheDir)));
+        var entries = entries();
+        assertEquals(1, entries.size());
+        var modified = Files.getLastModifiedTime(entries.get(0));
+
+        // a new cache, as a later JVM start would create, loads the stored classes.
+        assertEquals(List.of("Hello, World!"), start(CompilationCache.of(cacheDir)));
+        assertEquals(entries, entries());
+        assertEquals(modified, Files.getLastModifiedTime(entries.get(0)));
+    }
+
+    @Test
+    public void replaceCorruptedEntry() throws Exception {
+        start(CompilationCache.of(cacheDir));
+        Path entry = entries().get(0);
+        Files.write(entry, new byte[] {1, 2, 3});
+
+        assertEquals(List.of("Hello, World!"), start(CompilationCache.of(cacheDir)));
+        assertEquals(List.of(entry), entries());
+    }
+}
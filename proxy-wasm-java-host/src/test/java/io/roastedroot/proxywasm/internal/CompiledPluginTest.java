@@ -0,0 +1,32 @@
+package io.roastedroot.proxywasm.internal;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import com.dylibso.chicory.compiler.MachineFactoryCompiler;
+import com.dylibso.chicory.wasm.Parser;
+import com.dylibso.chicory.wasm.WasmModule;
+import io.roastedroot.proxywasm.PluginFactory;
+import io.roastedroot.proxywasm.StartException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+
+public class CompiledPluginTest {
+
+    private static final WasmModule module = Parser.parse(TestPlugins.HELLO_WORLD);
+
+    @Test
+    public void compiledMachineFactory() throws StartException {
+        List<String> logs = Collections.synchronizedList(new ArrayList<>());
+        var factory =
+                PluginFactory.builder(module, MachineFactoryCompiler.compile(module))
+                        .withName("compiled")
+                        .withLogger(TestPlugins.logTo(logs))
+                        .build();
+        var pool = new Pool.PluginPerRequest(new TestPlugins.TestServerAdaptor(), factory);
+        Plugin plugin = pool.borrow();
+        pool.release(plugin);
+        assertEquals(List.of("Hello, World!"), logs);
+    }
+}
@@ -0,0 +1,138 @@
+package io.roastedroot.proxywasm.internal;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import io.roastedroot.proxywasm.ConcurrentSharedDataHandler;
+import java.nio.ByteBuffer;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.junit.jupiter.api.Test;
+
+public class ConcurrentSharedDataHandlerTest {
+
+    @Test
+    public void comparesAndSwaps() {
+        var handler = ConcurrentSharedDataHandler.builder().build();
+        assertNull(handler.getSharedData("key"));
+        assertEquals(WasmResult.CAS_MISMATCH, handler.setSharedData("key", new byte[] {1}, 7));
+
+        assertEquals(WasmResult.OK, handler.setSharedData("key", new byte[] {1}, 0));
+        var data = handler.getSharedData("key");
+        assertArrayEquals(new byte[] {1}, data.data());
+        assertNotEquals(0, data.cas());
+
+        assertEquals(WasmResult.OK, handler.setSharedData("key", new byte[] {2}, data.cas()));
+        assertEquals(
+                WasmResult.CAS_MISMATCH, handler.setSharedData("key", new byte[] {3}, data.cas()));
+        assertArrayEquals(new byte[] {2}, handler.getSharedData("key").data());
+        assertEquals(1, handler.size());
+        assertEquals(4, handler.bytes());
+    }
+
+    @Test
+    public void incrementsConcurrently() throws Exception {
+        var handler = ConcurrentSharedDataHandler.builder().build();
+        handler.setSharedData("counter", ByteBuffer.allocate(4).putInt(0).array(), 0);
+        var executor = Executors.newFixedThreadPool(8);
+        try {
+            var futures = new ArrayList<Future<?>>();
+            for (int t = 0; t < 8; t++) {
+                futures.add(
+                        executor.submit(
+                                () -> {
+                                    // the CAS loop of a plugin incrementing a counter.
+                                    for (int i = 0; i < 1000; i++) {
+                                        while (true) {
+                                            var data = handler.getSharedData("counter");
+                                            int value = ByteBuffer.wrap(data.data()).getInt() + 1;
+                                            var next = ByteBuffer.allocate(4).putInt(value).array();
+                                            if (handler.setSharedData("counter", next, data.cas())
+                                                    == WasmResult.OK) {
+                                                break;
+                                            }
+                                        }
+                                    }
+                                }));
+            }
+            for (var future : futures) {
+                future.get();
+            }
+        } finally {
+            executor.shutdown();
+        }
+        assertEquals(8000, ByteBuffer.wrap(handler.getSharedData("counter").data()).getInt());
+    }
+
+    @Test
+    public void evictsTheLeastRecentlyUsedEntries() throws Exception {
+        var handler = ConcurrentSharedDataHandler.builder().withMaxBytes(1000).build();
+        for (int i = 0; i < 10; i++) {
+            handler.setSharedData("key" + i, new byte[96], 0);
+            Thread.sleep(1);
+        }
+        assertEquals(1000, handler.bytes());
+        assertNotNull(handler.getSharedData("key0"));
+
+        // key1 and key2 are now the least recently used entries, they go to get back to 90%.
+        // the table is smaller than the samples, so the approximated LRU is exact here.
+        handler.setSharedData("key10", new byte[95], 0);
+        assertEquals(2, handler.evictions());
+        assertNull(handler.getSharedData("key1"));
+        assertNull(handler.getSharedData("key2"));
+        assertNotNull(handler.getSharedData("key0"));
+        assertNotNull(handler.getSharedData("key10"));
+        assertEquals(900, handler.bytes());
+
+        // an entry can't take the whole budget.
+        assertEquals(WasmResult.INTERNAL_FAILURE, handler.setSharedData("big", new byte[1000], 0));
+    }
+
+    @Test
+    public void expiresEntries() throws Exception {
+        var handler =
+                ConcurrentSharedDataHandler.builder()
+                        .withTtl(key -> key.startsWith("short:") ? Duration.ofMillis(50) : null)
+                        .build();
+        handler.setSharedData("short:key", new byte[] {1}, 0);
+        handler.setSharedData("long:key", new byte[] {1}, 0);
+        var data = handler.getSharedData("short:key");
+        assertNotNull(data);
+
+        Thread.sleep(100);
+        assertNull(handler.getSharedData("short:key"));
+        assertNotNull(handler.getSharedData("long:key"));
+        assertEquals(1, handler.expirations());
+        assertEquals(1, handler.size());
+
+        // the CAS of an expired entry doesn't match the key set again.
+        handler.setSharedData("short:key", new byte[] {2}, 0);
+        assertEquals(
+                WasmResult.CAS_MISMATCH,
+                handler.setSharedData("short:key", new byte[] {3}, data.cas()));
+    }
+
+    @Test
+    public void sweepsExpiredEntriesOnWrites() throws Exception {
+        var handler =
+                ConcurrentSharedDataHandler.builder()
+                        .withTtl(key -> key.startsWith("short:") ? Duration.ofMillis(10) : null)
+                        .build();
+        for (int i = 0; i < 100; i++) {
+            handler.setSharedData("short:" + i, new byte[] {1}, 0);
+        }
+        Thread.sleep(50);
+
+        // the expired entries go without being read.
+        for (int i = 0; i < 100; i++) {
+            handler.setSharedData("long:" + i, new byte[] {1}, 0);
+        }
+        assertEquals(100, handler.expirations());
+        assertEquals(100, handler.size());
+    }
+}
@@ -0,0 +1,212 @@
+package io.roastedroot.proxywasm.internal;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.dylibso.chicory.wasm.Parser;
+import com.dylibso.chicory.wasm.WasmModule;
+import io.roastedroot.proxywasm.ConcurrentSharedQueueHandler;
+import io.roastedroot.proxywasm.PluginFactory;
+import io.roastedroot.proxywasm.QueueName;
+import io.roastedroot.proxywasm.WasmException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.Test;
+
+public class ConcurrentSharedQueueHandlerTest {
+
+    // runs the notifications when the test says so.
+    static class ManualExecutor implements Executor {
+        final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+
+        @Override
+        public void execute(Runnable task) {
+            tasks.add(task);
+        }
+
+        void runAll() {
+            Runnable task;
+            while ((task = tasks.poll()) != null) {
+                task.run();
+            }
+        }
+    }
+
+    @Test
+    public void indexesTheQueues() throws WasmException {
+        var handler = ConcurrentSharedQueueHandler.builder().build();
+        int a = handler.registerSharedQueue(new QueueName("vm", "a"));
+        int b = handler.registerSharedQueue(new QueueName("vm", "b"));
+        assertEquals(a, handler.registerSharedQueue(new QueueName("vm", "a")));
+        assertEquals(b, handler.resolveSharedQueue(new QueueName("vm", "b")));
+        var e =
+                assertThrows(
+                        WasmException.class,
+                        () -> handler.resolveSharedQueue(new QueueName("other", "a")));
+        assertEquals(WasmResult.NOT_FOUND, e.result());
+
+        assertEquals(WasmResult.OK, handler.enqueueSharedQueue(a, new byte[] {1}));
+        assertEquals(WasmResult.OK, handler.enqueueSharedQueue(a, new byte[] {2}));
+        assertArrayEquals(new byte[] {1}, handler.dequeueSharedQueue(a));
+        assertArrayEquals(new byte[] {2}, handler.dequeueSharedQueue(a));
+        assertNull(handler.dequeueSharedQueue(a));
+        assertEquals(WasmResult.NOT_FOUND, handler.enqueueSharedQueue(42, new byte[0]));
+    }
+
+    @Test
+    public void boundsTheQueues() throws WasmException {
+        var handler = ConcurrentSharedQueueHandler.builder().withCapacity(2).build();
+        int id = handler.registerSharedQueue(new QueueName("vm", "q"));
+        assertEquals(WasmResult.OK, handler.enqueueSharedQueue(id, new byte[] {1}));
+        assertEquals(WasmResult.OK, handler.enqueueSharedQueue(id, new byte[] {2}));
+        assertEquals(WasmResult.INTERNAL_FAILURE, handler.enqueueSharedQueue(id, new byte[] {3}));
+        assertEquals(1, handler.rejections());
+        assertEquals(2, handler.size(id));
+
+        handler.dequeueSharedQueue(id);
+        assertEquals(WasmResult.OK, handler.enqueueSharedQueue(id, new byte[] {3}));
+    }
+
+    @Test
+    public void coalescesNotifications() throws WasmException {
+        var executor = new ManualExecutor();
+        var handler = ConcurrentSharedQueueHandler.builder().withExecutor(executor).build();
+        int id = handler.registerSharedQueue(new QueueName("vm", "q"));
+        var received = new ArrayList<byte[]>();
+        var unsubscribe =
+                handler.subscribeSharedQueue(
+                        id,
+                        () -> {
+                            // like the receiver example, takes one message per notification.
+                            try {
+                                received.add(handler.dequeueSharedQueue(id));
+                            } catch (WasmException e) {
+                                throw new RuntimeException(e);
+                            }
+                        });
+
+        for (int i = 0; i < 3; i++) {
+            handler.enqueueSharedQueue(id, new byte[] {(byte) i});
+        }
+        assertEquals(1, executor.tasks.size());
+
+        // the receiver is notified again while it makes progress.
+        executor.runAll();
+        assertEquals(3, received.size());
+        assertEquals(0, handler.size(id));
+
+        unsubscribe.run();
+        handler.enqueueSharedQueue(id, new byte[] {3});
+        assertTrue(executor.tasks.isEmpty());
+    }
+
+    @Test
+    public void notifiesAgainAfterARejection() throws WasmException {
+        var executor =
+                new ManualExecutor() {
+                    boolean rejected;
+
+                    @Override
+                    public void execute(Runnable task) {
+                        if (!rejected) {
+                            rejected = true;
+                            throw new RejectedExecutionException();
+                        }
+                        super.execute(task);
+                    }
+                };
+        var handler = ConcurrentSharedQueueHandler.builder().withExecutor(executor).build();
+        int id = handler.registerSharedQueue(new QueueName("vm", "q"));
+        var notified = new AtomicInteger();
+        handler.subscribeSharedQueue(id, notified::incrementAndGet);
+
+        // the rejected notification doesn't stay pending, the next enqueue schedules one.
+        assertEquals(WasmResult.OK, handler.enqueueSharedQueue(id, new byte[] {1}));
+        assertEquals(0, handler.notifications());
+        assertEquals(WasmResult.OK, handler.enqueueSharedQueue(id, new byte[] {2}));
+        executor.runAll();
+        assertEquals(1, notified.get());
+        assertEquals(1, handler.notifications());
+    }
+
+    // waits for the receiver to log that it dequeued the messages m0, m1, ...
+    private static void awaitDequeued(LinkedBlockingQueue<String> logs, int count)
+            throws InterruptedException {
+        var dequeued = new AtomicInteger();
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (dequeued.get() < count && System.nanoTime() < deadline) {
+            var message = logs.poll(100, TimeUnit.MILLISECONDS);
+            if (message != null && message.contains("dequeued data")) {
+                assertTrue(message.endsWith(": m" + dequeued.getAndIncrement()), message);
+            }
+        }
+        assertEquals(count, dequeued.get());
+    }
+
+    private static PluginFactory.Builder receiver(
+            ConcurrentSharedQueueHandler handler, LinkedBlockingQueue<String> logs) {
+        // parsed here rather than in a static field, so the module doesn't outlive the test.
+        WasmModule receiverModule =
+                Parser.parse(Path.of("./src/test/go-examples/shared_queue/receiver/main.wasm"));
+        return PluginFactory.builder(receiverModule)
+                .withName("receiver")
+                .withPluginConfig("http_request_headers")
+                .withSharedQueueHandler(handler)
+                .withLogger(TestPlugins.logTo(logs));
+    }
+
+    @Test
+    public void wakesUpTheReceivingPlugin() throws Exception {
+        var handler = ConcurrentSharedQueueHandler.builder().build();
+        var logs = new LinkedBlockingQueue<String>();
+        var factory = receiver(handler, logs).withShared(true).build();
+        var pool = new Pool.SharedPlugin(new TestPlugins.TestServerAdaptor(), factory);
+        try {
+            // the receiver registers its queue when it starts.
+            pool.release(pool.borrow());
+            int id = handler.resolveSharedQueue(new QueueName("receiver", "http_request_headers"));
+            for (int i = 0; i < 3; i++) {
+                assertEquals(WasmResult.OK, handler.enqueueSharedQueue(id, ("m" + i).getBytes()));
+            }
+            awaitDequeued(logs, 3);
+        } finally {
+            pool.close();
+        }
+    }
+
+    @Test
+    public void wakesUpPluginsRestoredFromASnapshot() throws Exception {
+        var handler = ConcurrentSharedQueueHandler.builder().build();
+        var logs = new LinkedBlockingQueue<String>();
+        var factory = receiver(handler, logs).withStartSnapshot(true).build();
+        var serverAdaptor = new TestPlugins.TestServerAdaptor();
+
+        var first = (Plugin) factory.create();
+        first.setServerAdaptor(serverAdaptor);
+        first.start();
+        // the second plugin is restored, so its guest doesn't register the queue again.
+        var second = (Plugin) factory.create();
+        second.setServerAdaptor(serverAdaptor);
+        second.start();
+        try {
+            // only the restored plugin is left to receive.
+            first.close();
+            int id = handler.resolveSharedQueue(new QueueName("receiver", "http_request_headers"));
+            for (int i = 0; i < 3; i++) {
+                assertEquals(WasmResult.OK, handler.enqueueSharedQueue(id, ("m" + i).getBytes()));
+            }
+            awaitDequeued(logs, 3);
+        } finally {
+            second.close();
+        }
+    }
+}
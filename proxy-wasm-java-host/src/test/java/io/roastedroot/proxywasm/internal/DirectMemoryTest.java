@@ -0,0 +1,89 @@
+package io.roastedroot.proxywasm.internal;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.dylibso.chicory.runtime.Memory;
+import com.dylibso.chicory.runtime.WasmRuntimeException;
+import com.dylibso.chicory.wasm.types.MemoryLimits;
+import io.roastedroot.proxywasm.PoolConfig;
+import io.roastedroot.proxywasm.StartException;
+import java.nio.charset.StandardCharsets;
+import org.junit.jupiter.api.Test;
+
+public class DirectMemoryTest {
+
+    @Test
+    public void readsAndWrites() {
+        var memory = new DirectMemory(new MemoryLimits(1, 4));
+        memory.writeI32(0, 0x01020304);
+        assertEquals(0x04, memory.read(0));
+        assertEquals(0x01020304, memory.readInt(0));
+        memory.writeLong(8, -2L);
+        assertEquals(-2L, memory.readLong(8));
+        memory.writeF64(16, 1.5);
+        assertEquals(1.5, memory.readDouble(16));
+
+        memory.write(100, "hello".getBytes(StandardCharsets.UTF_8));
+        memory.write(105, " world".getBytes(StandardCharsets.UTF_8));
+        assertEquals("hello world", new String(memory.readBytes(100, 11)));
+
+        // overlapping copy
+        memory.copy(102, 100, 5);
+        assertEquals("hehelloorl", new String(memory.readBytes(100, 10)));
+
+        memory.fill((byte) 0, 100, 111);
+        assertArrayEquals(new byte[11], memory.readBytes(100, 11));
+
+        assertThrows(WasmRuntimeException.class, () -> memory.readBytes(Memory.PAGE_SIZE - 2, 4));
+    }
+
+    @Test
+    public void grow() {
+        var memory = new DirectMemory(new MemoryLimits(1, 4));
+        memory.writeI32(Memory.PAGE_SIZE - 4, 42);
+        assertEquals(1, memory.grow(2));
+        assertEquals(3, memory.pages());
+        assertEquals(42, memory.readInt(Memory.PAGE_SIZE - 4));
+        memory.writeI32(3 * Memory.PAGE_SIZE - 4, 7);
+        assertEquals(-1, memory.grow(2));
+        assertEquals(3, memory.pages());
+    }
+
+    @Test
+    public void release() {
+        var memory = new DirectMemory(new MemoryLimits(1, 4));
+        memory.writeI32(0, 42);
+        memory.release();
+        assertEquals(0, memory.pages());
+        assertThrows(WasmRuntimeException.class, () -> memory.readInt(0));
+    }
+
+    @Test
+    public void offHeapPlugin() throws StartException {
+        var config = PoolConfig.builder().withMaxInstances(1).build();
+        var factory =
+                TestPlugins.headerTests()
+                        .withOffHeapMemory(true)
+                        .withInitialMemoryPages(64)
+                        .build();
+
+        var pool = new Pool.PooledPlugins(new TestPlugins.TestServerAdaptor(), factory, config);
+        Memory memory;
+        try {
+            Plugin plugin = pool.borrow();
+            memory = plugin.wasm.abi().instance().memory();
+            assertTrue(memory instanceof DirectMemory);
+            assertTrue(memory.pages() >= 64);
+
+            TestPlugins.sendRequest(plugin);
+            pool.release(plugin);
+        } finally {
+            pool.close();
+        }
+        // the closed plugin doesn't hold on to its off heap memory.
+        assertEquals(0, memory.pages());
+    }
+}
@@ -0,0 +1,224 @@
+package io.roastedroot.proxywasm.internal;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import io.roastedroot.proxywasm.MappedSharedDataHandler;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class MappedSharedDataHandlerTest {
+
+    @TempDir Path dir;
+
+    @Test
+    public void comparesAndSwaps() throws Exception {
+        try (var handler = MappedSharedDataHandler.builder(dir.resolve("data")).build()) {
+            assertNull(handler.getSharedData("key"));
+            assertEquals(WasmResult.CAS_MISMATCH, handler.setSharedData("key", new byte[] {1}, 7));
+
+            assertEquals(WasmResult.OK, handler.setSharedData("key", new byte[] {1}, 0));
+            var data = handler.getSharedData("key");
+            assertArrayEquals(new byte[] {1}, data.data());
+            assertNotEquals(0, data.cas());
+
+            assertEquals(WasmResult.OK, handler.setSharedData("key", new byte[] {2}, data.cas()));
+            assertEquals(
+                    WasmResult.CAS_MISMATCH,
+                    handler.setSharedData("key", new byte[] {3}, data.cas()));
+            assertArrayEquals(new byte[] {2}, handler.getSharedData("key").data());
+
+            assertEquals(WasmResult.OK, handler.setSharedData("", null, 0));
+            assertNull(handler.getSharedData("").data());
+        }
+    }
+
+    @Test
+    public void sharesTheDataBetweenMappings() throws Exception {
+        var path = dir.resolve("data");
+        try (var a = MappedSharedDataHandler.builder(path).withSlots(64).build();
+                var b = MappedSharedDataHandler.builder(path).withSlots(128).build()) {
+            // the second mapping uses the layout of the file.
+            assertEquals(64, b.slots());
+
+            a.setSharedData("key", "value".getBytes(), 0);
+            var data = b.getSharedData("key");
+            assertArrayEquals("value".getBytes(), data.data());
+            assertEquals(WasmResult.OK, b.setSharedData("key", "other".getBytes(), data.cas()));
+            assertArrayEquals("other".getBytes(), a.getSharedData("key").data());
+        }
+
+        // the data survives the processes.
+        try (var c = MappedSharedDataHandler.builder(path).build()) {
+            assertArrayEquals("other".getBytes(), c.getSharedData("key").data());
+        }
+    }
+
+    @Test
+    public void failsWhenTheDataDoesNotFit() throws Exception {
+        try (var handler =
+                MappedSharedDataHandler.builder(dir.resolve("data"))
+                        .withSlots(4)
+                        .withSlotSize(64)
+                        .build()) {
+            assertEquals(
+                    WasmResult.INTERNAL_FAILURE, handler.setSharedData("key", new byte[14], 0));
+            assertEquals(WasmResult.OK, handler.setSharedData("key", new byte[13], 0));
+
+            for (int i = 0; i < 3; i++) {
+                assertEquals(WasmResult.OK, handler.setSharedData("k" + i, new byte[1], 0));
+            }
+            assertEquals(WasmResult.INTERNAL_FAILURE, handler.setSharedData("k3", new byte[1], 0));
+            // the existing keys can still be updated.
+            assertEquals(WasmResult.OK, handler.setSharedData("k0", new byte[2], 0));
+        }
+    }
+
+    @Test
+    public void reusesTheSlotsOfDeletedKeys() throws Exception {
+        try (var handler =
+                MappedSharedDataHandler.builder(dir.resolve("data")).withSlots(4).build()) {
+            for (int i = 0; i < 4; i++) {
+                assertEquals(WasmResult.OK, handler.setSharedData("k" + i, new byte[1], 0));
+            }
+            assertEquals(WasmResult.INTERNAL_FAILURE, handler.setSharedData("k4", new byte[1], 0));
+
+            assertEquals(WasmResult.OK, handler.setSharedData("k1", null, 0));
+            assertEquals(WasmResult.OK, handler.setSharedData("k4", new byte[] {4}, 0));
+            assertArrayEquals(new byte[] {4}, handler.getSharedData("k4").data());
+            assertNull(handler.getSharedData("k1"));
+            assertEquals(WasmResult.INTERNAL_FAILURE, handler.setSharedData("k1", new byte[1], 0));
+            for (var key : new String[] {"k0", "k2", "k3"}) {
+                assertArrayEquals(new byte[1], handler.getSharedData(key).data());
+            }
+        }
+    }
+
+    @Test
+    public void incrementsConcurrently() throws Exception {
+        var path = dir.resolve("data");
+        try (var a = MappedSharedDataHandler.builder(path).build();
+                var b = MappedSharedDataHandler.builder(path).build()) {
+            a.setSharedData("counter", ByteBuffer.allocate(4).putInt(0).array(), 0);
+            var executor = Executors.newFixedThreadPool(8);
+            try {
+                var futures = new ArrayList<Future<?>>();
+                for (int t = 0; t < 8; t++) {
+                    // half of the threads use each mapping, like two processes would.
+                    var handler = t % 2 == 0 ? a : b;
+                    futures.add(
+                            executor.submit(
+                                    () -> {
+                                        for (int i = 0; i < 1000; i++) {
+                                            while (true) {
+                                                var data = handler.getSharedData("counter");
+                                                int value =
+                                                        ByteBuffer.wrap(data.data()).getInt() + 1;
+                                                var next =
+                                                        ByteBuffer.allocate(4)
+                                                                .putInt(value)
+                                                                .array();
+                                                if (handler.setSharedData(
+                                                                "counter", next, data.cas())
+                                                        == WasmResult.OK) {
+                                                    break;
+                                                }
+                                            }
+                                        }
+                                    }));
+                }
+                for (var future : futures) {
+                    future.get();
+                }
+            } finally {
+                executor.shutdown();
+            }
+            assertEquals(8000, ByteBuffer.wrap(b.getSharedData("counter").data()).getInt());
+        }
+    }
+
+    // the first slot of a file, as a writer holding its lock would see it.
+    private static MappedByteBuffer slot(Path path) throws Exception {
+        try (var channel =
+                FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            var slot = channel.map(FileChannel.MapMode.READ_WRITE, 64, 64);
+            slot.order(ByteOrder.nativeOrder());
+            return slot;
+        }
+    }
+
+    // locks the slot as the given process would, and leaves it half written.
+    private static void lock(MappedByteBuffer slot, long pid) {
+        slot.putLong(16, pid);
+        slot.putLong(24, 0);
+        slot.putInt(0, slot.getInt(0) + 1);
+    }
+
+    @Test
+    public void recoversSlotsLockedByDeadProcesses() throws Exception {
+        var path = dir.resolve("data");
+        try (var handler =
+                MappedSharedDataHandler.builder(path).withSlots(1).withSlotSize(64).build()) {
+            handler.setSharedData("key", new byte[] {1}, 0);
+            var cas = handler.getSharedData("key").cas();
+
+            var java = ProcessHandle.current().info().command().orElseThrow();
+            var dead = new ProcessBuilder(java, "-version").start();
+            dead.waitFor();
+            lock(slot(path), dead.pid());
+
+            // the reader waits for the lock to time out, and recovers the slot.
+            var data = handler.getSharedData("key");
+            assertNull(data.data());
+            assertNotEquals(cas, data.cas());
+            assertEquals(WasmResult.OK, handler.setSharedData("key", new byte[] {2}, data.cas()));
+            assertArrayEquals(new byte[] {2}, handler.getSharedData("key").data());
+        }
+    }
+
+    @Test
+    public void waitsForLiveOwners() throws Exception {
+        var path = dir.resolve("data");
+        try (var handler =
+                MappedSharedDataHandler.builder(path).withSlots(1).withSlotSize(64).build()) {
+            handler.setSharedData("key", new byte[] {1}, 0);
+            var slot = slot(path);
+            int version = slot.getInt(0);
+            // a live process paused while it holds the lock, longer than the lock timeout.
+            lock(slot, ProcessHandle.current().pid());
+
+            var executor = Executors.newSingleThreadExecutor();
+            try {
+                var write = executor.submit(() -> handler.setSharedData("key", new byte[] {2}, 0));
+                assertThrows(
+                        TimeoutException.class,
+                        () ->
+                                write.get(
+                                        MappedSharedDataHandler.LOCK_TIMEOUT_NANOS * 2,
+                                        TimeUnit.NANOSECONDS));
+
+                // the owner resumes and releases the slot.
+                slot.putInt(0, version);
+                slot.putLong(16, 0);
+                assertEquals(WasmResult.OK, write.get(10, TimeUnit.SECONDS));
+                assertArrayEquals(new byte[] {2}, handler.getSharedData("key").data());
+            } finally {
+                executor.shutdownNow();
+            }
+        }
+    }
+}
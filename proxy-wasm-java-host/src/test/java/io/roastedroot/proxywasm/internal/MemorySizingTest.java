@@ -0,0 +1,103 @@
+package io.roastedroot.proxywasm.internal;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import io.roastedroot.proxywasm.MemorySizing;
+import io.roastedroot.proxywasm.PoolConfig;
+import io.roastedroot.proxywasm.StartException;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class MemorySizingTest {
+
+    @TempDir Path tempDir;
+
+    @Test
+    public void highWaterMark() throws IOException {
+        Path file = tempDir.resolve("plugin.wasm.pages");
+        var sizing = MemorySizing.of(file);
+        assertEquals(0, sizing.highWaterMark());
+
+        sizing.observe(2, 2);
+        assertEquals(2, sizing.highWaterMark());
+        assertEquals(0, sizing.growths());
+
+        sizing.observe(2, 5);
+        sizing.observe(3, 4);
+        assertEquals(5, sizing.highWaterMark());
+        assertEquals(2, sizing.growths());
+        assertEquals(4, sizing.grownPages());
+        assertEquals("5", Files.readString(file));
+
+        // a new sizing picks up the persisted mark.
+        assertEquals(5, MemorySizing.of(file).highWaterMark());
+
+        Files.writeString(file, "garbage");
+        assertEquals(0, MemorySizing.of(file).highWaterMark());
+    }
+
+    @Test
+    public void boundsTheHighWaterMark() throws Exception {
+        Path file = tempDir.resolve("plugin.wasm.pages");
+        var sizing = MemorySizing.of(file).withMaximumPages(100);
+        sizing.observe(2, 500);
+        assertEquals(100, sizing.highWaterMark());
+        assertEquals(498, sizing.grownPages());
+        assertEquals("100", Files.readString(file));
+
+        // a spike is forgotten once two windows went by without one.
+        var windowed = MemorySizing.create().withWindow(Duration.ofMillis(500));
+        windowed.observe(2, 50);
+        Thread.sleep(600);
+        windowed.observe(10, 10);
+        assertEquals(50, windowed.highWaterMark());
+        Thread.sleep(600);
+        windowed.observe(10, 10);
+        assertEquals(10, windowed.highWaterMark());
+
+        sizing.reset();
+        assertEquals(0, sizing.highWaterMark());
+        assertFalse(Files.exists(file));
+        assertEquals(0, MemorySizing.of(file).highWaterMark());
+    }
+
+    @Test
+    public void presizesNewInstances() throws StartException {
+        var sizing = MemorySizing.of(tempDir.resolve("unit_tester.wasm.pages"));
+        var config = PoolConfig.builder().withMaxInstances(2).build();
+        var factory = TestPlugins.headerTests().withMemorySizing(sizing).build();
+
+        var pool = new Pool.PooledPlugins(new TestPlugins.TestServerAdaptor(), factory, config);
+        try {
+            Plugin first = pool.borrow();
+            var memory = first.wasm.abi().instance().memory();
+            assertEquals(memory.pages(), sizing.highWaterMark());
+            long growths = sizing.growths();
+
+            // simulate the guest growing its memory while serving a request.
+            int pages = memory.pages() + 10;
+            memory.grow(10);
+            TestPlugins.sendRequest(first);
+            assertEquals(pages, sizing.highWaterMark());
+            assertEquals(growths + 1, sizing.growths());
+
+            // the next instance starts with the memory the first one needed.
+            Plugin second = pool.borrow();
+            assertTrue(second.wasm.abi().instance().memory().pages() >= pages);
+            TestPlugins.sendRequest(second);
+            assertEquals(growths + 1, sizing.growths());
+
+            pool.release(first);
+            pool.release(second);
+        } finally {
+            pool.close();
+        }
+        assertEquals(sizing.highWaterMark(), MemorySizing.of(sizing.file()).highWaterMark());
+    }
+}
@@ -0,0 +1,137 @@
+package io.roastedroot.proxywasm.internal;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import io.roastedroot.proxywasm.PluginFactory;
+import io.roastedroot.proxywasm.PoolConfig;
+import io.roastedroot.proxywasm.StartException;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.Test;
+
+public class PoolTest {
+
+    private static PluginFactory factory(AtomicInteger starts, PoolConfig config) {
+        return TestPlugins.headerTests()
+                .withLogger(TestPlugins.countStarts(starts))
+                .withPool(config)
+                .build();
+    }
+
+    @Test
+    public void prewarmAndReuse() throws StartException {
+        var starts = new AtomicInteger();
+        var config = PoolConfig.builder().withMinIdle(2).withMaxInstances(3).build();
+        var pool =
+                new Pool.PooledPlugins(
+                        new TestPlugins.TestServerAdaptor(), factory(starts, config), config);
+        try {
+            pool.start();
+            assertEquals(2, starts.get());
+            assertEquals(2, pool.idleCount());
+
+            Plugin a = pool.borrow();
+            Plugin b = pool.borrow();
+            Plugin c = pool.borrow();
+            assertEquals(2, pool.hits());
+            assertEquals(1, pool.misses());
+            assertEquals(3, starts.get());
+            assertEquals(3, pool.activeCount());
+
+            pool.release(b);
+            // the most recently released plugin is handed out first.
+            assertSame(b, pool.borrow());
+            assertEquals(3, starts.get());
+
+            pool.release(a);
+            pool.release(b);
+            pool.release(c);
+            assertEquals(3, pool.idleCount());
+            assertEquals(0, pool.activeCount());
+        } finally {
+            pool.close();
+        }
+        assertEquals(0, pool.idleCount());
+    }
+
+    @Test
+    public void failFastWhenExhausted() throws StartException {
+        var config =
+                PoolConfig.builder().withMaxInstances(1).withBorrowTimeoutMilliseconds(0).build();
+        var pool =
+                new Pool.PooledPlugins(
+                        new TestPlugins.TestServerAdaptor(),
+                        factory(new AtomicInteger(), config),
+                        config);
+        try {
+            Plugin plugin = pool.borrow();
+            assertThrows(StartException.class, pool::borrow);
+            assertEquals(1, pool.timeouts());
+
+            pool.release(plugin);
+            assertSame(plugin, pool.borrow());
+        } finally {
+            pool.close();
+        }
+    }
+
+    @Test
+    public void evictIdle() throws Exception {
+        var serverAdaptor = new TestPlugins.TestServerAdaptor();
+        var config =
+                PoolConfig.builder()
+                        .withMinIdle(1)
+                        .withMaxInstances(3)
+                        .withMaxIdleMilliseconds(1)
+                        .build();
+        var pool =
+                new Pool.PooledPlugins(serverAdaptor, factory(new AtomicInteger(), config), config);
+        try {
+            pool.start();
+            Plugin a = pool.borrow();
+            Plugin b = pool.borrow();
+            Plugin c = pool.borrow();
+            pool.release(a);
+            pool.release(b);
+            pool.release(c);
+            assertEquals(3, pool.idleCount());
+
+            Thread.sleep(5);
+            serverAdaptor.runTicks();
+
+            assertEquals(1, pool.idleCount());
+            assertEquals(2, pool.evictions());
+            // the most recently used plugin survives eviction.
+            assertSame(c, pool.borrow());
+            assertNotSame(a, pool.borrow());
+        } finally {
+            pool.close();
+        }
+    }
+
+    @Test
+    public void recycleResetsState() throws StartException {
+        var starts = new AtomicInteger();
+        var config = PoolConfig.builder().withMaxInstances(1).withRecycle(true).build();
+        var pool =
+                new Pool.PooledPlugins(
+                        new TestPlugins.TestServerAdaptor(), factory(starts, config), config);
+        try {
+            Plugin plugin = pool.borrow();
+            assertEquals("1", TestPlugins.requestCounter(plugin));
+            assertEquals("2", TestPlugins.requestCounter(plugin));
+            pool.release(plugin);
+
+            // the same instance is handed out again, but without the previous requests' state.
+            assertSame(plugin, pool.borrow());
+            assertEquals(1, starts.get());
+            assertEquals("1", TestPlugins.requestCounter(plugin));
+            pool.release(plugin);
+            assertEquals(0, pool.resetFailures());
+        } finally {
+            pool.close();
+        }
+    }
+}
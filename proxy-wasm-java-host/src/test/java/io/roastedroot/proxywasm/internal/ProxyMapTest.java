@@ -0,0 +1,187 @@
+package io.roastedroot.proxywasm.internal;
+
+import static io.roastedroot.proxywasm.internal.Helpers.bytes;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+
+public class ProxyMapTest {
+
+    // straightforward encoding of the header map pairs format to compare against.
+    private static byte[] expectedPairs(String... values) {
+        int count = values.length / 2;
+        var sizes = ByteBuffer.allocate(4 + 8 * count).order(ByteOrder.LITTLE_ENDIAN);
+        sizes.putInt(count);
+        var data = new ByteArrayOutputStream();
+        for (int i = 0; i < values.length; i += 2) {
+            byte[] key = bytes(values[i]);
+            byte[] value = bytes(values[i + 1]);
+            sizes.putInt(key.length);
+            sizes.putInt(value.length);
+            data.writeBytes(key);
+            data.write(0);
+            data.writeBytes(value);
+            data.write(0);
+        }
+        var result = new ByteArrayOutputStream();
+        result.writeBytes(sizes.array());
+        result.writeBytes(data.toByteArray());
+        return result.toByteArray();
+    }
+
+    @Test
+    public void encodePairs() {
+        var values =
+                new String[] {
+                    ":path", "/", "x-empty", "", "x-utf8", "héllo wörld €", "x-emoji", "😀"
+                };
+        assertArrayEquals(expectedPairs(values), ProxyMap.of(values).encodePairs());
+        assertArrayEquals(expectedPairs(), new ArrayProxyMap().encodePairs());
+
+        var split = new SplitProxyMap(ProxyMap.of(":path", "/"), ProxyMap.of("a", "b"));
+        assertArrayEquals(expectedPairs(":path", "/", "a", "b"), split.encodePairs());
+
+        var bytesMap = new ArrayBytesProxyMap();
+        bytesMap.add("x-utf8", bytes("héllo"));
+        bytesMap.add("x-empty", new byte[0]);
+        assertArrayEquals(expectedPairs("x-utf8", "héllo", "x-empty", ""), bytesMap.encodePairs());
+    }
+
+    @Test
+    public void cacheEncodedPairsUntilModified() {
+        var map = new ArrayProxyMap();
+        map.add("a", "1");
+        byte[] encoded = map.encodePairs();
+        assertSame(encoded, map.encodePairs());
+
+        map.add("b", "2");
+        assertNotSame(encoded, map.encodePairs());
+        assertArrayEquals(expectedPairs("a", "1", "b", "2"), map.encodePairs());
+
+        map.put("a", "3");
+        assertArrayEquals(expectedPairs("b", "2", "a", "3"), map.encodePairs());
+
+        map.remove("b");
+        assertArrayEquals(expectedPairs("a", "3"), map.encodePairs());
+
+        var bytesMap = new ArrayBytesProxyMap();
+        bytesMap.add("a", "1");
+        encoded = bytesMap.encodePairs();
+        assertSame(encoded, bytesMap.encodePairs());
+        bytesMap.put("a", bytes("2"));
+        assertArrayEquals(expectedPairs("a", "2"), bytesMap.encodePairs());
+    }
+
+    @Test
+    public void utf8Length() {
+        for (String value : List.of("", "ascii", "héllo", "€", "😀", "\uD83Dx", "x\uDE00")) {
+            byte[] expected = bytes(value);
+            byte[] actual = new byte[Helpers.utf8Length(value)];
+            Helpers.putUtf8(actual, 0, value);
+            assertArrayEquals(expected, actual, value);
+        }
+    }
+
+    private static BytesProxyMap bytesMap(String... values) {
+        return new BytesProxyMap(ProxyMap.of(values));
+    }
+
+    @Test
+    public void bytesProxyMap() {
+        var map = new BytesProxyMap();
+        map.add("Content-Type", "text/plain");
+        map.add("x-dup", "1");
+        map.add("X-Dup", "2");
+        map.add("x-utf8", "héllo");
+        map.add("Ünïcode", "ok");
+
+        assertEquals(5, map.size());
+        assertEquals("text/plain", map.get("content-type"));
+        assertEquals("1", map.get("x-dup"));
+        assertEquals("héllo", map.get("X-UTF8"));
+        assertEquals("ok", map.get("Ünïcode"));
+        assertArrayEquals(bytes("héllo"), map.getBytes("x-utf8"));
+        assertNull(map.get("missing"));
+        assertEquals(
+                bytesMap(
+                        "Content-Type",
+                        "text/plain",
+                        "x-dup",
+                        "1",
+                        "X-Dup",
+                        "2",
+                        "x-utf8",
+                        "héllo",
+                        "Ünïcode",
+                        "ok"),
+                map);
+
+        map.put("x-dup", "3");
+        assertEquals(4, map.size());
+        assertEquals("3", map.get("X-DUP"));
+        map.remove("content-type");
+        assertNull(map.get("Content-Type"));
+        assertArrayEquals(
+                expectedPairs("x-utf8", "héllo", "Ünïcode", "ok", "x-dup", "3"), map.encodePairs());
+    }
+
+    @Test
+    public void bytesProxyMapDecodePairs() {
+        var values = new String[] {":path", "/", "x-empty", "", "x-utf8", "héllo wörld €"};
+        byte[] encoded = expectedPairs(values);
+        var map = BytesProxyMap.decodePairs(encoded);
+        assertEquals(bytesMap(values), map);
+        assertEquals("/", map.get(":PATH"));
+        assertEquals("", map.get("x-empty"));
+        assertArrayEquals(encoded, map.encodePairs());
+
+        map.add("x-new", "v");
+        assertArrayEquals(
+                expectedPairs(":path", "/", "x-empty", "", "x-utf8", "héllo wörld €", "x-new", "v"),
+                map.encodePairs());
+
+        // truncated input keeps the complete entries only.
+        byte[] truncated = Arrays.copyOf(encoded, encoded.length - 3);
+        assertEquals(bytesMap(":path", "/", "x-empty", ""), BytesProxyMap.decodePairs(truncated));
+    }
+
+    @Test
+    public void bytesProxyMapCachesEncoding() {
+        var map = bytesMap("a", "1", "b", "2");
+        byte[] encoded = map.encode();
+        assertArrayEquals(new ArrayProxyMap(map).encode(), encoded);
+        assertSame(encoded, map.encode());
+
+        map.put("a", "3");
+        assertArrayEquals(new ArrayProxyMap(map).encode(), map.encode());
+        map.remove("b");
+        assertArrayEquals(new ArrayProxyMap(map).encode(), map.encode());
+    }
+
+    @Test
+    public void bytesProxyMapGrowsAndCompacts() {
+        var map = new BytesProxyMap();
+        for (int i = 0; i < 200; i++) {
+            map.add("key-" + i, "value-" + i);
+        }
+        for (int i = 0; i < 200; i += 2) {
+            map.remove("KEY-" + i);
+        }
+        assertEquals(100, map.size());
+        for (int i = 0; i < 200; i++) {
+            assertEquals(i % 2 == 0 ? null : "value-" + i, map.get("key-" + i));
+        }
+        var copy = new BytesProxyMap(map);
+        assertEquals(map, copy);
+        assertArrayEquals(map.encodePairs(), copy.encodePairs());
+    }
+}
@@ -0,0 +1,389 @@
+package io.roastedroot.proxywasm.internal;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import io.roastedroot.proxywasm.LoopbackReplicationTransport;
+import io.roastedroot.proxywasm.ReplicatedSharedDataHandler;
+import io.roastedroot.proxywasm.ReplicationTransport;
+import io.roastedroot.proxywasm.SharedDataHandler;
+import io.roastedroot.proxywasm.TcpReplicationTransport;
+import java.io.DataOutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+import org.junit.jupiter.api.Test;
+
+public class ReplicatedSharedDataHandlerTest {
+
+    private static List<ReplicatedSharedDataHandler> nodes(
+            ReplicatedSharedDataHandler.Mode mode, String... names) throws Exception {
+        var network = new LoopbackReplicationTransport.Network();
+        var transports = new ArrayList<LoopbackReplicationTransport>();
+        for (var name : names) {
+            transports.add(network.node(name));
+        }
+        var nodes = new ArrayList<ReplicatedSharedDataHandler>();
+        for (var transport : transports) {
+            nodes.add(ReplicatedSharedDataHandler.builder(transport).withMode(mode).build());
+        }
+        return nodes;
+    }
+
+    private static void close(List<ReplicatedSharedDataHandler> nodes) throws Exception {
+        for (var node : nodes) {
+            node.close();
+        }
+    }
+
+    private static void await(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.nanoTime() + 10_000_000_000L;
+        while (!condition.getAsBoolean()) {
+            assertTrue(System.nanoTime() < deadline, "timed out");
+            Thread.sleep(5);
+        }
+    }
+
+    private static boolean holds(SharedDataHandler node, String key, byte[] value) {
+        try {
+            var data = node.getSharedData(key);
+            return data != null && Arrays.equals(value, data.data());
+        } catch (Exception e) {
+            return false;
+        }
+    }
+
+    @Test
+    public void replicatesWrites() throws Exception {
+        var nodes = nodes(ReplicatedSharedDataHandler.Mode.EVENTUAL, "a", "b", "c");
+        try {
+            var a = nodes.get(0);
+            assertEquals(WasmResult.OK, a.setSharedData("key", "value".getBytes(), 0));
+            // the write is local at once, and replicated later.
+            assertArrayEquals("value".getBytes(), a.getSharedData("key").data());
+            for (var node : nodes) {
+                await(() -> holds(node, "key", "value".getBytes()));
+                // the cas is the same on every node.
+                assertEquals(a.getSharedData("key").cas(), node.getSharedData("key").cas());
+            }
+
+            var c = nodes.get(2);
+            var data = c.getSharedData("key");
+            assertEquals(WasmResult.OK, c.setSharedData("key", null, data.cas()));
+            await(() -> a.getSharedData("key").data() == null);
+            assertEquals(0, a.pendingUpdates());
+            assertTrue(c.batches() >= 1);
+            assertTrue(a.replicationLagMillis() >= 0);
+        } finally {
+            close(nodes);
+        }
+    }
+
+    @Test
+    public void convergesAfterConcurrentWrites() throws Exception {
+        var network = new LoopbackReplicationTransport.Network();
+        var ta = network.node("a");
+        var tb = network.node("b");
+        try (var a = ReplicatedSharedDataHandler.builder(ta).build();
+                var b = ReplicatedSharedDataHandler.builder(tb).build()) {
+            network.pause();
+            // both nodes succeed, as neither has seen the other's write.
+            assertEquals(WasmResult.OK, a.setSharedData("key", "a".getBytes(), 0));
+            assertEquals(WasmResult.OK, b.setSharedData("key", "b".getBytes(), 0));
+            await(() -> a.pendingUpdates() == 0 && b.pendingUpdates() == 0);
+            network.resume();
+
+            await(
+                    () ->
+                            a.getSharedData("key").cas() == b.getSharedData("key").cas()
+                                    && a.conflicts() + b.conflicts() == 1);
+            assertArrayEquals(a.getSharedData("key").data(), b.getSharedData("key").data());
+        }
+    }
+
+    @Test
+    public void tellsNodesApartByTheirIndex() throws Exception {
+        // the two names have the same hash code.
+        assertEquals("Aa".hashCode(), "BB".hashCode());
+        var network = new LoopbackReplicationTransport.Network();
+        var ta = network.node("Aa");
+        var tb = network.node("BB");
+        try (var a = ReplicatedSharedDataHandler.builder(ta).build();
+                var b = ReplicatedSharedDataHandler.builder(tb).build()) {
+            network.pause();
+            a.setSharedData("key", "z".getBytes(), 0);
+            b.setSharedData("key", "a".getBytes(), 0);
+            // the writes have the same clock, but not the same version.
+            assertNotEquals(a.getSharedData("key").cas(), b.getSharedData("key").cas());
+            await(() -> a.pendingUpdates() == 0 && b.pendingUpdates() == 0);
+            network.resume();
+
+            // the node listed last wins, whatever the values.
+            await(() -> holds(a, "key", "a".getBytes()) && holds(b, "key", "a".getBytes()));
+        }
+    }
+
+    @Test
+    public void keepsTheOrderOfTheNodes() throws Exception {
+        var network = new LoopbackReplicationTransport.Network();
+        var b = network.node("b");
+        var a = network.node("a");
+        assertEquals(List.of("b", "a"), b.nodes());
+        a.close();
+        // a node that joins after the others, or again, doesn't change their index.
+        var zero = network.node("0");
+        a = network.node("a");
+        assertEquals(List.of("b", "a", "0"), b.nodes());
+        for (var node : List.of(a, b, zero)) {
+            node.close();
+        }
+
+        var addresses = new LinkedHashMap<String, InetSocketAddress>();
+        for (var name : List.of("b", "a", "0")) {
+            addresses.put(name, new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        }
+        try (var transport = new TcpReplicationTransport("a", addresses)) {
+            assertEquals(List.of("b", "a", "0"), transport.nodes());
+        }
+    }
+
+    @Test
+    public void repairsNodesThatMissedBatches() throws Exception {
+        var network = new LoopbackReplicationTransport.Network();
+        var ta = network.node("a");
+        var tb = network.node("b");
+        try (var a =
+                        ReplicatedSharedDataHandler.builder(ta)
+                                .withSyncInterval(Duration.ofMillis(20))
+                                .build();
+                var b =
+                        ReplicatedSharedDataHandler.builder(tb)
+                                .withSyncInterval(Duration.ofMillis(20))
+                                .build()) {
+            network.disconnect("b");
+            assertEquals(WasmResult.OK, a.setSharedData("key", "value".getBytes(), 0));
+            // the batch is lost for b.
+            await(() -> a.pendingUpdates() == 0);
+            assertNull(b.getSharedData("key"));
+
+            // the key is never written again, anti-entropy repairs b.
+            network.connect("b");
+            await(() -> holds(b, "key", "value".getBytes()));
+            assertEquals(a.getSharedData("key").cas(), b.getSharedData("key").cas());
+            assertTrue(b.repairedUpdates() >= 1);
+        }
+    }
+
+    @Test
+    public void syncsNodesThatJoin() throws Exception {
+        var network = new LoopbackReplicationTransport.Network();
+        var ta = network.node("a");
+        var tb = network.node("b");
+        try (var a = ReplicatedSharedDataHandler.builder(ta).withMaxBatchSize(2).build();
+                var b = ReplicatedSharedDataHandler.builder(tb).withMaxBatchSize(2).build()) {
+            for (int i = 0; i < 5; i++) {
+                a.setSharedData("a" + i, "a".getBytes(), 0);
+                b.setSharedData("b" + i, "b".getBytes(), 0);
+            }
+
+            // holds the batches, so c only gets the keys by syncing.
+            network.pause();
+            // c holds all the keys as soon as it is built, in more than a batch.
+            try (var c = ReplicatedSharedDataHandler.builder(network.node("c")).build()) {
+                for (int i = 0; i < 5; i++) {
+                    assertArrayEquals("a".getBytes(), c.getSharedData("a" + i).data());
+                    assertArrayEquals("b".getBytes(), c.getSharedData("b" + i).data());
+                }
+                assertEquals(10, c.repairedUpdates());
+            }
+        }
+    }
+
+    private static void increment(SharedDataHandler node, String key) throws Exception {
+        while (true) {
+            var data = node.getSharedData(key);
+            int count = data == null ? 0 : ByteBuffer.wrap(data.data()).getInt();
+            var next = ByteBuffer.allocate(4).putInt(count + 1).array();
+            var result = node.setSharedData(key, next, data == null ? 0 : data.cas());
+            if (result == WasmResult.OK) {
+                return;
+            }
+            assertEquals(WasmResult.CAS_MISMATCH, result);
+        }
+    }
+
+    @Test
+    public void forwardsCompareAndSwapToTheOwner() throws Exception {
+        var nodes = nodes(ReplicatedSharedDataHandler.Mode.CAS_FORWARDING, "a", "b", "c");
+        var executor = Executors.newFixedThreadPool(6);
+        try {
+            // creates the counter, so that all the increments compare and swap.
+            var zero = ByteBuffer.allocate(4).putInt(0).array();
+            nodes.get(0).setSharedData("counter", zero, 0);
+            for (var node : nodes) {
+                await(() -> holds(node, "counter", zero));
+            }
+            var futures = new ArrayList<Future<?>>();
+            for (int t = 0; t < 6; t++) {
+                var node = nodes.get(t % nodes.size());
+                futures.add(
+                        executor.submit(
+                                () -> {
+                                    for (int i = 0; i < 200; i++) {
+                                        increment(node, "counter");
+                                    }
+                                    return null;
+                                }));
+            }
+            for (var future : futures) {
+                future.get();
+            }
+
+            var expected = ByteBuffer.allocate(4).putInt(1200).array();
+            for (var node : nodes) {
+                await(() -> holds(node, "counter", expected));
+            }
+            // two of the nodes don't own the key.
+            assertEquals(
+                    2,
+                    nodes.stream().filter(n -> n.forwardedWrites() > 0).count(),
+                    "writes should be forwarded by the nodes that don't own the key");
+        } finally {
+            executor.shutdown();
+            close(nodes);
+        }
+    }
+
+    @Test
+    public void replicatesOverTcp() throws Exception {
+        var addresses =
+                Map.of(
+                        "a", new InetSocketAddress(InetAddress.getLoopbackAddress(), freePort()),
+                        "b", new InetSocketAddress(InetAddress.getLoopbackAddress(), freePort()));
+        try (var a =
+                        ReplicatedSharedDataHandler.builder(
+                                        new TcpReplicationTransport("a", addresses))
+                                .withMode(ReplicatedSharedDataHandler.Mode.CAS_FORWARDING)
+                                .build();
+                var b =
+                        ReplicatedSharedDataHandler.builder(
+                                        new TcpReplicationTransport("b", addresses))
+                                .withMode(ReplicatedSharedDataHandler.Mode.CAS_FORWARDING)
+                                .build()) {
+            for (int i = 0; i < 20; i++) {
+                var key = "key-" + i;
+                var value = new byte[] {(byte) i};
+                var writer = i % 2 == 0 ? a : b;
+                var reader = writer == a ? b : a;
+                assertNull(writer.getSharedData(key));
+                assertEquals(WasmResult.OK, writer.setSharedData(key, value, 0));
+                // the writer reads its write at once, even when another node owns the key.
+                var data = writer.getSharedData(key);
+                assertArrayEquals(value, data.data());
+                assertNotEquals(0, data.cas());
+                await(() -> holds(reader, key, value));
+                assertEquals(
+                        WasmResult.CAS_MISMATCH,
+                        reader.setSharedData(key, new byte[0], data.cas() + 1));
+            }
+            assertTrue(a.forwardedWrites() + b.forwardedWrites() > 0);
+        }
+    }
+
+    @Test
+    public void doesNotWaitForSlowTcpPeers() throws Exception {
+        var loopback = InetAddress.getLoopbackAddress();
+        try (var slow = new ServerSocket(0, 50, loopback)) {
+            var addresses = new LinkedHashMap<String, InetSocketAddress>();
+            addresses.put("a", new InetSocketAddress(loopback, freePort()));
+            addresses.put("b", new InetSocketAddress(loopback, freePort()));
+            // a node that accepts connections, and never reads nor replies.
+            addresses.put("c", new InetSocketAddress(loopback, slow.getLocalPort()));
+            var batches = new ArrayBlockingQueue<byte[]>(1);
+            var executor = Executors.newSingleThreadExecutor();
+            try (var a = new TcpReplicationTransport("a", addresses, Duration.ofSeconds(30));
+                    var b = new TcpReplicationTransport("b", addresses)) {
+                b.start(
+                        new ReplicationTransport.Receiver() {
+                            @Override
+                            public void onBatch(byte[] batch) {
+                                batches.add(batch);
+                            }
+
+                            @Override
+                            public byte[] onRequest(byte[] request) {
+                                return request;
+                            }
+                        });
+                var stuck = executor.submit(() -> a.request("c", new byte[] {1}));
+
+                long start = System.nanoTime();
+                a.broadcast(new byte[] {2});
+                assertArrayEquals(new byte[] {2}, batches.poll(10, TimeUnit.SECONDS));
+                assertArrayEquals(new byte[] {3}, a.request("b", new byte[] {3}));
+                assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(10));
+                assertFalse(stuck.isDone());
+            } finally {
+                executor.shutdownNow();
+            }
+        }
+    }
+
+    @Test
+    public void dropsInvalidTcpPeers() throws Exception {
+        var loopback = InetAddress.getLoopbackAddress();
+        var addresses =
+                Map.of(
+                        "a", new InetSocketAddress(loopback, freePort()),
+                        "b", new InetSocketAddress(loopback, freePort()));
+        try (var transport =
+                        new TcpReplicationTransport("a", addresses, Duration.ofSeconds(5), 16);
+                var a = ReplicatedSharedDataHandler.builder(transport).build()) {
+            // a frame longer than the limit, or with a negative length, drops the connection.
+            for (int length : new int[] {17, -1}) {
+                try (var socket = new Socket(loopback, addresses.get("a").getPort())) {
+                    socket.setSoTimeout(5000);
+                    var out = new DataOutputStream(socket.getOutputStream());
+                    out.write(2);
+                    out.writeInt(length);
+                    out.flush();
+                    assertEquals(-1, socket.getInputStream().read());
+                }
+            }
+        }
+
+        // a peer that isn't on the host of a node is dropped.
+        var other = InetAddress.getByName("127.0.0.2");
+        var port = freePort();
+        var remote = Map.of("a", new InetSocketAddress(other, port));
+        try (var transport = new TcpReplicationTransport("a", remote);
+                var a = ReplicatedSharedDataHandler.builder(transport).build();
+                var socket = new Socket(other, port, loopback, 0)) {
+            socket.setSoTimeout(5000);
+            assertEquals(-1, socket.getInputStream().read());
+        }
+    }
+
+    private static int freePort() throws Exception {
+        try (var socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+}
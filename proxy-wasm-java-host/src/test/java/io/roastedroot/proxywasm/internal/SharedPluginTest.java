@@ -0,0 +1,94 @@
+package io.roastedroot.proxywasm.internal;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import io.roastedroot.proxywasm.PluginFactory;
+import io.roastedroot.proxywasm.StartException;
+import java.util.concurrent.CountDownLatch;
+import org.junit.jupiter.api.Test;
+
+public class SharedPluginTest {
+
+    private static PluginFactory factory(int instances) {
+        return TestPlugins.headerTests().withShared(true).withSharedInstances(instances).build();
+    }
+
+    @Test
+    public void spreadAcrossInstances() throws StartException {
+        var pool = new Pool.SharedPlugin(new TestPlugins.TestServerAdaptor(), factory(2));
+        try {
+            assertEquals(2, pool.instances());
+            Plugin a = pool.borrow();
+            Plugin b = pool.borrow();
+            assertNotSame(a, b);
+            assertSame(a, pool.borrow());
+
+            // each instance keeps its own state.
+            assertEquals("1", TestPlugins.requestCounter(a));
+            assertEquals("2", TestPlugins.requestCounter(a));
+            assertEquals("1", TestPlugins.requestCounter(b));
+
+            // busy instances are skipped.
+            a.lock();
+            try {
+                assertSame(b, pool.borrow());
+                assertSame(b, pool.borrow());
+            } finally {
+                a.unlock();
+            }
+            pool.release(a);
+            pool.release(b);
+        } finally {
+            pool.close();
+        }
+    }
+
+    @Test
+    public void lockContention() throws Exception {
+        var pool = new Pool.SharedPlugin(new TestPlugins.TestServerAdaptor(), factory(1));
+        try {
+            Plugin plugin = pool.borrow();
+            assertSame(plugin, pool.borrow());
+
+            var locked = new CountDownLatch(1);
+            var release = new CountDownLatch(1);
+            var holder =
+                    new Thread(
+                            () -> {
+                                plugin.lock();
+                                try {
+                                    locked.countDown();
+                                    release.await();
+                                } catch (InterruptedException e) {
+                                    Thread.currentThread().interrupt();
+                                } finally {
+                                    plugin.unlock();
+                                }
+                            });
+            holder.start();
+            locked.await();
+
+            var waiter =
+                    new Thread(
+                            () -> {
+                                plugin.lock();
+                                plugin.unlock();
+                            });
+            waiter.start();
+            while (waiter.getState() != Thread.State.WAITING) {
+                Thread.sleep(1);
+            }
+            release.countDown();
+            holder.join();
+            waiter.join();
+
+            assertEquals(1, pool.lockContentions());
+            assertTrue(pool.lockWaitTimeNanos() > 0);
+        } finally {
+            pool.close();
+        }
+    }
+}
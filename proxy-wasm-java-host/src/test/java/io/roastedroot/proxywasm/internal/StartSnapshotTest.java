@@ -0,0 +1,44 @@
+package io.roastedroot.proxywasm.internal;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import io.roastedroot.proxywasm.PoolConfig;
+import io.roastedroot.proxywasm.StartException;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.Test;
+
+public class StartSnapshotTest {
+
+    @Test
+    public void restoredPluginsSkipStartup() throws StartException {
+        var starts = new AtomicInteger();
+        var config = PoolConfig.builder().withMaxInstances(2).build();
+        var factory =
+                TestPlugins.headerTests()
+                        .withStartSnapshot(true)
+                        .withLogger(TestPlugins.countStarts(starts))
+                        .build();
+
+        var pool = new Pool.PooledPlugins(new TestPlugins.TestServerAdaptor(), factory, config);
+        try {
+            Plugin first = pool.borrow();
+            assertTrue(first.wasm.isStarted());
+            assertEquals("1", TestPlugins.requestCounter(first));
+            assertEquals("2", TestPlugins.requestCounter(first));
+
+            // the second plugin is restored from the state captured right after the first
+            // one started, so it has the plugin config loaded but none of the later requests.
+            Plugin second = pool.borrow();
+            assertEquals(1, starts.get());
+            assertEquals("1", TestPlugins.requestCounter(second));
+            assertEquals("2", TestPlugins.requestCounter(second));
+            assertEquals("3", TestPlugins.requestCounter(first));
+
+            pool.release(first);
+            pool.release(second);
+        } finally {
+            pool.close();
+        }
+    }
+}
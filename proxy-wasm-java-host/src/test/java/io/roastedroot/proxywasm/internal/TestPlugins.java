@@ -0,0 +1,106 @@
+package io.roastedroot.proxywasm.internal;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import com.dylibso.chicory.wasm.Parser;
+import com.dylibso.chicory.wasm.WasmModule;
+import io.roastedroot.proxywasm.LogHandler;
+import io.roastedroot.proxywasm.LogLevel;
+import io.roastedroot.proxywasm.PluginFactory;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The plugins the tests of this package start, and the host they run in.  The tests live next to
+ * the pools and plugins they exercise, since those are package-private.
+ */
+final class TestPlugins {
+
+    static final WasmModule UNIT_TESTER =
+            Parser.parse(Path.of("./src/test/go-examples/unit_tester/main.wasm"));
+
+    static final Path HELLO_WORLD = Path.of("./src/test/rust-examples/hello_world/main.wasm");
+
+    private TestPlugins() {}
+
+    /**
+     * A plugin that counts the requests it sees in the {@code x-request-counter} request header,
+     * see {@link #requestCounter(Plugin)}.
+     */
+    static PluginFactory.Builder headerTests() {
+        return PluginFactory.builder(UNIT_TESTER)
+                .withName("headerTests")
+                .withPluginConfig("{\"type\":\"headerTests\"}");
+    }
+
+    /** Adds the messages logged by the plugin to {@code logs}. */
+    static LogHandler logTo(Collection<String> logs) {
+        return new LogHandler() {
+            @Override
+            public void log(LogLevel level, String message) {
+                logs.add(message);
+            }
+        };
+    }
+
+    /** Counts the times {@link #headerTests()} plugins load their config, once per start. */
+    static LogHandler countStarts(AtomicInteger starts) {
+        return new LogHandler() {
+            @Override
+            public void log(LogLevel level, String message) {
+                if (message.equals("loading plugin config")) {
+                    starts.incrementAndGet();
+                }
+            }
+        };
+    }
+
+    /** Sends a request through the plugin, and returns the request headers it left. */
+    static ProxyMap sendRequest(Plugin plugin) {
+        var handler = new HeadersHandler();
+        plugin.lock();
+        try (var context = plugin.wasm.createHttpContext(handler)) {
+            assertEquals(Action.CONTINUE, context.callOnRequestHeaders(false));
+        } finally {
+            plugin.unlock();
+        }
+        return handler.requestHeaders;
+    }
+
+    /** Returns the number of requests a {@link #headerTests()} plugin saw, this one included. */
+    static String requestCounter(Plugin plugin) {
+        return sendRequest(plugin).get("x-request-counter");
+    }
+
+    static class HeadersHandler implements Handler {
+        final ProxyMap requestHeaders = new ArrayProxyMap();
+
+        @Override
+        public ProxyMap getHttpRequestHeaders() {
+            return requestHeaders;
+        }
+    }
+
+    // runs the ticks when the test says so.
+    static class TestServerAdaptor implements ServerAdaptor {
+        final List<Runnable> ticks = new ArrayList<>();
+
+        @Override
+        public Runnable scheduleTick(long delay, Runnable task) {
+            ticks.add(task);
+            return () -> ticks.remove(task);
+        }
+
+        void runTicks() {
+            List.copyOf(ticks).forEach(Runnable::run);
+        }
+
+        @Override
+        public HttpRequestAdaptor httpRequestAdaptor(Object context) {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
@@ -0,0 +1,33 @@
+package io.roastedroot.proxywasm.internal;
+
+import static io.roastedroot.proxywasm.internal.Helpers.bytes;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+import java.util.List;
+import org.junit.jupiter.api.Test;
+
+public class WellKnownPropertiesTest {
+
+    @Test
+    public void wellKnownPathsAreShared() {
+        assertSame(
+                WellKnownProperties.REQUEST_PATH,
+                WellKnownProperties.path(bytes("request\u0000path")));
+        assertSame(WellKnownProperties.PLUGIN_NAME, WellKnownProperties.path(bytes("plugin_name")));
+        assertSame(
+                WellKnownProperties.CONNECTION_SHA256_PEER_CERTIFICATE_DIGEST,
+                WellKnownProperties.path(bytes("connection\u0000sha256_peer_certificate_digest")));
+    }
+
+    @Test
+    public void otherPathsAreSplit() {
+        assertEquals(
+                List.of("metadata", "filter_metadata", "location"),
+                WellKnownProperties.path(bytes("metadata\u0000filter_metadata\u0000location")));
+        assertEquals(
+                List.of("request", "path", ""),
+                WellKnownProperties.path(bytes("request\u0000path\u0000")));
+        assertEquals(List.of("custom"), WellKnownProperties.path(bytes("custom")));
+    }
+}
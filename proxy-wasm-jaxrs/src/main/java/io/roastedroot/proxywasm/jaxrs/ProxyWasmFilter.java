@@ -4,6 +4,7 @@ import static io.roastedroot.proxywasm.internal.Helpers.string;
 
 import io.roastedroot.proxywasm.StartException;
 import io.roastedroot.proxywasm.internal.Action;
+import io.roastedroot.proxywasm.internal.BodyBuffer;
 import io.roastedroot.proxywasm.internal.HttpRequestBody;
 import io.roastedroot.proxywasm.internal.HttpResponseBody;
 import io.roastedroot.proxywasm.internal.Plugin;
@@ -11,6 +12,7 @@ import io.roastedroot.proxywasm.internal.PluginHttpContext;
 import io.roastedroot.proxywasm.internal.Pool;
 import io.roastedroot.proxywasm.internal.SendResponse;
 import io.roastedroot.proxywasm.jaxrs.internal.JaxrsHttpRequestAdaptor;
+import io.roastedroot.proxywasm.jaxrs.internal.RequestSuspender;
 import jakarta.ws.rs.WebApplicationException;
 import jakarta.ws.rs.container.ContainerRequestContext;
 import jakarta.ws.rs.container.ContainerRequestFilter;
@@ -19,10 +21,16 @@ import jakarta.ws.rs.container.ContainerResponseFilter;
 import jakarta.ws.rs.core.Response;
 import jakarta.ws.rs.ext.WriterInterceptor;
 import jakarta.ws.rs.ext.WriterInterceptorContext;
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -53,6 +61,7 @@ public class ProxyWasmFilter
     private static final Logger LOGGER = Logger.getLogger(ProxyWasmFilter.class.getName());
 
     private final List<Pool> pluginPools;
+    private final Executor resumeExecutor;
 
     /**
      * Constructs a ProxyWasmFilter.
@@ -62,13 +71,37 @@ public class ProxyWasmFilter
      *                    instances for a specific Wasm module.
      */
     public ProxyWasmFilter(List<Pool> pluginPools) {
+        this(pluginPools, null);
+    }
+
+    /**
+     * Constructs a ProxyWasmFilter that releases the request thread while a plugin pauses the
+     * request.
+     *
+     * <p>
+     * When a plugin pauses the request in {@code on_http_request_headers} or
+     * {@code on_http_request_body}, for example to wait for an http call response, the filter
+     * chain is suspended and the request thread is released.  The tick or http call response
+     * that resumes the request runs the next plugin callbacks on the {@code resumeExecutor}.
+     * JAX-RS has no standard API to suspend a filter chain, so this needs an implementation
+     * that supports it, such as RESTEasy Reactive.  With the other implementations, the request
+     * thread waits for the plugin like it does without an executor.
+     *
+     * @param pluginPools    A list of {@link Pool} instances, each managing a pool of
+     *                       {@link Plugin} instances for a specific Wasm module.
+     * @param resumeExecutor The executor paused requests are resumed on, or {@code null} to
+     *                       wait for the plugins on the request thread.
+     */
+    public ProxyWasmFilter(List<Pool> pluginPools, Executor resumeExecutor) {
         this.pluginPools = List.copyOf(pluginPools);
+        this.resumeExecutor = resumeExecutor;
     }
 
     private static class FilterContext {
         final Pool pool;
         final Plugin plugin;
         final PluginHttpContext httpContext;
+        StreamingRequestBody requestBody;
 
         FilterContext(Pool pool, Plugin plugin, PluginHttpContext httpContext) {
             this.pool = pool;
@@ -132,76 +165,188 @@ public class ProxyWasmFilter
             }
         }
 
-        // Create a shared lazy body supplier for all plugins
-        HttpRequestBody bodySupplier = new HttpRequestBody(() -> requestContext.getEntityStream());
-
-        // Set up lazy providers for all plugins that need the body
+        // Plugins that want the whole body share a lazy body supplier, plugins that stream the
+        // body get their own chunk buffer when their filter runs.  A streaming plugin changes
+        // the entity stream seen by the plugins after it, so they need a new supplier.
+        HttpRequestBody bodySupplier = null;
         for (var filterContext : filterContexts) {
-            if (filterContext.httpContext.context().hasOnRequestBody()) {
-                filterContext.httpContext.setHttpRequestBodyState(bodySupplier);
+            if (!filterContext.httpContext.context().hasOnRequestBody()) {
+                continue;
+            }
+            if (filterContext.plugin.bodyChunkSize() > 0) {
+                bodySupplier = null;
+                continue;
             }
+            if (bodySupplier == null) {
+                bodySupplier = new HttpRequestBody(() -> requestContext.getEntityStream());
+            }
+            filterContext.httpContext.setHttpRequestBodyState(bodySupplier);
         }
 
-        for (var filterContext : filterContexts) {
-            filter(requestContext, filterContext);
-        }
+        new RequestPipeline(requestContext, filterContexts).run();
     }
 
-    private void filter(ContainerRequestContext requestContext, FilterContext filterContext)
-            throws IOException {
-
-        var httpContext = filterContext.httpContext;
-        httpContext.plugin().lock();
-        try {
-
-            // the plugin may not be interested in the request headers.
-            if (httpContext.context().hasOnRequestHeaders()) {
+    /**
+     * Runs the request callbacks of the plugins, one plugin after the other.
+     *
+     * <p>When a plugin pauses the request, the request thread waits for the plugin to resume it,
+     * unless the filter has a resume executor and the JAX-RS implementation can suspend the
+     * filter chain.  In that case the chain is suspended and the request thread released, and
+     * the pipeline carries on from the same step on the executor once a tick or http call
+     * response resumes the request.  The plugin is locked whenever one of its callbacks runs, so
+     * the paused http context is only ever used by one thread at a time.
+     */
+    private class RequestPipeline {
+
+        private static final int HEADERS = 0;
+        private static final int HEADERS_RESUMED = 1;
+        private static final int BODY = 2;
+        private static final int BODY_DONE = 3;
+
+        private final ContainerRequestContext requestContext;
+        private final List<FilterContext> filterContexts;
+        private int index;
+        private int step = HEADERS;
+        private boolean suspended;
+
+        RequestPipeline(
+                ContainerRequestContext requestContext, List<FilterContext> filterContexts) {
+            this.requestContext = requestContext;
+            this.filterContexts = filterContexts;
+        }
 
-                var action = httpContext.context().callOnRequestHeaders(false);
-                if (action == Action.PAUSE) {
-                    httpContext.maybePause();
+        void run() {
+            try {
+                while (index < filterContexts.size()) {
+                    if (!runPlugin(filterContexts.get(index))) {
+                        // resumed on the executor.
+                        return;
+                    }
+                    index++;
+                    step = HEADERS;
                 }
-
-                // does the plugin want to respond early?
-                var sendResponse = httpContext.consumeSentHttpResponse();
-                if (sendResponse != null) {
-                    requestContext.abortWith(toResponse(sendResponse));
-                    return;
+            } catch (RuntimeException | Error e) {
+                if (!suspended) {
+                    throw e;
                 }
-            }
-
-            // the plugin may not be interested in the request body.
-            if (!httpContext.context().hasOnRequestBody()) {
+                RequestSuspender.resume(requestContext, e);
                 return;
             }
+            if (suspended) {
+                RequestSuspender.resume(requestContext, null);
+            }
+        }
 
-            HttpRequestBody httpRequestBodyState = httpContext.getHttpRequestBodyState();
+        // returns false if the plugin paused and the pipeline will resume on the executor.
+        private boolean runPlugin(FilterContext filterContext) {
+            var httpContext = filterContext.httpContext;
+            httpContext.plugin().lock();
+            try {
+                CompletableFuture<Void> resumed;
+                while ((resumed = advance(filterContext)) != null) {
+                    if (!suspended) {
+                        suspended =
+                                resumeExecutor != null && RequestSuspender.suspend(requestContext);
+                    }
+                    if (!suspended) {
+                        httpContext.awaitResume(resumed);
+                        continue;
+                    }
+                    resumed.thenRunAsync(this::run, resumeExecutor);
+                    return false;
+                }
+                return true;
+            } finally {
+                httpContext.plugin().unlock(); // allow another request to use the plugin.
+            }
+        }
 
+        // runs the callbacks of the plugin up to the next pause, returns null once the plugin is
+        // done with the request.
+        private CompletableFuture<Void> advance(FilterContext filterContext) {
+            var httpContext = filterContext.httpContext;
             while (true) {
-                // if we streamed body updates, then endOfStream would be initially false
-                var action = httpContext.context().callOnRequestBody(true);
+                if (step == HEADERS) {
+                    // the plugin may not be interested in the request headers.
+                    if (!httpContext.context().hasOnRequestHeaders()) {
+                        step = BODY;
+                        continue;
+                    }
+                    step = HEADERS_RESUMED;
+                    var action = httpContext.context().callOnRequestHeaders(false);
+                    if (action == Action.PAUSE) {
+                        var resumed = httpContext.pause();
+                        if (resumed != null) {
+                            return resumed;
+                        }
+                    }
+                } else if (step == HEADERS_RESUMED) {
+                    // does the plugin want to respond early?
+                    if (abortIfResponseSent(httpContext)) {
+                        return null;
+                    }
+                    step = BODY;
+                } else if (step == BODY) {
+                    if (!startBody(filterContext)) {
+                        return null;
+                    }
+                    var action = httpContext.context().callOnRequestBody(true);
 
-                // does the plugin want to respond early?
-                var sendResponse = httpContext.consumeSentHttpResponse();
-                if (sendResponse != null) {
-                    requestContext.abortWith(toResponse(sendResponse));
-                    return;
-                }
+                    // does the plugin want to respond early?
+                    if (abortIfResponseSent(httpContext)) {
+                        return null;
+                    }
 
-                if (action == Action.CONTINUE) {
-                    break;
+                    if (action == Action.CONTINUE) {
+                        step = BODY_DONE;
+                        continue;
+                    }
+                    var resumed = httpContext.pause();
+                    if (resumed != null) {
+                        return resumed;
+                    }
+                } else {
+                    // Body was accessed and potentially modified, update the request stream
+                    HttpRequestBody httpRequestBodyState = httpContext.getHttpRequestBodyState();
+                    if (httpRequestBodyState.isLoaded()) {
+                        byte[] bytes = httpRequestBodyState.getBodyIfLoaded();
+                        requestContext.setEntityStream(new ByteArrayInputStream(bytes));
+                    }
+                    return null;
                 }
-                httpContext.maybePause();
             }
+        }
+
+        // returns false if the plugin does not get the whole request body at once.
+        private boolean startBody(FilterContext filterContext) {
+            var httpContext = filterContext.httpContext;
 
-            // Body was accessed and potentially modified, update the request stream
-            if (httpRequestBodyState.isLoaded()) {
-                byte[] bytes = httpRequestBodyState.getBodyIfLoaded();
-                requestContext.setEntityStream(new java.io.ByteArrayInputStream(bytes));
+            // the plugin may not be interested in the request body.
+            if (!httpContext.context().hasOnRequestBody()) {
+                return false;
             }
 
-        } finally {
-            httpContext.plugin().unlock(); // allow another request to use the plugin.
+            // the body chunks are passed to the plugin as the application reads the entity.
+            int chunkSize = filterContext.plugin.bodyChunkSize();
+            if (chunkSize > 0) {
+                if (filterContext.requestBody == null) {
+                    filterContext.requestBody =
+                            new StreamingRequestBody(
+                                    requestContext.getEntityStream(), httpContext, chunkSize);
+                    requestContext.setEntityStream(filterContext.requestBody);
+                }
+                return false;
+            }
+            return true;
+        }
+
+        private boolean abortIfResponseSent(PluginHttpContext httpContext) {
+            var sendResponse = httpContext.consumeSentHttpResponse();
+            if (sendResponse != null) {
+                requestContext.abortWith(toResponse(sendResponse));
+                return true;
+            }
+            return false;
         }
     }
 
@@ -235,11 +380,36 @@ public class ProxyWasmFilter
             return;
         }
 
+        // the plugins streaming the request body expect to see all of it, even if the
+        // application did not read it.  Drain the outermost stream first so that every plugin
+        // sees the output of the plugins before it.
+        for (int i = filterContexts.size() - 1; i >= 0; i--) {
+            var requestBody = filterContexts.get(i).requestBody;
+            if (requestBody == null) {
+                continue;
+            }
+            try {
+                requestBody.transferTo(OutputStream.nullOutputStream());
+            } catch (WebApplicationException e) {
+                replaceResponse(responseContext, e.getResponse());
+                break;
+            }
+        }
+
         for (var filterContext : filterContexts) {
             filter(requestContext, responseContext, filterContext);
         }
     }
 
+    private static void replaceResponse(
+            ContainerResponseContext responseContext, Response response) {
+        responseContext.setStatus(response.getStatus());
+        // the response of the plugin replaces the one of the application, headers included.
+        responseContext.getHeaders().clear();
+        responseContext.getHeaders().putAll(response.getHeaders());
+        responseContext.setEntity(response.getEntity());
+    }
+
     private void filter(
             ContainerRequestContext requestContext,
             ContainerResponseContext responseContext,
@@ -263,10 +433,7 @@ public class ProxyWasmFilter
                 // does the plugin want to respond early?
                 var sendResponse = httpContext.consumeSentHttpResponse();
                 if (sendResponse != null) {
-                    Response response = toResponse(sendResponse);
-                    responseContext.setStatus(response.getStatus());
-                    responseContext.getHeaders().putAll(response.getHeaders());
-                    responseContext.setEntity(response.getEntity());
+                    replaceResponse(responseContext, toResponse(sendResponse));
                     return;
                 }
 
@@ -286,10 +453,7 @@ public class ProxyWasmFilter
                     // does the plugin want to respond early?
                     sendResponse = httpContext.consumeSentHttpResponse();
                     if (sendResponse != null) {
-                        Response response = toResponse(sendResponse);
-                        responseContext.setStatus(response.getStatus());
-                        responseContext.getHeaders().putAll(response.getHeaders());
-                        responseContext.setEntity(response.getEntity());
+                        replaceResponse(responseContext, toResponse(sendResponse));
                         return;
                     }
 
@@ -334,8 +498,15 @@ public class ProxyWasmFilter
             return;
         }
 
+        // streamed bodies only lock the plugins while a chunk is passed to them.
+        boolean streaming = streamsResponseBody(filterContexts);
         try {
 
+            if (streaming) {
+                streamResponseBody(ctx, filterContexts);
+                return;
+            }
+
             var original = ctx.getOutputStream();
 
             HttpResponseBody sharedResponseBody =
@@ -383,7 +554,7 @@ public class ProxyWasmFilter
             // Write the response body - if it was accessed and modified, use that,
             // otherwise continue with the original stream.
             if (sharedResponseBody.isLoaded()) {
-                original.write(sharedResponseBody.get());
+                sharedResponseBody.buffer().writeTo(original);
             } else {
                 // Body was never accessed by any plugin, use original
                 ctx.proceed();
@@ -393,6 +564,9 @@ public class ProxyWasmFilter
             for (var filterContext : List.copyOf(filterContexts)) {
 
                 var httpContext = filterContext.httpContext;
+                if (streaming) {
+                    httpContext.plugin().lock();
+                }
 
                 // allow other request to use the plugin.
                 httpContext.context().close();
@@ -405,6 +579,264 @@ public class ProxyWasmFilter
         }
     }
 
+    private static boolean streamsResponseBody(List<FilterContext> filterContexts) {
+        for (var filterContext : filterContexts) {
+            if (filterContext.httpContext.context().hasOnResponseBody()
+                    && filterContext.plugin.bodyChunkSize() > 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void streamResponseBody(
+            WriterInterceptorContext ctx, List<FilterContext> filterContexts) throws IOException {
+        // each plugin writes to the next one, the last one to the original stream.  Plugins that
+        // don't stream get the whole body as a single chunk.
+        OutputStream downstream = ctx.getOutputStream();
+        for (int i = filterContexts.size() - 1; i >= 0; i--) {
+            var httpContext = filterContexts.get(i).httpContext;
+            if (!httpContext.context().hasOnResponseBody()) {
+                continue;
+            }
+            downstream = new StreamingResponseBody(downstream, httpContext);
+        }
+
+        ctx.setOutputStream(downstream);
+        ctx.proceed();
+        ((StreamingResponseBody) downstream).finish();
+    }
+
+    /**
+     * Passes the request body to a plugin in chunks, as the application reads it.
+     *
+     * <p>One chunk is read ahead so that the plugin is told when it receives the last chunk.  The
+     * chunks are only kept while the plugin returns {@link Action#PAUSE}, in which case they are
+     * passed again together with the next chunk.  Once the plugin continues, the (possibly
+     * modified) buffered data is handed to the application.
+     */
+    private class StreamingRequestBody extends InputStream {
+
+        private final InputStream source;
+        private final PluginHttpContext httpContext;
+        private final int chunkSize;
+        private final HttpRequestBody buffer = new HttpRequestBody(InputStream::nullInputStream);
+        private byte[] next;
+        private byte[] out = new byte[0];
+        private int outPos;
+        private boolean started;
+        private boolean done;
+
+        StreamingRequestBody(InputStream source, PluginHttpContext httpContext, int chunkSize) {
+            this.source = source;
+            this.httpContext = httpContext;
+            this.chunkSize = chunkSize;
+            this.buffer.setBody(new BodyBuffer());
+            httpContext.setHttpRequestBodyState(buffer);
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (!fill()) {
+                return -1;
+            }
+            return out[outPos++] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            Objects.checkFromIndexSize(off, len, b.length);
+            if (len == 0) {
+                return 0;
+            }
+            if (!fill()) {
+                return -1;
+            }
+            int count = Math.min(len, out.length - outPos);
+            System.arraycopy(out, outPos, b, off, count);
+            outPos += count;
+            return count;
+        }
+
+        @Override
+        public int available() {
+            return out.length - outPos;
+        }
+
+        @Override
+        public void close() throws IOException {
+            source.close();
+        }
+
+        // makes sure there is data to hand to the application, returns false at the end of the
+        // body.
+        private boolean fill() throws IOException {
+            while (outPos == out.length) {
+                if (done) {
+                    return false;
+                }
+                if (!started) {
+                    started = true;
+                    next = readChunk();
+                }
+                byte[] chunk = next;
+                next = chunk.length == 0 ? chunk : readChunk();
+                boolean endOfStream = next.length == 0;
+                out = onChunk(chunk, endOfStream).toByteArray();
+                outPos = 0;
+                done = endOfStream;
+            }
+            return true;
+        }
+
+        private byte[] readChunk() throws IOException {
+            return source.readNBytes(chunkSize);
+        }
+
+        private BodyBuffer onChunk(byte[] chunk, boolean endOfStream) {
+            httpContext.plugin().lock();
+            try {
+                buffer.buffer().append(chunk);
+                while (true) {
+                    var action = httpContext.context().callOnRequestBody(endOfStream);
+
+                    // does the plugin want to respond early?
+                    var sendResponse = httpContext.consumeSentHttpResponse();
+                    if (sendResponse != null) {
+                        done = true;
+                        throw new WebApplicationException(toResponse(sendResponse));
+                    }
+
+                    if (action == Action.CONTINUE) {
+                        BodyBuffer result = buffer.buffer();
+                        buffer.setBody(new BodyBuffer());
+                        return result;
+                    }
+                    if (!endOfStream) {
+                        // keep buffering until the plugin continues or the body ends.
+                        return new BodyBuffer();
+                    }
+                    httpContext.maybePause();
+                }
+            } finally {
+                httpContext.plugin().unlock();
+            }
+        }
+    }
+
+    /**
+     * Passes the response body to a plugin in chunks, as the application writes it.
+     *
+     * <p>Chunks are handed to the next stream as soon as the plugin continues, so the memory used
+     * is bounded by the chunk size unless the plugin returns {@link Action#PAUSE}, in which case
+     * the chunks are buffered and passed again together with the next chunk.  Flushing the stream
+     * passes the partial chunk to a streaming plugin, so that server sent events are not delayed.
+     * A plugin without a body chunk size gets the whole body at once, so flushing keeps it
+     * buffered.
+     */
+    private class StreamingResponseBody extends OutputStream {
+
+        private final OutputStream downstream;
+        private final PluginHttpContext httpContext;
+        private final int chunkSize;
+        private final boolean streaming;
+        private final HttpResponseBody buffer = new HttpResponseBody(new byte[0]);
+        private final ByteArrayOutputStream pending = new ByteArrayOutputStream();
+        private boolean finished;
+
+        StreamingResponseBody(OutputStream downstream, PluginHttpContext httpContext) {
+            this.downstream = downstream;
+            this.httpContext = httpContext;
+            int chunkSize = httpContext.plugin().bodyChunkSize();
+            this.streaming = chunkSize > 0;
+            this.chunkSize = streaming ? chunkSize : Integer.MAX_VALUE;
+            httpContext.setHttpResponseBodyState(buffer);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] {(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            Objects.checkFromIndexSize(off, len, b.length);
+            while (len > 0) {
+                int count = Math.min(len, chunkSize - pending.size());
+                pending.write(b, off, count);
+                off += count;
+                len -= count;
+                if (pending.size() == chunkSize) {
+                    emit(false);
+                }
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            if (streaming && pending.size() > 0) {
+                emit(false);
+            }
+            downstream.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            // the original stream is closed by the container.
+            finish();
+        }
+
+        /**
+         * Passes the last chunk with {@code endOfStream} set, and finishes the next stream.
+         */
+        void finish() throws IOException {
+            if (finished) {
+                return;
+            }
+            finished = true;
+            emit(true);
+            if (downstream instanceof StreamingResponseBody) {
+                ((StreamingResponseBody) downstream).finish();
+            }
+        }
+
+        private void emit(boolean endOfStream) throws IOException {
+            byte[] chunk = pending.toByteArray();
+            pending.reset();
+            onChunk(chunk, endOfStream).writeTo(downstream);
+        }
+
+        private BodyBuffer onChunk(byte[] chunk, boolean endOfStream) {
+            httpContext.plugin().lock();
+            try {
+                buffer.buffer().append(chunk);
+                while (true) {
+                    var action = httpContext.context().callOnResponseBody(endOfStream);
+
+                    // does the plugin want to respond early?
+                    var sendResponse = httpContext.consumeSentHttpResponse();
+                    if (sendResponse != null) {
+                        finished = true;
+                        throw new WebApplicationException(toResponse(sendResponse));
+                    }
+
+                    if (action == Action.CONTINUE) {
+                        BodyBuffer result = buffer.buffer();
+                        buffer.setBody(new BodyBuffer());
+                        return result;
+                    }
+                    if (!endOfStream) {
+                        // keep buffering until the plugin continues or the body ends.
+                        return new BodyBuffer();
+                    }
+                    httpContext.maybePause();
+                }
+            } finally {
+                httpContext.plugin().unlock();
+            }
+        }
+    }
+
     Response toResponse(SendResponse other) {
         Response.ResponseBuilder builder =
                 Response.status(other.statusCode(), string(other.statusCodeDetails()));
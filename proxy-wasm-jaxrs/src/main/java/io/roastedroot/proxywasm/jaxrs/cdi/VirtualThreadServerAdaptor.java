@@ -0,0 +1,39 @@
+package io.roastedroot.proxywasm.jaxrs.cdi;
+
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.enterprise.inject.Alternative;
+
+/**
+ * A CDI {@link Alternative} bean providing an implementation of
+ * {@link io.roastedroot.proxywasm.internal.ServerAdaptor} that runs http calls and tick events on
+ * virtual threads, with a limit on how many of them, and of gRPC calls and streams, each plugin
+ * can run at once.
+ *
+ * <p>Unlike {@link ServerAdaptor}, this alternative has no {@code @Priority}, so it is only used
+ * when the application selects it, e.g. in its {@code beans.xml}:
+ *
+ * <pre>
+ * &lt;alternatives&gt;
+ *     &lt;class&gt;io.roastedroot.proxywasm.jaxrs.cdi.VirtualThreadServerAdaptor&lt;/class&gt;
+ * &lt;/alternatives&gt;
+ * </pre>
+ *
+ * <p>or with {@code quarkus.arc.selected-alternatives} on Quarkus.  On JVMs without virtual
+ * threads (before Java 21) it falls back to platform threads, keeping the per plugin limits.
+ *
+ * @see io.roastedroot.proxywasm.jaxrs.internal.VirtualThreadServerAdaptor
+ * @see Alternative
+ * @see ApplicationScoped
+ */
+@Alternative
+@ApplicationScoped
+public class VirtualThreadServerAdaptor
+        extends io.roastedroot.proxywasm.jaxrs.internal.VirtualThreadServerAdaptor {
+
+    /**
+     * Default constructor required by CDI for proxying and bean management.
+     */
+    public VirtualThreadServerAdaptor() {
+        super();
+    }
+}
@@ -12,11 +12,13 @@ import jakarta.ws.rs.core.FeatureContext;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.concurrent.Executor;
 import java.util.stream.Collectors;
 
 public abstract class AbstractProxyWasmFeature implements DynamicFeature {
 
     private final HashMap<String, Pool> pluginPools = new HashMap<>();
+    private Executor resumeExecutor;
 
     public void init(Iterable<PluginFactory> factories, ServerAdaptor serverAdaptor)
             throws StartException {
@@ -25,15 +27,24 @@ public abstract class AbstractProxyWasmFeature implements DynamicFeature {
             return;
         }
 
+        resumeExecutor = serverAdaptor.resumeExecutor();
         for (var factory : factories) {
             String name = factory.name();
             if (this.pluginPools.containsKey(name)) {
                 throw new IllegalArgumentException("Duplicate wasm plugin name: " + name);
             }
-            Pool pool =
-                    factory.shared()
-                            ? new Pool.SharedPlugin(serverAdaptor, factory)
-                            : new Pool.PluginPerRequest(serverAdaptor, factory);
+            var pluginAdaptor = serverAdaptor.forPlugin(name);
+            Pool pool;
+            if (factory.shared()) {
+                pool = new Pool.SharedPlugin(pluginAdaptor, factory);
+            } else if (factory.pool() != null) {
+                var pooled = new Pool.PooledPlugins(pluginAdaptor, factory, factory.pool());
+                // pre-warm the pool so the first requests don't pay the plugin start up cost.
+                pooled.start();
+                pool = pooled;
+            } else {
+                pool = new Pool.PluginPerRequest(pluginAdaptor, factory);
+            }
             this.pluginPools.put(name, pool);
         }
     }
@@ -88,7 +99,7 @@ public abstract class AbstractProxyWasmFeature implements DynamicFeature {
                                             }
                                         })
                                 .collect(Collectors.toList());
-                context.register(new ProxyWasmFilter(pools));
+                context.register(new ProxyWasmFilter(pools, resumeExecutor));
             }
         }
     }
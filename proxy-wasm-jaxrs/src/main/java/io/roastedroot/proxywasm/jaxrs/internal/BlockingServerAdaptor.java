@@ -1,16 +1,13 @@
 package io.roastedroot.proxywasm.jaxrs.internal;
 
-import io.roastedroot.proxywasm.internal.ArrayProxyMap;
+import io.roastedroot.proxywasm.internal.GrpcCallResponseHandler;
+import io.roastedroot.proxywasm.internal.GrpcStream;
 import io.roastedroot.proxywasm.internal.HttpCallResponseHandler;
 import io.roastedroot.proxywasm.internal.HttpRequestAdaptor;
 import io.roastedroot.proxywasm.internal.ProxyMap;
 import io.roastedroot.proxywasm.internal.ServerAdaptor;
-import jakarta.ws.rs.core.UriBuilder;
 import java.net.URI;
-import java.net.http.HttpClient;
-import java.net.http.HttpRequest;
-import java.net.http.HttpResponse;
-import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
@@ -25,9 +22,16 @@ public class BlockingServerAdaptor implements ServerAdaptor {
 
     ScheduledExecutorService tickExecutorService = Executors.newScheduledThreadPool(1);
     ExecutorService executorService = Executors.newWorkStealingPool(5);
-    HttpClient client = HttpClient.newHttpClient();
+    HttpCalloutClient callouts =
+            new HttpCalloutClient(
+                    HttpCalloutClient.DEFAULT_MAX_IN_FLIGHT_PER_UPSTREAM,
+                    HttpCalloutClient.DEFAULT_CONNECT_TIMEOUT,
+                    executorService);
+    GrpcCalloutClient grpcCallouts =
+            new GrpcCalloutClient(GrpcCalloutClient.DEFAULT_CONNECT_TIMEOUT, executorService);
+    boolean nonBlockingPause;
 
-    private static class HttpCallResponse {
+    static class HttpCallResponse {
 
         public final int statusCode;
         public final ProxyMap headers;
@@ -40,6 +44,66 @@ public class BlockingServerAdaptor implements ServerAdaptor {
         }
     }
 
+    /**
+     * Makes the filters release the request thread while a plugin pauses a request, the request
+     * is resumed on the executor running the http calls.  This needs a JAX-RS implementation
+     * that can suspend the request filter chain, which is only RESTEasy Reactive (Quarkus) so
+     * far, see {@link RequestSuspender}.  On the others, like Jersey, this setting has no effect
+     * and the request thread still waits for the plugin, see
+     * {@link io.roastedroot.proxywasm.jaxrs.ProxyWasmFilter}.  A pause in the response phase
+     * always holds the thread, since JAX-RS response filters can't be suspended.
+     *
+     * @param enabled true to release the request thread of paused requests.
+     * @return this adaptor.
+     */
+    public BlockingServerAdaptor withNonBlockingPause(boolean enabled) {
+        this.nonBlockingPause = enabled;
+        return this;
+    }
+
+    /**
+     * Sets the client sending the http calls of the plugins, for example to change the limit of
+     * calls in flight per upstream.
+     *
+     * @param callouts the client to use.
+     * @return this adaptor.
+     */
+    public BlockingServerAdaptor withCallouts(HttpCalloutClient callouts) {
+        this.callouts = callouts;
+        return this;
+    }
+
+    /**
+     * Returns the client sending the http calls of the plugins, which keeps the metrics of the
+     * upstreams.
+     */
+    public HttpCalloutClient callouts() {
+        return callouts;
+    }
+
+    /**
+     * Sets the client sending the gRPC calls and opening the gRPC streams of the plugins.
+     *
+     * @param grpcCallouts the client to use.
+     * @return this adaptor.
+     */
+    public BlockingServerAdaptor withGrpcCallouts(GrpcCalloutClient grpcCallouts) {
+        this.grpcCallouts = grpcCallouts;
+        return this;
+    }
+
+    /**
+     * Returns the client sending the gRPC calls and opening the gRPC streams of the plugins.
+     */
+    public GrpcCalloutClient grpcCallouts() {
+        return grpcCallouts;
+    }
+
+    @Override
+    public Executor resumeExecutor() {
+        return nonBlockingPause ? executorService : null;
+    }
+
     @Override
     public Runnable scheduleTick(long delay, Runnable task) {
         var f = tickExecutorService.scheduleAtFixedRate(task, delay, delay, TimeUnit.MILLISECONDS);
@@ -65,66 +129,44 @@ public class BlockingServerAdaptor implements ServerAdaptor {
             int timeout,
             HttpCallResponseHandler handler)
             throws InterruptedException {
+        return callouts.send(method, host, port, uri, headers, body, timeout, handler);
+    }
 
-        Callable<Object> task =
-                () -> {
-                    var resp = httpCall(method, host, port, uri, headers, body);
-                    handler.call(resp.statusCode, resp.headers, resp.body);
-                    return null;
-                };
-        var f = executorService.submit(task);
-        Runnable cancel =
-                () -> {
-                    f.cancel(true);
-                };
-        // TODO: is there a better way to do this?
-        if (timeout > 0) {
-            tickExecutorService.schedule(cancel, timeout, TimeUnit.MILLISECONDS);
-        }
-        return cancel;
+    @Override
+    public Runnable scheduleGrpcCall(
+            String host,
+            int port,
+            boolean plainText,
+            String serviceName,
+            String methodName,
+            ProxyMap headers,
+            byte[] message,
+            int timeoutMillis,
+            GrpcCallResponseHandler handler)
+            throws InterruptedException {
+        return grpcCallouts.call(
+                host,
+                port,
+                plainText,
+                serviceName,
+                methodName,
+                headers,
+                message,
+                timeoutMillis,
+                handler);
     }
 
-    private HttpCallResponse httpCall(
-            String method, String host, int port, URI uri, ProxyMap headers, byte[] body) {
-
-        try {
-            var connectUri = UriBuilder.fromUri(uri).host(host).port(port).build();
-
-            var builder = HttpRequest.newBuilder().uri(connectUri);
-            for (var e : headers.entries()) {
-                try {
-                    builder.header(e.getKey(), e.getValue());
-                } catch (IllegalArgumentException ignore) {
-                    // ignore
-                }
-            }
-            builder.method(method, HttpRequest.BodyPublishers.ofByteArray(body));
-            var request = builder.build();
-
-            HttpResponse<byte[]> response =
-                    client.send(request, HttpResponse.BodyHandlers.ofByteArray());
-            response.headers()
-                    .map()
-                    .forEach(
-                            (k, v) -> {
-                                for (var s : v) {
-                                    headers.add(k, s);
-                                }
-                            });
-
-            var h = new ArrayProxyMap();
-            response.headers()
-                    .map()
-                    .forEach(
-                            (k, v) -> {
-                                for (var s : v) {
-                                    h.add(k, s);
-                                }
-                            });
-
-            return new HttpCallResponse(response.statusCode(), h, response.body());
-        } catch (Exception e) {
-            return new HttpCallResponse(500, new ArrayProxyMap(), new byte[] {});
-        }
+    @Override
+    public GrpcStream scheduleGrpcStream(
+            String host,
+            int port,
+            boolean plainText,
+            String serviceName,
+            String methodName,
+            ProxyMap headers,
+            GrpcCallResponseHandler handler)
+            throws InterruptedException {
+        return grpcCallouts.stream(
+                host, port, plainText, serviceName, methodName, headers, handler);
     }
 }
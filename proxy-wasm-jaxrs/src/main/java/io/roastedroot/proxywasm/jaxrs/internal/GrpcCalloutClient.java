@@ -0,0 +1,234 @@
+package io.roastedroot.proxywasm.jaxrs.internal;
+
+import io.roastedroot.proxywasm.internal.GrpcCallResponseHandler;
+import io.roastedroot.proxywasm.internal.GrpcStream;
+import io.roastedroot.proxywasm.internal.ProxyMap;
+import java.nio.ByteBuffer;
+import java.time.Duration;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import javax.net.ssl.SSLSocketFactory;
+
+/**
+ * Sends the gRPC calls and opens the gRPC streams of the plugins, see {@code proxy_grpc_call}
+ * and {@code proxy_grpc_stream}.
+ *
+ * <p>Each upstream gets a long-lived HTTP/2 connection, which multiplexes all the calls and
+ * streams to it, and is opened again if it is lost.  A unary call is a stream sending a single
+ * message, with a deadline.  The events of a call or stream are passed to the handler in order,
+ * from the executor, so the calling thread never waits for the upstream.  Each connection
+ * connects and writes from a thread of its own, so a slow upstream doesn't hold the executor.
+ *
+ * <p>The streams apply back-pressure in both directions: a stream refuses new messages once
+ * {@code sendBuffer} bytes wait for the upstream to accept them, and stops the upstream from
+ * sending more once its handler is {@code receiveWindow / 2} bytes behind.
+ *
+ * <p>Calls and streams that fail without a gRPC status get {@code UNAVAILABLE} when the upstream
+ * can't be reached, {@code DEADLINE_EXCEEDED} when their deadline elapses, and the status mapped
+ * from the HTTP status of the response as the gRPC specification says otherwise.
+ */
+public class GrpcCalloutClient {
+
+    /**
+     * The default time allowed to connect to an upstream.
+     */
+    public static final Duration DEFAULT_CONNECT_TIMEOUT = Duration.ofSeconds(10);
+
+    /**
+     * The default number of bytes a stream queues before refusing new messages.
+     */
+    public static final int DEFAULT_SEND_BUFFER = 1024 * 1024;
+
+    /**
+     * The default flow control window of the streams.
+     */
+    public static final int DEFAULT_RECEIVE_WINDOW = 1024 * 1024;
+
+    // the gRPC status codes used by the client.
+    static final int OK = 0;
+    static final int CANCELLED = 1;
+    static final int UNKNOWN = 2;
+    static final int DEADLINE_EXCEEDED = 4;
+    static final int PERMISSION_DENIED = 7;
+    static final int RESOURCE_EXHAUSTED = 8;
+    static final int UNIMPLEMENTED = 12;
+    static final int INTERNAL = 13;
+    static final int UNAVAILABLE = 14;
+    static final int UNAUTHENTICATED = 16;
+
+    private final Duration connectTimeout;
+    private final int sendBuffer;
+    private final int receiveWindow;
+    private final Executor executor;
+    private final SSLSocketFactory tls;
+    private final ConcurrentHashMap<String, GrpcChannel> channels = new ConcurrentHashMap<>();
+
+    public GrpcCalloutClient() {
+        this(DEFAULT_CONNECT_TIMEOUT, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * @param connectTimeout the time allowed to connect to an upstream.
+     * @param executor runs the response handlers.
+     */
+    public GrpcCalloutClient(Duration connectTimeout, Executor executor) {
+        this(connectTimeout, DEFAULT_SEND_BUFFER, DEFAULT_RECEIVE_WINDOW, executor);
+    }
+
+    /**
+     * @param connectTimeout the time allowed to connect to an upstream.
+     * @param sendBuffer the number of bytes a stream queues before refusing new messages.
+     * @param receiveWindow the flow control window of the streams.
+     * @param executor runs the response handlers.
+     */
+    public GrpcCalloutClient(
+            Duration connectTimeout, int sendBuffer, int receiveWindow, Executor executor) {
+        this(
+                connectTimeout,
+                sendBuffer,
+                receiveWindow,
+                executor,
+                (SSLSocketFactory) SSLSocketFactory.getDefault());
+    }
+
+    /**
+     * @param connectTimeout the time allowed to connect to an upstream.
+     * @param sendBuffer the number of bytes a stream queues before refusing new messages.
+     * @param receiveWindow the flow control window of the streams.
+     * @param executor runs the response handlers.
+     * @param tls opens the TLS connections, to trust other certificates than the JVM does.
+     */
+    public GrpcCalloutClient(
+            Duration connectTimeout,
+            int sendBuffer,
+            int receiveWindow,
+            Executor executor,
+            SSLSocketFactory tls) {
+        if (receiveWindow < Http2Frame.DEFAULT_MAX_FRAME_SIZE) {
+            throw new IllegalArgumentException(
+                    "receiveWindow must be at least " + Http2Frame.DEFAULT_MAX_FRAME_SIZE);
+        }
+        this.connectTimeout = connectTimeout;
+        this.sendBuffer = sendBuffer;
+        this.receiveWindow = receiveWindow;
+        this.executor = executor;
+        this.tls = tls;
+    }
+
+    /**
+     * Returns the number of upstreams the client keeps a connection to.
+     */
+    public int channels() {
+        return (int) channels.values().stream().filter(c -> !c.isClosed()).count();
+    }
+
+    private GrpcChannel channel(String host, int port, boolean plainText) {
+        var key = (plainText ? "http" : "https") + "://" + host + ":" + port;
+        return channels.compute(
+                key,
+                (k, channel) ->
+                        channel != null && !channel.isClosed()
+                                ? channel
+                                : new GrpcChannel(
+                                        host,
+                                        port,
+                                        plainText,
+                                        connectTimeout,
+                                        sendBuffer,
+                                        receiveWindow,
+                                        executor,
+                                        tls));
+    }
+
+    /**
+     * Sends a unary call to the upstream at {@code host:port}, and passes its events to the
+     * handler.
+     *
+     * @param plainText true to call the upstream without TLS.
+     * @param timeout the call timeout in milliseconds, or 0 for none.
+     * @return cancels the call, the handler is not called once the call is cancelled.
+     */
+    public Runnable call(
+            String host,
+            int port,
+            boolean plainText,
+            String serviceName,
+            String methodName,
+            ProxyMap headers,
+            byte[] message,
+            int timeout,
+            GrpcCallResponseHandler handler) {
+        var stream =
+                open(host, port, plainText, serviceName, methodName, headers, timeout, handler);
+        stream.send(message == null ? new byte[0] : message, true);
+        return stream::cancel;
+    }
+
+    /**
+     * Opens a stream to the upstream at {@code host:port}, and passes its events to the handler.
+     *
+     * @param plainText true to connect to the upstream without TLS.
+     * @return the stream, to send messages on it.
+     */
+    public GrpcStream stream(
+            String host,
+            int port,
+            boolean plainText,
+            String serviceName,
+            String methodName,
+            ProxyMap headers,
+            GrpcCallResponseHandler handler) {
+        return open(host, port, plainText, serviceName, methodName, headers, 0, handler);
+    }
+
+    // a channel out of stream ids is closed, the stream goes to the new one that replaces it.
+    private GrpcChannel.Stream open(
+            String host,
+            int port,
+            boolean plainText,
+            String serviceName,
+            String methodName,
+            ProxyMap headers,
+            int timeout,
+            GrpcCallResponseHandler handler) {
+        while (true) {
+            var stream =
+                    channel(host, port, plainText)
+                            .open(serviceName, methodName, headers.entries(), timeout, handler);
+            if (stream != null) {
+                return stream;
+            }
+        }
+    }
+
+    // a gRPC message is prefixed with its compressed flag and its length.
+    static byte[] frame(byte[] message) {
+        var buffer = ByteBuffer.allocate(5 + message.length);
+        buffer.put((byte) 0);
+        buffer.putInt(message.length);
+        buffer.put(message);
+        return buffer.array();
+    }
+
+    // the status of a call that failed before reaching a gRPC server.
+    static int httpStatus(int statusCode) {
+        switch (statusCode) {
+            case 400:
+                return INTERNAL;
+            case 401:
+                return UNAUTHENTICATED;
+            case 403:
+                return PERMISSION_DENIED;
+            case 404:
+                return UNIMPLEMENTED;
+            case 429:
+            case 502:
+            case 503:
+            case 504:
+                return UNAVAILABLE;
+            default:
+                return UNKNOWN;
+        }
+    }
+}
@@ -0,0 +1,813 @@
+package io.roastedroot.proxywasm.jaxrs.internal;
+
+import static io.roastedroot.proxywasm.jaxrs.internal.GrpcCalloutClient.CANCELLED;
+import static io.roastedroot.proxywasm.jaxrs.internal.GrpcCalloutClient.DEADLINE_EXCEEDED;
+import static io.roastedroot.proxywasm.jaxrs.internal.GrpcCalloutClient.INTERNAL;
+import static io.roastedroot.proxywasm.jaxrs.internal.GrpcCalloutClient.RESOURCE_EXHAUSTED;
+import static io.roastedroot.proxywasm.jaxrs.internal.GrpcCalloutClient.UNAVAILABLE;
+import static io.roastedroot.proxywasm.jaxrs.internal.GrpcCalloutClient.UNKNOWN;
+
+import io.roastedroot.proxywasm.internal.ArrayBytesProxyMap;
+import io.roastedroot.proxywasm.internal.GrpcCallResponseHandler;
+import io.roastedroot.proxywasm.internal.GrpcStream;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+
+/**
+ * An HTTP/2 connection to a gRPC upstream, which carries all the calls and streams of the
+ * plugins to it.
+ *
+ * <p>The connection is opened by the first stream, with TLS and ALPN, or with prior knowledge
+ * for the plaintext upstreams, as gRPC servers expect.  A thread per connection reads the
+ * frames of the upstream, and another one connects and writes the frames, so that a slow
+ * upstream never holds the threads of the executor.  The events of a stream are passed to its
+ * handler in order by one task of the executor at a time, so that neither the plugins nor the
+ * reader wait for the network or for each other.
+ *
+ * <p>The streams of a connection take increasing ids, which must stay below 2^31.  Once they
+ * are all taken, the connection tells the upstream with a {@code GOAWAY} that it won't open new
+ * streams, {@link #open} returns null so that the stream goes to a new channel, and the
+ * connection is closed once its streams are done.
+ *
+ * <p>Both directions of a stream are bounded.  The messages a stream sends are queued until the
+ * HTTP/2 flow control of the upstream lets them through, and a stream refuses new messages once
+ * {@code sendBuffer} bytes are queued.  The messages it receives are queued until its handler
+ * takes them, and the stream stops extending the flow control window of the upstream once
+ * {@code receiveWindow / 2} bytes are queued, which stops the upstream from sending more.
+ */
+final class GrpcChannel {
+
+    static final int MAX_MESSAGE_SIZE = 4 * 1024 * 1024;
+
+    // the largest stream id, the client streams take the odd ones.
+    static final int MAX_STREAM_ID = Integer.MAX_VALUE;
+
+    private static final Set<String> RESERVED_HEADERS =
+            Set.of(
+                    "connection",
+                    "content-length",
+                    "content-type",
+                    "host",
+                    "keep-alive",
+                    "te",
+                    "transfer-encoding",
+                    "upgrade");
+
+    private final String host;
+    private final int port;
+    private final boolean plainText;
+    private final Duration connectTimeout;
+    private final int sendBuffer;
+    private final int receiveWindow;
+    private final Executor executor;
+    private final SSLSocketFactory tls;
+    private final ThreadPoolExecutor writer;
+    private final int maxStreams;
+    private final AtomicInteger reserved = new AtomicInteger();
+    private final AtomicBoolean goingAway = new AtomicBoolean();
+
+    // the connection, written by the flush task holding the write lock.
+    private final Object writeLock = new Object();
+    private volatile Socket socket;
+    private OutputStream out;
+    private int nextStreamId = 1;
+
+    private final ConcurrentLinkedQueue<Http2Frame> control = new ConcurrentLinkedQueue<>();
+    private final ConcurrentLinkedQueue<Stream> opening = new ConcurrentLinkedQueue<>();
+    private final ConcurrentHashMap<Integer, Stream> streams = new ConcurrentHashMap<>();
+    private final AtomicBoolean flushScheduled = new AtomicBoolean();
+
+    // the flow control and settings of the upstream, the window lock keeps the windows of the
+    // streams in sync with the initial window size.
+    private final Object windowLock = new Object();
+    private final AtomicLong sendWindow = new AtomicLong(Http2Frame.DEFAULT_WINDOW_SIZE);
+    private int initialWindowSize = Http2Frame.DEFAULT_WINDOW_SIZE;
+    private volatile int maxFrameSize = Http2Frame.DEFAULT_MAX_FRAME_SIZE;
+    private volatile int maxConcurrentStreams = Integer.MAX_VALUE;
+
+    private final Hpack.Decoder decoder = new Hpack.Decoder();
+    // no new stream goes to the channel once it is closed, nor to the upstream once it refused.
+    private volatile boolean closed;
+    private volatile boolean refused;
+
+    GrpcChannel(
+            String host,
+            int port,
+            boolean plainText,
+            Duration connectTimeout,
+            int sendBuffer,
+            int receiveWindow,
+            Executor executor,
+            SSLSocketFactory tls) {
+        this(
+                host,
+                port,
+                plainText,
+                connectTimeout,
+                sendBuffer,
+                receiveWindow,
+                executor,
+                tls,
+                MAX_STREAM_ID);
+    }
+
+    GrpcChannel(
+            String host,
+            int port,
+            boolean plainText,
+            Duration connectTimeout,
+            int sendBuffer,
+            int receiveWindow,
+            Executor executor,
+            SSLSocketFactory tls,
+            int maxStreamId) {
+        this.host = host;
+        this.port = port;
+        this.plainText = plainText;
+        this.connectTimeout = connectTimeout;
+        this.sendBuffer = sendBuffer;
+        this.receiveWindow = receiveWindow;
+        this.executor = executor;
+        this.tls = tls;
+        this.maxStreams = (maxStreamId - 1) / 2 + 1;
+        // the thread stops when the channel is idle, so a closed channel leaves nothing behind.
+        this.writer =
+                new ThreadPoolExecutor(
+                        1,
+                        1,
+                        60,
+                        TimeUnit.SECONDS,
+                        new LinkedBlockingQueue<>(),
+                        r -> {
+                            var thread =
+                                    new Thread(r, "proxy-wasm-grpc-writer-" + host + ":" + port);
+                            thread.setDaemon(true);
+                            return thread;
+                        });
+        writer.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Returns true once the connection failed or the upstream stopped accepting streams on it,
+     * the streams have to be opened on a new channel.
+     */
+    boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * Opens a stream, its headers are sent once the connection is open.
+     *
+     * @param timeout the deadline of the stream in milliseconds, or 0 for none.
+     * @return the stream, or null if the connection has no stream id left for it.
+     */
+    Stream open(
+            String serviceName,
+            String methodName,
+            Iterable<? extends Map.Entry<String, String>> metadata,
+            int timeout,
+            GrpcCallResponseHandler handler) {
+        if (reserved.incrementAndGet() > maxStreams) {
+            goAway();
+            return null;
+        }
+        var headers = new ArrayList<Map.Entry<String, String>>();
+        headers.add(Map.entry(":method", "POST"));
+        headers.add(Map.entry(":scheme", plainText ? "http" : "https"));
+        headers.add(Map.entry(":path", "/" + serviceName + "/" + methodName));
+        headers.add(Map.entry(":authority", host + ":" + port));
+        headers.add(Map.entry("content-type", "application/grpc"));
+        headers.add(Map.entry("te", "trailers"));
+        if (timeout > 0) {
+            headers.add(Map.entry("grpc-timeout", timeout + "m"));
+        }
+        for (var e : metadata) {
+            var name = e.getKey().toLowerCase(Locale.ROOT);
+            if (!name.startsWith(":") && !RESERVED_HEADERS.contains(name)) {
+                headers.add(Map.entry(name, e.getValue()));
+            }
+        }
+
+        var stream = new Stream(headers, handler);
+        if (timeout > 0) {
+            CompletableFuture.delayedExecutor(timeout, TimeUnit.MILLISECONDS, executor)
+                    .execute(() -> stream.reset(DEADLINE_EXCEEDED));
+        }
+        opening.add(stream);
+        scheduleFlush();
+        return stream;
+    }
+
+    // the streams opened so far keep their ids, the channel is closed once they are done.
+    private void goAway() {
+        closed = true;
+        if (goingAway.compareAndSet(false, true)) {
+            control.add(Http2Frame.goAway(0, Http2Frame.NO_ERROR));
+            scheduleFlush();
+        }
+    }
+
+    private void scheduleFlush() {
+        if (flushScheduled.compareAndSet(false, true)) {
+            writer.execute(
+                    () -> {
+                        flushScheduled.set(false);
+                        flush();
+                    });
+        }
+    }
+
+    private void flush() {
+        synchronized (writeLock) {
+            try {
+                if (socket == null) {
+                    if (refused) {
+                        failAll();
+                        return;
+                    }
+                    connect();
+                }
+                Http2Frame frame;
+                while ((frame = control.poll()) != null) {
+                    out.write(frame.encode());
+                }
+                Stream stream;
+                while (streams.size() < maxConcurrentStreams && (stream = opening.poll()) != null) {
+                    if (stream.finished.get()) {
+                        continue;
+                    }
+                    if (refused) {
+                        stream.finish(UNAVAILABLE, null);
+                        continue;
+                    }
+                    synchronized (windowLock) {
+                        stream.id = nextStreamId;
+                        stream.sendWindow.set(initialWindowSize);
+                        streams.put(stream.id, stream);
+                    }
+                    nextStreamId += 2;
+                    writeHeaders(stream);
+                }
+                for (var s : streams.values()) {
+                    writeData(s);
+                }
+                out.flush();
+                if (closed && streams.isEmpty() && opening.isEmpty()) {
+                    // the channel is going away and its last stream is done.
+                    fail();
+                }
+            } catch (IOException e) {
+                fail();
+            }
+        }
+    }
+
+    private void connect() throws IOException {
+        var raw = new Socket();
+        try {
+            raw.setTcpNoDelay(true);
+            raw.connect(new InetSocketAddress(host, port), (int) connectTimeout.toMillis());
+            if (plainText) {
+                socket = raw;
+            } else {
+                var tls = (SSLSocket) this.tls.createSocket(raw, host, port, true);
+                SSLParameters parameters = tls.getSSLParameters();
+                parameters.setApplicationProtocols(new String[] {"h2"});
+                parameters.setEndpointIdentificationAlgorithm("HTTPS");
+                tls.setSSLParameters(parameters);
+                tls.startHandshake();
+                if (!"h2".equals(tls.getApplicationProtocol())) {
+                    tls.close();
+                    throw new IOException("the upstream doesn't speak HTTP/2");
+                }
+                socket = tls;
+            }
+        } catch (IOException e) {
+            raw.close();
+            throw e;
+        }
+        out = new BufferedOutputStream(socket.getOutputStream());
+        out.write(Http2Frame.PREFACE);
+        out.write(
+                Http2Frame.settings(
+                                Http2Frame.SETTINGS_ENABLE_PUSH,
+                                0,
+                                Http2Frame.SETTINGS_INITIAL_WINDOW_SIZE,
+                                receiveWindow)
+                        .encode());
+        var in = new BufferedInputStream(socket.getInputStream());
+        var reader = new Thread(() -> read(in), "proxy-wasm-grpc-" + host + ":" + port);
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    private void writeHeaders(Stream stream) throws IOException {
+        var block = Hpack.encode(stream.headers);
+        int offset = 0;
+        do {
+            int length = Math.min(block.length - offset, maxFrameSize);
+            var fragment = new byte[length];
+            System.arraycopy(block, offset, fragment, 0, length);
+            int type = offset == 0 ? Http2Frame.HEADERS : Http2Frame.CONTINUATION;
+            offset += length;
+            int flags = offset == block.length ? Http2Frame.END_HEADERS : 0;
+            out.write(new Http2Frame(type, flags, stream.id, fragment).encode());
+        } while (offset < block.length);
+    }
+
+    // writes what the flow control windows let through, without holding the stream lock while
+    // writing, so that the plugin is never blocked by the network.
+    private void writeData(Stream stream) throws IOException {
+        while (true) {
+            byte[] data;
+            int flags = 0;
+            synchronized (stream) {
+                if (stream.endSent || stream.finished.get()) {
+                    return;
+                }
+                var head = stream.queue.peek();
+                if (head == null) {
+                    if (!stream.endRequested) {
+                        return;
+                    }
+                    data = new byte[0];
+                } else {
+                    long window = Math.min(sendWindow.get(), stream.sendWindow.get());
+                    int length = (int) Math.min(Math.min(window, maxFrameSize), head.remaining());
+                    if (length <= 0) {
+                        return;
+                    }
+                    data = new byte[length];
+                    head.get(data);
+                    stream.queued -= length;
+                    sendWindow.addAndGet(-length);
+                    stream.sendWindow.addAndGet(-length);
+                    if (!head.hasRemaining()) {
+                        stream.queue.poll();
+                    }
+                }
+                if (stream.queue.isEmpty() && stream.endRequested) {
+                    flags = Http2Frame.END_STREAM;
+                    stream.endSent = true;
+                }
+            }
+            out.write(new Http2Frame(Http2Frame.DATA, flags, stream.id, data).encode());
+        }
+    }
+
+    private void read(InputStream in) {
+        try {
+            Http2Frame frame;
+            while ((frame = Http2Frame.read(in, Http2Frame.DEFAULT_MAX_FRAME_SIZE)) != null) {
+                switch (frame.type) {
+                    case Http2Frame.HEADERS:
+                        onHeaders(frame, in);
+                        break;
+                    case Http2Frame.DATA:
+                        onData(frame);
+                        break;
+                    case Http2Frame.SETTINGS:
+                        onSettings(frame);
+                        break;
+                    case Http2Frame.WINDOW_UPDATE:
+                        onWindowUpdate(frame);
+                        break;
+                    case Http2Frame.RST_STREAM:
+                        var stream = streams.get(frame.streamId);
+                        if (stream != null) {
+                            stream.finish(
+                                    frame.intValue(0) == Http2Frame.REFUSED_STREAM
+                                            ? UNAVAILABLE
+                                            : frame.intValue(0) == Http2Frame.CANCEL
+                                                    ? CANCELLED
+                                                    : INTERNAL,
+                                    null);
+                        }
+                        break;
+                    case Http2Frame.PING:
+                        if (!frame.has(Http2Frame.ACK)) {
+                            control.add(
+                                    new Http2Frame(
+                                            Http2Frame.PING, Http2Frame.ACK, 0, frame.payload));
+                            scheduleFlush();
+                        }
+                        break;
+                    case Http2Frame.GOAWAY:
+                        onGoAway(frame);
+                        break;
+                    case Http2Frame.PUSH_PROMISE:
+                    case Http2Frame.CONTINUATION:
+                        throw new IOException("unexpected frame: " + frame.type);
+                    default:
+                        break; // frames of unknown types are ignored.
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            // the connection is lost, fail the streams below.
+        }
+        fail();
+    }
+
+    private void onHeaders(Http2Frame frame, InputStream in) throws IOException {
+        var block = frame.data();
+        var last = frame;
+        while (!last.has(Http2Frame.END_HEADERS)) {
+            last = Http2Frame.read(in, Http2Frame.DEFAULT_MAX_FRAME_SIZE);
+            if (last == null
+                    || last.type != Http2Frame.CONTINUATION
+                    || last.streamId != frame.streamId) {
+                throw new IOException("expected a CONTINUATION frame");
+            }
+            var joined = new byte[block.length + last.payload.length];
+            System.arraycopy(block, 0, joined, 0, block.length);
+            System.arraycopy(last.payload, 0, joined, block.length, last.payload.length);
+            block = joined;
+        }
+        // the block is decoded even for a stream that is gone, to keep the table in sync.
+        var headers = decoder.decode(block);
+        var stream = streams.get(frame.streamId);
+        if (stream != null) {
+            stream.onHeaders(headers, frame.has(Http2Frame.END_STREAM));
+        }
+    }
+
+    private void onData(Http2Frame frame) throws IOException {
+        int length = frame.payload.length;
+        if (length > 0) {
+            // the connection window is extended right away, each stream bounds its own buffer.
+            control.add(Http2Frame.windowUpdate(0, length));
+            scheduleFlush();
+        }
+        var stream = streams.get(frame.streamId);
+        if (stream != null) {
+            stream.onData(frame.data(), length, frame.has(Http2Frame.END_STREAM));
+        }
+    }
+
+    private void onSettings(Http2Frame frame) throws IOException {
+        if (frame.has(Http2Frame.ACK)) {
+            return;
+        }
+        var settings = ByteBuffer.wrap(frame.payload);
+        while (settings.remaining() >= 6) {
+            int id = settings.getShort() & 0xffff;
+            int value = settings.getInt();
+            switch (id) {
+                case Http2Frame.SETTINGS_INITIAL_WINDOW_SIZE:
+                    synchronized (windowLock) {
+                        int delta = value - initialWindowSize;
+                        initialWindowSize = value;
+                        for (var stream : streams.values()) {
+                            stream.sendWindow.addAndGet(delta);
+                        }
+                    }
+                    break;
+                case Http2Frame.SETTINGS_MAX_FRAME_SIZE:
+                    maxFrameSize = value;
+                    break;
+                case Http2Frame.SETTINGS_MAX_CONCURRENT_STREAMS:
+                    maxConcurrentStreams = value;
+                    break;
+                default:
+                    break; // the encoder doesn't use the dynamic table.
+            }
+        }
+        control.add(new Http2Frame(Http2Frame.SETTINGS, Http2Frame.ACK, 0, new byte[0]));
+        scheduleFlush();
+    }
+
+    private void onWindowUpdate(Http2Frame frame) {
+        int increment = frame.intValue(0) & 0x7fffffff;
+        if (frame.streamId == 0) {
+            sendWindow.addAndGet(increment);
+        } else {
+            var stream = streams.get(frame.streamId);
+            if (stream == null) {
+                return;
+            }
+            stream.sendWindow.addAndGet(increment);
+        }
+        scheduleFlush();
+    }
+
+    // the upstream won't accept new streams, the streams it did not process are failed and the
+    // others complete before the connection is closed.
+    private void onGoAway(Http2Frame frame) {
+        refused = true;
+        closed = true;
+        int lastStreamId = frame.intValue(0) & 0x7fffffff;
+        for (var stream : streams.values()) {
+            if (stream.id > lastStreamId) {
+                stream.finish(UNAVAILABLE, null);
+            }
+        }
+        scheduleFlush();
+    }
+
+    // closing the socket makes a flush in progress fail too, a stream it opens concurrently is
+    // failed by that flush.
+    private void fail() {
+        refused = true;
+        closed = true;
+        var connection = socket;
+        if (connection != null) {
+            try {
+                connection.close();
+            } catch (IOException ignore) {
+                // the connection is gone already.
+            }
+        }
+        failAll();
+    }
+
+    private void failAll() {
+        for (var stream : streams.values()) {
+            stream.finish(UNAVAILABLE, null);
+        }
+        Stream stream;
+        while ((stream = opening.poll()) != null) {
+            stream.finish(UNAVAILABLE, null);
+        }
+    }
+
+    /**
+     * A gRPC stream of the channel.
+     */
+    final class Stream implements GrpcStream {
+        final List<Map.Entry<String, String>> headers;
+        final GrpcCallResponseHandler handler;
+        volatile int id;
+
+        // the sending side, guarded by the stream.
+        final ArrayDeque<ByteBuffer> queue = new ArrayDeque<>();
+        int queued;
+        boolean endRequested;
+        boolean endSent;
+        final AtomicLong sendWindow = new AtomicLong();
+
+        // the receiving side, only used by the reader thread.
+        private boolean headersReceived;
+        private int httpStatus;
+        private final ByteBuffer prefix = ByteBuffer.allocate(5);
+        private ByteBuffer message;
+
+        // the flow control of the receiving side.
+        private final AtomicLong buffered = new AtomicLong();
+        private final AtomicLong credit = new AtomicLong();
+
+        // the events not passed to the handler yet, guarded by the queue.
+        private final ArrayDeque<Runnable> events = new ArrayDeque<>();
+        private boolean delivering;
+        private boolean closeQueued;
+        private volatile boolean cancelled;
+        final AtomicBoolean finished = new AtomicBoolean();
+
+        Stream(List<Map.Entry<String, String>> headers, GrpcCallResponseHandler handler) {
+            this.headers = headers;
+            this.handler = handler;
+        }
+
+        @Override
+        public boolean send(byte[] data, boolean endStream) {
+            synchronized (this) {
+                if (endRequested) {
+                    throw new IllegalStateException("the stream is closed");
+                }
+                if (finished.get()) {
+                    return true; // the upstream closed the stream, the message is dropped.
+                }
+                int length = 5 + data.length;
+                if (queued > 0 && queued + length > sendBuffer) {
+                    return false;
+                }
+                queue.add(ByteBuffer.wrap(GrpcCalloutClient.frame(data)));
+                queued += length;
+                endRequested = endStream;
+            }
+            scheduleFlush();
+            return true;
+        }
+
+        @Override
+        public void close() {
+            synchronized (this) {
+                endRequested = true;
+            }
+            scheduleFlush();
+        }
+
+        @Override
+        public void cancel() {
+            cancelled = true;
+            if (finished.compareAndSet(false, true)) {
+                detach(true);
+            }
+        }
+
+        // the deadline of the stream elapsed.
+        void reset(int status) {
+            if (finished.compareAndSet(false, true)) {
+                detach(true);
+                deliver(() -> handler.onClose(status), true);
+            }
+        }
+
+        void finish(int status, ArrayBytesProxyMap trailers) {
+            if (finished.compareAndSet(false, true)) {
+                detach(!endSent());
+                if (trailers != null) {
+                    deliver(() -> handler.onTrailers(trailers), false);
+                }
+                deliver(() -> handler.onClose(status), true);
+            }
+        }
+
+        private synchronized boolean endSent() {
+            return endSent;
+        }
+
+        // forgets the stream, resetting it if the upstream may still be using it.  This may
+        // let a stream waiting for the concurrent streams limit open, or close a channel going
+        // away once its last stream is done.
+        private void detach(boolean reset) {
+            int streamId = id;
+            if (streamId != 0 && streams.remove(streamId, this)) {
+                if (reset) {
+                    control.add(Http2Frame.rstStream(streamId, Http2Frame.CANCEL));
+                }
+                scheduleFlush();
+            }
+        }
+
+        void onHeaders(List<Map.Entry<String, String>> received, boolean endStream) {
+            if (finished.get()) {
+                return;
+            }
+            var metadata = new ArrayBytesProxyMap();
+            String status = null;
+            for (var e : received) {
+                if (e.getKey().equals(":status")) {
+                    httpStatus = parse(e.getValue(), 0);
+                } else if (!e.getKey().startsWith(":")) {
+                    metadata.add(e.getKey(), e.getValue());
+                    if (e.getKey().equals("grpc-status")) {
+                        status = e.getValue();
+                    }
+                }
+            }
+            if (httpStatus >= 100 && httpStatus < 200 && !endStream) {
+                return; // an informational response.
+            }
+            if (!headersReceived) {
+                headersReceived = true;
+                if (!endStream) {
+                    deliver(() -> handler.onHeaders(metadata), false);
+                    return;
+                }
+                // a trailers-only response.
+                deliver(() -> handler.onHeaders(new ArrayBytesProxyMap()), false);
+            }
+            if (status != null) {
+                finish(parse(status, UNKNOWN), metadata);
+            } else if (httpStatus != 200) {
+                finish(GrpcCalloutClient.httpStatus(httpStatus), metadata);
+            } else {
+                finish(UNKNOWN, metadata);
+            }
+        }
+
+        void onData(byte[] data, int length, boolean endStream) {
+            if (finished.get()) {
+                return;
+            }
+            credit.addAndGet(length);
+            int offset = 0;
+            while (offset < data.length && !finished.get()) {
+                if (message == null) {
+                    int n = Math.min(prefix.remaining(), data.length - offset);
+                    prefix.put(data, offset, n);
+                    offset += n;
+                    if (prefix.hasRemaining()) {
+                        break;
+                    }
+                    prefix.flip();
+                    int compressed = prefix.get();
+                    int size = prefix.getInt();
+                    prefix.clear();
+                    if (compressed != 0) {
+                        // the stream doesn't accept any encoding, so must not get any.
+                        finish(INTERNAL, null);
+                        return;
+                    }
+                    if (size < 0 || size > MAX_MESSAGE_SIZE) {
+                        finish(RESOURCE_EXHAUSTED, null);
+                        return;
+                    }
+                    message = ByteBuffer.allocate(size);
+                } else {
+                    int n = Math.min(message.remaining(), data.length - offset);
+                    message.put(data, offset, n);
+                    offset += n;
+                }
+                if (!message.hasRemaining()) {
+                    var received = message.array();
+                    message = null;
+                    buffered.addAndGet(received.length);
+                    deliver(
+                            () -> {
+                                handler.onMessage(received);
+                                buffered.addAndGet(-received.length);
+                                extendWindow();
+                            },
+                            false);
+                }
+            }
+            extendWindow();
+            if (endStream) {
+                // the upstream ended the stream without trailers.
+                finish(
+                        httpStatus != 200 ? GrpcCalloutClient.httpStatus(httpStatus) : UNKNOWN,
+                        null);
+            }
+        }
+
+        // lets the upstream send more, unless the handler is too far behind.
+        private void extendWindow() {
+            if (buffered.get() > receiveWindow / 2 || credit.get() < receiveWindow / 4) {
+                return;
+            }
+            long increment = credit.getAndSet(0);
+            if (increment > 0 && !finished.get()) {
+                control.add(Http2Frame.windowUpdate(id, (int) increment));
+                scheduleFlush();
+            }
+        }
+
+        // passes the events to the handler in order, one at a time, never on the calling thread.
+        // nothing is passed after the close event.
+        private void deliver(Runnable event, boolean close) {
+            synchronized (events) {
+                if (closeQueued) {
+                    return;
+                }
+                closeQueued = close;
+                events.add(event);
+                if (delivering) {
+                    return;
+                }
+                delivering = true;
+            }
+            executor.execute(this::drain);
+        }
+
+        private void drain() {
+            while (true) {
+                Runnable event;
+                synchronized (events) {
+                    event = events.poll();
+                    if (event == null) {
+                        delivering = false;
+                        return;
+                    }
+                }
+                if (!cancelled) {
+                    event.run();
+                }
+            }
+        }
+    }
+
+    private static int parse(String value, int defaultValue) {
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+}
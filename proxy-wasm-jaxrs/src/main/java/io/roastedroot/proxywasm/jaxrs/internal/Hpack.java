@@ -0,0 +1,380 @@
+package io.roastedroot.proxywasm.jaxrs.internal;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Encodes and decodes the header blocks of HTTP/2, see RFC 7541.
+ *
+ * <p>The encoder writes every header as a literal without indexing, which needs no state shared
+ * with the peer.  The decoder handles everything a peer can send: the static and dynamic
+ * tables, and Huffman coded strings.
+ */
+public final class Hpack {
+
+    /**
+     * The dynamic table size of a decoder, the default of the {@code SETTINGS_HEADER_TABLE_SIZE}
+     * setting.
+     */
+    public static final int DEFAULT_TABLE_SIZE = 4096;
+
+    private static final String[][] STATIC_TABLE = {
+        {":authority", ""},
+        {":method", "GET"},
+        {":method", "POST"},
+        {":path", "/"},
+        {":path", "/index.html"},
+        {":scheme", "http"},
+        {":scheme", "https"},
+        {":status", "200"},
+        {":status", "204"},
+        {":status", "206"},
+        {":status", "304"},
+        {":status", "400"},
+        {":status", "404"},
+        {":status", "500"},
+        {"accept-charset", ""},
+        {"accept-encoding", "gzip, deflate"},
+        {"accept-language", ""},
+        {"accept-ranges", ""},
+        {"accept", ""},
+        {"access-control-allow-origin", ""},
+        {"age", ""},
+        {"allow", ""},
+        {"authorization", ""},
+        {"cache-control", ""},
+        {"content-disposition", ""},
+        {"content-encoding", ""},
+        {"content-language", ""},
+        {"content-length", ""},
+        {"content-location", ""},
+        {"content-range", ""},
+        {"content-type", ""},
+        {"cookie", ""},
+        {"date", ""},
+        {"etag", ""},
+        {"expect", ""},
+        {"expires", ""},
+        {"from", ""},
+        {"host", ""},
+        {"if-match", ""},
+        {"if-modified-since", ""},
+        {"if-none-match", ""},
+        {"if-range", ""},
+        {"if-unmodified-since", ""},
+        {"last-modified", ""},
+        {"link", ""},
+        {"location", ""},
+        {"max-forwards", ""},
+        {"proxy-authenticate", ""},
+        {"proxy-authorization", ""},
+        {"range", ""},
+        {"referer", ""},
+        {"refresh", ""},
+        {"retry-after", ""},
+        {"server", ""},
+        {"set-cookie", ""},
+        {"strict-transport-security", ""},
+        {"transfer-encoding", ""},
+        {"user-agent", ""},
+        {"vary", ""},
+        {"via", ""},
+        {"www-authenticate", ""},
+    };
+
+    private static final int[] HUFFMAN_CODES = {
+        0x1ff8, 0x7fffd8, 0xfffffe2, 0xfffffe3, 0xfffffe4, 0xfffffe5,
+        0xfffffe6, 0xfffffe7, 0xfffffe8, 0xffffea, 0x3ffffffc, 0xfffffe9,
+        0xfffffea, 0x3ffffffd, 0xfffffeb, 0xfffffec, 0xfffffed, 0xfffffee,
+        0xfffffef, 0xffffff0, 0xffffff1, 0xffffff2, 0x3ffffffe, 0xffffff3,
+        0xffffff4, 0xffffff5, 0xffffff6, 0xffffff7, 0xffffff8, 0xffffff9,
+        0xffffffa, 0xffffffb, 0x14, 0x3f8, 0x3f9, 0xffa,
+        0x1ff9, 0x15, 0xf8, 0x7fa, 0x3fa, 0x3fb,
+        0xf9, 0x7fb, 0xfa, 0x16, 0x17, 0x18,
+        0x0, 0x1, 0x2, 0x19, 0x1a, 0x1b,
+        0x1c, 0x1d, 0x1e, 0x1f, 0x5c, 0xfb,
+        0x7ffc, 0x20, 0xffb, 0x3fc, 0x1ffa, 0x21,
+        0x5d, 0x5e, 0x5f, 0x60, 0x61, 0x62,
+        0x63, 0x64, 0x65, 0x66, 0x67, 0x68,
+        0x69, 0x6a, 0x6b, 0x6c, 0x6d, 0x6e,
+        0x6f, 0x70, 0x71, 0x72, 0xfc, 0x73,
+        0xfd, 0x1ffb, 0x7fff0, 0x1ffc, 0x3ffc, 0x22,
+        0x7ffd, 0x3, 0x23, 0x4, 0x24, 0x5,
+        0x25, 0x26, 0x27, 0x6, 0x74, 0x75,
+        0x28, 0x29, 0x2a, 0x7, 0x2b, 0x76,
+        0x2c, 0x8, 0x9, 0x2d, 0x77, 0x78,
+        0x79, 0x7a, 0x7b, 0x7ffe, 0x7fc, 0x3ffd,
+        0x1ffd, 0xffffffc, 0xfffe6, 0x3fffd2, 0xfffe7, 0xfffe8,
+        0x3fffd3, 0x3fffd4, 0x3fffd5, 0x7fffd9, 0x3fffd6, 0x7fffda,
+        0x7fffdb, 0x7fffdc, 0x7fffdd, 0x7fffde, 0xffffeb, 0x7fffdf,
+        0xffffec, 0xffffed, 0x3fffd7, 0x7fffe0, 0xffffee, 0x7fffe1,
+        0x7fffe2, 0x7fffe3, 0x7fffe4, 0x1fffdc, 0x3fffd8, 0x7fffe5,
+        0x3fffd9, 0x7fffe6, 0x7fffe7, 0xffffef, 0x3fffda, 0x1fffdd,
+        0xfffe9, 0x3fffdb, 0x3fffdc, 0x7fffe8, 0x7fffe9, 0x1fffde,
+        0x7fffea, 0x3fffdd, 0x3fffde, 0xfffff0, 0x1fffdf, 0x3fffdf,
+        0x7fffeb, 0x7fffec, 0x1fffe0, 0x1fffe1, 0x3fffe0, 0x1fffe2,
+        0x7fffed, 0x3fffe1, 0x7fffee, 0x7fffef, 0xfffea, 0x3fffe2,
+        0x3fffe3, 0x3fffe4, 0x7ffff0, 0x3fffe5, 0x3fffe6, 0x7ffff1,
+        0x3ffffe0, 0x3ffffe1, 0xfffeb, 0x7fff1, 0x3fffe7, 0x7ffff2,
+        0x3fffe8, 0x1ffffec, 0x3ffffe2, 0x3ffffe3, 0x3ffffe4, 0x7ffffde,
+        0x7ffffdf, 0x3ffffe5, 0xfffff1, 0x1ffffed, 0x7fff2, 0x1fffe3,
+        0x3ffffe6, 0x7ffffe0, 0x7ffffe1, 0x3ffffe7, 0x7ffffe2, 0xfffff2,
+        0x1fffe4, 0x1fffe5, 0x3ffffe8, 0x3ffffe9, 0xffffffd, 0x7ffffe3,
+        0x7ffffe4, 0x7ffffe5, 0xfffec, 0xfffff3, 0xfffed, 0x1fffe6,
+        0x3fffe9, 0x1fffe7, 0x1fffe8, 0x7ffff3, 0x3fffea, 0x3fffeb,
+        0x1ffffee, 0x1ffffef, 0xfffff4, 0xfffff5, 0x3ffffea, 0x7ffff4,
+        0x3ffffeb, 0x7ffffe6, 0x3ffffec, 0x3ffffed, 0x7ffffe7, 0x7ffffe8,
+        0x7ffffe9, 0x7ffffea, 0x7ffffeb, 0xffffffe, 0x7ffffec, 0x7ffffed,
+        0x7ffffee, 0x7ffffef, 0x7fffff0, 0x3ffffee, 0x3fffffff,
+    };
+    private static final byte[] HUFFMAN_LENGTHS = {
+        13, 23, 28, 28, 28, 28, 28, 28, 28, 24, 30, 28, 28, 30, 28, 28,
+        28, 28, 28, 28, 28, 28, 30, 28, 28, 28, 28, 28, 28, 28, 28, 28,
+        6, 10, 10, 12, 13, 6, 8, 11, 10, 10, 8, 11, 8, 6, 6, 6,
+        5, 5, 5, 6, 6, 6, 6, 6, 6, 6, 7, 8, 15, 6, 12, 10,
+        13, 6, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7,
+        7, 7, 7, 7, 7, 7, 7, 7, 8, 7, 8, 13, 19, 13, 14, 6,
+        15, 5, 6, 5, 6, 5, 6, 6, 6, 5, 7, 7, 6, 6, 6, 5,
+        6, 7, 6, 5, 5, 6, 7, 7, 7, 7, 7, 15, 11, 14, 13, 28,
+        20, 22, 20, 20, 22, 22, 22, 23, 22, 23, 23, 23, 23, 23, 24, 23,
+        24, 24, 22, 23, 24, 23, 23, 23, 23, 21, 22, 23, 22, 23, 23, 24,
+        22, 21, 20, 22, 22, 23, 23, 21, 23, 22, 22, 24, 21, 22, 23, 23,
+        21, 21, 22, 21, 23, 22, 23, 23, 20, 22, 22, 22, 23, 22, 22, 23,
+        26, 26, 20, 19, 22, 23, 22, 25, 26, 26, 26, 27, 27, 26, 24, 25,
+        19, 21, 26, 27, 27, 26, 27, 24, 21, 21, 26, 26, 28, 27, 27, 27,
+        20, 24, 20, 21, 22, 21, 21, 23, 22, 22, 25, 25, 24, 24, 26, 23,
+        26, 27, 26, 26, 27, 27, 27, 27, 27, 28, 27, 27, 27, 27, 27, 26,
+        30,
+    };
+
+    // the Huffman code as a binary tree: the children of node n are at 2n and 2n + 1, leaves hold
+    // the complement of their symbol.
+    private static final int[] HUFFMAN_TREE = huffmanTree();
+
+    private Hpack() {}
+
+    private static int[] huffmanTree() {
+        var tree = new int[2 * 2 * HUFFMAN_CODES.length];
+        int nodes = 1;
+        for (int symbol = 0; symbol < HUFFMAN_CODES.length; symbol++) {
+            int node = 0;
+            for (int bit = HUFFMAN_LENGTHS[symbol] - 1; bit >= 0; bit--) {
+                int child = 2 * node + ((HUFFMAN_CODES[symbol] >>> bit) & 1);
+                if (bit == 0) {
+                    tree[child] = ~symbol;
+                } else {
+                    if (tree[child] == 0) {
+                        tree[child] = nodes++;
+                    }
+                    node = tree[child];
+                }
+            }
+        }
+        return tree;
+    }
+
+    /**
+     * Encodes headers into a header block.  The names are sent in lower case, as HTTP/2
+     * requires.
+     */
+    public static byte[] encode(List<Map.Entry<String, String>> headers) {
+        var out = new ByteArrayOutputStream();
+        for (var header : headers) {
+            out.write(0); // a literal without indexing, with a new name.
+            writeString(out, header.getKey().toLowerCase(Locale.ROOT));
+            writeString(out, header.getValue());
+        }
+        return out.toByteArray();
+    }
+
+    private static void writeString(ByteArrayOutputStream out, String value) {
+        var bytes = value.getBytes(StandardCharsets.UTF_8);
+        writeInt(out, 0, 7, bytes.length);
+        out.write(bytes, 0, bytes.length);
+    }
+
+    private static void writeInt(ByteArrayOutputStream out, int flags, int prefixBits, int value) {
+        int max = (1 << prefixBits) - 1;
+        if (value < max) {
+            out.write(flags | value);
+            return;
+        }
+        out.write(flags | max);
+        value -= max;
+        while (value >= 0x80) {
+            out.write((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    /**
+     * Decodes the header blocks received on a connection, which share its dynamic table.
+     */
+    public static final class Decoder {
+        private final ArrayDeque<Map.Entry<String, String>> table = new ArrayDeque<>();
+        private final int maxTableSize;
+        private int tableLimit;
+        private int tableSize;
+        private byte[] block;
+        private int position;
+
+        public Decoder() {
+            this(DEFAULT_TABLE_SIZE);
+        }
+
+        /**
+         * @param maxTableSize the dynamic table size advertised to the peer.
+         */
+        public Decoder(int maxTableSize) {
+            this.maxTableSize = maxTableSize;
+            this.tableLimit = maxTableSize;
+        }
+
+        /**
+         * Decodes a header block.
+         *
+         * @throws IOException if the block is malformed, the connection can't be used anymore.
+         */
+        public List<Map.Entry<String, String>> decode(byte[] block) throws IOException {
+            this.block = block;
+            this.position = 0;
+            var headers = new ArrayList<Map.Entry<String, String>>();
+            try {
+                while (position < block.length) {
+                    int b = block[position] & 0xff;
+                    if ((b & 0x80) != 0) {
+                        headers.add(entry(readInt(7)));
+                    } else if ((b & 0x40) != 0) {
+                        var header = literal(6);
+                        add(header);
+                        headers.add(header);
+                    } else if ((b & 0x20) != 0) {
+                        int size = readInt(5);
+                        if (size > maxTableSize) {
+                            throw new IOException("hpack: table size too large: " + size);
+                        }
+                        tableLimit = size;
+                        evict(0);
+                    } else {
+                        headers.add(literal(4));
+                    }
+                }
+            } catch (ArrayIndexOutOfBoundsException e) {
+                throw new IOException("hpack: truncated header block");
+            } finally {
+                this.block = null;
+            }
+            return headers;
+        }
+
+        private Map.Entry<String, String> literal(int prefixBits) throws IOException {
+            int index = readInt(prefixBits);
+            var name = index == 0 ? readString() : entry(index).getKey();
+            return Map.entry(name, readString());
+        }
+
+        private Map.Entry<String, String> entry(int index) throws IOException {
+            if (index >= 1 && index <= STATIC_TABLE.length) {
+                var e = STATIC_TABLE[index - 1];
+                return Map.entry(e[0], e[1]);
+            }
+            int dynamic = index - STATIC_TABLE.length - 1;
+            if (index < 1 || dynamic >= table.size()) {
+                throw new IOException("hpack: invalid index: " + index);
+            }
+            var it = table.iterator();
+            for (int i = 0; i < dynamic; i++) {
+                it.next();
+            }
+            return it.next();
+        }
+
+        private void add(Map.Entry<String, String> header) {
+            int size = size(header);
+            evict(size);
+            if (size <= tableLimit) {
+                table.addFirst(header);
+                tableSize += size;
+            }
+        }
+
+        // evicts the oldest entries until the table has room for another entry of the size.
+        private void evict(int size) {
+            while (!table.isEmpty() && tableSize + size > tableLimit) {
+                tableSize -= size(table.removeLast());
+            }
+        }
+
+        private static int size(Map.Entry<String, String> header) {
+            return header.getKey().getBytes(StandardCharsets.UTF_8).length
+                    + header.getValue().getBytes(StandardCharsets.UTF_8).length
+                    + 32;
+        }
+
+        private int readInt(int prefixBits) throws IOException {
+            int max = (1 << prefixBits) - 1;
+            int value = block[position++] & max;
+            if (value < max) {
+                return value;
+            }
+            for (int shift = 0; shift < 28; shift += 7) {
+                int b = block[position++] & 0xff;
+                value += (b & 0x7f) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+            throw new IOException("hpack: integer too large");
+        }
+
+        private String readString() throws IOException {
+            boolean huffman = (block[position] & 0x80) != 0;
+            int length = readInt(7);
+            if (length > block.length - position) {
+                throw new IOException("hpack: truncated header block");
+            }
+            int start = position;
+            position += length;
+            if (!huffman) {
+                return new String(block, start, length, StandardCharsets.UTF_8);
+            }
+            return huffmanDecode(start, length);
+        }
+
+        private String huffmanDecode(int start, int length) throws IOException {
+            var out = new ByteArrayOutputStream(length * 8 / 5);
+            int node = 0;
+            int depth = 0;
+            for (int i = start; i < start + length; i++) {
+                for (int bit = 7; bit >= 0; bit--) {
+                    int next = HUFFMAN_TREE[2 * node + ((block[i] >>> bit) & 1)];
+                    if (next < 0) {
+                        int symbol = ~next;
+                        if (symbol == 256) {
+                            throw new IOException("hpack: EOS in a Huffman string");
+                        }
+                        out.write(symbol);
+                        node = 0;
+                        depth = 0;
+                    } else {
+                        node = next;
+                        depth++;
+                    }
+                }
+            }
+            // the padding is the most significant bits of EOS, so all ones and shorter than a
+            // byte.
+            if (depth > 7) {
+                throw new IOException("hpack: invalid Huffman padding");
+            }
+            return new String(out.toByteArray(), StandardCharsets.UTF_8);
+        }
+    }
+}
@@ -0,0 +1,174 @@
+package io.roastedroot.proxywasm.jaxrs.internal;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * An HTTP/2 frame, see RFC 9113.
+ */
+public final class Http2Frame {
+
+    public static final int DATA = 0x0;
+    public static final int HEADERS = 0x1;
+    public static final int RST_STREAM = 0x3;
+    public static final int SETTINGS = 0x4;
+    public static final int PUSH_PROMISE = 0x5;
+    public static final int PING = 0x6;
+    public static final int GOAWAY = 0x7;
+    public static final int WINDOW_UPDATE = 0x8;
+    public static final int CONTINUATION = 0x9;
+
+    public static final int END_STREAM = 0x1;
+    public static final int ACK = 0x1;
+    public static final int END_HEADERS = 0x4;
+    public static final int PADDED = 0x8;
+    public static final int PRIORITY = 0x20;
+
+    public static final int SETTINGS_HEADER_TABLE_SIZE = 0x1;
+    public static final int SETTINGS_ENABLE_PUSH = 0x2;
+    public static final int SETTINGS_MAX_CONCURRENT_STREAMS = 0x3;
+    public static final int SETTINGS_INITIAL_WINDOW_SIZE = 0x4;
+    public static final int SETTINGS_MAX_FRAME_SIZE = 0x5;
+
+    public static final int NO_ERROR = 0x0;
+    public static final int PROTOCOL_ERROR = 0x1;
+    public static final int REFUSED_STREAM = 0x7;
+    public static final int CANCEL = 0x8;
+
+    /**
+     * The initial flow control window of the connections and streams, and the initial maximum
+     * frame size.
+     */
+    public static final int DEFAULT_WINDOW_SIZE = 65535;
+
+    public static final int DEFAULT_MAX_FRAME_SIZE = 16384;
+
+    /**
+     * The bytes a client sends first on a connection.
+     */
+    public static final byte[] PREFACE =
+            "PRI * HTTP/2.0\r\n\r\nSM\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+
+    public final int type;
+    public final int flags;
+    public final int streamId;
+    public final byte[] payload;
+
+    public Http2Frame(int type, int flags, int streamId, byte[] payload) {
+        this.type = type;
+        this.flags = flags;
+        this.streamId = streamId;
+        this.payload = payload;
+    }
+
+    public boolean has(int flag) {
+        return (flags & flag) != 0;
+    }
+
+    /**
+     * Reads a frame.
+     *
+     * @param maxFrameSize the largest payload accepted.
+     * @return the frame, or null at the end of the stream.
+     */
+    public static Http2Frame read(InputStream in, int maxFrameSize) throws IOException {
+        var header = new byte[9];
+        int n = in.readNBytes(header, 0, 9);
+        if (n == 0) {
+            return null;
+        }
+        if (n < 9) {
+            throw new EOFException("truncated frame");
+        }
+        var buffer = ByteBuffer.wrap(header);
+        int length = ((buffer.get() & 0xff) << 16) | (buffer.getShort() & 0xffff);
+        int type = buffer.get() & 0xff;
+        int flags = buffer.get() & 0xff;
+        int streamId = buffer.getInt() & 0x7fffffff;
+        if (length > maxFrameSize) {
+            throw new IOException("frame too large: " + length);
+        }
+        var payload = in.readNBytes(length);
+        if (payload.length < length) {
+            throw new EOFException("truncated frame");
+        }
+        return new Http2Frame(type, flags, streamId, payload);
+    }
+
+    /**
+     * Returns the frame as sent on the connection.
+     */
+    public byte[] encode() {
+        var buffer = ByteBuffer.allocate(9 + payload.length);
+        buffer.put((byte) (payload.length >>> 16));
+        buffer.putShort((short) payload.length);
+        buffer.put((byte) type);
+        buffer.put((byte) flags);
+        buffer.putInt(streamId);
+        buffer.put(payload);
+        return buffer.array();
+    }
+
+    /**
+     * Returns the data of a {@code DATA} frame, or the header block fragment of a
+     * {@code HEADERS} frame, without their padding and priority.
+     */
+    public byte[] data() throws IOException {
+        int start = 0;
+        int end = payload.length;
+        if ((type == DATA || type == HEADERS) && has(PADDED)) {
+            if (end < 1) {
+                throw new IOException("invalid padding");
+            }
+            start = 1;
+            end -= payload[0] & 0xff;
+        }
+        if (type == HEADERS && has(PRIORITY)) {
+            start += 5;
+        }
+        if (end < start) {
+            throw new IOException("invalid padding");
+        }
+        var data = new byte[end - start];
+        System.arraycopy(payload, start, data, 0, data.length);
+        return data;
+    }
+
+    public static Http2Frame settings(int... idsAndValues) {
+        var buffer = ByteBuffer.allocate(idsAndValues.length / 2 * 6);
+        for (int i = 0; i + 1 < idsAndValues.length; i += 2) {
+            buffer.putShort((short) idsAndValues[i]);
+            buffer.putInt(idsAndValues[i + 1]);
+        }
+        return new Http2Frame(SETTINGS, 0, 0, buffer.array());
+    }
+
+    public static Http2Frame windowUpdate(int streamId, int increment) {
+        return new Http2Frame(
+                WINDOW_UPDATE, 0, streamId, ByteBuffer.allocate(4).putInt(increment).array());
+    }
+
+    public static Http2Frame rstStream(int streamId, int errorCode) {
+        return new Http2Frame(
+                RST_STREAM, 0, streamId, ByteBuffer.allocate(4).putInt(errorCode).array());
+    }
+
+    public static Http2Frame goAway(int lastStreamId, int errorCode) {
+        return new Http2Frame(
+                GOAWAY,
+                0,
+                0,
+                ByteBuffer.allocate(8).putInt(lastStreamId).putInt(errorCode).array());
+    }
+
+    /**
+     * Returns the 32 bit value at an offset of the payload, like the increment of a
+     * {@code WINDOW_UPDATE} frame or the error code of a {@code RST_STREAM} frame.
+     */
+    public int intValue(int offset) {
+        return ByteBuffer.wrap(payload, offset, 4).getInt();
+    }
+}
@@ -0,0 +1,328 @@
+package io.roastedroot.proxywasm.jaxrs.internal;
+
+import io.roastedroot.proxywasm.internal.ArrayProxyMap;
+import io.roastedroot.proxywasm.internal.ProxyMap;
+import java.net.URI;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Collectors;
+
+/**
+ * Caches the responses of the http calls to an upstream, so that plugins calling it with the
+ * same request for many requests, like auth or policy plugins do, get the response without a
+ * round trip to the upstream.
+ *
+ * <p>A cache is registered for an upstream with
+ * {@link HttpCalloutClient#withCache(URI, HttpCalloutCache)}:
+ *
+ * <pre>
+ * var callouts = new HttpCalloutClient();
+ * callouts.withCache(
+ *         URI.create("http://auth:8080"),
+ *         HttpCalloutCache.builder()
+ *                 .withTtl(Duration.ofSeconds(30))
+ *                 .withKeyHeaders("authorization")
+ *                 .build());
+ * </pre>
+ *
+ * <p>Calls are the same when they have the same method, path (with the query) and values for
+ * the key headers, the other headers are ignored.  Only the successful ({@code 2xx}) responses
+ * to the cached methods are kept, for the TTL of the cache, or for the {@code max-age} of their
+ * {@code Cache-Control} header when the cache honors it.  The least recently used responses are
+ * evicted once the cache holds {@code maxEntries} of them.
+ */
+public final class HttpCalloutCache {
+
+    /**
+     * The default maximum number of responses kept by a cache.
+     */
+    public static final int DEFAULT_MAX_ENTRIES = 1024;
+
+    static final class Response {
+        final int statusCode;
+        final ProxyMap headers;
+        final byte[] body;
+        final long expiresAt;
+
+        Response(int statusCode, ProxyMap headers, byte[] body, long expiresAt) {
+            this.statusCode = statusCode;
+            this.headers = headers;
+            this.body = body;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    private final int maxEntries;
+    private final Duration ttl;
+    private final boolean cacheControl;
+    private final List<String> keyHeaders;
+    private final Set<String> methods;
+    private final LinkedHashMap<String, Response> entries;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    private HttpCalloutCache(Builder builder) {
+        this.maxEntries = builder.maxEntries;
+        this.ttl = builder.ttl;
+        this.cacheControl = builder.cacheControl;
+        this.keyHeaders = List.copyOf(builder.keyHeaders);
+        this.methods = Set.copyOf(builder.methods);
+        this.entries =
+                new LinkedHashMap<>(16, 0.75f, true) {
+                    @Override
+                    protected boolean removeEldestEntry(Map.Entry<String, Response> eldest) {
+                        if (size() > maxEntries) {
+                            evictions.increment();
+                            return true;
+                        }
+                        return false;
+                    }
+                };
+    }
+
+    /**
+     * Creates a builder with a TTL of 0, which only caches the responses with a
+     * {@code Cache-Control} max age.
+     *
+     * @return a new {@link Builder}.
+     */
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    /**
+     * Builds {@link HttpCalloutCache} instances.
+     */
+    public static final class Builder {
+        private int maxEntries = DEFAULT_MAX_ENTRIES;
+        private Duration ttl = Duration.ZERO;
+        private boolean cacheControl = true;
+        private List<String> keyHeaders = List.of();
+        private Set<String> methods = Set.of("GET", "HEAD");
+
+        private Builder() {}
+
+        /**
+         * Sets how many responses the cache keeps, the least recently used ones are evicted.
+         *
+         * @param maxEntries the maximum number of responses.
+         * @return this builder.
+         */
+        public Builder withMaxEntries(int maxEntries) {
+            if (maxEntries < 1) {
+                throw new IllegalArgumentException("maxEntries must be at least 1");
+            }
+            this.maxEntries = maxEntries;
+            return this;
+        }
+
+        /**
+         * Sets how long the responses are kept, when they don't have a {@code Cache-Control}
+         * max age or the cache doesn't honor it.
+         *
+         * @param ttl the time to live of the responses.
+         * @return this builder.
+         */
+        public Builder withTtl(Duration ttl) {
+            this.ttl = Objects.requireNonNull(ttl);
+            return this;
+        }
+
+        /**
+         * Sets whether the {@code Cache-Control} header of the responses decides if and for how
+         * long they are kept, which is the default.
+         *
+         * @param cacheControl false to ignore the header and keep all the responses for the TTL.
+         * @return this builder.
+         */
+        public Builder withCacheControl(boolean cacheControl) {
+            this.cacheControl = cacheControl;
+            return this;
+        }
+
+        /**
+         * Sets the request headers that are part of the cache key, in addition to the method
+         * and the path.
+         *
+         * @param names the header names.
+         * @return this builder.
+         */
+        public Builder withKeyHeaders(String... names) {
+            this.keyHeaders =
+                    List.of(names).stream()
+                            .map(n -> n.toLowerCase(Locale.ROOT))
+                            .collect(Collectors.toList());
+            return this;
+        }
+
+        /**
+         * Sets the methods of the calls that are cached, by default {@code GET} and
+         * {@code HEAD}.
+         *
+         * @param methods the method names.
+         * @return this builder.
+         */
+        public Builder withMethods(String... methods) {
+            this.methods =
+                    List.of(methods).stream()
+                            .map(n -> n.toUpperCase(Locale.ROOT))
+                            .collect(Collectors.toSet());
+            return this;
+        }
+
+        /**
+         * Builds the cache.
+         *
+         * @return a new {@link HttpCalloutCache}.
+         */
+        public HttpCalloutCache build() {
+            return new HttpCalloutCache(this);
+        }
+    }
+
+    /**
+     * Returns the number of calls answered from the cache.
+     */
+    public long hits() {
+        return hits.sum();
+    }
+
+    /**
+     * Returns the number of cacheable calls that had to be sent to the upstream.
+     */
+    public long misses() {
+        return misses.sum();
+    }
+
+    /**
+     * Returns the number of responses evicted to stay within the maximum number of entries.
+     */
+    public long evictions() {
+        return evictions.sum();
+    }
+
+    /**
+     * Returns the fraction of the cacheable calls answered from the cache.
+     */
+    public double hitRate() {
+        long h = hits.sum();
+        long total = h + misses.sum();
+        return total == 0 ? 0 : (double) h / total;
+    }
+
+    /**
+     * Returns the number of responses in the cache, including the expired ones not evicted yet.
+     */
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * Returns the cache key of a call, or null if its method is not cached.
+     */
+    String key(String method, URI uri, ProxyMap headers) {
+        if (!methods.contains(method.toUpperCase(Locale.ROOT))) {
+            return null;
+        }
+        var key = new StringBuilder(method).append(' ').append(uri.getRawPath());
+        if (uri.getRawQuery() != null) {
+            key.append('?').append(uri.getRawQuery());
+        }
+        for (var name : keyHeaders) {
+            key.append('\n').append(name).append(": ").append(header(headers, name));
+        }
+        return key.toString();
+    }
+
+    // joins the values of the header, which HTTP/1.1 header names may have in any case.
+    private static String header(ProxyMap headers, String name) {
+        var values = new ArrayList<String>();
+        for (var e : headers.entries()) {
+            if (e.getKey().equalsIgnoreCase(name)) {
+                values.add(e.getValue());
+            }
+        }
+        return values.isEmpty() ? null : String.join(", ", values);
+    }
+
+    /**
+     * Returns a copy of the cached response, or null on a miss.
+     */
+    Response get(String key) {
+        Response response;
+        synchronized (this) {
+            response = entries.get(key);
+            if (response != null && response.expiresAt - System.nanoTime() <= 0) {
+                entries.remove(key);
+                response = null;
+            }
+        }
+        if (response == null) {
+            misses.increment();
+            return null;
+        }
+        hits.increment();
+        // the plugins get their own copy, in case they modify it.
+        return new Response(
+                response.statusCode,
+                new ArrayProxyMap(response.headers),
+                response.body.clone(),
+                response.expiresAt);
+    }
+
+    void put(String key, int statusCode, ProxyMap headers, byte[] body) {
+        if (statusCode < 200 || statusCode > 299) {
+            return;
+        }
+        var timeToLive = ttl;
+        if (cacheControl) {
+            timeToLive = timeToLive(header(headers, "cache-control"), ttl);
+        }
+        if (timeToLive == null || timeToLive.isZero() || timeToLive.isNegative()) {
+            return;
+        }
+        var response =
+                new Response(
+                        statusCode,
+                        new ArrayProxyMap(headers),
+                        body.clone(),
+                        System.nanoTime() + timeToLive.toNanos());
+        synchronized (this) {
+            entries.put(key, response);
+        }
+    }
+
+    // returns how long a response can be kept according to its Cache-Control header.
+    static Duration timeToLive(String cacheControl, Duration defaultTtl) {
+        if (cacheControl == null) {
+            return defaultTtl;
+        }
+        Duration maxAge = null;
+        for (var directive : cacheControl.split(",")) {
+            var d = directive.trim().toLowerCase(Locale.ROOT);
+            if (d.equals("no-store") || d.equals("no-cache") || d.equals("private")) {
+                return null;
+            }
+            try {
+                // a shared cache prefers s-maxage over max-age.
+                if (d.startsWith("s-maxage=")) {
+                    maxAge = Duration.ofSeconds(Long.parseLong(d.substring(9)));
+                } else if (d.startsWith("max-age=") && maxAge == null) {
+                    maxAge = Duration.ofSeconds(Long.parseLong(d.substring(8)));
+                }
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+        return maxAge != null ? maxAge : defaultTtl;
+    }
+}
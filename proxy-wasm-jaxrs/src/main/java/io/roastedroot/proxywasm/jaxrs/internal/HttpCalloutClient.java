@@ -0,0 +1,485 @@
+package io.roastedroot.proxywasm.jaxrs.internal;
+
+import io.roastedroot.proxywasm.internal.ArrayProxyMap;
+import io.roastedroot.proxywasm.internal.HttpCallResponseHandler;
+import io.roastedroot.proxywasm.internal.ProxyMap;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.net.http.HttpTimeoutException;
+import java.time.Duration;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Sends the http calls of the plugins, see {@code proxy_http_call}.
+ *
+ * <p>Each upstream (the scheme, host and port an upstream name of
+ * {@code PluginFactory.Builder.withUpstreams} maps to) gets its own {@link HttpClient}, which
+ * keeps a pool of connections to it and multiplexes the calls over a single connection when the
+ * upstream speaks HTTP/2.  The calls are sent asynchronously, with the timeout given by the
+ * plugin, and an upstream can only have {@code maxInFlightPerUpstream} calls in flight: the
+ * calls over that limit fail right away instead of queuing up behind a slow upstream.
+ *
+ * <p>Failed calls are passed to the plugin with an empty response and a status telling why:
+ * {@code 503} when the upstream has too many calls in flight, {@code 504} when the call timed
+ * out and {@code 502} when it could not be sent.  They are counted in the {@link Metrics} of
+ * the upstream.
+ *
+ * <p>The responses of an upstream can also be cached, see
+ * {@link #withCache(URI, HttpCalloutCache)}, and identical calls in flight coalesced, see
+ * {@link #withCoalescing(boolean)}.
+ */
+public class HttpCalloutClient {
+
+    /**
+     * The default maximum number of calls in flight to a single upstream.
+     */
+    public static final int DEFAULT_MAX_IN_FLIGHT_PER_UPSTREAM = 256;
+
+    /**
+     * The default time allowed to connect to an upstream.
+     */
+    public static final Duration DEFAULT_CONNECT_TIMEOUT = Duration.ofSeconds(10);
+
+    static final int REJECTED = 503;
+    static final int TIMED_OUT = 504;
+    static final int FAILED = 502;
+
+    /**
+     * Counts the calls to an upstream and how long they take.
+     */
+    public static final class Metrics {
+        private final LongAdder requests = new LongAdder();
+        private final LongAdder errors = new LongAdder();
+        private final LongAdder timeouts = new LongAdder();
+        private final LongAdder rejected = new LongAdder();
+        private final LongAdder latencyNanos = new LongAdder();
+        private final AtomicLong maxLatencyNanos = new AtomicLong();
+        private final AtomicLong inFlight = new AtomicLong();
+        private final LongAdder coalesced = new LongAdder();
+
+        /**
+         * Returns the number of calls that got a response, whatever its status.
+         */
+        public long requests() {
+            return requests.sum();
+        }
+
+        /**
+         * Returns the number of calls that failed without a response, including the timeouts.
+         */
+        public long errors() {
+            return errors.sum();
+        }
+
+        /**
+         * Returns the number of calls that timed out.
+         */
+        public long timeouts() {
+            return timeouts.sum();
+        }
+
+        /**
+         * Returns the number of calls not sent because the upstream had too many calls in flight.
+         */
+        public long rejected() {
+            return rejected.sum();
+        }
+
+        /**
+         * Returns the number of calls that joined an identical call in flight instead of being
+         * sent, see {@link HttpCalloutClient#withCoalescing(boolean)}.
+         */
+        public long coalesced() {
+            return coalesced.sum();
+        }
+
+        /**
+         * Returns the number of calls currently in flight.
+         */
+        public long inFlight() {
+            return inFlight.get();
+        }
+
+        /**
+         * Returns the average time from sending a call to receiving its response or failing.
+         */
+        public Duration averageLatency() {
+            long count = requests.sum() + errors.sum();
+            return count == 0 ? Duration.ZERO : Duration.ofNanos(latencyNanos.sum() / count);
+        }
+
+        /**
+         * Returns the longest time from sending a call to receiving its response or failing.
+         */
+        public Duration maxLatency() {
+            return Duration.ofNanos(maxLatencyNanos.get());
+        }
+
+        void record(long startNanos) {
+            long latency = System.nanoTime() - startNanos;
+            latencyNanos.add(latency);
+            maxLatencyNanos.accumulateAndGet(latency, Math::max);
+        }
+    }
+
+    private static final class Upstream {
+        final String base;
+        final HttpClient client;
+        final Semaphore inFlight;
+        final Metrics metrics = new Metrics();
+
+        Upstream(String base, HttpClient client, int maxInFlight) {
+            this.base = base;
+            this.client = client;
+            this.inFlight = new Semaphore(maxInFlight);
+        }
+    }
+
+    private final int maxInFlightPerUpstream;
+    private final Duration connectTimeout;
+    private final Executor executor;
+    private final ConcurrentHashMap<String, Upstream> upstreams = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, HttpCalloutCache> caches = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<
+                    String, CompletableFuture<BlockingServerAdaptor.HttpCallResponse>>
+            flights = new ConcurrentHashMap<>();
+    private volatile boolean coalescing;
+
+    public HttpCalloutClient() {
+        this(
+                DEFAULT_MAX_IN_FLIGHT_PER_UPSTREAM,
+                DEFAULT_CONNECT_TIMEOUT,
+                ForkJoinPool.commonPool());
+    }
+
+    /**
+     * @param maxInFlightPerUpstream the maximum number of calls in flight to a single upstream.
+     * @param connectTimeout the time allowed to connect to an upstream.
+     * @param executor runs the response handlers.
+     */
+    public HttpCalloutClient(
+            int maxInFlightPerUpstream, Duration connectTimeout, Executor executor) {
+        if (maxInFlightPerUpstream < 1) {
+            throw new IllegalArgumentException("maxInFlightPerUpstream must be at least 1");
+        }
+        this.maxInFlightPerUpstream = maxInFlightPerUpstream;
+        this.connectTimeout = connectTimeout;
+        this.executor = executor;
+    }
+
+    /**
+     * Returns the metrics of the upstreams called so far, keyed by {@code scheme://host:port}.
+     */
+    public Map<String, Metrics> metrics() {
+        var result = new TreeMap<String, Metrics>();
+        upstreams.forEach((key, upstream) -> result.put(key, upstream.metrics));
+        return result;
+    }
+
+    /**
+     * Returns the metrics of an upstream, or null if it was not called yet.
+     */
+    public Metrics metrics(String scheme, String host, int port) {
+        var upstream = upstreams.get(key(scheme, host, port));
+        return upstream == null ? null : upstream.metrics;
+    }
+
+    /**
+     * Caches the responses of the calls to an upstream, see {@link HttpCalloutCache}.
+     *
+     * @param upstream the upstream uri, as given to {@code PluginFactory.Builder.withUpstreams}.
+     * @param cache the cache, or null to stop caching the responses of the upstream.
+     * @return this client.
+     */
+    public HttpCalloutClient withCache(URI upstream, HttpCalloutCache cache) {
+        String scheme = upstream.getScheme() == null ? "http" : upstream.getScheme();
+        int port = upstream.getPort();
+        if (port == -1) {
+            port = "https".equals(scheme) ? 443 : 80;
+        }
+        String key = key(scheme, upstream.getHost(), port);
+        if (cache == null) {
+            caches.remove(key);
+        } else {
+            caches.put(key, cache);
+        }
+        return this;
+    }
+
+    /**
+     * Sets whether identical calls to an upstream share the call in flight instead of each
+     * sending their own, so that a burst of identical calls, like the token checks of requests
+     * arriving while a cache is cold, only sends one call to the upstream.
+     *
+     * <p>When the upstream has a cache, the calls are identical when they have the same cache
+     * key, otherwise only {@code GET} and {@code HEAD} calls without a body and with the same
+     * path and headers are.  Every caller gets a copy of the response, or a {@code 504} once its
+     * own timeout elapses.  A shared call is not aborted when its callers cancel it.
+     *
+     * @param coalescing true to coalesce the identical calls in flight.
+     * @return this client.
+     */
+    public HttpCalloutClient withCoalescing(boolean coalescing) {
+        this.coalescing = coalescing;
+        return this;
+    }
+
+    private static String key(String scheme, String host, int port) {
+        return scheme + "://" + host + ":" + port;
+    }
+
+    private Upstream upstream(String scheme, String host, int port) {
+        return upstreams.computeIfAbsent(
+                key(scheme, host, port),
+                key ->
+                        new Upstream(
+                                key,
+                                HttpClient.newBuilder()
+                                        .version(HttpClient.Version.HTTP_2)
+                                        .connectTimeout(connectTimeout)
+                                        .executor(executor)
+                                        .build(),
+                                maxInFlightPerUpstream));
+    }
+
+    /**
+     * Sends a call to the upstream at {@code host:port}, and passes its response to the handler.
+     *
+     * @param uri the uri of the call, its scheme, path and query are sent to the upstream.
+     * @param timeout the call timeout in milliseconds, or 0 for none.
+     * @return cancels the call, the handler is not called once the call is cancelled.
+     */
+    public Runnable send(
+            String method,
+            String host,
+            int port,
+            URI uri,
+            ProxyMap headers,
+            byte[] body,
+            int timeout,
+            HttpCallResponseHandler handler) {
+        var future = send(method, host, port, uri, headers, body, timeout);
+        // the plugin registers the call once this returns, so the handler must not run on the
+        // calling thread, even when the response is already known.
+        future.thenAcceptAsync(
+                response -> handler.call(response.statusCode, response.headers, response.body),
+                executor);
+        return () -> future.cancel(true);
+    }
+
+    /**
+     * Sends a call to the upstream at {@code host:port}, see
+     * {@link #send(String, String, int, URI, ProxyMap, byte[], int, HttpCallResponseHandler)}.
+     */
+    CompletableFuture<BlockingServerAdaptor.HttpCallResponse> send(
+            String method,
+            String host,
+            int port,
+            URI uri,
+            ProxyMap headers,
+            byte[] body,
+            int timeout) {
+
+        String scheme = uri.getScheme() == null ? "http" : uri.getScheme();
+        var upstream = upstream(scheme, host, port);
+        var cache = caches.get(upstream.base);
+        var cacheKey = cache == null ? null : cache.key(method, uri, headers);
+        if (cacheKey != null) {
+            var cached = cache.get(cacheKey);
+            if (cached != null) {
+                return CompletableFuture.completedFuture(
+                        new BlockingServerAdaptor.HttpCallResponse(
+                                cached.statusCode, cached.headers, cached.body));
+            }
+        }
+
+        if (!coalescing) {
+            return call(upstream, cache, cacheKey, method, uri, headers, body, timeout);
+        }
+        var flightKey = cache != null ? cacheKey : coalescingKey(method, uri, headers, body);
+        if (flightKey == null) {
+            return call(upstream, cache, cacheKey, method, uri, headers, body, timeout);
+        }
+
+        // identical calls join the one in flight, instead of sending their own.
+        flightKey = upstream.base + "\n" + flightKey;
+        var started = new CompletableFuture<BlockingServerAdaptor.HttpCallResponse>();
+        var flight = flights.putIfAbsent(flightKey, started);
+        if (flight == null) {
+            var key = flightKey;
+            call(upstream, cache, cacheKey, method, uri, headers, body, timeout)
+                    .whenComplete(
+                            (response, error) -> {
+                                flights.remove(key, started);
+                                if (error != null) {
+                                    started.completeExceptionally(error);
+                                } else {
+                                    started.complete(response);
+                                }
+                            });
+            flight = started;
+        } else {
+            upstream.metrics.coalesced.increment();
+        }
+
+        // every caller gets its own copy of the response, and cancelling it only detaches the
+        // caller from the call.
+        var result = flight.thenApply(HttpCalloutClient::copy);
+        if (timeout > 0) {
+            result.completeOnTimeout(failure(TIMED_OUT), timeout, TimeUnit.MILLISECONDS);
+        }
+        return result;
+    }
+
+    private CompletableFuture<BlockingServerAdaptor.HttpCallResponse> call(
+            Upstream upstream,
+            HttpCalloutCache cache,
+            String cacheKey,
+            String method,
+            URI uri,
+            ProxyMap headers,
+            byte[] body,
+            int timeout) {
+        var metrics = upstream.metrics;
+        if (!upstream.inFlight.tryAcquire()) {
+            metrics.rejected.increment();
+            return CompletableFuture.completedFuture(failure(REJECTED));
+        }
+        metrics.inFlight.incrementAndGet();
+
+        long start = System.nanoTime();
+        var sent = sendAsync(upstream, method, uri, headers, body, timeout);
+
+        var result = new CompletableFuture<BlockingServerAdaptor.HttpCallResponse>();
+        sent.whenComplete(
+                (response, error) -> {
+                    upstream.inFlight.release();
+                    metrics.inFlight.decrementAndGet();
+                    metrics.record(start);
+                    if (error == null) {
+                        metrics.requests.increment();
+                        var headersReceived = responseHeaders(response);
+                        if (cacheKey != null) {
+                            cache.put(
+                                    cacheKey,
+                                    response.statusCode(),
+                                    headersReceived,
+                                    response.body());
+                        }
+                        result.complete(
+                                new BlockingServerAdaptor.HttpCallResponse(
+                                        response.statusCode(), headersReceived, response.body()));
+                        return;
+                    }
+                    metrics.errors.increment();
+                    if (error instanceof CompletionException && error.getCause() != null) {
+                        error = error.getCause();
+                    }
+                    if (error instanceof HttpTimeoutException) {
+                        metrics.timeouts.increment();
+                        result.complete(failure(TIMED_OUT));
+                    } else {
+                        result.complete(failure(FAILED));
+                    }
+                });
+        // cancelling the call aborts the exchange.
+        result.whenComplete(
+                (response, error) -> {
+                    if (result.isCancelled()) {
+                        sent.cancel(true);
+                    }
+                });
+        return result;
+    }
+
+    // without a cache, only the calls without side effects are coalesced, when all their headers
+    // are the same.
+    private static String coalescingKey(String method, URI uri, ProxyMap headers, byte[] body) {
+        if (!("GET".equals(method) || "HEAD".equals(method)) || (body != null && body.length > 0)) {
+            return null;
+        }
+        var key = new StringBuilder(method).append(' ').append(uri.getRawPath());
+        if (uri.getRawQuery() != null) {
+            key.append('?').append(uri.getRawQuery());
+        }
+        for (var e : headers.entries()) {
+            key.append('\n').append(e.getKey()).append(": ").append(e.getValue());
+        }
+        return key.toString();
+    }
+
+    private static BlockingServerAdaptor.HttpCallResponse copy(
+            BlockingServerAdaptor.HttpCallResponse response) {
+        return new BlockingServerAdaptor.HttpCallResponse(
+                response.statusCode,
+                new ArrayProxyMap(response.headers),
+                response.body == null ? null : response.body.clone());
+    }
+
+    private static CompletableFuture<HttpResponse<byte[]>> sendAsync(
+            Upstream upstream, String method, URI uri, ProxyMap headers, byte[] body, int timeout) {
+        try {
+            var request = request(upstream, method, uri, headers, body, timeout);
+            return upstream.client.sendAsync(request, HttpResponse.BodyHandlers.ofByteArray());
+        } catch (RuntimeException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
+    private static HttpRequest request(
+            Upstream upstream, String method, URI uri, ProxyMap headers, byte[] body, int timeout) {
+        String path = uri.getRawPath();
+        if (path == null || path.isEmpty()) {
+            path = "/";
+        }
+        String query = uri.getRawQuery();
+        var builder =
+                HttpRequest.newBuilder(
+                        URI.create(upstream.base + path + (query == null ? "" : "?" + query)));
+        for (var e : headers.entries()) {
+            try {
+                builder.header(e.getKey(), e.getValue());
+            } catch (IllegalArgumentException ignore) {
+                // a header the client manages itself, like Host or Content-Length.
+            }
+        }
+        if (timeout > 0) {
+            builder.timeout(Duration.ofMillis(timeout));
+        }
+        var publisher =
+                body == null || body.length == 0
+                        ? HttpRequest.BodyPublishers.noBody()
+                        : HttpRequest.BodyPublishers.ofByteArray(body);
+        return builder.method(method, publisher).build();
+    }
+
+    private static ProxyMap responseHeaders(HttpResponse<?> response) {
+        var result = new ArrayProxyMap();
+        response.headers()
+                .map()
+                .forEach(
+                        (k, v) -> {
+                            for (var s : v) {
+                                result.add(k, s);
+                            }
+                        });
+        return result;
+    }
+
+    private static BlockingServerAdaptor.HttpCallResponse failure(int statusCode) {
+        return new BlockingServerAdaptor.HttpCallResponse(
+                statusCode, new ArrayProxyMap(), new byte[0]);
+    }
+}
@@ -3,16 +3,6 @@ package io.roastedroot.proxywasm.jaxrs.internal;
 import static io.roastedroot.proxywasm.internal.Helpers.bytes;
 import static io.roastedroot.proxywasm.internal.Helpers.int32;
 import static io.roastedroot.proxywasm.internal.Helpers.string;
-import static io.roastedroot.proxywasm.internal.WellKnownProperties.CONNECTION_DNS_SAN_LOCAL_CERTIFICATE;
-import static io.roastedroot.proxywasm.internal.WellKnownProperties.CONNECTION_DNS_SAN_PEER_CERTIFICATE;
-import static io.roastedroot.proxywasm.internal.WellKnownProperties.CONNECTION_ID;
-import static io.roastedroot.proxywasm.internal.WellKnownProperties.CONNECTION_MTLS;
-import static io.roastedroot.proxywasm.internal.WellKnownProperties.CONNECTION_REQUESTED_SERVER_NAME;
-import static io.roastedroot.proxywasm.internal.WellKnownProperties.CONNECTION_SHA256_PEER_CERTIFICATE_DIGEST;
-import static io.roastedroot.proxywasm.internal.WellKnownProperties.CONNECTION_SUBJECT_LOCAL_CERTIFICATE;
-import static io.roastedroot.proxywasm.internal.WellKnownProperties.CONNECTION_SUBJECT_PEER_CERTIFICATE;
-import static io.roastedroot.proxywasm.internal.WellKnownProperties.CONNECTION_URI_SAN_LOCAL_CERTIFICATE;
-import static io.roastedroot.proxywasm.internal.WellKnownProperties.CONNECTION_URI_SAN_PEER_CERTIFICATE;
 import static io.roastedroot.proxywasm.internal.WellKnownProperties.DESTINATION_ADDRESS;
 import static io.roastedroot.proxywasm.internal.WellKnownProperties.DESTINATION_PORT;
 import static io.roastedroot.proxywasm.internal.WellKnownProperties.REQUEST_DURATION;
@@ -26,17 +16,12 @@ import static io.roastedroot.proxywasm.internal.WellKnownProperties.REQUEST_REFE
 import static io.roastedroot.proxywasm.internal.WellKnownProperties.REQUEST_SCHEME;
 import static io.roastedroot.proxywasm.internal.WellKnownProperties.REQUEST_SIZE;
 import static io.roastedroot.proxywasm.internal.WellKnownProperties.REQUEST_TIME;
-import static io.roastedroot.proxywasm.internal.WellKnownProperties.REQUEST_TOTAL_SIZE;
 import static io.roastedroot.proxywasm.internal.WellKnownProperties.REQUEST_URL_PATH;
 import static io.roastedroot.proxywasm.internal.WellKnownProperties.REQUEST_USERAGENT;
-import static io.roastedroot.proxywasm.internal.WellKnownProperties.RESPONSE_BACKEND_LATENCY;
 import static io.roastedroot.proxywasm.internal.WellKnownProperties.RESPONSE_CODE;
 import static io.roastedroot.proxywasm.internal.WellKnownProperties.RESPONSE_CODE_DETAILS;
-import static io.roastedroot.proxywasm.internal.WellKnownProperties.RESPONSE_FLAGS;
-import static io.roastedroot.proxywasm.internal.WellKnownProperties.RESPONSE_GRPC_STATUS;
 import static io.roastedroot.proxywasm.internal.WellKnownProperties.RESPONSE_HEADERS;
 import static io.roastedroot.proxywasm.internal.WellKnownProperties.RESPONSE_SIZE;
-import static io.roastedroot.proxywasm.internal.WellKnownProperties.RESPONSE_TOTAL_SIZE;
 import static io.roastedroot.proxywasm.internal.WellKnownProperties.RESPONSE_TRAILERS;
 import static io.roastedroot.proxywasm.internal.WellKnownProperties.SOURCE_ADDRESS;
 import static io.roastedroot.proxywasm.internal.WellKnownProperties.SOURCE_PORT;
@@ -49,20 +34,25 @@ import io.roastedroot.proxywasm.internal.ProxyMap;
 import io.roastedroot.proxywasm.internal.SplitProxyMap;
 import io.roastedroot.proxywasm.internal.WasmResult;
 import io.roastedroot.proxywasm.internal.WellKnownHeaders;
-import io.roastedroot.proxywasm.internal.WellKnownProperties;
 import jakarta.ws.rs.container.ContainerRequestContext;
 import jakarta.ws.rs.container.ContainerResponseContext;
 import jakarta.ws.rs.core.UriBuilder;
 import java.net.URI;
 import java.time.Duration;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Set;
 
 public class JaxrsHttpRequestAdaptor implements HttpRequestAdaptor {
 
     private ContainerRequestContext requestContext;
     private ContainerResponseContext responseContext;
 
+    // the plugin reads the headers many times per callback, so keep a byte based copy of them.
+    private ProxyMap requestHeaders;
+    private ProxyMap responseHeaders;
+
     private final long startedAt = System.currentTimeMillis();
 
     public ContainerRequestContext getRequestContext() {
@@ -71,6 +61,7 @@ public class JaxrsHttpRequestAdaptor implements HttpRequestAdaptor {
 
     public void setRequestContext(ContainerRequestContext requestContext) {
         this.requestContext = requestContext;
+        this.requestHeaders = null;
     }
 
     public ContainerResponseContext getResponseContext() {
@@ -79,6 +70,9 @@ public class JaxrsHttpRequestAdaptor implements HttpRequestAdaptor {
 
     public void setResponseContext(ContainerResponseContext responseContext) {
         this.responseContext = responseContext;
+        // other filters may have changed the request headers since the request phase.
+        this.requestHeaders = null;
+        this.responseHeaders = null;
     }
 
     @Override
@@ -119,6 +113,9 @@ public class JaxrsHttpRequestAdaptor implements HttpRequestAdaptor {
 
     @Override
     public ProxyMap getHttpRequestHeaders() {
+        if (requestHeaders != null) {
+            return requestHeaders;
+        }
         URI requestUri = requestContext.getUriInfo().getRequestUri();
         ArrayProxyMap wellKnownHeaders = new ArrayProxyMap();
         wellKnownHeaders.add(WellKnownHeaders.AUTHORITY, requestUri.getAuthority());
@@ -132,8 +129,12 @@ public class JaxrsHttpRequestAdaptor implements HttpRequestAdaptor {
             path += "?" + requestUri.getRawQuery();
         }
         wellKnownHeaders.add(WellKnownHeaders.PATH, path);
-        return new SplitProxyMap(
-                wellKnownHeaders, new MultivaluedMapAdaptor<>(requestContext.getHeaders()));
+        requestHeaders =
+                new WriteThroughProxyMap(
+                        new SplitProxyMap(
+                                wellKnownHeaders,
+                                new MultivaluedMapAdaptor<>(requestContext.getHeaders())));
+        return requestHeaders;
     }
 
     @Override
@@ -143,10 +144,17 @@ public class JaxrsHttpRequestAdaptor implements HttpRequestAdaptor {
 
     @Override
     public ProxyMap getHttpResponseHeaders() {
+        if (responseHeaders != null) {
+            return responseHeaders;
+        }
         ArrayProxyMap wellKnownHeaders = new ArrayProxyMap();
         wellKnownHeaders.add(WellKnownHeaders.STATUS, "" + responseContext.getStatus());
-        return new SplitProxyMap(
-                wellKnownHeaders, new MultivaluedMapAdaptor<>(responseContext.getHeaders()));
+        responseHeaders =
+                new WriteThroughProxyMap(
+                        new SplitProxyMap(
+                                wellKnownHeaders,
+                                new MultivaluedMapAdaptor<>(responseContext.getHeaders())));
+        return responseHeaders;
     }
 
     @Override
@@ -164,189 +172,147 @@ public class JaxrsHttpRequestAdaptor implements HttpRequestAdaptor {
         return null;
     }
 
-    @Override
-    public byte[] getProperty(PluginHttpContext pluginRequest, List<String> path)
-            throws WasmException {
+    // //////////////////////////////////////////////////////////////////////
+    // Properties
+    // //////////////////////////////////////////////////////////////////////
 
-        // Check to see if it's a well known property
+    @FunctionalInterface
+    private interface PropertyGetter {
+        byte[] get(JaxrsHttpRequestAdaptor adaptor, PluginHttpContext pluginRequest)
+                throws WasmException;
+    }
 
+    // the well known properties we can resolve, looked up with a single hash lookup instead of
+    // comparing the path against every known property.
+    private static final HashMap<List<String>, PropertyGetter> PROPERTY_GETTERS = new HashMap<>();
+
+    // properties derived only from the request method and uri, see PropertyMemo.
+    private static final Set<List<String>> REQUEST_LINE_PROPERTIES =
+            Set.of(
+                    REQUEST_PATH,
+                    REQUEST_URL_PATH,
+                    REQUEST_QUERY,
+                    REQUEST_HOST,
+                    REQUEST_SCHEME,
+                    REQUEST_METHOD);
+
+    static {
         // Downstream connection properties
-        if (CONNECTION_ID.equals(path)) {
-            // Do we need to generate one?
-            return null;
-        } else if (SOURCE_ADDRESS.equals(path)) {
-            return bytes(remoteAddress());
-        } else if (SOURCE_PORT.equals(path)) {
-            // Port attribute is populated as uint64 (8 byte)
-            // Ref:
-            // https://github.com/envoyproxy/envoy/blob/1b3da361279a54956f01abba830fc5d3a5421828/source/common/network/utility.cc#L201
-            return bytes((long) remotePort());
-        } else if (DESTINATION_ADDRESS.equals(path)) {
-            return bytes(localAddress());
-        } else if (DESTINATION_PORT.equals(path)) {
-            // Port attribute is populated as uint64 (8 byte)
-            // Ref:
-            // https://github.com/envoyproxy/envoy/blob/1b3da361279a54956f01abba830fc5d3a5421828/source/common/network/utility.cc#L201
-            return bytes((long) localPort());
-        }
-
-        // TODO: get TLS connection properties
-        else if (WellKnownProperties.CONNECTION_TLS_VERSION.equals(path)) {
-            // TODO:
-            return null;
-        } else if (CONNECTION_REQUESTED_SERVER_NAME.equals(path)) {
-            // TODO:
-            return null;
-        } else if (CONNECTION_MTLS.equals(path)) {
-            // TODO:
-            return null;
-        } else if (CONNECTION_SUBJECT_LOCAL_CERTIFICATE.equals(path)) {
-            // TODO:
-            return null;
-        } else if (CONNECTION_SUBJECT_PEER_CERTIFICATE.equals(path)) {
-            // TODO:
-            return null;
-        } else if (CONNECTION_DNS_SAN_LOCAL_CERTIFICATE.equals(path)) {
-            // TODO:
-            return null;
-        } else if (CONNECTION_DNS_SAN_PEER_CERTIFICATE.equals(path)) {
-            // TODO:
-            return null;
-        } else if (CONNECTION_URI_SAN_LOCAL_CERTIFICATE.equals(path)) {
-            // TODO:
-            return null;
-        } else if (CONNECTION_URI_SAN_PEER_CERTIFICATE.equals(path)) {
-            // TODO:
-            return null;
-        } else if (CONNECTION_SHA256_PEER_CERTIFICATE_DIGEST.equals(path)) {
-            // TODO:
-            return null;
-
-        } else if (REQUEST_PATH.equals(path)) {
-            // The path + query portion of the URL
-
-            if (requestContext == null) {
-                return null;
-            }
+        PROPERTY_GETTERS.put(SOURCE_ADDRESS, (a, r) -> bytes(a.remoteAddress()));
+        // Port attribute is populated as uint64 (8 byte)
+        // Ref:
+        // https://github.com/envoyproxy/envoy/blob/1b3da361279a54956f01abba830fc5d3a5421828/source/common/network/utility.cc#L201
+        PROPERTY_GETTERS.put(SOURCE_PORT, (a, r) -> bytes((long) a.remotePort()));
+        PROPERTY_GETTERS.put(DESTINATION_ADDRESS, (a, r) -> bytes(a.localAddress()));
+        PROPERTY_GETTERS.put(DESTINATION_PORT, (a, r) -> bytes((long) a.localPort()));
+        // TODO: connection id and TLS connection properties
+
+        PROPERTY_GETTERS.put(
+                REQUEST_PATH,
+                (a, r) -> {
+                    // The path + query portion of the URL
+                    URI requestUri = a.requestContext.getUriInfo().getRequestUri();
+                    return bytes(
+                            requestUri.getRawPath()
+                                    + (requestUri.getRawQuery() != null
+                                            ? "?" + requestUri.getRawQuery()
+                                            : ""));
+                });
+        // The path without query portion of the URL
+        PROPERTY_GETTERS.put(
+                REQUEST_URL_PATH,
+                (a, r) -> bytes(a.requestContext.getUriInfo().getRequestUri().getRawPath()));
+        PROPERTY_GETTERS.put(
+                REQUEST_QUERY,
+                (a, r) -> bytes(a.requestContext.getUriInfo().getRequestUri().getQuery()));
+        PROPERTY_GETTERS.put(
+                REQUEST_HOST,
+                (a, r) -> bytes(a.requestContext.getUriInfo().getRequestUri().getHost()));
+        PROPERTY_GETTERS.put(
+                REQUEST_SCHEME,
+                (a, r) -> bytes(a.requestContext.getUriInfo().getRequestUri().getScheme()));
+        PROPERTY_GETTERS.put(REQUEST_METHOD, (a, r) -> bytes(a.requestContext.getMethod()));
+        PROPERTY_GETTERS.put(
+                REQUEST_HEADERS,
+                (a, r) -> {
+                    var headers = a.getHttpRequestHeaders();
+                    return headers == null ? null : headers.encode();
+                });
+        PROPERTY_GETTERS.put(REQUEST_REFERER, (a, r) -> a.requestHeader("Referer"));
+        PROPERTY_GETTERS.put(REQUEST_USERAGENT, (a, r) -> a.requestHeader("User-Agent"));
 
-            URI requestUri = requestContext.getUriInfo().getRequestUri();
-            var result =
-                    requestUri.getRawPath()
-                            + (requestUri.getRawQuery() != null
-                                    ? "?" + requestUri.getRawQuery()
-                                    : "");
-            return bytes(result);
-        } else if (REQUEST_URL_PATH.equals(path)) {
-
-            // The path without query portion of the URL
-            if (requestContext == null) {
-                return null;
-            }
-            URI requestUri = requestContext.getUriInfo().getRequestUri();
-            return bytes(requestUri.getRawPath());
-
-        } else if (REQUEST_QUERY.equals(path)) {
-            if (requestContext == null) {
-                return null;
-            }
-            return bytes(requestContext.getUriInfo().getRequestUri().getQuery());
-
-        } else if (REQUEST_HOST.equals(path)) {
-            if (requestContext == null) {
-                return null;
-            }
-            return bytes(requestContext.getUriInfo().getRequestUri().getHost());
-        } else if (REQUEST_SCHEME.equals(path)) {
-            if (requestContext == null) {
-                return null;
-            }
-            return bytes(requestContext.getUriInfo().getRequestUri().getScheme());
-        } else if (REQUEST_METHOD.equals(path)) {
-            if (requestContext == null) {
-                return null;
-            }
-            return bytes(requestContext.getMethod());
-        } else if (REQUEST_HEADERS.equals(path)) {
-            var headers = getHttpRequestHeaders();
-            if (headers == null) {
-                return null;
-            }
-            return headers.encode();
+        // HTTP request properties
+        PROPERTY_GETTERS.put(REQUEST_PROTOCOL, (a, r) -> bytes(a.protocol()));
+        PROPERTY_GETTERS.put(REQUEST_TIME, (a, r) -> bytes(new Date(a.startedAt)));
+        PROPERTY_GETTERS.put(
+                REQUEST_DURATION,
+                (a, r) -> bytes(Duration.ofMillis((System.currentTimeMillis() - a.startedAt))));
+        PROPERTY_GETTERS.put(REQUEST_SIZE, (a, r) -> bytes(r.getHttpRequestBodyBuffer().length()));
+        // TODO: request total size
 
-        } else if (REQUEST_REFERER.equals(path)) {
-            if (requestContext == null) {
-                return null;
-            }
-            return bytes(requestContext.getHeaderString("Referer"));
-        } else if (REQUEST_USERAGENT.equals(path)) {
-            if (requestContext == null) {
-                return null;
-            }
-            return bytes(requestContext.getHeaderString("User-Agent"));
-        }
+        // HTTP response properties
+        PROPERTY_GETTERS.put(RESPONSE_CODE, (a, r) -> bytes(a.responseContext.getStatus()));
+        PROPERTY_GETTERS.put(
+                RESPONSE_CODE_DETAILS,
+                (a, r) -> bytes(a.responseContext.getStatusInfo().getReasonPhrase()));
+        // TODO: response flags, grpc status and backend latency
+        PROPERTY_GETTERS.put(
+                RESPONSE_HEADERS,
+                (a, r) -> {
+                    var headers = a.getHttpResponseHeaders();
+                    return headers == null ? null : headers.encode();
+                });
+        PROPERTY_GETTERS.put(
+                RESPONSE_TRAILERS,
+                (a, r) -> {
+                    var headers = a.getHttpResponseTrailers();
+                    return headers == null ? null : headers.encode();
+                });
+        PROPERTY_GETTERS.put(
+                RESPONSE_SIZE, (a, r) -> bytes(r.getHttpResponseBodyBuffer().length()));
+        // TODO: response total size
+    }
 
-        // HTTP request properties
-        else if (REQUEST_PROTOCOL.equals(path)) {
-            return bytes(protocol());
-        } else if (REQUEST_TIME.equals(path)) {
-            return bytes(new Date(startedAt));
-        } else if (REQUEST_DURATION.equals(path)) {
-            return bytes(Duration.ofMillis((System.currentTimeMillis() - startedAt)));
-        } else if (REQUEST_SIZE.equals(path)) {
-            var httpRequestBody = pluginRequest.getHttpRequestBody();
-            if (httpRequestBody == null) {
-                return null;
-            }
-            return bytes(httpRequestBody.length);
-        } else if (REQUEST_TOTAL_SIZE.equals(path)) {
-            // TODO: how can we do this?
+    private byte[] requestHeader(String name) {
+        if (requestContext == null) {
             return null;
         }
+        return bytes(requestContext.getHeaderString(name));
+    }
 
-        // HTTP response properties
-        else if (RESPONSE_CODE.equals(path)) {
-            return bytes(responseContext.getStatus());
-        } else if (RESPONSE_CODE_DETAILS.equals(path)) {
-            return bytes(responseContext.getStatusInfo().getReasonPhrase());
-        } else if (RESPONSE_FLAGS.equals(path)) {
-            // TODO: implement response flags retrieval
-            return null;
-        } else if (RESPONSE_GRPC_STATUS.equals(path)) {
-            // TODO: implement gRPC status retrieval
-            return null;
-        } else if (RESPONSE_HEADERS.equals(path)) {
-            var headers = getHttpResponseHeaders();
-            if (headers == null) {
-                return null;
-            }
-            return headers.encode();
-        } else if (RESPONSE_TRAILERS.equals(path)) {
-            var headers = getHttpResponseTrailers();
-            if (headers == null) {
-                return null;
-            }
-            return headers.encode();
-        } else if (RESPONSE_BACKEND_LATENCY.equals(path)) {
-            // TODO: implement backend latency retrieval
+    @Override
+    public byte[] getProperty(PluginHttpContext pluginRequest, List<String> path)
+            throws WasmException {
+        PropertyGetter getter = PROPERTY_GETTERS.get(path);
+        if (getter == null) {
             return null;
-        } else if (RESPONSE_SIZE.equals(path)) {
-            var httpResponseBody = pluginRequest.getHttpResponseBody();
-            if (httpResponseBody == null) {
-                return null;
-            }
-            return bytes(httpResponseBody.length);
-        } else if (RESPONSE_TOTAL_SIZE.equals(path)) {
-            // TODO: how can we do this?
+        }
+        if (!REQUEST_LINE_PROPERTIES.contains(path)) {
+            return getter.get(this, pluginRequest);
+        }
+        if (requestContext == null) {
             return null;
         }
 
-        return null;
+        // the plugins filtering the request share the memo, so each of these is only computed
+        // once per request.
+        var memo = PropertyMemo.of(requestContext);
+        byte[] result = memo.get(path);
+        if (result == null) {
+            result = getter.get(this, pluginRequest);
+            memo.put(path, result);
+        }
+        return result;
     }
 
     @Override
     public WasmResult setProperty(
             PluginHttpContext pluginRequest, List<String> path, byte[] value) {
 
+        if (requestContext != null) {
+            PropertyMemo.of(requestContext).clear();
+        }
+
         // Check to see if it's a well known property
         if (REQUEST_PATH.equals(path)) {
             // The path + query portion of the URL
@@ -362,6 +328,7 @@ public class JaxrsHttpRequestAdaptor implements HttpRequestAdaptor {
                             .replaceQuery(pathAndQuery.getQuery())
                             .build();
             requestContext.setRequestUri(uri);
+            requestHeaders = null;
 
         } else if (REQUEST_URL_PATH.equals(path)) {
             // The path portion of the URL
@@ -372,6 +339,7 @@ public class JaxrsHttpRequestAdaptor implements HttpRequestAdaptor {
             var uri = requestContext.getUriInfo().getRequestUri();
             uri = UriBuilder.fromUri(uri).replacePath(string(value)).build();
             requestContext.setRequestUri(uri);
+            requestHeaders = null;
         } else if (REQUEST_QUERY.equals(path)) {
             if (requestContext == null) {
                 return null;
@@ -380,6 +348,7 @@ public class JaxrsHttpRequestAdaptor implements HttpRequestAdaptor {
             var uri = requestContext.getUriInfo().getRequestUri();
             uri = UriBuilder.fromUri(uri).replaceQuery(string(value)).build();
             requestContext.setRequestUri(uri);
+            requestHeaders = null;
 
         } else if (REQUEST_HOST.equals(path)) {
             if (requestContext == null) {
@@ -388,6 +357,7 @@ public class JaxrsHttpRequestAdaptor implements HttpRequestAdaptor {
             var uri = requestContext.getUriInfo().getRequestUri();
             uri = UriBuilder.fromUri(uri).host(string(value)).build();
             requestContext.setRequestUri(uri);
+            requestHeaders = null;
 
         } else if (REQUEST_SCHEME.equals(path)) {
 
@@ -397,11 +367,13 @@ public class JaxrsHttpRequestAdaptor implements HttpRequestAdaptor {
             var uri = requestContext.getUriInfo().getRequestUri();
             uri = UriBuilder.fromUri(uri).scheme(string(value)).build();
             requestContext.setRequestUri(uri);
+            requestHeaders = null;
         } else if (REQUEST_METHOD.equals(path)) {
             if (requestContext == null) {
                 return null;
             }
             requestContext.setMethod(string(value));
+            requestHeaders = null;
         } else if (REQUEST_HEADERS.equals(path)) {
             // TODO:
         } else if (REQUEST_REFERER.equals(path)) {
@@ -409,11 +381,13 @@ public class JaxrsHttpRequestAdaptor implements HttpRequestAdaptor {
                 return null;
             }
             requestContext.getHeaders().putSingle("Referer", string(value));
+            requestHeaders = null;
         } else if (REQUEST_USERAGENT.equals(path)) {
             if (requestContext == null) {
                 return null;
             }
             requestContext.getHeaders().putSingle("User-Agent", string(value));
+            requestHeaders = null;
         }
 
         // HTTP request properties
@@ -424,11 +398,13 @@ public class JaxrsHttpRequestAdaptor implements HttpRequestAdaptor {
             var uri = requestContext.getUriInfo().getRequestUri();
             uri = UriBuilder.fromUri(uri).scheme(string(value)).build();
             requestContext.setRequestUri(uri);
+            requestHeaders = null;
         }
 
         // HTTP response properties
         else if (RESPONSE_CODE.equals(path)) {
             responseContext.setStatus(int32(value));
+            responseHeaders = null;
         } else if (RESPONSE_CODE_DETAILS.equals(path)) {
             // TODO:
         } else if (RESPONSE_HEADERS.equals(path)) {
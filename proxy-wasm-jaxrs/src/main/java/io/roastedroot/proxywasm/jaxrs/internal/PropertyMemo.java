@@ -0,0 +1,54 @@
+package io.roastedroot.proxywasm.jaxrs.internal;
+
+import jakarta.ws.rs.container.ContainerRequestContext;
+import java.net.URI;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * Remembers the encoded values of the properties derived from the request method and uri, for
+ * the duration of a request.
+ *
+ * <p>Every plugin filtering a request has its own {@link JaxrsHttpRequestAdaptor}, so the memo is
+ * kept as a property of the request context to be shared by all of them.  It is dropped when the
+ * request uri or method change, whoever changes them.
+ */
+final class PropertyMemo {
+
+    private static final String KEY = PropertyMemo.class.getName();
+
+    private final HashMap<List<String>, byte[]> values = new HashMap<>();
+    private URI uri;
+    private String method;
+
+    static PropertyMemo of(ContainerRequestContext requestContext) {
+        var memo = (PropertyMemo) requestContext.getProperty(KEY);
+        if (memo == null) {
+            memo = new PropertyMemo();
+            requestContext.setProperty(KEY, memo);
+        }
+        URI uri = requestContext.getUriInfo().getRequestUri();
+        String method = requestContext.getMethod();
+        // setting a new request uri replaces the URI instance, so comparing references is enough
+        // and avoids comparing the whole uri on every lookup.
+        if (memo.uri != uri || !Objects.equals(memo.method, method)) {
+            memo.values.clear();
+            memo.uri = uri;
+            memo.method = method;
+        }
+        return memo;
+    }
+
+    byte[] get(List<String> path) {
+        return values.get(path);
+    }
+
+    void put(List<String> path, byte[] value) {
+        values.put(path, value);
+    }
+
+    void clear() {
+        values.clear();
+    }
+}
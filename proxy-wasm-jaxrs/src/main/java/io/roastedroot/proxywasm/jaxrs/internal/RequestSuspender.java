@@ -0,0 +1,118 @@
+package io.roastedroot.proxywasm.jaxrs.internal;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+
+/**
+ * Suspends and resumes the filter chain of a request, for the JAX-RS implementations that
+ * support it.
+ *
+ * <p>JAX-RS has no API to suspend a request filter: when {@code filter()} returns, the next
+ * filter runs.  Some implementations let the request context suspend the chain until it is
+ * resumed from another thread, like RESTEasy Reactive (used by Quarkus) with the
+ * {@code suspend()}, {@code resume()} and {@code resume(Throwable)} methods of its request
+ * contexts.  The methods are looked up by name, so that this module doesn't depend on any
+ * implementation.  Jersey has no such methods, so its requests are never suspended.
+ */
+public final class RequestSuspender {
+
+    private static final class Methods {
+        final Method suspend;
+        final Method resume;
+        final Method resumeWithError;
+
+        Methods(Method suspend, Method resume, Method resumeWithError) {
+            this.suspend = suspend;
+            this.resume = resume;
+            this.resumeWithError = resumeWithError;
+        }
+    }
+
+    private static final ClassValue<Methods> METHODS =
+            new ClassValue<>() {
+                @Override
+                protected Methods computeValue(Class<?> type) {
+                    var suspend = publicMethod(type, "suspend");
+                    var resume = publicMethod(type, "resume");
+                    var resumeWithError = publicMethod(type, "resume", Throwable.class);
+                    if (suspend == null || resume == null || resumeWithError == null) {
+                        return null;
+                    }
+                    return new Methods(suspend, resume, resumeWithError);
+                }
+            };
+
+    private RequestSuspender() {}
+
+    /**
+     * Suspends the filter chain of the request, if the JAX-RS implementation supports it.
+     *
+     * @return true if the request was suspended, it must then be resumed with
+     *     {@link #resume(Object, Throwable)}.
+     */
+    public static boolean suspend(Object requestContext) {
+        var methods = METHODS.get(requestContext.getClass());
+        if (methods == null) {
+            return false;
+        }
+        try {
+            methods.suspend.invoke(requestContext);
+            return true;
+        } catch (IllegalAccessException | InvocationTargetException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Resumes the filter chain of a suspended request.
+     *
+     * @param error the error to fail the request with, or null to run the next filter.
+     */
+    public static void resume(Object requestContext, Throwable error) {
+        var methods = METHODS.get(requestContext.getClass());
+        try {
+            if (error == null) {
+                methods.resume.invoke(requestContext);
+            } else {
+                methods.resumeWithError.invoke(requestContext, error);
+            }
+        } catch (IllegalAccessException e) {
+            throw new IllegalStateException(e);
+        } catch (InvocationTargetException e) {
+            var cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IllegalStateException(cause);
+        }
+    }
+
+    // request contexts are usually instances of non-public classes, so the method has to be
+    // called through a public class or interface declaring it.
+    private static Method publicMethod(Class<?> type, String name, Class<?>... parameterTypes) {
+        var types = new ArrayDeque<Class<?>>();
+        types.add(type);
+        while (!types.isEmpty()) {
+            var candidate = types.poll();
+            if (Modifier.isPublic(candidate.getModifiers())) {
+                try {
+                    var method = candidate.getDeclaredMethod(name, parameterTypes);
+                    if (Modifier.isPublic(method.getModifiers())
+                            && !Modifier.isStatic(method.getModifiers())) {
+                        return method;
+                    }
+                } catch (NoSuchMethodException e) {
+                    // look in the super types.
+                }
+            }
+            if (candidate.getSuperclass() != null) {
+                types.add(candidate.getSuperclass());
+            }
+            types.addAll(Arrays.asList(candidate.getInterfaces()));
+        }
+        return null;
+    }
+}
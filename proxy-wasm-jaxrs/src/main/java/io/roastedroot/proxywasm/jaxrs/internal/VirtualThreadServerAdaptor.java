@@ -0,0 +1,505 @@
+package io.roastedroot.proxywasm.jaxrs.internal;
+
+import io.roastedroot.proxywasm.internal.ArrayBytesProxyMap;
+import io.roastedroot.proxywasm.internal.ArrayProxyMap;
+import io.roastedroot.proxywasm.internal.GrpcCallResponseHandler;
+import io.roastedroot.proxywasm.internal.GrpcStream;
+import io.roastedroot.proxywasm.internal.HttpCallResponseHandler;
+import io.roastedroot.proxywasm.internal.HttpRequestAdaptor;
+import io.roastedroot.proxywasm.internal.ProxyMap;
+import io.roastedroot.proxywasm.internal.ServerAdaptor;
+import java.lang.reflect.InvocationTargetException;
+import java.net.URI;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * A ServerAdaptor that runs http calls and tick events on virtual threads, when the JVM
+ * supports them (Java 21+), and limits how many of them and of gRPC calls and streams each
+ * plugin can have running at once.
+ *
+ * <p>The {@link BlockingServerAdaptor} runs all the http calls of all the plugins on a small
+ * shared thread pool, so a plugin with slow upstreams delays the calls of every other plugin.
+ * Here every call gets its own virtual thread, and a plugin that already has
+ * {@code maxConcurrencyPerPlugin} calls and ticks running waits for one of them to complete
+ * before its next call starts.  Ticks are skipped instead of queued while the previous tick of
+ * the same timer is still running or the plugin is at its limit.  A gRPC call holds its place
+ * until it closes, and waits for a place like an http call, but a gRPC stream may stay open for
+ * long, so one opened while the plugin is at its limit fails with {@code RESOURCE_EXHAUSTED}
+ * instead.
+ *
+ * <p>On older JVMs, the tasks run on a cached pool of daemon platform threads instead, with the
+ * same per plugin limits.
+ */
+public class VirtualThreadServerAdaptor extends BlockingServerAdaptor {
+
+    /**
+     * The default maximum number of http calls, gRPC calls and streams, and ticks a plugin can
+     * have running at once.
+     */
+    public static final int DEFAULT_MAX_CONCURRENCY_PER_PLUGIN = 256;
+
+    private final int maxConcurrencyPerPlugin;
+    private final ExecutorService tasks;
+    private final boolean virtualThreads;
+    private final ConcurrentHashMap<String, Semaphore> limits = new ConcurrentHashMap<>();
+
+    public VirtualThreadServerAdaptor() {
+        this(DEFAULT_MAX_CONCURRENCY_PER_PLUGIN);
+    }
+
+    public VirtualThreadServerAdaptor(int maxConcurrencyPerPlugin) {
+        if (maxConcurrencyPerPlugin < 1) {
+            throw new IllegalArgumentException("maxConcurrencyPerPlugin must be at least 1");
+        }
+        this.maxConcurrencyPerPlugin = maxConcurrencyPerPlugin;
+        var executor = newVirtualThreadExecutor();
+        this.virtualThreads = executor != null;
+        this.tasks = virtualThreads ? executor : newPlatformThreadExecutor();
+    }
+
+    /**
+     * Returns true if the tasks run on virtual threads, false if the JVM does not support them.
+     */
+    public boolean usesVirtualThreads() {
+        return virtualThreads;
+    }
+
+    // the project targets Java 11, so the virtual thread API is looked up at runtime.
+    private static ExecutorService newVirtualThreadExecutor() {
+        try {
+            return (ExecutorService)
+                    Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (NoSuchMethodException | IllegalAccessException | InvocationTargetException e) {
+            // not available, or a preview feature on Java 19 and 20.
+            return null;
+        }
+    }
+
+    private static ExecutorService newPlatformThreadExecutor() {
+        return Executors.newCachedThreadPool(
+                r -> {
+                    Thread t = new Thread(r, "proxy-wasm-task");
+                    t.setDaemon(true);
+                    return t;
+                });
+    }
+
+    @Override
+    public Executor resumeExecutor() {
+        return nonBlockingPause ? tasks : null;
+    }
+
+    private Semaphore limit(String pluginName) {
+        return limits.computeIfAbsent(
+                pluginName == null ? "" : pluginName, k -> new Semaphore(maxConcurrencyPerPlugin));
+    }
+
+    @Override
+    public ServerAdaptor forPlugin(String pluginName) {
+        var limit = limit(pluginName);
+        return new ServerAdaptor() {
+            @Override
+            public Runnable scheduleTick(long delay, Runnable task) {
+                return VirtualThreadServerAdaptor.this.scheduleTick(limit, delay, task);
+            }
+
+            @Override
+            public HttpRequestAdaptor httpRequestAdaptor(Object context) {
+                return VirtualThreadServerAdaptor.this.httpRequestAdaptor(context);
+            }
+
+            @Override
+            public Runnable scheduleHttpCall(
+                    String method,
+                    String host,
+                    int port,
+                    URI uri,
+                    ProxyMap headers,
+                    byte[] body,
+                    ProxyMap trailers,
+                    int timeout,
+                    HttpCallResponseHandler handler) {
+                return VirtualThreadServerAdaptor.this.scheduleHttpCall(
+                        limit, method, host, port, uri, headers, body, timeout, handler);
+            }
+
+            @Override
+            public Runnable scheduleGrpcCall(
+                    String host,
+                    int port,
+                    boolean plainText,
+                    String serviceName,
+                    String methodName,
+                    ProxyMap headers,
+                    byte[] message,
+                    int timeoutMillis,
+                    GrpcCallResponseHandler handler)
+                    throws InterruptedException {
+                return VirtualThreadServerAdaptor.this.scheduleGrpcCall(
+                        limit,
+                        host,
+                        port,
+                        plainText,
+                        serviceName,
+                        methodName,
+                        headers,
+                        message,
+                        timeoutMillis,
+                        handler);
+            }
+
+            @Override
+            public GrpcStream scheduleGrpcStream(
+                    String host,
+                    int port,
+                    boolean plainText,
+                    String serviceName,
+                    String methodName,
+                    ProxyMap headers,
+                    GrpcCallResponseHandler handler)
+                    throws InterruptedException {
+                return VirtualThreadServerAdaptor.this.scheduleGrpcStream(
+                        limit, host, port, plainText, serviceName, methodName, headers, handler);
+            }
+        };
+    }
+
+    @Override
+    public Runnable scheduleTick(long delay, Runnable task) {
+        return scheduleTick(limit(null), delay, task);
+    }
+
+    @Override
+    public Runnable scheduleHttpCall(
+            String method,
+            String host,
+            int port,
+            URI uri,
+            ProxyMap headers,
+            byte[] body,
+            ProxyMap trailers,
+            int timeout,
+            HttpCallResponseHandler handler) {
+        return scheduleHttpCall(
+                limit(null), method, host, port, uri, headers, body, timeout, handler);
+    }
+
+    @Override
+    public Runnable scheduleGrpcCall(
+            String host,
+            int port,
+            boolean plainText,
+            String serviceName,
+            String methodName,
+            ProxyMap headers,
+            byte[] message,
+            int timeoutMillis,
+            GrpcCallResponseHandler handler) {
+        return scheduleGrpcCall(
+                limit(null),
+                host,
+                port,
+                plainText,
+                serviceName,
+                methodName,
+                headers,
+                message,
+                timeoutMillis,
+                handler);
+    }
+
+    @Override
+    public GrpcStream scheduleGrpcStream(
+            String host,
+            int port,
+            boolean plainText,
+            String serviceName,
+            String methodName,
+            ProxyMap headers,
+            GrpcCallResponseHandler handler) {
+        return scheduleGrpcStream(
+                limit(null), host, port, plainText, serviceName, methodName, headers, handler);
+    }
+
+    private Runnable scheduleTick(Semaphore limit, long delay, Runnable task) {
+        // the scheduler thread only hands the ticks over, so a slow plugin can't delay the
+        // ticks of the other plugins.
+        var running = new AtomicBoolean();
+        Runnable tick =
+                () -> {
+                    if (!running.compareAndSet(false, true)) {
+                        return;
+                    }
+                    if (!limit.tryAcquire()) {
+                        running.set(false);
+                        return;
+                    }
+                    tasks.execute(
+                            () -> {
+                                try {
+                                    task.run();
+                                } finally {
+                                    limit.release();
+                                    running.set(false);
+                                }
+                            });
+                };
+        var f = tickExecutorService.scheduleAtFixedRate(tick, delay, delay, TimeUnit.MILLISECONDS);
+        return () -> {
+            f.cancel(false);
+        };
+    }
+
+    private Runnable scheduleHttpCall(
+            Semaphore limit,
+            String method,
+            String host,
+            int port,
+            URI uri,
+            ProxyMap headers,
+            byte[] body,
+            int timeout,
+            HttpCallResponseHandler handler) {
+        long start = System.nanoTime();
+        var f =
+                tasks.submit(
+                        () -> {
+                            try {
+                                limit.acquire();
+                            } catch (InterruptedException e) {
+                                // cancelled while waiting for the plugin's limit.
+                                return;
+                            }
+                            try {
+                                // the time spent waiting for the limit counts against the
+                                // timeout.
+                                int remaining = timeout;
+                                if (timeout > 0) {
+                                    long waited =
+                                            TimeUnit.NANOSECONDS.toMillis(
+                                                    System.nanoTime() - start);
+                                    remaining = (int) Math.max(1, timeout - waited);
+                                }
+                                HttpCallResponse resp;
+                                try {
+                                    var call =
+                                            callouts.send(
+                                                    method, host, port, uri, headers, body,
+                                                    remaining);
+                                    try {
+                                        resp = call.get();
+                                    } catch (InterruptedException e) {
+                                        call.cancel(true);
+                                        return;
+                                    }
+                                } catch (ExecutionException | RuntimeException e) {
+                                    // the plugin gets the response of a call that couldn't be
+                                    // sent, so that it resumes the request.
+                                    resp =
+                                            new HttpCallResponse(
+                                                    HttpCalloutClient.FAILED,
+                                                    new ArrayProxyMap(),
+                                                    new byte[0]);
+                                }
+                                handler.call(resp.statusCode, resp.headers, resp.body);
+                            } finally {
+                                limit.release();
+                            }
+                        });
+        return () -> {
+            f.cancel(true);
+        };
+    }
+
+    private Runnable scheduleGrpcCall(
+            Semaphore limit,
+            String host,
+            int port,
+            boolean plainText,
+            String serviceName,
+            String methodName,
+            ProxyMap headers,
+            byte[] message,
+            int timeoutMillis,
+            GrpcCallResponseHandler handler) {
+        long start = System.nanoTime();
+        Runnable release = releaser(limit);
+        var call = new AtomicReference<Runnable>();
+        var cancelled = new AtomicBoolean();
+        var f =
+                tasks.submit(
+                        () -> {
+                            try {
+                                limit.acquire();
+                            } catch (InterruptedException e) {
+                                // cancelled while waiting for the plugin's limit.
+                                return;
+                            }
+                            // the time spent waiting for the limit counts against the timeout.
+                            int remaining = timeoutMillis;
+                            if (timeoutMillis > 0) {
+                                long waited =
+                                        TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+                                remaining = (int) Math.max(1, timeoutMillis - waited);
+                            }
+                            try {
+                                call.set(
+                                        grpcCallouts.call(
+                                                host,
+                                                port,
+                                                plainText,
+                                                serviceName,
+                                                methodName,
+                                                headers,
+                                                message,
+                                                remaining,
+                                                releasing(handler, release)));
+                            } catch (RuntimeException e) {
+                                // the call couldn't start, the plugin is told so that it
+                                // resumes the request.
+                                release.run();
+                                if (!cancelled.get()) {
+                                    handler.onClose(GrpcCalloutClient.INTERNAL);
+                                }
+                                return;
+                            }
+                            if (cancelled.get()) {
+                                // cancelled while the call was starting.
+                                call.get().run();
+                                release.run();
+                            }
+                        });
+        return () -> {
+            cancelled.set(true);
+            f.cancel(true);
+            var started = call.get();
+            if (started != null) {
+                // a cancelled call is not closed, so its place is given back here.
+                started.run();
+                release.run();
+            }
+        };
+    }
+
+    private GrpcStream scheduleGrpcStream(
+            Semaphore limit,
+            String host,
+            int port,
+            boolean plainText,
+            String serviceName,
+            String methodName,
+            ProxyMap headers,
+            GrpcCallResponseHandler handler) {
+        if (!limit.tryAcquire()) {
+            return new ExhaustedStream(handler);
+        }
+        Runnable release = releaser(limit);
+        GrpcStream stream;
+        try {
+            stream =
+                    grpcCallouts.stream(
+                            host,
+                            port,
+                            plainText,
+                            serviceName,
+                            methodName,
+                            headers,
+                            releasing(handler, release));
+        } catch (RuntimeException e) {
+            release.run();
+            throw e;
+        }
+        return new GrpcStream() {
+            @Override
+            public boolean send(byte[] message, boolean endStream) {
+                return stream.send(message, endStream);
+            }
+
+            @Override
+            public void close() {
+                stream.close();
+            }
+
+            @Override
+            public void cancel() {
+                // a cancelled stream is not closed, so its place is given back here.
+                stream.cancel();
+                release.run();
+            }
+        };
+    }
+
+    // gives the place of a gRPC call or stream back to the plugin, once.
+    private static Runnable releaser(Semaphore limit) {
+        var released = new AtomicBoolean();
+        return () -> {
+            if (released.compareAndSet(false, true)) {
+                limit.release();
+            }
+        };
+    }
+
+    private static GrpcCallResponseHandler releasing(
+            GrpcCallResponseHandler handler, Runnable release) {
+        return new GrpcCallResponseHandler() {
+            @Override
+            public void onHeaders(ArrayBytesProxyMap headers) {
+                handler.onHeaders(headers);
+            }
+
+            @Override
+            public void onMessage(byte[] data) {
+                handler.onMessage(data);
+            }
+
+            @Override
+            public void onTrailers(ArrayBytesProxyMap trailers) {
+                handler.onTrailers(trailers);
+            }
+
+            @Override
+            public void onClose(int status) {
+                release.run();
+                handler.onClose(status);
+            }
+        };
+    }
+
+    /**
+     * A stream opened while the plugin is at its limit, which closes at once.
+     */
+    private class ExhaustedStream implements GrpcStream {
+        private final AtomicBoolean cancelled = new AtomicBoolean();
+
+        ExhaustedStream(GrpcCallResponseHandler handler) {
+            // closed from another thread, like the streams that fail to connect.
+            tasks.execute(
+                    () -> {
+                        if (!cancelled.get()) {
+                            handler.onClose(GrpcCalloutClient.RESOURCE_EXHAUSTED);
+                        }
+                    });
+        }
+
+        @Override
+        public boolean send(byte[] message, boolean endStream) {
+            return true; // the stream is closed, the message is dropped.
+        }
+
+        @Override
+        public void close() {}
+
+        @Override
+        public void cancel() {
+            cancelled.set(true);
+        }
+    }
+}
@@ -0,0 +1,38 @@
+package io.roastedroot.proxywasm.jaxrs.internal;
+
+import io.roastedroot.proxywasm.internal.BytesProxyMap;
+import io.roastedroot.proxywasm.internal.ProxyMap;
+
+/**
+ * A byte based copy of a ProxyMap that also applies its changes to the original map.
+ *
+ * <p>The JAX-RS header maps are slow to iterate and encode, so plugins read from the copy, while
+ * any header the plugin adds, replaces or removes is still applied to the request or response.
+ */
+public class WriteThroughProxyMap extends BytesProxyMap {
+
+    private final ProxyMap target;
+
+    public WriteThroughProxyMap(ProxyMap target) {
+        super(target);
+        this.target = target;
+    }
+
+    @Override
+    public void add(String key, String value) {
+        super.add(key, value);
+        target.add(key, value);
+    }
+
+    @Override
+    public void put(String key, String value) {
+        super.put(key, value);
+        target.put(key, value);
+    }
+
+    @Override
+    public void remove(String key) {
+        super.remove(key);
+        target.remove(key);
+    }
+}
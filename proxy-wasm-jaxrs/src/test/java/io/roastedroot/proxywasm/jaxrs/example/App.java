@@ -58,6 +58,22 @@ public class App {
                 .build();
     }
 
+    public static PluginFactory bodyChunkTests() {
+        return PluginFactory.builder(parseTestModule("/go-examples/http_body_chunk/main.wasm"))
+                .withName("bodyChunkTests")
+                .withLogger(new MockLogger("bodyChunkTests"))
+                .withBodyChunkSize(8)
+                .build();
+    }
+
+    public static PluginFactory responseBodyTests() {
+        return PluginFactory.builder(parseTestModule("/go-examples/http_body/main.wasm"))
+                .withName("responseBodyTests")
+                .withLogger(new MockLogger("responseBodyTests"))
+                .withBodyChunkSize(8)
+                .build();
+    }
+
     public static byte[] reverse(byte[] data) {
         byte[] reversed = new byte[data.length];
         for (int i = 0; i < data.length; i++) {
@@ -76,4 +76,25 @@ public class Resources {
     public String httpCallTestsAndFFI() {
         return "hello world";
     }
+
+    @Path("/bodyChunkTests")
+    @POST
+    @ProxyWasm("bodyChunkTests")
+    public String bodyChunkTests(String body) {
+        return body;
+    }
+
+    @Path("/bodyChunkTests/unread")
+    @POST
+    @ProxyWasm("bodyChunkTests")
+    public Response bodyChunkTestsUnread() {
+        return Response.ok("not read").header("x-application", "true").build();
+    }
+
+    @Path("/responseBodyTests")
+    @POST
+    @ProxyWasm("responseBodyTests")
+    public String responseBodyTests(String body) {
+        return "response to: " + body;
+    }
 }
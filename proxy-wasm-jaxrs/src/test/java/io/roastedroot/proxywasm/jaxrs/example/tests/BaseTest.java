@@ -1,6 +1,7 @@
 package io.roastedroot.proxywasm.jaxrs.example.tests;
 
 import io.restassured.specification.RequestSpecification;
+import io.roastedroot.proxywasm.internal.ServerAdaptor;
 import io.roastedroot.proxywasm.jaxrs.ProxyWasmFeature;
 import io.roastedroot.proxywasm.jaxrs.example.App;
 import io.roastedroot.proxywasm.jaxrs.example.Resources;
@@ -21,6 +22,10 @@ public class BaseTest {
         return io.restassured.RestAssured.given().port(PORT);
     }
 
+    protected ServerAdaptor serverAdaptor() {
+        return new BlockingServerAdaptor();
+    }
+
     @BeforeEach
     public void setUp() throws Exception {
         server = new Server(PORT);
@@ -33,12 +38,14 @@ public class BaseTest {
         // Create mock Instance<PluginFactory> for ProxyWasmFeature
         resourceConfig.register(
                 new ProxyWasmFeature(
-                        new BlockingServerAdaptor(),
+                        serverAdaptor(),
                         App.headerTests(),
                         App.headerTestsNotShared(),
                         App.tickTests(),
                         App.ffiTests(),
-                        App.httpCallTests()));
+                        App.httpCallTests(),
+                        App.bodyChunkTests(),
+                        App.responseBodyTests()));
 
         ServletHolder jerseyServlet = new ServletHolder(new ServletContainer(resourceConfig));
         jerseyServlet.setInitOrder(0);
@@ -0,0 +1,63 @@
+package io.roastedroot.proxywasm.jaxrs.example.tests;
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.nullValue;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * This test verifies that a plugin configured with a body chunk size receives the request and
+ * response bodies in chunks, can reject the request based on a chunk, and can buffer the chunks
+ * to modify the whole body.
+ */
+public class BodyChunkTest extends BaseTest {
+
+    @Test
+    public void testBodyPassesThrough() {
+        String body = "a request body that spans several chunks";
+        given().body(body)
+                .when()
+                .post("/bodyChunkTests")
+                .then()
+                .statusCode(200)
+                .body(equalTo(body));
+    }
+
+    @Test
+    public void testPatternInChunk() {
+        // with 8 byte chunks, "pattern" is entirely in the third chunk.
+        given().body("01234567abcdefghpattern!")
+                .when()
+                .post("/bodyChunkTests")
+                .then()
+                .statusCode(403)
+                .body(equalTo("pattern found in chunk: 3"));
+    }
+
+    @Test
+    public void testPatternInUnreadBody() {
+        // the body is only passed to the plugin after the application, whose response is then
+        // replaced with the one of the plugin, headers included.
+        given().body("01234567abcdefghpattern!")
+                .when()
+                .post("/bodyChunkTests/unread")
+                .then()
+                .statusCode(403)
+                .header("powered-by", "proxy-wasm-go-sdk")
+                .header("x-application", nullValue())
+                .body(equalTo("pattern found in chunk: 3"));
+    }
+
+    @Test
+    public void testBufferedResponseBody() {
+        // the plugin pauses until it sees the last response chunk, then appends to the body.
+        given().header("buffer-replace-at", "response")
+                .header("buffer-operation", "append")
+                .body("a body longer than one chunk")
+                .when()
+                .post("/responseBodyTests")
+                .then()
+                .statusCode(200)
+                .body(equalTo("response to: a body longer than one chunk[this is appended body]"));
+    }
+}
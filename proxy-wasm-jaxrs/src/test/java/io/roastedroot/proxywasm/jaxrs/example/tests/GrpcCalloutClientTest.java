@@ -0,0 +1,408 @@
+package io.roastedroot.proxywasm.jaxrs.example.tests;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import io.roastedroot.proxywasm.internal.ArrayBytesProxyMap;
+import io.roastedroot.proxywasm.internal.ArrayProxyMap;
+import io.roastedroot.proxywasm.internal.GrpcCallResponseHandler;
+import io.roastedroot.proxywasm.internal.GrpcStream;
+import io.roastedroot.proxywasm.jaxrs.internal.GrpcCalloutClient;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.KeyStore;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.TrustManagerFactory;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class GrpcCalloutClientTest {
+
+    private static final int RECEIVE_WINDOW = 16384;
+
+    private GrpcStub stub;
+    private final CountDownLatch release = new CountDownLatch(1);
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+    private final GrpcCalloutClient client =
+            new GrpcCalloutClient(Duration.ofSeconds(5), 1024, RECEIVE_WINDOW, executor);
+
+    /**
+     * Records the events of a call.
+     */
+    static class Events implements GrpcCallResponseHandler {
+        final List<String> events = Collections.synchronizedList(new ArrayList<>());
+        final LinkedBlockingQueue<String> messages = new LinkedBlockingQueue<>();
+        final CompletableFuture<Integer> closed = new CompletableFuture<>();
+        volatile ArrayBytesProxyMap headers;
+        volatile ArrayBytesProxyMap trailers;
+        volatile Thread thread;
+
+        @Override
+        public void onHeaders(ArrayBytesProxyMap headers) {
+            this.headers = headers;
+            events.add("headers");
+        }
+
+        @Override
+        public void onMessage(byte[] data) {
+            messages.add(new String(data, StandardCharsets.UTF_8));
+            events.add("message");
+        }
+
+        @Override
+        public void onTrailers(ArrayBytesProxyMap trailers) {
+            this.trailers = trailers;
+            events.add("trailers");
+        }
+
+        @Override
+        public void onClose(int status) {
+            thread = Thread.currentThread();
+            events.add("close");
+            closed.complete(status);
+        }
+
+        String message() throws InterruptedException {
+            return messages.poll(10, TimeUnit.SECONDS);
+        }
+    }
+
+    @BeforeEach
+    public void setUp() throws IOException {
+        stub = new GrpcStub(4096);
+        stub.method(
+                "/test.Echo/Say",
+                (call, message) -> {
+                    call.sendHeaders(
+                            "x-test",
+                            call.headers.get("x-test"),
+                            "x-te",
+                            call.headers.get("te"),
+                            "x-content-type",
+                            call.headers.get("content-type"));
+                    call.sendMessage(("hello " + new String(message)).getBytes());
+                    call.sendTrailers("grpc-status", "0", "x-trailer", "done");
+                });
+        stub.method("/test.Echo/Fail", (call, message) -> call.fail(5, "not found"));
+        stub.method("/test.Echo/Slow", (call, message) -> {});
+        stub.method(
+                "/test.Echo/Chat",
+                new GrpcStub.Method() {
+                    @Override
+                    public void onMessage(GrpcStub.Call call, byte[] message) throws IOException {
+                        if (call.sent.get() == 0) {
+                            call.sendHeaders();
+                        }
+                        call.sendMessage(("echo " + new String(message)).getBytes());
+                    }
+
+                    @Override
+                    public void onEnd(GrpcStub.Call call) throws IOException {
+                        call.sendTrailers("grpc-status", "0");
+                    }
+                });
+        stub.method("/test.Echo/Sink", (call, message) -> call.withholdWindow());
+        stub.method(
+                "/test.Echo/Flood",
+                (call, message) -> {
+                    // floods the client from another thread, so the stub keeps reading.
+                    int count = Integer.parseInt(new String(message));
+                    var flood =
+                            new Thread(
+                                    () -> {
+                                        try {
+                                            call.sendHeaders();
+                                            for (int i = 0; i < count; i++) {
+                                                call.sendMessage(new byte[1000]);
+                                            }
+                                            call.sendTrailers("grpc-status", "0");
+                                        } catch (IOException e) {
+                                            // the call is gone.
+                                        }
+                                    });
+                    flood.setDaemon(true);
+                    flood.start();
+                });
+    }
+
+    @AfterEach
+    public void tearDown() throws IOException {
+        release.countDown();
+        stub.close();
+        executor.shutdownNow();
+    }
+
+    private Events call(int port, String method, int timeout) {
+        var events = new Events();
+        client.call(
+                "localhost",
+                port,
+                true,
+                "test.Echo",
+                method,
+                new ArrayProxyMap(Map.of("x-test", "ok")),
+                "world".getBytes(StandardCharsets.UTF_8),
+                timeout,
+                events);
+        return events;
+    }
+
+    private GrpcStream stream(String method, GrpcCallResponseHandler handler) {
+        return client.stream(
+                "localhost", stub.port(), true, "test.Echo", method, new ArrayProxyMap(), handler);
+    }
+
+    private static void waitFor(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (!condition.getAsBoolean()) {
+            assertTrue(System.nanoTime() < deadline, "timed out");
+            Thread.sleep(10);
+        }
+    }
+
+    @Test
+    public void callsTheUpstream() throws Exception {
+        var events = call(stub.port(), "Say", 0);
+        assertEquals(0, events.closed.get(10, TimeUnit.SECONDS));
+        assertEquals(List.of("headers", "message", "trailers", "close"), events.events);
+        assertEquals("hello world", events.message());
+        assertEquals("ok", events.headers.get("x-test"));
+        assertEquals("trailers", events.headers.get("x-te"));
+        assertEquals("application/grpc", events.headers.get("x-content-type"));
+        assertEquals("done", events.trailers.get("x-trailer"));
+        assertNotEquals(Thread.currentThread(), events.thread);
+
+        // the calls to the upstream share its connection.
+        assertEquals(0, call(stub.port(), "Say", 0).closed.get(10, TimeUnit.SECONDS));
+        assertEquals(1, client.channels());
+        assertEquals(1, stub.connections.get());
+    }
+
+    @Test
+    public void passesTheStatusOfFailedCalls() throws Exception {
+        var events = call(stub.port(), "Fail", 0);
+        assertEquals(5, events.closed.get(10, TimeUnit.SECONDS));
+        assertEquals(List.of("headers", "trailers", "close"), events.events);
+        assertEquals("not found", events.trailers.get("grpc-message"));
+
+        // not a gRPC method of the upstream.
+        assertEquals(12, call(stub.port(), "Missing", 0).closed.get(10, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void timesOut() throws Exception {
+        var events = call(stub.port(), "Slow", 100);
+        assertEquals(4, events.closed.get(10, TimeUnit.SECONDS));
+        assertEquals(List.of("close"), events.events);
+        assertEquals("100m", stub.calls.poll(10, TimeUnit.SECONDS).headers.get("grpc-timeout"));
+
+        // the upstream is told to stop working on the call.
+        waitFor(() -> stub.resets.get() == 1);
+    }
+
+    @Test
+    public void failsWhenTheUpstreamIsUnavailable() throws Exception {
+        int unused;
+        try (var socket = new ServerSocket(0)) {
+            unused = socket.getLocalPort();
+        }
+        assertEquals(14, call(unused, "Say", 0).closed.get(10, TimeUnit.SECONDS));
+    }
+
+    // a TLS context with a self-signed certificate for localhost, which it also trusts.
+    private static SSLContext selfSigned(Path dir) throws Exception {
+        var keyStore = dir.resolve("stub.p12");
+        var keytool = Path.of(System.getProperty("java.home"), "bin", "keytool").toString();
+        var process =
+                new ProcessBuilder(
+                                keytool,
+                                "-genkeypair",
+                                "-keystore",
+                                keyStore.toString(),
+                                "-storetype",
+                                "PKCS12",
+                                "-storepass",
+                                "secret",
+                                "-alias",
+                                "stub",
+                                "-keyalg",
+                                "EC",
+                                "-dname",
+                                "CN=localhost",
+                                "-ext",
+                                "SAN=dns:localhost",
+                                "-validity",
+                                "1")
+                        .redirectErrorStream(true)
+                        .start();
+        process.getInputStream().transferTo(OutputStream.nullOutputStream());
+        assertEquals(0, process.waitFor());
+
+        var keys = KeyStore.getInstance("PKCS12");
+        try (var in = Files.newInputStream(keyStore)) {
+            keys.load(in, "secret".toCharArray());
+        }
+        var keyManagers = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+        keyManagers.init(keys, "secret".toCharArray());
+        var trustManagers =
+                TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+        trustManagers.init(keys);
+        var context = SSLContext.getInstance("TLS");
+        context.init(keyManagers.getKeyManagers(), trustManagers.getTrustManagers(), null);
+        return context;
+    }
+
+    @Test
+    public void callsTheUpstreamOverTls(@TempDir Path dir) throws Exception {
+        var tls = selfSigned(dir);
+        try (var secure = new GrpcStub(4096, tls)) {
+            secure.method(
+                    "/test.Echo/Say",
+                    (call, message) -> {
+                        call.sendHeaders();
+                        call.sendMessage(("hello " + new String(message)).getBytes());
+                        call.sendTrailers("grpc-status", "0");
+                    });
+            var trusting =
+                    new GrpcCalloutClient(
+                            Duration.ofSeconds(5),
+                            1024,
+                            RECEIVE_WINDOW,
+                            executor,
+                            tls.getSocketFactory());
+            var events = new Events();
+            trusting.call(
+                    "localhost",
+                    secure.port(),
+                    false,
+                    "test.Echo",
+                    "Say",
+                    new ArrayProxyMap(),
+                    "world".getBytes(StandardCharsets.UTF_8),
+                    0,
+                    events);
+            assertEquals(0, events.closed.get(10, TimeUnit.SECONDS));
+            assertEquals("hello world", events.message());
+            assertEquals("https", secure.calls.poll(10, TimeUnit.SECONDS).headers.get(":scheme"));
+
+            // the certificate of the upstream isn't trusted by default.
+            events = new Events();
+            client.call(
+                    "localhost",
+                    secure.port(),
+                    false,
+                    "test.Echo",
+                    "Say",
+                    new ArrayProxyMap(),
+                    new byte[0],
+                    0,
+                    events);
+            assertEquals(14, events.closed.get(10, TimeUnit.SECONDS));
+        }
+    }
+
+    @Test
+    public void streamsMessages() throws Exception {
+        var events = new Events();
+        var stream = stream("Chat", events);
+
+        // each message is answered while the stream is open.
+        assertTrue(stream.send("a".getBytes(), false));
+        assertEquals("echo a", events.message());
+        assertTrue(stream.send("b".getBytes(), true));
+        assertEquals("echo b", events.message());
+        assertThrows(IllegalStateException.class, () -> stream.send("c".getBytes(), false));
+
+        assertEquals(0, events.closed.get(10, TimeUnit.SECONDS));
+        assertEquals(List.of("headers", "message", "message", "trailers", "close"), events.events);
+        assertEquals(0, stub.resets.get());
+    }
+
+    @Test
+    public void cancelsStreams() throws Exception {
+        var events = new Events();
+        var stream = stream("Chat", events);
+        assertTrue(stream.send("a".getBytes(), false));
+        assertEquals("echo a", events.message());
+
+        stream.cancel();
+        waitFor(() -> stub.resets.get() == 1);
+        assertFalse(events.closed.isDone());
+        assertEquals(List.of("headers", "message"), events.events);
+    }
+
+    @Test
+    public void appliesBackPressureToSends() throws Exception {
+        var events = new Events();
+        var stream = stream("Sink", events);
+
+        // the upstream takes no more than its initial window, then the send buffer fills up.
+        int sent = 0;
+        while (sent < 100 && stream.send(new byte[500], false)) {
+            sent++;
+            Thread.sleep(5);
+        }
+        assertTrue(sent < 100);
+        assertFalse(stream.send(new byte[500], false));
+
+        // the upstream catches up.
+        stub.calls.poll(10, TimeUnit.SECONDS).extendWindow(1024 * 1024);
+        waitFor(() -> stream.send(new byte[500], false));
+        stream.cancel();
+    }
+
+    @Test
+    public void appliesBackPressureToReceives() throws Exception {
+        var events =
+                new Events() {
+                    @Override
+                    public void onMessage(byte[] data) {
+                        try {
+                            // a slow plugin.
+                            release.await(10, TimeUnit.SECONDS);
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                        }
+                        super.onMessage(data);
+                    }
+                };
+        var stream = stream("Flood", events);
+        assertTrue(stream.send("100".getBytes(), true));
+
+        // the window of the stream is extended until half of it waits for the plugin, then the
+        // upstream stalls.
+        var call = stub.calls.poll(10, TimeUnit.SECONDS);
+        waitFor(() -> call.sent.get() > 0);
+        Thread.sleep(500);
+        int stalled = call.sent.get();
+        assertTrue(stalled <= (RECEIVE_WINDOW + RECEIVE_WINDOW / 2) / 1005 + 1, "sent " + stalled);
+        Thread.sleep(200);
+        assertEquals(stalled, call.sent.get());
+
+        release.countDown();
+        assertEquals(0, events.closed.get(10, TimeUnit.SECONDS));
+        assertEquals(100, events.messages.size());
+    }
+}
@@ -0,0 +1,580 @@
+package io.roastedroot.proxywasm.jaxrs.example.tests;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocket;
+
+/**
+ * An in-process gRPC server, speaking HTTP/2 with prior knowledge or over TLS, to test the gRPC
+ * callouts.
+ *
+ * <p>The stub frames and encodes its headers on its own rather than with the client's
+ * {@code Http2Frame} and {@code Hpack}, so the tests don't only check that those agree with
+ * themselves.  Its headers use the static and dynamic tables and Huffman coding, as real
+ * servers do.
+ */
+public class GrpcStub implements AutoCloseable {
+
+    static final int DATA = 0x0;
+    static final int HEADERS = 0x1;
+    static final int RST_STREAM = 0x3;
+    static final int SETTINGS = 0x4;
+    static final int PING = 0x6;
+    static final int WINDOW_UPDATE = 0x8;
+    static final int CONTINUATION = 0x9;
+
+    static final int END_STREAM = 0x1;
+    static final int ACK = 0x1;
+    static final int END_HEADERS = 0x4;
+    static final int PADDED = 0x8;
+    static final int PRIORITY = 0x20;
+
+    static final int SETTINGS_INITIAL_WINDOW_SIZE = 0x4;
+    static final int DEFAULT_WINDOW_SIZE = 65535;
+    static final int MAX_FRAME_SIZE = 16384;
+
+    static final byte[] PREFACE =
+            "PRI * HTTP/2.0\r\n\r\nSM\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+
+    // the codes of RFC 7541 appendix B that are 5 and 6 bits long, enough for most headers.
+    private static final String HUFFMAN_5 = "012aceiost";
+    private static final String HUFFMAN_6 = " %-./3456789=A_bdfghlmnpru";
+
+    /**
+     * A method of the stub, called from the connection reader.
+     */
+    public interface Method {
+        void onMessage(Call call, byte[] message) throws IOException;
+
+        default void onEnd(Call call) throws IOException {}
+    }
+
+    private final ServerSocket server;
+    private final int initialWindowSize;
+    private final Map<String, Method> methods = new ConcurrentHashMap<>();
+    private final List<Socket> sockets = new ArrayList<>();
+    final AtomicInteger connections = new AtomicInteger();
+    final AtomicInteger resets = new AtomicInteger();
+    final LinkedBlockingQueue<Call> calls = new LinkedBlockingQueue<>();
+
+    /**
+     * @param initialWindowSize the flow control window the stub gives to the client streams.
+     */
+    public GrpcStub(int initialWindowSize) throws IOException {
+        this(initialWindowSize, null);
+    }
+
+    /**
+     * @param initialWindowSize the flow control window the stub gives to the client streams.
+     * @param tls the TLS context of the stub, or null for prior knowledge.
+     */
+    public GrpcStub(int initialWindowSize, SSLContext tls) throws IOException {
+        this.initialWindowSize = initialWindowSize;
+        var loopback = InetAddress.getLoopbackAddress();
+        this.server =
+                tls == null
+                        ? new ServerSocket(0, 50, loopback)
+                        : tls.getServerSocketFactory().createServerSocket(0, 50, loopback);
+        var acceptor = new Thread(this::accept, "grpc-stub");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    public int port() {
+        return server.getLocalPort();
+    }
+
+    public void method(String path, Method method) {
+        methods.put(path, method);
+    }
+
+    @Override
+    public void close() throws IOException {
+        server.close();
+        synchronized (sockets) {
+            for (var socket : sockets) {
+                socket.close();
+            }
+        }
+    }
+
+    private void accept() {
+        try {
+            while (true) {
+                var socket = server.accept();
+                if (socket instanceof SSLSocket) {
+                    var tls = (SSLSocket) socket;
+                    var parameters = tls.getSSLParameters();
+                    parameters.setApplicationProtocols(new String[] {"h2"});
+                    tls.setSSLParameters(parameters);
+                }
+                synchronized (sockets) {
+                    sockets.add(socket);
+                }
+                connections.incrementAndGet();
+                var connection = new Connection(socket);
+                var reader = new Thread(connection::read, "grpc-stub-connection");
+                reader.setDaemon(true);
+                reader.start();
+            }
+        } catch (IOException e) {
+            // the stub is closed.
+        }
+    }
+
+    /**
+     * A call received by the stub.
+     */
+    public class Call {
+        final Connection connection;
+        final int id;
+        final Map<String, String> headers;
+        long window;
+        boolean withholdWindow;
+        volatile boolean reset;
+        private ByteBuffer pending = ByteBuffer.allocate(0);
+        final AtomicInteger sent = new AtomicInteger();
+
+        Call(Connection connection, int id, Map<String, String> headers) {
+            this.connection = connection;
+            this.id = id;
+            this.headers = headers;
+        }
+
+        public void sendHeaders(String... metadata) throws IOException {
+            var headers = new ArrayList<Map.Entry<String, String>>();
+            headers.add(Map.entry(":status", "200"));
+            headers.add(Map.entry("content-type", "application/grpc"));
+            for (int i = 0; i < metadata.length; i += 2) {
+                headers.add(Map.entry(metadata[i], metadata[i + 1]));
+            }
+            connection.writeHeaders(END_HEADERS, id, headers);
+        }
+
+        /**
+         * Sends a message, once the flow control of the client lets it through.
+         */
+        public void sendMessage(byte[] message) throws IOException {
+            var data = ByteBuffer.allocate(5 + message.length);
+            data.put((byte) 0).putInt(message.length).put(message);
+            synchronized (connection) {
+                while (!reset
+                        && !connection.closed
+                        && Math.min(connection.window, window) < data.capacity()) {
+                    try {
+                        connection.wait(100);
+                    } catch (InterruptedException e) {
+                        throw new IOException(e);
+                    }
+                }
+                if (reset || connection.closed) {
+                    throw new IOException("the call is gone");
+                }
+                connection.window -= data.capacity();
+                window -= data.capacity();
+            }
+            connection.write(DATA, 0, id, data.array());
+            sent.incrementAndGet();
+        }
+
+        public void sendTrailers(String... metadata) throws IOException {
+            var trailers = new ArrayList<Map.Entry<String, String>>();
+            for (int i = 0; i < metadata.length; i += 2) {
+                trailers.add(Map.entry(metadata[i], metadata[i + 1]));
+            }
+            connection.writeHeaders(END_HEADERS | END_STREAM, id, trailers);
+        }
+
+        /**
+         * Fails the call with a trailers-only response.
+         */
+        public void fail(int status, String message) throws IOException {
+            var headers =
+                    List.of(
+                            Map.entry(":status", "200"),
+                            Map.entry("content-type", "application/grpc"),
+                            Map.entry("grpc-status", Integer.toString(status)),
+                            Map.entry("grpc-message", message));
+            connection.writeHeaders(END_HEADERS | END_STREAM, id, headers);
+        }
+
+        /**
+         * Stops extending the window of the client stream, so it can't send more than the
+         * initial window.
+         */
+        public void withholdWindow() {
+            withholdWindow = true;
+        }
+
+        public void extendWindow(int increment) throws IOException {
+            connection.write(
+                    WINDOW_UPDATE, 0, id, ByteBuffer.allocate(4).putInt(increment).array());
+        }
+    }
+
+    /**
+     * A frame read by the stub.
+     */
+    static class Frame {
+        final int type;
+        final int flags;
+        final int streamId;
+        final byte[] payload;
+
+        Frame(int type, int flags, int streamId, byte[] payload) {
+            this.type = type;
+            this.flags = flags;
+            this.streamId = streamId;
+            this.payload = payload;
+        }
+
+        boolean has(int flag) {
+            return (flags & flag) != 0;
+        }
+
+        int intValue() {
+            return ByteBuffer.wrap(payload).getInt() & 0x7fffffff;
+        }
+
+        // the payload of a DATA or HEADERS frame, without its padding and priority.
+        byte[] data() throws IOException {
+            int start = 0;
+            int end = payload.length;
+            if (has(PADDED)) {
+                end -= (payload[start++] & 0xff);
+            }
+            if (type == HEADERS && has(PRIORITY)) {
+                start += 5;
+            }
+            if (end < start) {
+                throw new IOException("invalid padding");
+            }
+            return Arrays.copyOfRange(payload, start, end);
+        }
+
+        static Frame read(DataInputStream in) throws IOException {
+            int first = in.read();
+            if (first < 0) {
+                return null;
+            }
+            int length = (first << 16) | in.readUnsignedShort();
+            if (length > MAX_FRAME_SIZE) {
+                throw new IOException("frame too large: " + length);
+            }
+            int type = in.readUnsignedByte();
+            int flags = in.readUnsignedByte();
+            int streamId = in.readInt() & 0x7fffffff;
+            var payload = new byte[length];
+            in.readFully(payload);
+            return new Frame(type, flags, streamId, payload);
+        }
+    }
+
+    class Connection {
+        private final Socket socket;
+        private final OutputStream out;
+        private final Map<Integer, Call> calls = new HashMap<>();
+        // the dynamic table of the headers the stub sends, newest first, which never evicts:
+        // once it would, the headers are sent without indexing.
+        private final List<Map.Entry<String, String>> table = new ArrayList<>();
+        private int tableSize;
+        long window = DEFAULT_WINDOW_SIZE;
+        long initialWindow = DEFAULT_WINDOW_SIZE;
+        volatile boolean closed;
+
+        Connection(Socket socket) throws IOException {
+            this.socket = socket;
+            this.out = socket.getOutputStream();
+        }
+
+        synchronized void write(int type, int flags, int streamId, byte[] payload)
+                throws IOException {
+            var frame = ByteBuffer.allocate(9 + payload.length);
+            frame.put((byte) (payload.length >>> 16)).putShort((short) payload.length);
+            frame.put((byte) type).put((byte) flags).putInt(streamId).put(payload);
+            out.write(frame.array());
+            out.flush();
+        }
+
+        // encodes the headers under the lock, so the blocks reach the client in the order of
+        // the dynamic table.
+        synchronized void writeHeaders(
+                int flags, int streamId, List<Map.Entry<String, String>> headers)
+                throws IOException {
+            var block = new ByteArrayOutputStream();
+            for (var header : headers) {
+                int index = table.indexOf(header);
+                if (index >= 0) {
+                    writeInt(block, 0x80, 7, 62 + index);
+                } else if (header.equals(Map.entry(":status", "200"))) {
+                    block.write(0x88);
+                } else {
+                    int size = header.getKey().length() + header.getValue().length() + 32;
+                    boolean indexed = tableSize + size <= 4096;
+                    if (indexed) {
+                        table.add(0, header);
+                        tableSize += size;
+                    }
+                    if (header.getKey().equals("content-type")) {
+                        writeInt(block, indexed ? 0x40 : 0x00, indexed ? 6 : 4, 31);
+                    } else {
+                        block.write(indexed ? 0x40 : 0x00);
+                        writeString(block, header.getKey());
+                    }
+                    writeString(block, header.getValue());
+                }
+            }
+            write(HEADERS, flags, streamId, block.toByteArray());
+        }
+
+        void read() {
+            try (socket) {
+                var in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+                var preface = in.readNBytes(PREFACE.length);
+                if (!Arrays.equals(preface, PREFACE)) {
+                    return;
+                }
+                var settings = ByteBuffer.allocate(6);
+                settings.putShort((short) SETTINGS_INITIAL_WINDOW_SIZE).putInt(initialWindowSize);
+                write(SETTINGS, 0, 0, settings.array());
+                Frame frame;
+                while ((frame = Frame.read(in)) != null) {
+                    if (frame.type == HEADERS && !frame.has(END_HEADERS)) {
+                        frame = continued(frame, in);
+                    }
+                    onFrame(frame);
+                }
+            } catch (IOException e) {
+                // the connection is closed.
+            } finally {
+                synchronized (this) {
+                    closed = true;
+                    notifyAll();
+                }
+            }
+        }
+
+        // joins a HEADERS frame and its CONTINUATION frames.
+        private Frame continued(Frame headers, DataInputStream in) throws IOException {
+            var block = new ByteArrayOutputStream();
+            block.write(headers.data());
+            Frame next;
+            do {
+                next = Frame.read(in);
+                if (next == null || next.type != CONTINUATION) {
+                    throw new IOException("expected a CONTINUATION frame");
+                }
+                block.write(next.payload);
+            } while (!next.has(END_HEADERS));
+            return new Frame(
+                    HEADERS,
+                    (headers.flags & END_STREAM) | END_HEADERS,
+                    headers.streamId,
+                    block.toByteArray());
+        }
+
+        private void onFrame(Frame frame) throws IOException {
+            switch (frame.type) {
+                case SETTINGS:
+                    if (!frame.has(ACK)) {
+                        var settings = ByteBuffer.wrap(frame.payload);
+                        while (settings.remaining() >= 6) {
+                            int id = settings.getShort();
+                            int value = settings.getInt();
+                            if (id == SETTINGS_INITIAL_WINDOW_SIZE) {
+                                synchronized (this) {
+                                    for (var call : calls.values()) {
+                                        call.window += value - initialWindow;
+                                    }
+                                    initialWindow = value;
+                                    notifyAll();
+                                }
+                            }
+                        }
+                        write(SETTINGS, ACK, 0, new byte[0]);
+                    }
+                    break;
+                case WINDOW_UPDATE:
+                    synchronized (this) {
+                        if (frame.streamId == 0) {
+                            window += frame.intValue();
+                        } else if (calls.containsKey(frame.streamId)) {
+                            calls.get(frame.streamId).window += frame.intValue();
+                        }
+                        notifyAll();
+                    }
+                    break;
+                case HEADERS:
+                    {
+                        var headers = decode(frame.data());
+                        var call = new Call(this, frame.streamId, headers);
+                        synchronized (this) {
+                            call.window = initialWindow;
+                            calls.put(call.id, call);
+                        }
+                        GrpcStub.this.calls.add(call);
+                        if (methods.get(headers.get(":path")) == null) {
+                            call.fail(12, "unknown method");
+                        }
+                        break;
+                    }
+                case DATA:
+                    {
+                        Call call;
+                        synchronized (this) {
+                            call = calls.get(frame.streamId);
+                        }
+                        if (frame.payload.length > 0) {
+                            write(
+                                    WINDOW_UPDATE,
+                                    0,
+                                    0,
+                                    ByteBuffer.allocate(4).putInt(frame.payload.length).array());
+                            if (call != null && !call.withholdWindow) {
+                                call.extendWindow(frame.payload.length);
+                            }
+                        }
+                        var method = call == null ? null : methods.get(call.headers.get(":path"));
+                        if (method == null) {
+                            break;
+                        }
+                        var payload = frame.data();
+                        var data = ByteBuffer.allocate(call.pending.remaining() + payload.length);
+                        data.put(call.pending).put(payload).flip();
+                        while (data.remaining() >= 5) {
+                            int length = data.getInt(data.position() + 1);
+                            if (data.remaining() < 5 + length) {
+                                break;
+                            }
+                            data.position(data.position() + 5);
+                            var message = new byte[length];
+                            data.get(message);
+                            method.onMessage(call, message);
+                        }
+                        call.pending = data.slice();
+                        if (frame.has(END_STREAM)) {
+                            method.onEnd(call);
+                        }
+                        break;
+                    }
+                case RST_STREAM:
+                    synchronized (this) {
+                        var call = calls.remove(frame.streamId);
+                        if (call != null) {
+                            call.reset = true;
+                        }
+                        notifyAll();
+                    }
+                    resets.incrementAndGet();
+                    break;
+                case PING:
+                    if (!frame.has(ACK)) {
+                        write(PING, ACK, 0, frame.payload);
+                    }
+                    break;
+                default:
+                    break;
+            }
+        }
+    }
+
+    private static void writeString(ByteArrayOutputStream out, String value) {
+        var bytes = value.getBytes(StandardCharsets.UTF_8);
+        long bits = 0;
+        int count = 0;
+        var huffman = new ByteArrayOutputStream();
+        for (var b : bytes) {
+            int code = HUFFMAN_5.indexOf(b);
+            int length = 5;
+            if (code < 0) {
+                code = HUFFMAN_6.indexOf(b);
+                length = 6;
+                if (code < 0) {
+                    // not worth a whole code table, the string is sent as is.
+                    writeInt(out, 0, 7, bytes.length);
+                    out.write(bytes, 0, bytes.length);
+                    return;
+                }
+                code += 0x14;
+            }
+            bits = (bits << length) | code;
+            count += length;
+            while (count >= 8) {
+                count -= 8;
+                huffman.write((int) (bits >>> count));
+            }
+        }
+        if (count > 0) {
+            // padded with the most significant bits of EOS, which are all ones.
+            huffman.write((int) ((bits << (8 - count)) | (0xff >>> count)));
+        }
+        writeInt(out, 0x80, 7, huffman.size());
+        out.write(huffman.toByteArray(), 0, huffman.size());
+    }
+
+    private static void writeInt(ByteArrayOutputStream out, int flags, int prefixBits, int value) {
+        int max = (1 << prefixBits) - 1;
+        if (value < max) {
+            out.write(flags | value);
+            return;
+        }
+        out.write(flags | max);
+        value -= max;
+        while (value >= 0x80) {
+            out.write((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    // decodes the headers the client sends, which are all literals without Huffman coding.
+    private static Map<String, String> decode(byte[] block) throws IOException {
+        var headers = new HashMap<String, String>();
+        var in = ByteBuffer.wrap(block);
+        while (in.hasRemaining()) {
+            int b = in.get() & 0xff;
+            if (b != 0x00 && b != 0x10) {
+                throw new IOException("unexpected header representation: " + b);
+            }
+            headers.put(readString(in), readString(in));
+        }
+        return headers;
+    }
+
+    private static String readString(ByteBuffer in) throws IOException {
+        int first = in.get() & 0xff;
+        if ((first & 0x80) != 0) {
+            throw new IOException("unexpected Huffman string");
+        }
+        int length = first;
+        if (length == 0x7f) {
+            int shift = 0;
+            int b;
+            do {
+                b = in.get() & 0xff;
+                length += (b & 0x7f) << shift;
+                shift += 7;
+            } while ((b & 0x80) != 0);
+        }
+        var bytes = new byte[length];
+        in.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
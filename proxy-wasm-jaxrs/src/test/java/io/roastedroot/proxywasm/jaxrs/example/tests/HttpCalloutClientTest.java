@@ -0,0 +1,248 @@
+package io.roastedroot.proxywasm.jaxrs.example.tests;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.sun.net.httpserver.HttpServer;
+import io.roastedroot.proxywasm.internal.ArrayProxyMap;
+import io.roastedroot.proxywasm.jaxrs.internal.HttpCalloutCache;
+import io.roastedroot.proxywasm.jaxrs.internal.HttpCalloutClient;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+public class HttpCalloutClientTest {
+
+    private HttpServer stub;
+    private int port;
+    private final CountDownLatch release = new CountDownLatch(1);
+    private final AtomicInteger counted = new AtomicInteger();
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+    private final ExecutorService stubExecutor = Executors.newCachedThreadPool();
+    private final HttpCalloutClient client =
+            new HttpCalloutClient(1, Duration.ofSeconds(5), executor);
+
+    @BeforeEach
+    public void setUp() throws IOException {
+        stub = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        stub.setExecutor(stubExecutor);
+        stub.createContext(
+                "/echo",
+                exchange -> {
+                    byte[] body =
+                            (exchange.getRequestMethod() + " " + exchange.getRequestURI())
+                                    .getBytes(StandardCharsets.UTF_8);
+                    exchange.getResponseHeaders()
+                            .add("x-test", exchange.getRequestHeaders().getFirst("x-test"));
+                    exchange.sendResponseHeaders(201, body.length);
+                    exchange.getResponseBody().write(body);
+                    exchange.close();
+                });
+        stub.createContext(
+                "/counted",
+                exchange -> {
+                    var cacheControl = exchange.getRequestURI().getQuery();
+                    if (cacheControl != null) {
+                        exchange.getResponseHeaders().add("Cache-Control", cacheControl);
+                    }
+                    byte[] body =
+                            Integer.toString(counted.incrementAndGet())
+                                    .getBytes(StandardCharsets.UTF_8);
+                    exchange.sendResponseHeaders(200, body.length);
+                    exchange.getResponseBody().write(body);
+                    exchange.close();
+                });
+        stub.createContext(
+                "/gated",
+                exchange -> {
+                    byte[] body =
+                            Integer.toString(counted.incrementAndGet())
+                                    .getBytes(StandardCharsets.UTF_8);
+                    try {
+                        release.await(10, TimeUnit.SECONDS);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    exchange.sendResponseHeaders(200, body.length);
+                    exchange.getResponseBody().write(body);
+                    exchange.close();
+                });
+        stub.createContext(
+                "/slow",
+                exchange -> {
+                    try {
+                        release.await(10, TimeUnit.SECONDS);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    exchange.sendResponseHeaders(200, -1);
+                    exchange.close();
+                });
+        stub.start();
+        port = stub.getAddress().getPort();
+    }
+
+    @AfterEach
+    public void tearDown() {
+        release.countDown();
+        stub.stop(0);
+        stubExecutor.shutdownNow();
+        executor.shutdownNow();
+    }
+
+    private CompletableFuture<Object[]> call(String path, int timeout) {
+        return call(path, "hello", timeout);
+    }
+
+    private String body(String path, String header) throws Exception {
+        var response = call(path, header, 0).get(10, TimeUnit.SECONDS);
+        assertEquals(200, response[0]);
+        return new String((byte[]) response[2], StandardCharsets.UTF_8);
+    }
+
+    private CompletableFuture<Object[]> call(String path, String header, int timeout) {
+        var headers = new ArrayProxyMap(Map.of("x-test", header));
+        var result = new CompletableFuture<Object[]>();
+        client.send(
+                "GET",
+                "localhost",
+                port,
+                URI.create("http://example.com" + path),
+                headers,
+                new byte[0],
+                timeout,
+                (status, respHeaders, body) ->
+                        result.complete(new Object[] {status, respHeaders, body}));
+        return result;
+    }
+
+    @Test
+    public void sendsToTheUpstream() throws Exception {
+        var response = call("/echo?q=1", 0).get(10, TimeUnit.SECONDS);
+        assertEquals(201, response[0]);
+        assertEquals("hello", ((ArrayProxyMap) response[1]).get("x-test"));
+        assertEquals("GET /echo?q=1", new String((byte[]) response[2], StandardCharsets.UTF_8));
+
+        var metrics = client.metrics("http", "localhost", port);
+        assertEquals(1, metrics.requests());
+        assertEquals(0, metrics.errors());
+        assertEquals(0, metrics.inFlight());
+        assertTrue(metrics.maxLatency().compareTo(Duration.ZERO) > 0);
+        assertEquals(Map.of("http://localhost:" + port, metrics), client.metrics());
+    }
+
+    @Test
+    public void timesOut() throws Exception {
+        var response = call("/slow", 100).get(10, TimeUnit.SECONDS);
+        assertEquals(504, response[0]);
+
+        var metrics = client.metrics("http", "localhost", port);
+        assertEquals(1, metrics.errors());
+        assertEquals(1, metrics.timeouts());
+    }
+
+    @Test
+    public void limitsCallsInFlight() throws Exception {
+        var slow = call("/slow", 0);
+
+        // the upstream already has its one call in flight.
+        var rejected = call("/echo", 0).get(10, TimeUnit.SECONDS);
+        assertEquals(503, rejected[0]);
+        var metrics = client.metrics("http", "localhost", port);
+        assertEquals(1, metrics.rejected());
+        assertEquals(1, metrics.inFlight());
+
+        release.countDown();
+        assertEquals(200, slow.get(10, TimeUnit.SECONDS)[0]);
+        assertEquals(201, call("/echo", 0).get(10, TimeUnit.SECONDS)[0]);
+        assertEquals(0, metrics.inFlight());
+    }
+
+    @Test
+    public void cachesResponses() throws Exception {
+        var cache =
+                HttpCalloutCache.builder()
+                        .withTtl(Duration.ofMinutes(1))
+                        .withKeyHeaders("X-Test")
+                        .withMaxEntries(2)
+                        .build();
+        client.withCache(URI.create("http://localhost:" + port), cache);
+
+        assertEquals("1", body("/counted", "a"));
+        assertEquals("1", body("/counted", "a"));
+        // the key headers and the query are part of the key.
+        assertEquals("2", body("/counted", "b"));
+        assertEquals("3", body("/counted?max-age=60", "a"));
+        assertEquals(1, cache.hits());
+        assertEquals(3, cache.misses());
+        assertEquals(0.25, cache.hitRate());
+
+        // the least recently used response was evicted.
+        assertEquals(1, cache.evictions());
+        assertEquals("4", body("/counted", "a"));
+        assertEquals("3", body("/counted?max-age=60", "a"));
+
+        // the upstream can tell not to cache its responses.
+        assertEquals("5", body("/counted?no-store", "a"));
+        assertEquals("6", body("/counted?no-store", "a"));
+        assertEquals(6, counted.get());
+    }
+
+    @Test
+    public void honorsCacheControlMaxAge() throws Exception {
+        var cache = HttpCalloutCache.builder().build();
+        client.withCache(URI.create("http://localhost:" + port), cache);
+
+        // without a TTL, only the responses with a max age are cached.
+        assertEquals("1", body("/counted", "a"));
+        assertEquals("2", body("/counted", "a"));
+        assertEquals("3", body("/counted?max-age=60", "a"));
+        assertEquals("3", body("/counted?max-age=60", "a"));
+        assertEquals("4", body("/counted?max-age=0", "a"));
+        assertEquals("5", body("/counted?max-age=0", "a"));
+        assertEquals(1, cache.hits());
+    }
+
+    @Test
+    public void coalescesIdenticalCalls() throws Exception {
+        client.withCoalescing(true);
+
+        var calls = new ArrayList<CompletableFuture<Object[]>>();
+        for (int i = 0; i < 5; i++) {
+            calls.add(call("/gated", "a", 0));
+        }
+        // not the same call, it is sent on its own and the upstream is at its limit.
+        assertEquals(503, call("/gated", "b", 0).get(10, TimeUnit.SECONDS)[0]);
+
+        release.countDown();
+        for (var call : calls) {
+            var response = call.get(10, TimeUnit.SECONDS);
+            assertEquals(200, response[0]);
+            assertEquals("1", new String((byte[]) response[2], StandardCharsets.UTF_8));
+        }
+        // each caller got its own copy.
+        assertNotSame(calls.get(0).get()[2], calls.get(1).get()[2]);
+
+        assertEquals(1, counted.get());
+        var metrics = client.metrics("http", "localhost", port);
+        assertEquals(1, metrics.requests());
+        assertEquals(4, metrics.coalesced());
+
+        // the call is done, the next one is sent again.
+        assertEquals("2", body("/gated", "a"));
+    }
+}
@@ -0,0 +1,85 @@
+package io.roastedroot.proxywasm.jaxrs.example.tests;
+
+import static io.roastedroot.proxywasm.internal.Helpers.bytes;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import io.roastedroot.proxywasm.internal.WasmResult;
+import io.roastedroot.proxywasm.internal.WellKnownHeaders;
+import io.roastedroot.proxywasm.internal.WellKnownProperties;
+import io.roastedroot.proxywasm.jaxrs.internal.JaxrsHttpRequestAdaptor;
+import jakarta.ws.rs.core.Response;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import org.glassfish.jersey.internal.MapPropertiesDelegate;
+import org.glassfish.jersey.server.ContainerRequest;
+import org.glassfish.jersey.server.ContainerResponse;
+import org.junit.jupiter.api.Test;
+
+public class JaxrsHttpRequestAdaptorTest {
+
+    private static ContainerRequest request() {
+        var request =
+                new ContainerRequest(
+                        URI.create("http://localhost:8080/"),
+                        URI.create("http://localhost:8080/old?a=1"),
+                        "GET",
+                        null,
+                        new MapPropertiesDelegate(),
+                        null);
+        request.header("User-Agent", "old-agent");
+        return request;
+    }
+
+    @Test
+    public void requestHeadersFollowTheProperties() throws Exception {
+        var adaptor = new JaxrsHttpRequestAdaptor();
+        adaptor.setRequestContext(request());
+
+        // reads the headers first, so they are cached.
+        var headers = adaptor.getHttpRequestHeaders();
+        assertEquals("/old?a=1", headers.get(WellKnownHeaders.PATH));
+        assertEquals("GET", headers.get(WellKnownHeaders.METHOD));
+
+        assertEquals(
+                WasmResult.OK,
+                adaptor.setProperty(null, WellKnownProperties.REQUEST_PATH, bytes("/new?b=2")));
+        assertEquals(
+                WasmResult.OK,
+                adaptor.setProperty(null, WellKnownProperties.REQUEST_METHOD, bytes("POST")));
+        assertEquals(
+                WasmResult.OK,
+                adaptor.setProperty(null, WellKnownProperties.REQUEST_HOST, bytes("example.com")));
+        assertEquals(
+                WasmResult.OK,
+                adaptor.setProperty(
+                        null, WellKnownProperties.REQUEST_USERAGENT, bytes("new-agent")));
+
+        headers = adaptor.getHttpRequestHeaders();
+        assertEquals("/new?b=2", headers.get(WellKnownHeaders.PATH));
+        assertEquals("POST", headers.get(WellKnownHeaders.METHOD));
+        assertEquals("example.com:8080", headers.get(WellKnownHeaders.AUTHORITY));
+        assertEquals("new-agent", headers.get("User-Agent"));
+
+        var encoded =
+                new String(
+                        adaptor.getProperty(null, WellKnownProperties.REQUEST_HEADERS),
+                        StandardCharsets.UTF_8);
+        assertTrue(encoded.contains("/new?b=2"), encoded);
+        assertTrue(encoded.contains("POST"), encoded);
+    }
+
+    @Test
+    public void responseHeadersFollowTheStatus() {
+        var adaptor = new JaxrsHttpRequestAdaptor();
+        var request = request();
+        adaptor.setRequestContext(request);
+        adaptor.setResponseContext(new ContainerResponse(request, Response.ok().build()));
+
+        assertEquals("200", adaptor.getHttpResponseHeaders().get(WellKnownHeaders.STATUS));
+        assertEquals(
+                WasmResult.OK,
+                adaptor.setProperty(null, WellKnownProperties.RESPONSE_CODE, bytes(503)));
+        assertEquals("503", adaptor.getHttpResponseHeaders().get(WellKnownHeaders.STATUS));
+    }
+}
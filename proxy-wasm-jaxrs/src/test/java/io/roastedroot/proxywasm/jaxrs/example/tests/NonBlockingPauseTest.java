@@ -0,0 +1,105 @@
+package io.roastedroot.proxywasm.jaxrs.example.tests;
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import io.roastedroot.proxywasm.internal.Pool;
+import io.roastedroot.proxywasm.internal.ServerAdaptor;
+import io.roastedroot.proxywasm.jaxrs.ProxyWasmFilter;
+import io.roastedroot.proxywasm.jaxrs.example.App;
+import io.roastedroot.proxywasm.jaxrs.internal.BlockingServerAdaptor;
+import java.io.ByteArrayInputStream;
+import java.net.URI;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.glassfish.jersey.internal.MapPropertiesDelegate;
+import org.glassfish.jersey.server.ContainerRequest;
+import org.junit.jupiter.api.Test;
+
+public class NonBlockingPauseTest extends BaseTest {
+
+    private final BlockingServerAdaptor adaptor =
+            new BlockingServerAdaptor().withNonBlockingPause(true);
+
+    @Override
+    protected ServerAdaptor serverAdaptor() {
+        return adaptor;
+    }
+
+    /**
+     * A request context that can suspend the filter chain, like the RESTEasy Reactive ones.
+     */
+    public static class SuspendableRequest extends ContainerRequest {
+        volatile Thread suspendedBy;
+        volatile Thread resumedBy;
+        volatile Throwable error;
+        final CountDownLatch resumed = new CountDownLatch(1);
+
+        SuspendableRequest(URI requestUri) {
+            super(
+                    URI.create("http://localhost:" + PORT + "/"),
+                    requestUri,
+                    "GET",
+                    null,
+                    new MapPropertiesDelegate(),
+                    null);
+        }
+
+        public void suspend() {
+            suspendedBy = Thread.currentThread();
+        }
+
+        public void resume() {
+            resumedBy = Thread.currentThread();
+            resumed.countDown();
+        }
+
+        public void resume(Throwable t) {
+            error = t;
+            resume();
+        }
+    }
+
+    @Test
+    public void waitsWhenTheChainCannotBeSuspended() {
+        // jersey can't suspend request filters, the request thread waits for the plugin.
+        given().header("test", "ok")
+                .when()
+                .get("/httpCallTests")
+                .then()
+                .statusCode(200)
+                .body(equalTo("ok"))
+                .header("echo-test", "ok");
+    }
+
+    @Test
+    public void releasesTheRequestThread() throws Exception {
+        var pool = new Pool.PluginPerRequest(adaptor, App.httpCallTests());
+        var filter = new ProxyWasmFilter(List.of(pool), adaptor.resumeExecutor());
+
+        var request =
+                new SuspendableRequest(URI.create("http://localhost:" + PORT + "/httpCallTests"));
+        request.header("test", "ok");
+        request.setEntityStream(new ByteArrayInputStream(new byte[0]));
+
+        // the plugin pauses the request until its http call response is received.
+        filter.filter(request);
+        assertEquals(Thread.currentThread(), request.suspendedBy);
+
+        assertTrue(request.resumed.await(10, TimeUnit.SECONDS));
+        assertNotNull(request.resumedBy);
+        assertNotEquals(Thread.currentThread(), request.resumedBy);
+        assertNull(request.error);
+
+        var response = request.getAbortResponse();
+        assertNotNull(response);
+        assertEquals(200, response.getStatus());
+        assertEquals("ok", new String((byte[]) response.getEntity()));
+        assertEquals("ok", response.getHeaderString("echo-test"));
+    }
+}
@@ -0,0 +1,242 @@
+package io.roastedroot.proxywasm.jaxrs.example.tests;
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import io.roastedroot.proxywasm.internal.ArrayBytesProxyMap;
+import io.roastedroot.proxywasm.internal.ArrayProxyMap;
+import io.roastedroot.proxywasm.internal.GrpcCallResponseHandler;
+import io.roastedroot.proxywasm.internal.ProxyMap;
+import io.roastedroot.proxywasm.internal.ServerAdaptor;
+import io.roastedroot.proxywasm.jaxrs.internal.GrpcCalloutClient;
+import io.roastedroot.proxywasm.jaxrs.internal.VirtualThreadServerAdaptor;
+import java.net.URI;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import org.junit.jupiter.api.Test;
+
+public class VirtualThreadServerAdaptorTest extends BaseTest {
+
+    private final VirtualThreadServerAdaptor adaptor = new VirtualThreadServerAdaptor(1);
+
+    @Override
+    protected ServerAdaptor serverAdaptor() {
+        return adaptor;
+    }
+
+    @Test
+    public void httpCall() {
+        given().header("test", "ok")
+                .when()
+                .get("/httpCallTests")
+                .then()
+                .statusCode(200)
+                .body(equalTo("ok"))
+                .header("echo-test", "ok");
+    }
+
+    @Test
+    public void tick() throws InterruptedException {
+        given().when().get("/tickTests/enable").then().statusCode(200).body(equalTo("ok"));
+        Thread.sleep(300);
+        given().when().get("/tickTests/disable").then().statusCode(200).body(equalTo("ok"));
+        var ticks = given().when().get("/tickTests/get").then().statusCode(200);
+        assertTrue(Integer.parseInt(ticks.extract().body().asString()) >= 1);
+    }
+
+    @Test
+    public void limitsConcurrencyPerPlugin() throws InterruptedException {
+        ServerAdaptor plugin = adaptor.forPlugin("limited");
+        ServerAdaptor other = adaptor.forPlugin("other");
+        URI uri = URI.create("http://localhost:" + PORT + "/ok");
+
+        var release = new CountDownLatch(1);
+        var first = new CountDownLatch(1);
+        var second = new CountDownLatch(1);
+        var otherDone = new CountDownLatch(1);
+        plugin.scheduleHttpCall(
+                "GET",
+                "localhost",
+                PORT,
+                uri,
+                new ArrayProxyMap(),
+                new byte[0],
+                null,
+                0,
+                (status, headers, body) -> {
+                    first.countDown();
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                });
+        assertTrue(first.await(5, TimeUnit.SECONDS));
+        plugin.scheduleHttpCall(
+                "GET",
+                "localhost",
+                PORT,
+                uri,
+                new ArrayProxyMap(),
+                new byte[0],
+                null,
+                0,
+                (status, headers, body) -> {
+                    assertEquals(200, status);
+                    second.countDown();
+                });
+        other.scheduleHttpCall(
+                "GET",
+                "localhost",
+                PORT,
+                uri,
+                new ArrayProxyMap(),
+                new byte[0],
+                null,
+                0,
+                (status, headers, body) -> otherDone.countDown());
+
+        // the other plugin is not affected by the limit, the second call waits for the first.
+        assertTrue(otherDone.await(5, TimeUnit.SECONDS));
+        assertFalse(second.await(200, TimeUnit.MILLISECONDS));
+        release.countDown();
+        assertTrue(second.await(5, TimeUnit.SECONDS));
+    }
+
+    /**
+     * Completes with the status of a gRPC call or stream.
+     */
+    static class Status extends CompletableFuture<Integer> implements GrpcCallResponseHandler {
+        @Override
+        public void onHeaders(ArrayBytesProxyMap headers) {}
+
+        @Override
+        public void onMessage(byte[] data) {}
+
+        @Override
+        public void onTrailers(ArrayBytesProxyMap trailers) {}
+
+        @Override
+        public void onClose(int status) {
+            complete(status);
+        }
+    }
+
+    private static Status grpcCall(ServerAdaptor plugin, GrpcStub stub)
+            throws InterruptedException {
+        var status = new Status();
+        plugin.scheduleGrpcCall(
+                "localhost",
+                stub.port(),
+                true,
+                "test.Echo",
+                "Say",
+                new ArrayProxyMap(),
+                new byte[0],
+                0,
+                status);
+        return status;
+    }
+
+    @Test
+    public void limitsGrpcConcurrencyPerPlugin() throws Exception {
+        ServerAdaptor plugin = adaptor.forPlugin("limitedGrpc");
+        ServerAdaptor other = adaptor.forPlugin("otherGrpc");
+        try (var stub = new GrpcStub(4096)) {
+            stub.method(
+                    "/test.Echo/Say",
+                    (call, message) -> {
+                        call.sendHeaders();
+                        call.sendTrailers("grpc-status", "0");
+                    });
+            stub.method("/test.Echo/Slow", (call, message) -> {});
+
+            // the stream holds the only place of the plugin until it is cancelled.
+            var slow =
+                    plugin.scheduleGrpcStream(
+                            "localhost",
+                            stub.port(),
+                            true,
+                            "test.Echo",
+                            "Slow",
+                            new ArrayProxyMap(),
+                            new Status());
+            var call = grpcCall(plugin, stub);
+            var exhausted = new Status();
+            plugin.scheduleGrpcStream(
+                    "localhost",
+                    stub.port(),
+                    true,
+                    "test.Echo",
+                    "Slow",
+                    new ArrayProxyMap(),
+                    exhausted);
+
+            // the other plugin is not affected by the limit, the call waits for the stream and
+            // the second stream fails at once.
+            assertEquals(0, grpcCall(other, stub).get(5, TimeUnit.SECONDS));
+            assertEquals(8, exhausted.get(5, TimeUnit.SECONDS));
+            assertThrows(TimeoutException.class, () -> call.get(200, TimeUnit.MILLISECONDS));
+            slow.cancel();
+            assertEquals(0, call.get(5, TimeUnit.SECONDS));
+        }
+    }
+
+    @Test
+    public void passesTheFailuresOfCallsThatCantStart() throws Exception {
+        // the calls fail before reaching the upstream, the plugins still get their response.
+        var failing =
+                new GrpcCalloutClient() {
+                    @Override
+                    public Runnable call(
+                            String host,
+                            int port,
+                            boolean plainText,
+                            String serviceName,
+                            String methodName,
+                            ProxyMap headers,
+                            byte[] message,
+                            int timeout,
+                            GrpcCallResponseHandler handler) {
+                        throw new IllegalStateException("no channel");
+                    }
+                };
+        var broken = new VirtualThreadServerAdaptor(1);
+        broken.withGrpcCallouts(failing);
+        ServerAdaptor plugin = broken.forPlugin("broken");
+
+        var status = new CompletableFuture<Integer>();
+        plugin.scheduleHttpCall(
+                "GET",
+                "localhost",
+                PORT,
+                null,
+                new ArrayProxyMap(),
+                new byte[0],
+                null,
+                0,
+                (code, headers, body) -> status.complete(code));
+        assertEquals(502, status.get(5, TimeUnit.SECONDS));
+
+        // the second call only starts once the first gave its place back.
+        for (int i = 0; i < 2; i++) {
+            var grpc = new Status();
+            plugin.scheduleGrpcCall(
+                    "localhost",
+                    PORT,
+                    true,
+                    "test.Echo",
+                    "Say",
+                    new ArrayProxyMap(),
+                    new byte[0],
+                    0,
+                    grpc);
+            assertEquals(13, grpc.get(5, TimeUnit.SECONDS));
+        }
+    }
+}
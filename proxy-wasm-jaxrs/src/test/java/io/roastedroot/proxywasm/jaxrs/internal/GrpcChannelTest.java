@@ -0,0 +1,88 @@
+package io.roastedroot.proxywasm.jaxrs.internal;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import io.roastedroot.proxywasm.internal.ArrayBytesProxyMap;
+import io.roastedroot.proxywasm.internal.GrpcCallResponseHandler;
+import io.roastedroot.proxywasm.jaxrs.example.tests.GrpcStub;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import javax.net.ssl.SSLSocketFactory;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+public class GrpcChannelTest {
+
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+
+    @AfterEach
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * Completes with the status of a call.
+     */
+    static class Status extends CompletableFuture<Integer> implements GrpcCallResponseHandler {
+        @Override
+        public void onHeaders(ArrayBytesProxyMap headers) {}
+
+        @Override
+        public void onMessage(byte[] data) {}
+
+        @Override
+        public void onTrailers(ArrayBytesProxyMap trailers) {}
+
+        @Override
+        public void onClose(int status) {
+            complete(status);
+        }
+    }
+
+    private static Status say(GrpcChannel channel) {
+        var status = new Status();
+        channel.open("test.Echo", "Say", List.of(), 0, status).send(new byte[0], true);
+        return status;
+    }
+
+    @Test
+    public void goesAwayOnceTheStreamIdsRunOut() throws Exception {
+        try (var stub = new GrpcStub(4096)) {
+            stub.method(
+                    "/test.Echo/Say",
+                    (call, message) -> {
+                        call.sendHeaders();
+                        call.sendMessage(message);
+                        call.sendTrailers("grpc-status", "0");
+                    });
+            // the streams can take the ids 1 and 3.
+            var channel =
+                    new GrpcChannel(
+                            "localhost",
+                            stub.port(),
+                            true,
+                            Duration.ofSeconds(5),
+                            1024,
+                            Http2Frame.DEFAULT_MAX_FRAME_SIZE,
+                            executor,
+                            (SSLSocketFactory) SSLSocketFactory.getDefault(),
+                            3);
+            var first = say(channel);
+            var second = say(channel);
+            assertFalse(channel.isClosed());
+
+            assertNull(channel.open("test.Echo", "Say", List.of(), 0, new Status()));
+            assertTrue(channel.isClosed());
+            // the streams that got an id still complete.
+            assertEquals(0, first.get(10, TimeUnit.SECONDS));
+            assertEquals(0, second.get(10, TimeUnit.SECONDS));
+        }
+    }
+}
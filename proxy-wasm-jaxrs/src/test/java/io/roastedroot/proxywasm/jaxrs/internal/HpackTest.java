@@ -0,0 +1,156 @@
+package io.roastedroot.proxywasm.jaxrs.internal;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Decodes the examples of RFC 7541 appendix C, each block of an example with the dynamic table
+ * left by the previous ones.
+ */
+public class HpackTest {
+
+    private static List<Map.Entry<String, String>> headers(String... namesAndValues) {
+        var headers = new ArrayList<Map.Entry<String, String>>();
+        for (int i = 0; i < namesAndValues.length; i += 2) {
+            headers.add(Map.entry(namesAndValues[i], namesAndValues[i + 1]));
+        }
+        return headers;
+    }
+
+    private static List<Map.Entry<String, String>> decode(Hpack.Decoder decoder, String hex)
+            throws IOException {
+        var digits = hex.replace(" ", "");
+        var block = new byte[digits.length() / 2];
+        for (int i = 0; i < block.length; i++) {
+            block[i] = (byte) Integer.parseInt(digits.substring(2 * i, 2 * i + 2), 16);
+        }
+        return decoder.decode(block);
+    }
+
+    private static final List<Map.Entry<String, String>> FIRST_REQUEST =
+            headers(
+                    ":method", "GET",
+                    ":scheme", "http",
+                    ":path", "/",
+                    ":authority", "www.example.com");
+    private static final List<Map.Entry<String, String>> SECOND_REQUEST =
+            headers(
+                    ":method", "GET",
+                    ":scheme", "http",
+                    ":path", "/",
+                    ":authority", "www.example.com",
+                    "cache-control", "no-cache");
+    private static final List<Map.Entry<String, String>> THIRD_REQUEST =
+            headers(
+                    ":method", "GET",
+                    ":scheme", "https",
+                    ":path", "/index.html",
+                    ":authority", "www.example.com",
+                    "custom-key", "custom-value");
+
+    private static final List<Map.Entry<String, String>> FIRST_RESPONSE =
+            headers(
+                    ":status", "302",
+                    "cache-control", "private",
+                    "date", "Mon, 21 Oct 2013 20:13:21 GMT",
+                    "location", "https://www.example.com");
+    private static final List<Map.Entry<String, String>> SECOND_RESPONSE =
+            headers(
+                    ":status", "307",
+                    "cache-control", "private",
+                    "date", "Mon, 21 Oct 2013 20:13:21 GMT",
+                    "location", "https://www.example.com");
+    private static final List<Map.Entry<String, String>> THIRD_RESPONSE =
+            headers(
+                    ":status", "200",
+                    "cache-control", "private",
+                    "date", "Mon, 21 Oct 2013 20:13:22 GMT",
+                    "location", "https://www.example.com",
+                    "content-encoding", "gzip",
+                    "set-cookie", "foo=ASDJKHQKBZXOQWEOPIUAXQWEOIU; max-age=3600; version=1");
+
+    @Test
+    public void decodesRequestsWithoutHuffmanCoding() throws Exception {
+        // C.3
+        var decoder = new Hpack.Decoder();
+        assertEquals(
+                FIRST_REQUEST,
+                decode(decoder, "8286 8441 0f77 7777 2e65 7861 6d70 6c65 2e63 6f6d"));
+        assertEquals(SECOND_REQUEST, decode(decoder, "8286 84be 5808 6e6f 2d63 6163 6865"));
+        assertEquals(
+                THIRD_REQUEST,
+                decode(
+                        decoder,
+                        "8287 85bf 400a 6375 7374 6f6d 2d6b 6579 0c63 7573 746f 6d2d 7661 6c75"
+                                + " 65"));
+    }
+
+    @Test
+    public void decodesRequestsWithHuffmanCoding() throws Exception {
+        // C.4
+        var decoder = new Hpack.Decoder();
+        assertEquals(FIRST_REQUEST, decode(decoder, "8286 8441 8cf1 e3c2 e5f2 3a6b a0ab 90f4 ff"));
+        assertEquals(SECOND_REQUEST, decode(decoder, "8286 84be 5886 a8eb 1064 9cbf"));
+        assertEquals(
+                THIRD_REQUEST,
+                decode(decoder, "8287 85bf 4088 25a8 49e9 5ba9 7d7f 8925 a849 e95b b8e8 b4bf"));
+    }
+
+    @Test
+    public void decodesResponsesWithoutHuffmanCoding() throws Exception {
+        // C.5, the table is small enough for the entries to be evicted.
+        var decoder = new Hpack.Decoder(256);
+        assertEquals(
+                FIRST_RESPONSE,
+                decode(
+                        decoder,
+                        "4803 3330 3258 0770 7269 7661 7465 611d 4d6f 6e2c 2032 3120 4f63 7420"
+                                + " 3230 3133 2032 303a 3133 3a32 3120 474d 546e 1768 7474 7073"
+                                + " 3a2f 2f77 7777 2e65 7861 6d70 6c65 2e63 6f6d"));
+        assertEquals(SECOND_RESPONSE, decode(decoder, "4803 3330 37c1 c0bf"));
+        assertEquals(
+                THIRD_RESPONSE,
+                decode(
+                        decoder,
+                        "88c1 611d 4d6f 6e2c 2032 3120 4f63 7420 3230 3133 2032 303a 3133 3a32"
+                                + " 3220 474d 54c0 5a04 677a 6970 7738 666f 6f3d 4153 444a 4b48"
+                                + " 514b 425a 584f 5157 454f 5049 5541 5851 5745 4f49 553b 206d"
+                                + " 6178 2d61 6765 3d33 3630 303b 2076 6572 7369 6f6e 3d31"));
+    }
+
+    @Test
+    public void decodesResponsesWithHuffmanCoding() throws Exception {
+        // C.6
+        var decoder = new Hpack.Decoder(256);
+        assertEquals(
+                FIRST_RESPONSE,
+                decode(
+                        decoder,
+                        "4882 6402 5885 aec3 771a 4b61 96d0 7abe 9410 54d4 44a8 2005 9504 0b81"
+                                + " 66e0 82a6 2d1b ff6e 919d 29ad 1718 63c7 8f0b 97c8 e9ae 82ae"
+                                + " 43d3"));
+        assertEquals(SECOND_RESPONSE, decode(decoder, "4883 640e ffc1 c0bf"));
+        assertEquals(
+                THIRD_RESPONSE,
+                decode(
+                        decoder,
+                        "88c1 6196 d07a be94 1054 d444 a820 0595 040b 8166 e084 a62d 1bff c05a"
+                                + " 839b d9ab 77ad 94e7 821d d7f2 e6c7 b335 dfdf cd5b 3960 d5af"
+                                + " 2708 7f36 72c1 ab27 0fb5 291f 9587 3160 65c0 03ed 4ee5 b106"
+                                + " 3d50 07"));
+    }
+
+    @Test
+    public void rejectsMalformedBlocks() {
+        // an index past the tables, a truncated string, and a padding longer than 7 bits.
+        for (var hex : new String[] {"be", "0403 6162", "0081 ff"}) {
+            assertThrows(IOException.class, () -> decode(new Hpack.Decoder(), hex));
+        }
+    }
+}